@@ -3,13 +3,22 @@ package es.onlysolutions.arq.core.accesobd;
 import es.onlysolutions.arq.core.log.LoggerGenerator;
 import org.apache.commons.logging.Log;
 import org.hibernate.Criteria;
+import org.hibernate.EntityMode;
 import org.hibernate.Query;
 import org.hibernate.SQLQuery;
 import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.metadata.ClassMetadata;
 import org.springframework.orm.hibernate3.HibernateTemplate;
 import org.springframework.util.Assert;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Clase abstracta de la que heredaran todos los dao que utilizen Hibernate.<br>
@@ -30,6 +39,11 @@ public abstract class AbstractHibernateDao
      */
     private SessionFactory sessionFactory;
 
+    /**
+     * Numero maximo de primary keys por consulta IN (...). Oracle no admite listas de mas de 1000 elementos.
+     */
+    private static final int IN_BLOCK_SIZE = 500;
+
     /**
      * El getter para la session de Hibernate.<br>
      * Todos los daos comparten la misma session de Hibernate.
@@ -180,6 +194,73 @@ public abstract class AbstractHibernateDao
         return obj;
     }
 
+    /**
+     * Obtiene de la base de datos las entidades de la clase indicada con las primary keys indicadas, con una consulta
+     * IN (...) por cada bloque de claves en lugar de un GET por entidad.<br>
+     * Las primary keys que no existen en la base de datos no se incluyen en el resultado. Si la entidad no tiene una
+     * propiedad identificadora (clave compuesta sin propiedad) se realiza un GET por cada primary key.
+     *
+     * @param clazz La clase de las entidades a obtener.
+     * @param pks   Las primary keys de las entidades a obtener.
+     * @return Un mapa con cada primary key encontrada y su entidad.
+     * @see #get(Class, java.io.Serializable)
+     */
+    public Map<Serializable, Object> getAll(Class clazz, Collection<? extends Serializable> pks)
+    {
+        if (clazz == null)
+        {
+            throw new IllegalArgumentException("El parametro Class no puede ser null");
+        }
+
+        if (pks == null)
+        {
+            throw new IllegalArgumentException("La coleccion de primary keys no puede ser null");
+        }
+
+        List<Serializable> pending = new ArrayList<Serializable>(new LinkedHashSet<Serializable>(pks));
+        Map<Serializable, Object> result = new HashMap<Serializable, Object>(pending.size() * 2);
+
+        ClassMetadata metadata = sessionFactory.getClassMetadata(clazz);
+        Assert.notNull(metadata, "La clase " + clazz.getName() + " no es una entidad de Hibernate");
+
+        if (!metadata.hasIdentifierProperty())
+        {
+            for (Serializable pk : pending)
+            {
+                Object entity = get(clazz, pk);
+                if (entity != null)
+                {
+                    result.put(pk, entity);
+                }
+            }
+            return result;
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Se va a tratar de realizar un GET de " + pending.size() + " entidades: " + clazz.getName());
+        }
+
+        String idProperty = metadata.getIdentifierPropertyName();
+        for (int from = 0; from < pending.size(); from += IN_BLOCK_SIZE)
+        {
+            Criteria criteria = getCriteria(clazz);
+            criteria.add(Restrictions.in(idProperty, pending.subList(from, Math.min(from + IN_BLOCK_SIZE, pending.size()))));
+
+            for (Object entity : criteria.list())
+            {
+                result.put(metadata.getIdentifier(entity, EntityMode.POJO), entity);
+            }
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("OK -> " + result.size() + " entidades getAll( " + clazz.getName() + ", " + pending.size() + " pks )");
+        }
+
+        return result;
+    }
+
     /**
      * Realiza una actualizacion de la entidad pasada como par�metro.<br>
      * �ste m�todo es un wraper del m�todo HibernateTemplate@update .
@@ -5,6 +5,7 @@ import es.onlysolutions.arq.core.accesobd.exception.DaoException;
 import es.onlysolutions.arq.core.log.LoggerGenerator;
 import org.apache.commons.logging.Log;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.nativejdbc.NativeJdbcExtractor;
 
 import javax.sql.DataSource;
 import java.sql.*;
@@ -26,6 +27,52 @@ public class AbstractJdbcDao
      */
     private DataSource datasource;
 
+    /**
+     * Numero de registros que se piden al driver en cada viaje a la base de datos en las consultas en streaming.
+     * Con 0 se utiliza el valor por defecto del driver.
+     */
+    private int fetchSize = 0;
+
+    /**
+     * Numero maximo de registros que un JdbcCursor lee por adelantado del driver.
+     */
+    private int readAheadSize = 500;
+
+    /**
+     * Numero de registros que se envian a la base de datos en cada executeBatch.
+     */
+    private int batchSize = 100;
+
+    /**
+     * Politica de copia de los Blob y Clob de los registros.
+     */
+    private volatile LobPolicy lobPolicy = LobPolicy.IN_MEMORY;
+
+    /**
+     * Tamaño a partir del cual los Blob y Clob se vuelcan a fichero. Negativo si nunca se vuelcan.
+     */
+    private long lobSpillThreshold = -1L;
+
+    /**
+     * Indica si los Blob y Clob obtenidos con getBlob y getClob en un IRowHandler se leen en el primer acceso.
+     */
+    private boolean lobDeferred = false;
+
+    /**
+     * Cache de PreparedStatement por conexion. Null si esta desactivada.
+     */
+    private volatile PreparedStatementCache statementCache;
+
+    /**
+     * Numero maximo de PreparedStatement cacheados por conexion. 0 si la cache esta desactivada.
+     */
+    private int statementCacheSize = 0;
+
+    /**
+     * Extractor de la conexion fisica de las conexiones del pool, para la cache de statements.
+     */
+    private NativeJdbcExtractor nativeJdbcExtractor;
+
     /**
      * Establece el DataSource.<br>
      * Es llamado automaticamente por el IoC de Spring.<br>
@@ -38,6 +85,143 @@ public class AbstractJdbcDao
         this.datasource = datasource;
     }
 
+    /**
+     * Establece el numero de registros que se piden al driver en cada viaje a la base de datos en las consultas
+     * en streaming (openCursor y executeQuery con IRowHandler). Por defecto 0, el valor por defecto del driver.
+     *
+     * @param fetchSize El fetch size de JDBC.
+     * @see Statement#setFetchSize(int)
+     */
+    public void setFetchSize(int fetchSize)
+    {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Establece el numero maximo de registros que un JdbcCursor lee por adelantado del driver. Por defecto 500.
+     *
+     * @param readAheadSize El tamaño del buffer de lectura adelantada.
+     */
+    public void setReadAheadSize(int readAheadSize)
+    {
+        this.readAheadSize = readAheadSize;
+    }
+
+    /**
+     * Establece el numero de registros que se envian a la base de datos en cada executeBatch de JDBC al ejecutar un
+     * lote con executeBatch(CachedPreparedStatement). Por defecto 100. Con 0 o menos se envia el lote completo de una vez.
+     *
+     * @param batchSize El numero de registros de cada bloque.
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Establece el tamaño a partir del cual los Blob y Clob de los registros se vuelcan a un fichero temporal mapeado
+     * en memoria en lugar de copiarse en el heap, en bytes para los Blob y en caracteres para los Clob.
+     * Por defecto -1, los LOB se copian siempre en memoria.
+     *
+     * @param lobSpillThreshold El umbral, o negativo para no volcar nunca a fichero.
+     */
+    public void setLobSpillThreshold(long lobSpillThreshold)
+    {
+        this.lobSpillThreshold = lobSpillThreshold;
+        this.lobPolicy = new LobPolicy(lobSpillThreshold, lobDeferred);
+    }
+
+    /**
+     * Indica si los Blob y Clob obtenidos con getBlob(ResultSet, int) y getClob(ResultSet, int) guardan solo el
+     * localizador del driver y leen los datos en el primer acceso. Por defecto false.<br>
+     * Solo se aplica a los registros procesados con executeQuery(CachedPreparedStatement, IRowHandler), donde el
+     * IRowHandler se ejecuta en el Thread que tiene la conexion abierta. Los datos deben leerse antes de que termine
+     * executeQuery; despues el driver ya no puede resolver el localizador. executeQuery y openCursor copian siempre
+     * los LOB al leer el registro.
+     *
+     * @param lobDeferred true para retrasar la lectura de los LOB.
+     * @see #getBlob(ResultSet, int)
+     * @see #getClob(ResultSet, int)
+     */
+    public void setLobDeferred(boolean lobDeferred)
+    {
+        this.lobDeferred = lobDeferred;
+        this.lobPolicy = new LobPolicy(lobSpillThreshold, lobDeferred);
+    }
+
+    /**
+     * Establece el numero maximo de PreparedStatement que se cachean por conexion en executeQuery, indexados por
+     * su SQL. Por defecto 0, sin cache. Al cambiarlo se cierran los statements cacheados hasta el momento.<br>
+     * Si el pool devuelve un envoltorio distinto de la conexion en cada peticion debe indicarse tambien
+     * <i>nativeJdbcExtractor</i>, o utilizar en su lugar la cache de statements del pool.
+     *
+     * @param statementCacheSize El numero maximo de statements por conexion, o 0 para desactivar la cache.
+     * @see PreparedStatementCache
+     */
+    public void setStatementCacheSize(int statementCacheSize)
+    {
+        this.statementCacheSize = statementCacheSize;
+        resetStatementCache();
+    }
+
+    /**
+     * Establece el extractor de la conexion fisica de las conexiones del pool (por ejemplo
+     * CommonsDbcpNativeJdbcExtractor o C3P0NativeJdbcExtractor), para que la cache de statements se indexe por la
+     * conexion fisica y los statements se reutilicen entre peticiones. Al cambiarlo se cierran los statements cacheados
+     * hasta el momento.
+     *
+     * @param nativeJdbcExtractor El extractor, o null para indexar por la conexion obtenida del DataSource.
+     * @see #setStatementCacheSize(int)
+     */
+    public void setNativeJdbcExtractor(NativeJdbcExtractor nativeJdbcExtractor)
+    {
+        this.nativeJdbcExtractor = nativeJdbcExtractor;
+        resetStatementCache();
+    }
+
+    /**
+     * Devuelve el numero de PreparedStatement reutilizados de la cache.
+     *
+     * @return El numero de aciertos de la cache, o 0 si esta desactivada.
+     */
+    public long getStatementCacheHits()
+    {
+        PreparedStatementCache cache = statementCache;
+        return cache != null ? cache.getHits() : 0;
+    }
+
+    /**
+     * Devuelve el numero de PreparedStatement que ha habido que preparar por no estar en la cache.
+     *
+     * @return El numero de fallos de la cache, o 0 si esta desactivada.
+     */
+    public long getStatementCacheMisses()
+    {
+        PreparedStatementCache cache = statementCache;
+        return cache != null ? cache.getMisses() : 0;
+    }
+
+    /**
+     * Cierra los statements cacheados y crea la cache con la configuracion actual.
+     */
+    private void resetStatementCache()
+    {
+        clearStatementCache();
+        this.statementCache = statementCacheSize > 0 ? new PreparedStatementCache(statementCacheSize, nativeJdbcExtractor) : null;
+    }
+
+    /**
+     * Cierra todos los PreparedStatement cacheados. Puede indicarse como destroy-method en la configuracion de Spring.
+     */
+    public void clearStatementCache()
+    {
+        PreparedStatementCache cache = statementCache;
+        if (cache != null)
+        {
+            cache.clear();
+        }
+    }
+
     /**
      * Ejecuta la query pasada como parametro con los argumentos del PreparedStatement.
      *
@@ -46,20 +230,43 @@ public class AbstractJdbcDao
      * @throws DaoException Si ocurre algun error durante la ejecucion del metodo.
      */
     protected ResultSet executeQuery(CachedPreparedStatement cpt) throws DaoException
+    {
+        return executeQuery(cpt, 0, -1);
+    }
+
+    /**
+     * Ejecuta la query pasada como parametro cacheando solo una ventana de registros, por ejemplo una pagina.<br>
+     * Se limita el numero de registros que devuelve el driver (PreparedStatement#setMaxRows) y no se recorre el
+     * resto del cursor, por lo que el CachedResultSet devuelto no conoce el numero total de registros salvo que se
+     * alcance el final de los datos.
+     *
+     * @param cpt         El CachedPreparedStatement con los argumentos a ejecutar.
+     * @param startRowNum El numero de registros a saltar, comenzando en 0.
+     * @param maxRows     El numero maximo de registros a cachear, o -1 para cachear hasta el final.
+     * @return El CachedResultSet con la ventana de registros.
+     * @throws DaoException Si ocurre algun error durante la ejecucion del metodo.
+     * @see CachedResultSet#CachedResultSet(ResultSet, int, int)
+     */
+    protected CachedResultSet executeQuery(CachedPreparedStatement cpt, int startRowNum, int maxRows) throws DaoException
     {
         Connection con = null;
         ResultSet rs = null;
-        ResultSet csr = null;
+        CachedResultSet csr = null;
         PreparedStatement preparedSt = null;
+        PreparedStatementCache cache = statementCache;
         String sql = cpt.getSql();
 
         try
         {
             con = getConnection();
-            preparedSt = con.prepareStatement(sql);
+            preparedSt = cache != null ? cache.prepare(con, sql) : con.prepareStatement(sql);
             cpt.setParameters(preparedSt);
+            if (maxRows > 0)
+            {
+                preparedSt.setMaxRows(startRowNum + maxRows);
+            }
             rs = preparedSt.executeQuery();
-            csr = new CachedResultSet(rs);
+            csr = new CachedResultSet(rs, startRowNum, maxRows, lobPolicy.withoutDeferred());
         }
         catch (CachedException e)
         {
@@ -79,7 +286,7 @@ public class AbstractJdbcDao
         finally
         {
             closeResultSet(rs);
-            closeStatement(preparedSt);
+            releaseStatement(cache, con, sql, preparedSt, csr != null);
             closeConnection(con);
         }
 
@@ -87,6 +294,431 @@ public class AbstractJdbcDao
 
     }
 
+    /**
+     * Ejecuta la consulta del filtro cacheando solo la pagina indicada por FiltroDatos#getNumeroPagina().<br>
+     * Si el filtro ya incluye una condicion de paginacion (getPagingSql) se cachean los registros devueltos tal cual;
+     * en otro caso se saltan los registros de las paginas anteriores. Si se solicita el total y no se conoce tras leer
+     * la pagina se obtiene con la consulta COUNT del filtro (FiltroDatos#getSqlForCount()).
+     *
+     * @param filtro     El filtro con la consulta a ejecutar y el numero de pagina, comenzando en 1.
+     * @param pageSize   El numero de registros por pagina.
+     * @param countTotal Indica si se debe obtener el numero total de registros.
+     * @return El CachedResultSet con los registros de la pagina.
+     * @throws DaoException Si ocurre algun error durante la ejecucion del metodo.
+     */
+    protected CachedResultSet executePagedQuery(FiltroDatos filtro, int pageSize, boolean countTotal) throws DaoException
+    {
+        if (pageSize <= 0)
+        {
+            throw new IllegalArgumentException("El numero de registros por pagina debe ser mayor que 0: " + pageSize);
+        }
+
+        int pagina = filtro.getNumeroPagina() > 0 ? filtro.getNumeroPagina() : 1;
+        String pagingSql = filtro.getPagingSql();
+        boolean sqlPaginado = pagingSql != null && pagingSql.length() > 0;
+        int startRowNum = sqlPaginado ? 0 : (pagina - 1) * pageSize;
+
+        CachedResultSet csr = executeQuery(filtro.getSql(), startRowNum, pageSize);
+
+        if (countTotal && (sqlPaginado || csr.getTotalRowCount() < 0))
+        {
+            ResultSet countRs = executeQuery(filtro.getSqlForCount());
+            try
+            {
+                if (countRs.next())
+                {
+                    csr.setTotalRowCount(countRs.getInt(1));
+                }
+            }
+            catch (SQLException e)
+            {
+                logger.error("Error al tratar de obtener el numero total de registros", e);
+                throw new DaoException("Error al tratar de obtener el numero total de registros", e);
+            }
+        }
+
+        return csr;
+    }
+
+    /**
+     * Ejecuta la sentencia de actualizacion (INSERT, UPDATE, DELETE) pasada como parametro con los argumentos del
+     * PreparedStatement.
+     *
+     * @param cpt El CachedPreparedStatement con los argumentos a ejecutar.
+     * @return El numero de registros afectados.
+     * @throws DaoException Si ocurre algun error durante la ejecucion del metodo.
+     */
+    protected int executeUpdate(CachedPreparedStatement cpt) throws DaoException
+    {
+        Connection con = null;
+        PreparedStatement preparedSt = null;
+        PreparedStatementCache cache = statementCache;
+        String sql = cpt.getSql();
+        int updateCount = -1;
+
+        try
+        {
+            con = getConnection();
+            preparedSt = cache != null ? cache.prepare(con, sql) : con.prepareStatement(sql);
+            cpt.setParameters(preparedSt);
+            updateCount = preparedSt.executeUpdate();
+        }
+        catch (CachedException e)
+        {
+            logger.error("Error al tratar de copiar los parametros al PreparedStatement o al obtener la conexion", e);
+            throw e;
+        }
+        catch (SQLException e)
+        {
+            logger.error("Error al tratar de ejecutar la sentencia: " + sql, e);
+            throw new DaoException("Error al tratar de ejecutar la sentencia: " + sql, e);
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Error inesperado al tratar de ejecutar la sentencia: " + sql, e);
+            throw new DaoException("Error inesperado al tratar de ejecutar la sentencia: " + sql, e);
+        }
+        finally
+        {
+            releaseStatement(cache, con, sql, preparedSt, updateCount >= 0);
+            closeConnection(con);
+        }
+
+        return updateCount;
+    }
+
+    /**
+     * Ejecuta en bloque todos los conjuntos de parametros acumulados con CachedPreparedStatement#addBatch().<br>
+     * Los registros se envian mediante PreparedStatement#executeBatch() en bloques de <i>batchSize</i> registros, todos
+     * ellos dentro de una unica transaccion: si falla cualquier bloque se deshace el lote completo. Al terminar
+     * correctamente se vacia el lote del CachedPreparedStatement.
+     *
+     * @param cpt El CachedPreparedStatement con el lote a ejecutar.
+     * @return Los contadores de actualizacion de cada bloque, tal y como los devuelve el driver.
+     * @throws DaoException Si ocurre algun error durante la ejecucion del metodo.
+     * @see #setBatchSize(int)
+     */
+    protected int[][] executeBatch(CachedPreparedStatement cpt) throws DaoException
+    {
+        Connection con = null;
+        PreparedStatement preparedSt = null;
+        String sql = cpt.getSql();
+        int totalRows = cpt.getBatchSize();
+        if (totalRows == 0)
+        {
+            logger.warn("Se trataba de ejecutar un lote vacio: " + sql);
+            return new int[0][];
+        }
+        int chunkSize = batchSize > 0 ? batchSize : totalRows;
+        int[][] updateCounts = new int[(totalRows + chunkSize - 1) / chunkSize][];
+        int chunk = 0;
+        boolean committed = false;
+
+        try
+        {
+            con = datasource.getConnection();
+            con.setAutoCommit(false);
+            preparedSt = con.prepareStatement(sql);
+            for (int row = 0; row < totalRows; row++)
+            {
+                cpt.setBatchParameters(preparedSt, row);
+                preparedSt.addBatch();
+                if ((row + 1) % chunkSize == 0 || row + 1 == totalRows)
+                {
+                    updateCounts[chunk] = preparedSt.executeBatch();
+                    chunk++;
+                }
+            }
+            con.commit();
+            committed = true;
+        }
+        catch (CachedException e)
+        {
+            logger.error("Error al tratar de copiar los parametros al PreparedStatement en el bloque " + chunk, e);
+            throw e;
+        }
+        catch (SQLException e)
+        {
+            logger.error("Error al tratar de ejecutar el lote: " + sql + " en el bloque " + chunk, e);
+            throw new DaoException("Error al tratar de ejecutar el lote: " + sql + " en el bloque " + chunk, e);
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Error inesperado al tratar de ejecutar el lote: " + sql + " en el bloque " + chunk, e);
+            throw new DaoException("Error inesperado al tratar de ejecutar el lote: " + sql, e);
+        }
+        finally
+        {
+            if (!committed && con != null)
+            {
+                rollback(con);
+            }
+            closeTransactionalResources(null, preparedSt, con);
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Ejecutados " + totalRows + " registros en " + chunk + " bloques del lote: " + sql);
+        }
+
+        cpt.clearBatch();
+        return updateCounts;
+    }
+
+    /**
+     * Ejecuta la query pasada como parametro procesando los registros uno a uno con el IRowHandler indicado,
+     * sin cargarlos en memoria. La conexion se mantiene abierta mientras se recorre el resultado y se cierra al terminar.
+     *
+     * @param cpt     El CachedPreparedStatement con los argumentos a ejecutar.
+     * @param handler El IRowHandler que procesara cada registro.
+     * @return El numero de registros procesados.
+     * @throws DaoException Si ocurre algun error durante la ejecucion del metodo.
+     */
+    protected int executeQuery(CachedPreparedStatement cpt, IRowHandler handler) throws DaoException
+    {
+        Connection con = null;
+        ResultSet rs = null;
+        PreparedStatement preparedSt = null;
+        String sql = cpt.getSql();
+        int rowNum = 0;
+
+        try
+        {
+            con = getStreamingConnection();
+            preparedSt = prepareStreamingStatement(con, cpt);
+            rs = preparedSt.executeQuery();
+            while (rs.next())
+            {
+                rowNum++;
+                handler.processRow(rs, rowNum);
+            }
+        }
+        catch (CachedException e)
+        {
+            logger.error("Error al tratar de copiar los parametros al PreparedStatement o al obtener la conexion", e);
+            throw e;
+        }
+        catch (SQLException e)
+        {
+            logger.error("Error al tratar de ejecutar la query: " + sql + " en el registro " + rowNum, e);
+            throw new DaoException("Error al tratar de ejecutar la query: " + sql + " en el registro " + rowNum, e);
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Error inesperado al tratar de ejecutar la query: " + sql + " en el registro " + rowNum, e);
+            throw e;
+        }
+        finally
+        {
+            closeTransactionalResources(rs, preparedSt, con);
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Procesados " + rowNum + " registros de la query: " + sql);
+        }
+
+        return rowNum;
+    }
+
+    /**
+     * Devuelve el Blob de una columna del registro actual, copiado segun la politica de LOB configurada: en memoria,
+     * volcado a fichero si supera <i>lobSpillThreshold</i> o, con <i>lobDeferred</i>, leido en el primer acceso.<br>
+     * Esta pensado para los IRowHandler de executeQuery(CachedPreparedStatement, IRowHandler), y a diferencia del
+     * Blob del driver se puede conservar despues de pasar al siguiente registro.
+     *
+     * @param rs          El ResultSet del driver posicionado en el registro.
+     * @param columnIndex El indice de la columna, comenzando en 1.
+     * @return El Blob, o null si la columna es null.
+     * @throws SQLException Si ocurre algun error al leer el Blob.
+     * @see #setLobDeferred(boolean)
+     */
+    protected Blob getBlob(ResultSet rs, int columnIndex) throws SQLException
+    {
+        Blob blob = rs.getBlob(columnIndex);
+        return blob != null ? new CachedBlob(blob, lobPolicy) : null;
+    }
+
+    /**
+     * Devuelve el Clob de una columna del registro actual, copiado segun la politica de LOB configurada: en memoria,
+     * volcado a fichero si supera <i>lobSpillThreshold</i> o, con <i>lobDeferred</i>, leido en el primer acceso.<br>
+     * Esta pensado para los IRowHandler de executeQuery(CachedPreparedStatement, IRowHandler), y a diferencia del
+     * Clob del driver se puede conservar despues de pasar al siguiente registro.
+     *
+     * @param rs          El ResultSet del driver posicionado en el registro.
+     * @param columnIndex El indice de la columna, comenzando en 1.
+     * @return El Clob, o null si la columna es null.
+     * @throws SQLException Si ocurre algun error al leer el Clob.
+     * @see #setLobDeferred(boolean)
+     */
+    protected Clob getClob(ResultSet rs, int columnIndex) throws SQLException
+    {
+        Clob clob = rs.getClob(columnIndex);
+        return clob != null ? new CachedClob(clob, lobPolicy) : null;
+    }
+
+    /**
+     * Ejecuta la query pasada como parametro y devuelve un cursor de solo avance sobre el resultado.<br>
+     * El cursor mantiene la conexion abierta y va leyendo por adelantado como maximo <i>readAheadSize</i> registros,
+     * por lo que el consumo de memoria no depende del tamaño del resultado.
+     * <b>El cursor debe cerrarse siempre en un bloque finally para liberar la conexion.</b>
+     *
+     * @param cpt El CachedPreparedStatement con los argumentos a ejecutar.
+     * @return El cursor abierto.
+     * @throws DaoException Si ocurre algun error durante la ejecucion del metodo.
+     * @see JdbcCursor
+     */
+    protected JdbcCursor openCursor(CachedPreparedStatement cpt) throws DaoException
+    {
+        Connection con = null;
+        ResultSet rs = null;
+        PreparedStatement preparedSt = null;
+        JdbcCursor cursor = null;
+        String sql = cpt.getSql();
+
+        try
+        {
+            con = getStreamingConnection();
+            preparedSt = prepareStreamingStatement(con, cpt);
+            rs = preparedSt.executeQuery();
+            cursor = new JdbcCursor(this, con, preparedSt, rs, sql, readAheadSize, lobPolicy.withoutDeferred());
+        }
+        catch (CachedException e)
+        {
+            logger.error("Error al tratar de copiar los parametros al PreparedStatement o al obtener la conexion", e);
+            throw e;
+        }
+        catch (SQLException e)
+        {
+            logger.error("Error al tratar de ejecutar la query: " + sql, e);
+            throw new DaoException("Error al tratar de ejecutar la query: " + sql, e);
+        }
+        catch (Throwable t)
+        {
+            logger.error("Error inesperado al tratar de ejecutar la query: " + sql, t);
+            throw new DaoException("Error inesperado al tratar de ejecutar la query: ", t);
+        }
+        finally
+        {
+            if (cursor == null)
+            {
+                closeTransactionalResources(rs, preparedSt, con);
+            }
+        }
+
+        return cursor;
+    }
+
+    /**
+     * Prepara el statement para una consulta en streaming: solo avance, solo lectura y con el fetch size configurado.
+     *
+     * @param con La conexion abierta.
+     * @param cpt El CachedPreparedStatement con el SQL y los parametros.
+     * @return El PreparedStatement preparado.
+     * @throws SQLException Si ocurre algun error al preparar el statement.
+     */
+    private PreparedStatement prepareStreamingStatement(Connection con, CachedPreparedStatement cpt) throws SQLException
+    {
+        PreparedStatement preparedSt = con.prepareStatement(cpt.getSql(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        if (fetchSize > 0)
+        {
+            preparedSt.setFetchSize(fetchSize);
+        }
+        cpt.setParameters(preparedSt);
+        return preparedSt;
+    }
+
+    /**
+     * Obtiene la conexion para una consulta en streaming. Se desactiva el autocommit, ya que algunos drivers
+     * (PostgreSQL entre otros) solo respetan el fetch size dentro de una transaccion.
+     *
+     * @return El objeto Connection ya abierto.
+     * @throws SQLException Si ocurre algun error al obtener la conexion.
+     */
+    private Connection getStreamingConnection() throws SQLException
+    {
+        Connection con = datasource.getConnection();
+        con.setAutoCommit(false);
+        return con;
+    }
+
+    /**
+     * Devuelve a la cache, o cierra si la cache esta desactivada, el statement de una ejecucion.
+     *
+     * @param cache      La cache de statements, o null si esta desactivada.
+     * @param con        La conexion del statement.
+     * @param sql        El SQL del statement.
+     * @param preparedSt El statement.
+     * @param reusable   Indica si la ejecucion fue correcta y el statement puede volver a la cache.
+     */
+    private void releaseStatement(PreparedStatementCache cache, Connection con, String sql, PreparedStatement preparedSt, boolean reusable)
+    {
+        if (cache != null && preparedSt != null)
+        {
+            if (reusable)
+            {
+                cache.release(con, sql, preparedSt);
+            }
+            else
+            {
+                cache.discard(preparedSt);
+            }
+        }
+        else
+        {
+            closeStatement(preparedSt);
+        }
+    }
+
+    /**
+     * Deshace la transaccion en curso de la conexion silenciosamente.
+     *
+     * @param con La conexion.
+     */
+    private void rollback(Connection con)
+    {
+        try
+        {
+            con.rollback();
+        }
+        catch (SQLException ex)
+        {
+            logger.error("No es posible deshacer la transaccion de la Connection: " + con, ex);
+        }
+    }
+
+    /**
+     * Libera los recursos de una ejecucion con el autocommit desactivado (consultas en streaming y lotes),
+     * restaurando el autocommit de la conexion antes de cerrarla. Lo utiliza tambien el JdbcCursor al cerrarse.
+     *
+     * @param rs   El ResultSet a cerrar.
+     * @param stmt El Statement a cerrar.
+     * @param con  La conexion a cerrar.
+     */
+    void closeTransactionalResources(ResultSet rs, Statement stmt, Connection con)
+    {
+        if (rs != null)
+        {
+            closeResultSet(rs);
+        }
+        if (stmt != null)
+        {
+            closeStatement(stmt);
+        }
+        if (con != null)
+        {
+            try
+            {
+                con.setAutoCommit(true);
+            }
+            catch (SQLException ex)
+            {
+                logger.error("No es posible restaurar el autocommit de la Connection: " + con, ex);
+            }
+            closeConnection(con);
+        }
+    }
+
     /**
      * Obtiene la conexi�n para ejecutar la query.
      *
@@ -109,6 +109,7 @@ public class AutoAddingList
     public void clear()
     {
         _elements = new Object[10];
+        _actualSize = 0;
     }
 
     /**
@@ -5,19 +5,30 @@ import es.onlysolutions.arq.core.accesobd.exception.CachedUpdateException;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.sql.Blob;
 import java.sql.SQLException;
 
 /**
- * Implementacion de Blob que carga el blob en memoria.
+ * Implementacion de Blob que carga el blob en memoria.<br>
+ * Segun la LobPolicy indicada, los blob que superan el umbral se vuelcan a un fichero temporal mapeado en memoria, y
+ * en modo diferido solo se guarda el localizador del driver hasta el primer acceso.
+ *
+ * @see LobPolicy
  */
 class CachedBlob implements Blob
 {
     /**
-     * Los datos del Blob.
+     * Los datos del Blob, si se han copiado en memoria.
      */
     private byte[] _data;
 
+    /**
+     * Los datos del Blob, si se han volcado a fichero.
+     */
+    private ByteBuffer _spilled;
+
+
 
     /**
      * Constructor para CachedBlob.
@@ -26,9 +37,115 @@ class CachedBlob implements Blob
      * @throws SQLException
      */
     CachedBlob(Blob blob) throws SQLException
+    {
+        this(blob, LobPolicy.IN_MEMORY);
+    }
+
+
+    /**
+     * El Blob del driver, mientras no se hayan leido los datos en modo diferido.
+     */
+    private Blob _locator;
+
+    /**
+     * La politica de copia de los datos, mientras no se hayan leido en modo diferido.
+     */
+    private LobPolicy _policy;
+
+
+    /**
+     * Constructor para CachedBlob con la politica de copia indicada.
+     *
+     * @param blob   El Blob del driver.
+     * @param policy La politica de copia de los datos.
+     * @throws SQLException Si ocurre algun error al leer el Blob.
+     */
+    CachedBlob(Blob blob, LobPolicy policy) throws SQLException
     {
         super();
-        _data = blob.getBytes(1L, (int) blob.length());
+        if (policy.isDeferred())
+        {
+            _locator = blob;
+            _policy = policy;
+        }
+        else
+        {
+            load(blob, policy);
+        }
+    }
+
+
+    /**
+     * Copia los datos del Blob del driver, en memoria o a fichero segun su tamaño.
+     *
+     * @param blob   El Blob del driver.
+     * @param policy La politica de copia de los datos.
+     * @throws SQLException Si ocurre algun error al leer el Blob.
+     */
+    private void load(Blob blob, LobPolicy policy) throws SQLException
+    {
+        long length = blob.length();
+        if (policy.mustSpill(length))
+        {
+            _spilled = LobSpillFile.spill(blob.getBinaryStream());
+        }
+        else
+        {
+            _data = blob.getBytes(1L, (int) length);
+        }
+    }
+
+
+    /**
+     * En modo diferido, lee los datos del Blob del driver en el primer acceso.
+     *
+     * @throws SQLException Si ocurre algun error al leer el Blob, por ejemplo si la conexion ya se ha cerrado.
+     */
+    private synchronized void ensureLoaded() throws SQLException
+    {
+        if (_locator != null)
+        {
+            load(_locator, _policy);
+            _locator = null;
+            _policy = null;
+        }
+    }
+
+
+    /**
+     * Comprueba que el Blob no se ha liberado con free(), leyendo antes los datos en modo diferido.
+     *
+     * @throws SQLException Si el Blob ha sido liberado o no se han podido leer sus datos.
+     */
+    private void checkNotFreed() throws SQLException
+    {
+        ensureLoaded();
+        if (_data == null && _spilled == null)
+        {
+            throw new SQLException("El Blob ha sido liberado");
+        }
+    }
+
+
+    /**
+     * Comprueba que la posicion y la longitud indicadas estan dentro del Blob.
+     *
+     * @param pos    La posicion, comenzando en 1.
+     * @param length La longitud.
+     * @throws SQLException Si el Blob ha sido liberado o la posicion o la longitud no son validas.
+     */
+    private void checkRange(long pos, long length) throws SQLException
+    {
+        checkNotFreed();
+        long total = length();
+        if (pos < 1L || pos - 1L > total)
+        {
+            throw new SQLException("La posicion " + pos + " esta fuera del Blob, de longitud " + total);
+        }
+        if (length < 0L)
+        {
+            throw new SQLException("La longitud no puede ser negativa: " + length);
+        }
     }
 
 
@@ -50,7 +167,15 @@ class CachedBlob implements Blob
      */
     public long length() throws SQLException
     {
-        return (long) _data.length;
+        synchronized (this)
+        {
+            if (_locator != null)
+            {
+                return _locator.length();
+            }
+        }
+        checkNotFreed();
+        return _spilled != null ? (long) _spilled.capacity() : (long) _data.length;
     }
 
 
@@ -65,8 +190,20 @@ class CachedBlob implements Blob
      */
     public byte[] getBytes(long pos, int length) throws SQLException
     {
-        byte[] bytes = new byte[length];
-        System.arraycopy(_data, (int) pos, bytes, 0, length);
+        checkRange(pos, length);
+        int offset = (int) pos - 1;
+        int count = (int) Math.max(0L, Math.min((long) length, length() - offset));
+        byte[] bytes = new byte[count];
+        if (_spilled != null)
+        {
+            ByteBuffer view = _spilled.duplicate();
+            view.position(offset);
+            view.get(bytes);
+        }
+        else
+        {
+            System.arraycopy(_data, offset, bytes, 0, count);
+        }
         return bytes;
     }
 
@@ -80,7 +217,8 @@ class CachedBlob implements Blob
      */
     public InputStream getBinaryStream() throws SQLException
     {
-        return new ByteArrayInputStream(_data);
+        checkNotFreed();
+        return _spilled != null ? LobSpillFile.newInputStream(_spilled) : new ByteArrayInputStream(_data);
     }
 
 
@@ -96,7 +234,16 @@ class CachedBlob implements Blob
      */
     public InputStream getBinaryStream(long pos, long length) throws SQLException
     {
-        return new ByteArrayInputStream(_data, new Long(pos).intValue(), new Long(length).intValue());
+        checkRange(pos, length);
+        int offset = (int) pos - 1;
+        if (_spilled != null)
+        {
+            ByteBuffer view = _spilled.duplicate();
+            view.position(offset);
+            view.limit((int) Math.min((long) view.capacity(), offset + length));
+            return LobSpillFile.newInputStream(view);
+        }
+        return new ByteArrayInputStream(_data, offset, (int) Math.min((long) _data.length - offset, length));
     }
 
 
@@ -188,7 +335,18 @@ class CachedBlob implements Blob
 	}
 	
 	
+	/**
+	 * free. Libera los datos del Blob; el fichero temporal se libera al descartar el buffer mapeado.
+	 *
+	 * @throws SQLException
+	 * @see Blob#free()
+	 */
 	public void free() throws SQLException {
-		throw new SQLException("Metodo free no implementado");
+		synchronized (this) {
+			_locator = null;
+			_policy = null;
+		}
+		_data = null;
+		_spilled = null;
 	}
 }
\ No newline at end of file
@@ -3,16 +3,27 @@ package es.onlysolutions.arq.core.accesobd;
 import es.onlysolutions.arq.core.accesobd.exception.CachedUpdateException;
 
 import java.io.*;
+import java.nio.CharBuffer;
 import java.sql.Clob;
 import java.sql.SQLException;
 
 /**
- * Implementaci�n de java.sql.Clob que carga el clob en memoria
+ * Implementaci�n de java.sql.Clob que carga el clob en memoria.<br>
+ * Segun la LobPolicy indicada, los clob que superan el umbral se vuelcan a un fichero temporal mapeado en memoria, y
+ * en modo diferido solo se guarda el localizador del driver hasta el primer acceso.
+ *
+ * @see LobPolicy
  */
 class CachedClob implements Clob
 {
     private String _data;
 
+    /**
+     * Los datos del Clob, si se han volcado a fichero.
+     */
+    private CharBuffer _spilled;
+
+
 
     /**
      * Constructor para CachedClob.
@@ -21,9 +32,115 @@ class CachedClob implements Clob
      * @throws SQLException
      */
     CachedClob(Clob clob) throws SQLException
+    {
+        this(clob, LobPolicy.IN_MEMORY);
+    }
+
+
+    /**
+     * El Clob del driver, mientras no se hayan leido los datos en modo diferido.
+     */
+    private Clob _locator;
+
+    /**
+     * La politica de copia de los datos, mientras no se hayan leido en modo diferido.
+     */
+    private LobPolicy _policy;
+
+
+    /**
+     * Constructor para CachedClob con la politica de copia indicada.
+     *
+     * @param clob   El Clob del driver.
+     * @param policy La politica de copia de los datos.
+     * @throws SQLException Si ocurre algun error al leer el Clob.
+     */
+    CachedClob(Clob clob, LobPolicy policy) throws SQLException
     {
         super();
-        this._data = clob.getSubString(1L, (int) clob.length());
+        if (policy.isDeferred())
+        {
+            _locator = clob;
+            _policy = policy;
+        }
+        else
+        {
+            load(clob, policy);
+        }
+    }
+
+
+    /**
+     * Copia los datos del Clob del driver, en memoria o a fichero segun su tamaño.
+     *
+     * @param clob   El Clob del driver.
+     * @param policy La politica de copia de los datos.
+     * @throws SQLException Si ocurre algun error al leer el Clob.
+     */
+    private void load(Clob clob, LobPolicy policy) throws SQLException
+    {
+        long length = clob.length();
+        if (policy.mustSpill(length))
+        {
+            _spilled = LobSpillFile.spill(clob.getCharacterStream());
+        }
+        else
+        {
+            _data = clob.getSubString(1L, (int) length);
+        }
+    }
+
+
+    /**
+     * En modo diferido, lee los datos del Clob del driver en el primer acceso.
+     *
+     * @throws SQLException Si ocurre algun error al leer el Clob, por ejemplo si la conexion ya se ha cerrado.
+     */
+    private synchronized void ensureLoaded() throws SQLException
+    {
+        if (_locator != null)
+        {
+            load(_locator, _policy);
+            _locator = null;
+            _policy = null;
+        }
+    }
+
+
+    /**
+     * Comprueba que el Clob no se ha liberado con free(), leyendo antes los datos en modo diferido.
+     *
+     * @throws SQLException Si el Clob ha sido liberado o no se han podido leer sus datos.
+     */
+    private void checkNotFreed() throws SQLException
+    {
+        ensureLoaded();
+        if (_data == null && _spilled == null)
+        {
+            throw new SQLException("El Clob ha sido liberado");
+        }
+    }
+
+
+    /**
+     * Comprueba que la posicion y la longitud indicadas estan dentro del Clob.
+     *
+     * @param pos    La posicion, comenzando en 1.
+     * @param length La longitud.
+     * @throws SQLException Si el Clob ha sido liberado o la posicion o la longitud no son validas.
+     */
+    private void checkRange(long pos, long length) throws SQLException
+    {
+        checkNotFreed();
+        long total = length();
+        if (pos < 1L || pos - 1L > total)
+        {
+            throw new SQLException("La posicion " + pos + " esta fuera del Clob, de longitud " + total);
+        }
+        if (length < 0L)
+        {
+            throw new SQLException("La longitud no puede ser negativa: " + length);
+        }
     }
 
 
@@ -45,7 +162,15 @@ class CachedClob implements Clob
      */
     public long length() throws SQLException
     {
-        return (long) _data.length();
+        synchronized (this)
+        {
+            if (_locator != null)
+            {
+                return _locator.length();
+            }
+        }
+        checkNotFreed();
+        return _spilled != null ? (long) _spilled.capacity() : (long) _data.length();
     }
 
 
@@ -60,7 +185,17 @@ class CachedClob implements Clob
      */
     public String getSubString(long pos, int length) throws SQLException
     {
-        return _data.substring((int) pos, length);
+        checkRange(pos, length);
+        int offset = (int) pos - 1;
+        int end = (int) Math.min(length(), (long) offset + length);
+        if (_spilled != null)
+        {
+            CharBuffer view = _spilled.duplicate();
+            view.limit(end);
+            view.position(offset);
+            return view.toString();
+        }
+        return _data.substring(offset, end);
     }
 
 
@@ -73,7 +208,8 @@ class CachedClob implements Clob
      */
     public Reader getCharacterStream() throws SQLException
     {
-        return new StringReader(_data);
+        checkNotFreed();
+        return _spilled != null ? LobSpillFile.newReader(_spilled) : new StringReader(_data);
     }
 
 
@@ -89,7 +225,17 @@ class CachedClob implements Clob
      */
     public Reader getCharacterStream(long pos, long length) throws SQLException
     {
-        return new StringReader(_data);
+        checkRange(pos, length);
+        int offset = (int) pos - 1;
+        int end = (int) Math.min(length(), offset + length);
+        if (_spilled != null)
+        {
+            CharBuffer view = _spilled.duplicate();
+            view.limit(end);
+            view.position(offset);
+            return LobSpillFile.newReader(view);
+        }
+        return new StringReader(_data.substring(offset, end));
     }
 
 
@@ -102,7 +248,8 @@ class CachedClob implements Clob
      */
     public InputStream getAsciiStream() throws SQLException
     {
-        return new ByteArrayInputStream(_data.getBytes());
+        checkNotFreed();
+        return _spilled != null ? LobSpillFile.newAsciiInputStream(_spilled) : new ByteArrayInputStream(_data.getBytes());
     }
 
 
@@ -117,7 +264,48 @@ class CachedClob implements Clob
      */
     public long position(String str, long fromIndex) throws SQLException
     {
-        return (long) _data.indexOf(str, (int) fromIndex);
+        checkNotFreed();
+        if (fromIndex < 1L)
+        {
+            throw new SQLException("La posicion inicial debe ser mayor que 0: " + fromIndex);
+        }
+        int index;
+        if (_spilled != null)
+        {
+            index = indexOf(_spilled, str, (int) fromIndex - 1);
+        }
+        else
+        {
+            index = _data.indexOf(str, (int) fromIndex - 1);
+        }
+        return index < 0 ? -1L : (long) index + 1;
+    }
+
+
+    /**
+     * Busca una cadena en los datos volcados a fichero.
+     *
+     * @param data      Los datos.
+     * @param str       La cadena a buscar.
+     * @param fromIndex La posicion desde la que buscar, comenzando en 0.
+     * @return La posicion de la cadena, comenzando en 0, o -1 si no se encuentra.
+     */
+    private static int indexOf(CharBuffer data, String str, int fromIndex)
+    {
+        int last = data.capacity() - str.length();
+        for (int i = Math.max(0, fromIndex); i <= last; i++)
+        {
+            int j = 0;
+            while (j < str.length() && data.get(i + j) == str.charAt(j))
+            {
+                j++;
+            }
+            if (j == str.length())
+            {
+                return i;
+            }
+        }
+        return -1;
     }
 
 
@@ -208,7 +396,18 @@ class CachedClob implements Clob
 	}
 	
 	
+	/**
+	 * free. Libera los datos del Clob; el fichero temporal se libera al descartar el buffer mapeado.
+	 *
+	 * @throws SQLException
+	 * @see Clob#free()
+	 */
 	public void free() throws SQLException {
-		throw new SQLException("Metodo free no implementado");
+		synchronized (this) {
+			_locator = null;
+			_policy = null;
+		}
+		_data = null;
+		_spilled = null;
 	}
 }
\ No newline at end of file
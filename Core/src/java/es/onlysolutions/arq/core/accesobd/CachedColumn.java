@@ -0,0 +1,581 @@
+package es.onlysolutions.arq.core.accesobd;
+
+import java.math.BigDecimal;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Almacenamiento por columnas de los datos de un CachedResultSet.<br>
+ * En lugar de guardar cada registro como un Object[], cada columna guarda sus valores en un unico array. Las columnas
+ * numericas (INTEGER, BIGINT, NUMERIC sin decimales, DOUBLE) se guardan en arrays de tipos primitivos con un mapa de bits
+ * para los nulos, y las columnas de texto se codifican con un diccionario para no repetir en memoria los valores iguales.<br>
+ * El tipo de almacenamiento se elige a partir de los metadatos de la columna. Si durante la carga el driver devuelve un
+ * valor que no encaja en el almacenamiento elegido, la columna debe convertirse mediante {@link #toObjectColumn()}.
+ *
+ * @see CachedResultSet
+ */
+abstract class CachedColumn
+{
+    /**
+     * Capacidad inicial de las columnas.
+     */
+    private static final int INITIAL_CAPACITY = 113;
+
+    /**
+     * Numero de valores almacenados en la columna.
+     */
+    protected int size;
+
+    /**
+     * Mapa de bits con las posiciones que contienen un valor nulo.
+     */
+    protected final BitSet nulls = new BitSet();
+
+    /**
+     * Crea la columna adecuada para almacenar los valores de la columna indicada del ResultSetMetaData.
+     *
+     * @param metadata    Los metadatos del ResultSet.
+     * @param columnIndex El indice de la columna, comenzando en 1.
+     * @return La columna vacia preparada para la carga.
+     * @throws SQLException Si ocurre algun error al leer los metadatos.
+     */
+    static CachedColumn forMetadata(ResultSetMetaData metadata, int columnIndex) throws SQLException
+    {
+        CachedColumn column;
+        String className = metadata.getColumnClassName(columnIndex);
+
+        switch (metadata.getColumnType(columnIndex))
+        {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                column = isClass(className, Integer.class) ? new IntColumn() : new ObjectColumn();
+                break;
+            case Types.BIGINT:
+                column = isClass(className, Long.class) ? new LongColumn() : new ObjectColumn();
+                break;
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                column = isClass(className, Double.class) ? new DoubleColumn() : new ObjectColumn();
+                break;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                boolean integral = metadata.getScale(columnIndex) == 0;
+                column = integral && isClass(className, BigDecimal.class) ? new DecimalColumn() : new ObjectColumn();
+                break;
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+                column = isClass(className, String.class) ? new StringColumn() : new ObjectColumn();
+                break;
+            default:
+                column = new ObjectColumn();
+        }
+
+        return column;
+    }
+
+    /**
+     * Comprueba si el nombre de clase indicado por los metadatos corresponde con la clase esperada.
+     * Algunos drivers no informan el nombre de la clase, en cuyo caso se asume que es la esperada.
+     *
+     * @param className El nombre de clase de los metadatos.
+     * @param clazz     La clase esperada.
+     * @return true si coincide o no se ha informado.
+     */
+    private static boolean isClass(String className, Class clazz)
+    {
+        return className == null || clazz.getName().equals(className);
+    }
+
+    /**
+     * Calcula la nueva capacidad de un array que se ha quedado pequeño.
+     *
+     * @param length La capacidad actual.
+     * @return La nueva capacidad.
+     */
+    protected static int grow(int length)
+    {
+        return (length * 3) / 2 + 1;
+    }
+
+    /**
+     * Devuelve el numero de valores de la columna.
+     *
+     * @return El numero de valores.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Indica si el valor del registro indicado es nulo.
+     *
+     * @param row El registro, comenzando en 0.
+     * @return true si es nulo.
+     */
+    boolean isNull(int row)
+    {
+        return nulls.get(row);
+    }
+
+    /**
+     * Añade un valor al final de la columna.
+     *
+     * @param value El valor a añadir, puede ser null.
+     * @return true si se ha añadido, false si el valor no encaja en el almacenamiento de la columna. En este caso
+     *         la columna no se modifica y debe convertirse con {@link #toObjectColumn()}.
+     */
+    boolean add(Object value)
+    {
+        boolean added;
+        if (value == null)
+        {
+            ensureCapacity(size + 1);
+            nulls.set(size);
+            size++;
+            added = true;
+        }
+        else
+        {
+            added = addValue(value);
+            if (added)
+            {
+                size++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Indica si la columna almacena sus valores como tipos primitivos, de forma que
+     * {@link #getInt(int)}, {@link #getLong(int)} y {@link #getDouble(int)} no crean objetos.
+     *
+     * @return true si los valores se almacenan como primitivos.
+     */
+    boolean isPrimitive()
+    {
+        return false;
+    }
+
+    /**
+     * Obtiene el valor del registro como int. Solo soportado por las columnas primitivas.
+     *
+     * @param row El registro, comenzando en 0.
+     * @return El valor, o 0 si es nulo.
+     */
+    int getInt(int row)
+    {
+        throw new UnsupportedOperationException("La columna no almacena valores primitivos");
+    }
+
+    /**
+     * Obtiene el valor del registro como long. Solo soportado por las columnas primitivas.
+     *
+     * @param row El registro, comenzando en 0.
+     * @return El valor, o 0 si es nulo.
+     */
+    long getLong(int row)
+    {
+        throw new UnsupportedOperationException("La columna no almacena valores primitivos");
+    }
+
+    /**
+     * Obtiene el valor del registro como double. Solo soportado por las columnas primitivas.
+     *
+     * @param row El registro, comenzando en 0.
+     * @return El valor, o 0 si es nulo.
+     */
+    double getDouble(int row)
+    {
+        throw new UnsupportedOperationException("La columna no almacena valores primitivos");
+    }
+
+    /**
+     * Convierte la columna en una columna de objetos con los mismos valores.
+     *
+     * @return La nueva columna.
+     */
+    CachedColumn toObjectColumn()
+    {
+        ObjectColumn column = new ObjectColumn();
+        for (int row = 0; row < size; row++)
+        {
+            column.add(getObject(row));
+        }
+        return column;
+    }
+
+    /**
+     * Obtiene el valor del registro indicado como objeto, del mismo tipo que lo devolvio el driver.
+     *
+     * @param row El registro, comenzando en 0.
+     * @return El valor o null.
+     */
+    abstract Object getObject(int row);
+
+    /**
+     * Almacena un valor no nulo en la posicion <i>size</i>. No debe incrementar <i>size</i>.
+     *
+     * @param value El valor a añadir.
+     * @return false si el valor no encaja en el almacenamiento de la columna.
+     */
+    protected abstract boolean addValue(Object value);
+
+    /**
+     * Asegura que los arrays internos pueden contener el numero de valores indicado.
+     *
+     * @param capacity La capacidad minima.
+     */
+    protected abstract void ensureCapacity(int capacity);
+
+    /**
+     * Libera la memoria sobrante una vez terminada la carga de la columna.
+     */
+    abstract void trim();
+
+
+    /**
+     * Columna de enteros almacenados en un int[].
+     */
+    private static final class IntColumn extends CachedColumn
+    {
+        private int[] values = new int[INITIAL_CAPACITY];
+
+        protected boolean addValue(Object value)
+        {
+            boolean added = value instanceof Integer;
+            if (added)
+            {
+                ensureCapacity(size + 1);
+                values[size] = ((Integer) value).intValue();
+            }
+            return added;
+        }
+
+        protected void ensureCapacity(int capacity)
+        {
+            if (capacity > values.length)
+            {
+                int[] newValues = new int[Math.max(capacity, grow(values.length))];
+                System.arraycopy(values, 0, newValues, 0, size);
+                values = newValues;
+            }
+        }
+
+        void trim()
+        {
+            if (values.length > size)
+            {
+                int[] newValues = new int[size];
+                System.arraycopy(values, 0, newValues, 0, size);
+                values = newValues;
+            }
+        }
+
+        boolean isPrimitive()
+        {
+            return true;
+        }
+
+        int getInt(int row)
+        {
+            return values[row];
+        }
+
+        long getLong(int row)
+        {
+            return values[row];
+        }
+
+        double getDouble(int row)
+        {
+            return values[row];
+        }
+
+        Object getObject(int row)
+        {
+            return isNull(row) ? null : Integer.valueOf(values[row]);
+        }
+    }
+
+
+    /**
+     * Columna de enteros largos almacenados en un long[].
+     */
+    private static class LongColumn extends CachedColumn
+    {
+        protected long[] values = new long[INITIAL_CAPACITY];
+
+        protected boolean addValue(Object value)
+        {
+            boolean added = value instanceof Long;
+            if (added)
+            {
+                ensureCapacity(size + 1);
+                values[size] = ((Long) value).longValue();
+            }
+            return added;
+        }
+
+        protected void ensureCapacity(int capacity)
+        {
+            if (capacity > values.length)
+            {
+                long[] newValues = new long[Math.max(capacity, grow(values.length))];
+                System.arraycopy(values, 0, newValues, 0, size);
+                values = newValues;
+            }
+        }
+
+        void trim()
+        {
+            if (values.length > size)
+            {
+                long[] newValues = new long[size];
+                System.arraycopy(values, 0, newValues, 0, size);
+                values = newValues;
+            }
+        }
+
+        boolean isPrimitive()
+        {
+            return true;
+        }
+
+        int getInt(int row)
+        {
+            return (int) values[row];
+        }
+
+        long getLong(int row)
+        {
+            return values[row];
+        }
+
+        double getDouble(int row)
+        {
+            return values[row];
+        }
+
+        Object getObject(int row)
+        {
+            return isNull(row) ? null : Long.valueOf(values[row]);
+        }
+    }
+
+
+    /**
+     * Columna NUMERIC/DECIMAL sin decimales almacenada en un long[]. El driver devuelve los valores como BigDecimal,
+     * que se reconstruyen al acceder con getObject. Si algun valor tiene decimales o no cabe en un long, la columna
+     * se convierte a una columna de objetos.
+     */
+    private static final class DecimalColumn extends LongColumn
+    {
+        /**
+         * Numero maximo de bits que puede tener el valor sin signo para caber en un long.
+         */
+        private static final int MAX_BIT_LENGTH = 63;
+
+        protected boolean addValue(Object value)
+        {
+            boolean added = false;
+            if (value instanceof BigDecimal)
+            {
+                BigDecimal decimal = (BigDecimal) value;
+                if (decimal.scale() == 0 && decimal.unscaledValue().bitLength() <= MAX_BIT_LENGTH)
+                {
+                    ensureCapacity(size + 1);
+                    values[size] = decimal.longValue();
+                    added = true;
+                }
+            }
+            return added;
+        }
+
+        Object getObject(int row)
+        {
+            return isNull(row) ? null : BigDecimal.valueOf(values[row]);
+        }
+    }
+
+
+    /**
+     * Columna de decimales almacenados en un double[].
+     */
+    private static final class DoubleColumn extends CachedColumn
+    {
+        private double[] values = new double[INITIAL_CAPACITY];
+
+        protected boolean addValue(Object value)
+        {
+            boolean added = value instanceof Double;
+            if (added)
+            {
+                ensureCapacity(size + 1);
+                values[size] = ((Double) value).doubleValue();
+            }
+            return added;
+        }
+
+        protected void ensureCapacity(int capacity)
+        {
+            if (capacity > values.length)
+            {
+                double[] newValues = new double[Math.max(capacity, grow(values.length))];
+                System.arraycopy(values, 0, newValues, 0, size);
+                values = newValues;
+            }
+        }
+
+        void trim()
+        {
+            if (values.length > size)
+            {
+                double[] newValues = new double[size];
+                System.arraycopy(values, 0, newValues, 0, size);
+                values = newValues;
+            }
+        }
+
+        boolean isPrimitive()
+        {
+            return true;
+        }
+
+        int getInt(int row)
+        {
+            return (int) values[row];
+        }
+
+        long getLong(int row)
+        {
+            return (long) values[row];
+        }
+
+        double getDouble(int row)
+        {
+            return values[row];
+        }
+
+        Object getObject(int row)
+        {
+            return isNull(row) ? null : Double.valueOf(values[row]);
+        }
+    }
+
+
+    /**
+     * Columna de texto codificada con diccionario. Cada valor distinto se guarda una unica vez y los registros
+     * almacenan el codigo del valor en un int[].
+     */
+    private static final class StringColumn extends CachedColumn
+    {
+        private int[] codes = new int[INITIAL_CAPACITY];
+
+        private List<String> dictionary = new ArrayList<String>();
+
+        /**
+         * Indice inverso del diccionario. Solo se necesita durante la carga y se libera en {@link #trim()}.
+         */
+        private Map<String, Integer> dictionaryIndex = new HashMap<String, Integer>();
+
+        protected boolean addValue(Object value)
+        {
+            boolean added = value instanceof String;
+            if (added)
+            {
+                Integer code = dictionaryIndex.get(value);
+                if (code == null)
+                {
+                    code = Integer.valueOf(dictionary.size());
+                    dictionary.add((String) value);
+                    dictionaryIndex.put((String) value, code);
+                }
+                ensureCapacity(size + 1);
+                codes[size] = code.intValue();
+            }
+            return added;
+        }
+
+        protected void ensureCapacity(int capacity)
+        {
+            if (capacity > codes.length)
+            {
+                int[] newCodes = new int[Math.max(capacity, grow(codes.length))];
+                System.arraycopy(codes, 0, newCodes, 0, size);
+                codes = newCodes;
+            }
+        }
+
+        void trim()
+        {
+            if (codes.length > size)
+            {
+                int[] newCodes = new int[size];
+                System.arraycopy(codes, 0, newCodes, 0, size);
+                codes = newCodes;
+            }
+            dictionary = new ArrayList<String>(dictionary);
+            dictionaryIndex = null;
+        }
+
+        Object getObject(int row)
+        {
+            return isNull(row) ? null : dictionary.get(codes[row]);
+        }
+    }
+
+
+    /**
+     * Columna generica de objetos para el resto de tipos.
+     */
+    private static final class ObjectColumn extends CachedColumn
+    {
+        private Object[] values = new Object[INITIAL_CAPACITY];
+
+        protected boolean addValue(Object value)
+        {
+            ensureCapacity(size + 1);
+            values[size] = value;
+            return true;
+        }
+
+        protected void ensureCapacity(int capacity)
+        {
+            if (capacity > values.length)
+            {
+                Object[] newValues = new Object[Math.max(capacity, grow(values.length))];
+                System.arraycopy(values, 0, newValues, 0, size);
+                values = newValues;
+            }
+        }
+
+        void trim()
+        {
+            if (values.length > size)
+            {
+                Object[] newValues = new Object[size];
+                System.arraycopy(values, 0, newValues, 0, size);
+                values = newValues;
+            }
+        }
+
+        CachedColumn toObjectColumn()
+        {
+            return this;
+        }
+
+        Object getObject(int row)
+        {
+            return values[row];
+        }
+    }
+}
@@ -6,9 +6,11 @@ import es.onlysolutions.arq.core.accesobd.exception.CachedException;
 import java.math.BigDecimal;
 import java.net.URL;
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -36,6 +38,11 @@ public final class CachedPreparedStatement
      */
     private String _sql;
 
+    /**
+     * Conjuntos de parametros acumulados con addBatch() para ejecutarse en bloque.
+     */
+    private List<BatchRow> _batchRows;
+
     /**
      * Constructor sin parametros. Inicializa la lista interna a una longitud inicial de 10.
      *
@@ -74,23 +81,101 @@ public final class CachedPreparedStatement
         for (int index = 0; index < _elements.size(); index++)
         {
             Object value = _elements.get(index);
+            Integer sqlType = value == null ? _sqlTypesForNullElements.get(index + 1) : null;
+            setParameter(pt, index + 1, value, sqlType);
+        }
+    }
+
+    /**
+     * Rellena el PreparedStatement con el conjunto de parametros del lote indicado.<br>
+     * Se utiliza internamente al ejecutar el lote desde AbstractJdbcDao#executeBatch(CachedPreparedStatement).
+     *
+     * @param pt       El PreparedStatement a rellenar.
+     * @param batchRow La posicion del conjunto de parametros en el lote, comenzando en 0.
+     * @throws CachedException Si ocurre alg�n error durante el proceso.
+     */
+    final void setBatchParameters(PreparedStatement pt, int batchRow) throws CachedException
+    {
+        BatchRow row = _batchRows.get(batchRow);
+        for (int index = 0; index < row.values.length; index++)
+        {
+            setParameter(pt, index + 1, row.values[index], row.sqlTypes[index]);
+        }
+    }
 
-            try
+    /**
+     * Establece un parametro en el PreparedStatement.
+     *
+     * @param pt      El PreparedStatement.
+     * @param index   La posicion del parametro, comenzando en 1.
+     * @param value   El valor del parametro.
+     * @param sqlType El tipo SQL si el valor es nulo.
+     * @throws CachedException Si ocurre alg�n error durante el proceso.
+     */
+    private static void setParameter(PreparedStatement pt, int index, Object value, Integer sqlType) throws CachedException
+    {
+        try
+        {
+            if (value == null)
             {
-                if (value == null)
+                if (sqlType == null)
                 {
-                    pt.setNull(index + 1, _sqlTypesForNullElements.get(index + 1).intValue());
-                }
-                else
-                {
-                    pt.setObject(index + 1, value);
+                    throw new CachedException("No se ha establecido el elemento n�mero " + index);
                 }
+                pt.setNull(index, sqlType.intValue());
             }
-            catch (SQLException e)
+            else
             {
-                throw new CachedException("Error al tratar de insertar el elemento n�mero " + (index + 1), e);
+                pt.setObject(index, value);
             }
         }
+        catch (SQLException e)
+        {
+            throw new CachedException("Error al tratar de insertar el elemento n�mero " + index, e);
+        }
+    }
+
+    /**
+     * A�ade los parametros actuales al lote de ejecucion, igual que PreparedStatement#addBatch().<br>
+     * Los parametros se mantienen establecidos tras la llamada, por lo que solo es necesario cambiar los que varian
+     * entre un registro y el siguiente. El lote se ejecuta con AbstractJdbcDao#executeBatch(CachedPreparedStatement).
+     */
+    public void addBatch()
+    {
+        if (_batchRows == null)
+        {
+            _batchRows = new ArrayList<BatchRow>();
+        }
+        int numElements = _elements.size();
+        Object[] values = new Object[numElements];
+        Integer[] sqlTypes = new Integer[numElements];
+        for (int index = 0; index < numElements; index++)
+        {
+            values[index] = _elements.get(index);
+            if (values[index] == null)
+            {
+                sqlTypes[index] = _sqlTypesForNullElements.get(index + 1);
+            }
+        }
+        _batchRows.add(new BatchRow(values, sqlTypes));
+    }
+
+    /**
+     * Elimina todos los conjuntos de parametros acumulados en el lote.
+     */
+    public void clearBatch()
+    {
+        _batchRows = null;
+    }
+
+    /**
+     * Devuelve el numero de conjuntos de parametros acumulados en el lote.
+     *
+     * @return El numero de registros del lote.
+     */
+    public int getBatchSize()
+    {
+        return _batchRows != null ? _batchRows.size() : 0;
     }
 
     /**
@@ -462,4 +547,32 @@ public final class CachedPreparedStatement
         _sql = sql;
     }
 
+    /**
+     * Conjunto de parametros de un registro del lote.
+     */
+    private static final class BatchRow
+    {
+        /**
+         * Los valores de los parametros.
+         */
+        private final Object[] values;
+
+        /**
+         * Los tipos SQL de los parametros nulos.
+         */
+        private final Integer[] sqlTypes;
+
+        /**
+         * Constructor con los valores y tipos de los parametros.
+         *
+         * @param values   Los valores de los parametros.
+         * @param sqlTypes Los tipos SQL de los parametros nulos.
+         */
+        private BatchRow(Object[] values, Integer[] sqlTypes)
+        {
+            this.values = values;
+            this.sqlTypes = sqlTypes;
+        }
+    }
+
 }
@@ -39,7 +39,12 @@ public final class CachedResultSet implements ResultSet
      */
     private Map columnNamesMap;
     private int lastAccessColumnIndex = -1;
-    private List rows;
+    /**
+     * Los datos del resultSet almacenados por columnas.
+     *
+     * @see CachedColumn
+     */
+    private CachedColumn[] columns;
     private int currentRowNum;
     private int totalRowCount = -1;
     private int batchRowCount = -1;
@@ -64,14 +69,35 @@ public final class CachedResultSet implements ResultSet
 
 
     /**
-     * Cachea un conjunto de registros de un resultSet.
+     * Cachea una ventana de registros de un resultSet, por ejemplo una pagina de un listado.<br>
+     * Los registros anteriores a <i>startRowNum</i> se saltan sin copiarlos, mediante ResultSet#absolute si el
+     * resultSet es desplazable o avanzando el cursor en otro caso, y la lectura se detiene al cachear <i>maxRows</i>
+     * registros, sin recorrer el resto del cursor.<br>
+     * Por ello, getTotalRowCount() solo devuelve el numero total de registros si se ha alcanzado el final del
+     * cursor; en otro caso devuelve -1 y el total debe obtenerse con una consulta COUNT aparte.
+     *
+     * @param rs          El resultSet a cachear
+     * @param startRowNum el numero de registros a saltar antes de empezar a cachear, comenzando en 0.
+     * @param maxRows     nemero meximo de registros a cachear, o -1 para cachear hasta el final.
+     * @throws SQLException Si ocurre algen error durante el proceso.
+     * @see AbstractJdbcDao#executePagedQuery(FiltroDatos, int, boolean)
+     */
+    public CachedResultSet(ResultSet rs, int startRowNum, int maxRows) throws SQLException
+    {
+        this(rs, startRowNum, maxRows, LobPolicy.IN_MEMORY);
+    }
+
+
+    /**
+     * Cachea una ventana de registros de un resultSet copiando los Blob y Clob segun la politica indicada.
      *
      * @param rs          El resultSet a cachear
-     * @param startRowNum el registro de inicio
-     * @param maxRows     nemero meximo de registros a cachear
+     * @param startRowNum el numero de registros a saltar antes de empezar a cachear, comenzando en 0.
+     * @param maxRows     nemero meximo de registros a cachear, o -1 para cachear hasta el final.
+     * @param lobPolicy   La politica de copia de los Blob y Clob.
      * @throws SQLException Si ocurre algen error durante el proceso.
      */
-    private CachedResultSet(ResultSet rs, int startRowNum, int maxRows) throws SQLException
+    CachedResultSet(ResultSet rs, int startRowNum, int maxRows, LobPolicy lobPolicy) throws SQLException
     {
         super();
         initMetaData(rs.getMetaData());
@@ -81,9 +107,11 @@ public final class CachedResultSet implements ResultSet
         this.resultSetFetchDirection = rs.getFetchDirection();
         this.resultSetWarning = rs.getWarnings();
         this._rsMetadata = new CachedResultSetMetadata(rs.getMetaData());
-        rows = new ArrayList(113);
-        int rowNum = 0;
-        int lastRowNum = startRowNum + maxRows;
+        columns = new CachedColumn[columnCount];
+        for (int i = 0; i < columnCount; i++)
+        {
+            columns[i] = CachedColumn.forMetadata(_rsMetadata, i + 1);
+        }
         if (startRowNum < 0)
         {
             SQLException e = new SQLException("Invalid Start Row Number " + startRowNum);
@@ -96,25 +124,33 @@ public final class CachedResultSet implements ResultSet
             logger.error(e);
             throw e;
         }
-        totalRowCount = 0;
-        while (rs.next())
+        int skippedRows = skipRows(rs, startRowNum);
+        boolean endReached = skippedRows < startRowNum;
+        int readRows = 0;
+        while (!endReached && (maxRows == -1 || readRows < maxRows))
         {
-            if (rowNum >= startRowNum)
+            if (rs.next())
             {
-                if (rowNum < lastRowNum || maxRows == -1)
+                for (int i = 1; i <= columnCount; i++)
                 {
-                    Object[] row = new Object[columnCount + 1];
-                    for (int i = 1; i <= columnCount; i++)
-                    {
-                        row[i] = getResultSetValue(rs, i);
-                    }
-                    rows.add(row);
+                    addColumnValue(i, getResultSetValue(rs, i, lobPolicy));
                 }
+                readRows++;
             }
-            rowNum++;
-            totalRowCount++;
+            else
+            {
+                endReached = true;
+            }
+        }
+        if (endReached && skippedRows >= 0)
+        {
+            totalRowCount = skippedRows + readRows;
+        }
+        batchRowCount = readRows;
+        for (int i = 0; i < columnCount; i++)
+        {
+            columns[i].trim();
         }
-        batchRowCount = rows.size();
         if (logger.isDebugEnabled())
         {
             logger.debug("Inicializado CachedResultSet");
@@ -123,14 +159,71 @@ public final class CachedResultSet implements ResultSet
 
 
     /**
-     * Metodo privado para obtener el objeto de una posicion.
+     * Salta los primeros registros del resultSet. Si el resultSet es desplazable se posiciona directamente con
+     * ResultSet#absolute, y en otro caso avanza el cursor sin leer los valores.
+     *
+     * @param rs          El resultSet.
+     * @param rowsToSkip  El numero de registros a saltar.
+     * @return El numero de registros saltados, menor que <i>rowsToSkip</i> si se ha alcanzado el final del cursor,
+     *         o -1 si el resultSet no tiene tantos registros pero no se conoce cuantos tiene.
+     * @throws SQLException Si ocurre algen error durante el proceso.
+     */
+    private static int skipRows(ResultSet rs, int rowsToSkip) throws SQLException
+    {
+        int skipped = 0;
+        if (rowsToSkip > 0)
+        {
+            if (rs.getType() != ResultSet.TYPE_FORWARD_ONLY)
+            {
+                skipped = rs.absolute(rowsToSkip) ? rowsToSkip : -1;
+            }
+            else
+            {
+                while (skipped < rowsToSkip && rs.next())
+                {
+                    skipped++;
+                }
+            }
+        }
+        return skipped;
+    }
+
+
+    /**
+     * Añade el valor al final de la columna indicada. Si el valor no encaja en el almacenamiento elegido a partir
+     * de los metadatos, la columna se convierte a una columna de objetos.
+     *
+     * @param columnIndex El numero de la columna.
+     * @param value       El valor a añadir.
+     */
+    private void addColumnValue(int columnIndex, Object value)
+    {
+        CachedColumn column = columns[columnIndex - 1];
+        if (!column.add(value))
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("La columna " + columnIndex + " no admite valores de tipo " + value.getClass().getName() + ". Se almacena como objetos");
+            }
+            column = column.toObjectColumn();
+            column.add(value);
+            columns[columnIndex - 1] = column;
+        }
+    }
+
+
+    /**
+     * Metodo para obtener el objeto de una posicion. Los Clob y Blob se copian a memoria para poder
+     * utilizarlos una vez cerrada la conexion. Tambien lo utiliza el JdbcCursor.
      *
      * @param rs          El resultset.
      * @param columnIndex El numero de la columna.
+     * @param lobPolicy   La politica de copia de los Clob y Blob.
      * @return El objeto de esa posicion del resulset <param>rs</param>.
      * @throws SQLException Si ocurre algen error durante el proceso.
+     * @see JdbcCursor
      */
-    private Object getResultSetValue(ResultSet rs, int columnIndex) throws SQLException
+    static Object getResultSetValue(ResultSet rs, int columnIndex, LobPolicy lobPolicy) throws SQLException
     {
         Object ret = null;
         Object o = rs.getObject(columnIndex);
@@ -143,7 +236,7 @@ public final class CachedResultSet implements ResultSet
             Clob c = rs.getClob(columnIndex);
             if (c != null)
             {
-                ret = new CachedClob(c);
+                ret = new CachedClob(c, lobPolicy);
             }
         }
         else if (o instanceof Blob)
@@ -151,7 +244,7 @@ public final class CachedResultSet implements ResultSet
             Blob b = rs.getBlob(columnIndex);
             if (b != null)
             {
-                ret = new CachedBlob(b);
+                ret = new CachedBlob(b, lobPolicy);
             }
         }
         else
@@ -227,8 +320,7 @@ public final class CachedResultSet implements ResultSet
      */
     public boolean wasNull() throws SQLException
     {
-        Object o = getObject(lastAccessColumnIndex);
-        return o == null;
+        return getColumn(lastAccessColumnIndex).isNull(currentRowNum - 1);
     }
 
 
@@ -371,6 +463,12 @@ public final class CachedResultSet implements ResultSet
      */
     public int getInt(int columnIndex) throws SQLException
     {
+        CachedColumn column = getColumn(columnIndex);
+        if (column.isPrimitive())
+        {
+            return column.getInt(currentRowNum - 1);
+        }
+
         int ret;
         try
         {
@@ -411,6 +509,12 @@ public final class CachedResultSet implements ResultSet
      */
     public long getLong(int columnIndex) throws SQLException
     {
+        CachedColumn column = getColumn(columnIndex);
+        if (column.isPrimitive())
+        {
+            return column.getLong(currentRowNum - 1);
+        }
+
         long ret;
         try
         {
@@ -491,6 +595,12 @@ public final class CachedResultSet implements ResultSet
      */
     public double getDouble(int columnIndex) throws SQLException
     {
+        CachedColumn column = getColumn(columnIndex);
+        if (column.isPrimitive())
+        {
+            return column.getDouble(currentRowNum - 1);
+        }
+
         double ret;
         try
         {
@@ -962,19 +1072,31 @@ public final class CachedResultSet implements ResultSet
      * @see ResultSet#getObject(int)
      */
     public Object getObject(int columnIndex) throws SQLException
+    {
+        return getColumn(columnIndex).getObject(currentRowNum - 1);
+    }
+
+
+    /**
+     * Obtiene la columna indicada comprobando que el registro actual sea valido.
+     *
+     * @param columnIndex El indice de la columna.
+     * @return La columna con los datos.
+     * @throws SQLException Si el registro actual o la columna no existen.
+     */
+    private CachedColumn getColumn(int columnIndex) throws SQLException
     {
         if (isBeforeFirst() || isAfterLast())
         {
             throw new SQLException("Row " + currentRowNum + " not found in result set");
         }
-        Object[] rowData = (Object[]) rows.get(currentRowNum - 1);
-        // Set last access column index for WasNull method
-        lastAccessColumnIndex = columnIndex;
-        if (columnIndex > rowData.length)
+        if (columnIndex < 1 || columnIndex > columnCount)
         {
             throw new SQLException("Column Index " + columnIndex + " not found in result set");
         }
-        return rowData[columnIndex];
+        // Set last access column index for WasNull method
+        lastAccessColumnIndex = columnIndex;
+        return columns[columnIndex - 1];
     }
 
 
@@ -2174,13 +2296,25 @@ public final class CachedResultSet implements ResultSet
 
 
     /**
-     * Metodo que cumple con el interfaz ResultSet.
+     * Devuelve los registros del ResultSet como una lista de Object[], donde la posicion 0 de cada array no se utiliza
+     * y la columna N se encuentra en la posicion N.<br>
+     * Los datos se almacenan por columnas, por lo que la lista se construye en cada llamada. Para recorrer
+     * resultados grandes es preferible utilizar los metodos getXXX del propio ResultSet.
      *
-     * @return El resultado de la ejecucien del metodo segen la definicien del interfaz Devuelve los
-     *         rows del ResultSet.
+     * @return La lista con los registros del ResultSet.
      */
     public List getRows()
     {
+        List rows = new ArrayList(batchRowCount);
+        for (int rowNum = 0; rowNum < batchRowCount; rowNum++)
+        {
+            Object[] row = new Object[columnCount + 1];
+            for (int i = 1; i <= columnCount; i++)
+            {
+                row[i] = columns[i - 1].getObject(rowNum);
+            }
+            rows.add(row);
+        }
         return rows;
     }
 
@@ -2746,7 +2880,8 @@ public final class CachedResultSet implements ResultSet
     /**
      * Devuelve el nemero de registros del resultSet.
      *
-     * @return El resultado de la ejecucien del metodo segen la definicien del interfaz int
+     * @return El resultado de la ejecucien del metodo segen la definicien del interfaz int. -1 si solo se ha
+     *         cacheado una ventana de registros y no se conoce el total.
      */
     public int getTotalRowCount()
     {
@@ -2754,6 +2889,17 @@ public final class CachedResultSet implements ResultSet
     }
 
 
+    /**
+     * Establece el numero total de registros, obtenido mediante una consulta COUNT aparte.
+     *
+     * @param totalRowCount El numero total de registros.
+     */
+    void setTotalRowCount(int totalRowCount)
+    {
+        this.totalRowCount = totalRowCount;
+    }
+
+
     /**
      * Devuelve el nemero de registros cacheados del resultSet.
      *
@@ -0,0 +1,26 @@
+package es.onlysolutions.arq.core.accesobd;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Interfaz para procesar uno a uno los registros de una consulta sin cargarlos en memoria.<br>
+ * Se utiliza con el metodo AbstractJdbcDao#executeQuery(CachedPreparedStatement, IRowHandler), que mantiene la
+ * conexion abierta mientras se recorre el ResultSet del driver. Para conservar los Blob y Clob de un registro despues
+ * de procesarlo se pueden obtener con AbstractJdbcDao#getBlob(ResultSet, int) y AbstractJdbcDao#getClob(ResultSet, int).
+ *
+ * @see AbstractJdbcDao#executeQuery(CachedPreparedStatement, IRowHandler)
+ */
+public interface IRowHandler
+{
+    /**
+     * Procesa el registro actual del ResultSet.<br>
+     * <b>No se debe llamar a next(), ni cerrar el ResultSet, ni guardar una referencia a el</b>, ya que es el
+     * ResultSet del driver y solo es valido durante la llamada.
+     *
+     * @param rs     El ResultSet posicionado en el registro a procesar.
+     * @param rowNum El numero del registro, comenzando en 1.
+     * @throws SQLException Si ocurre algun error al leer el registro.
+     */
+    public void processRow(ResultSet rs, int rowNum) throws SQLException;
+}
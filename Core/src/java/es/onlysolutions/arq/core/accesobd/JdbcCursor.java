@@ -0,0 +1,572 @@
+package es.onlysolutions.arq.core.accesobd;
+
+import es.onlysolutions.arq.core.accesobd.exception.DaoException;
+import es.onlysolutions.arq.core.log.LoggerGenerator;
+import org.apache.commons.logging.Log;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cursor de solo avance sobre el resultado de una consulta. A diferencia del CachedResultSet, no carga en memoria
+ * todos los registros: mantiene la conexion abierta hasta que se invoca {@link #close()} y un Thread lector va
+ * leyendo los registros del driver sobre un buffer acotado, de forma que el consumo de memoria es constante y el
+ * primer registro esta disponible en cuanto llega de la base de datos.<br>
+ * Se obtiene mediante AbstractJdbcDao#openCursor. <b>Es obligatorio cerrarlo en un bloque finally.</b><br>
+ * Ejemplo de uso:<br>
+ * JdbcCursor cursor = openCursor( cpt );<br>
+ * try<br>
+ * {<br>
+ * &nbsp;&nbsp;&nbsp;while( cursor.next() )<br>
+ * &nbsp;&nbsp;&nbsp;{<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;writer.write( cursor.getString("NOMBRE") );<br>
+ * &nbsp;&nbsp;&nbsp;}<br>
+ * }<br>
+ * finally<br>
+ * {<br>
+ * &nbsp;&nbsp;&nbsp;cursor.close();<br>
+ * }<br>
+ *
+ * @see AbstractJdbcDao#openCursor(CachedPreparedStatement)
+ */
+public final class JdbcCursor
+{
+    /**
+     * El logger de la clase.
+     */
+    private static final Log logger = LoggerGenerator.getLogger(JdbcCursor.class);
+
+    /**
+     * Marca de fin de datos en el buffer.
+     */
+    private static final Object[] END_OF_DATA = new Object[0];
+
+    /**
+     * Tiempo maximo que el Thread lector espera por hueco en el buffer antes de comprobar si se ha cerrado el cursor.
+     */
+    private static final long OFFER_TIMEOUT_MILLIS = 500L;
+
+    /**
+     * Tiempo que close() espera a que termine el Thread lector antes de cancelar la consulta.
+     */
+    private static final long CANCEL_AFTER_MILLIS = 100L;
+
+    /**
+     * Tiempo maximo que close() espera a que termine el Thread lector tras cancelar la consulta.
+     */
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000L;
+
+    private final AbstractJdbcDao dao;
+    private final Connection connection;
+    private final PreparedStatement statement;
+    private final ResultSet resultSet;
+    private final String sql;
+
+    /**
+     * La politica de copia de los Blob y Clob.
+     */
+    private final LobPolicy lobPolicy;
+
+    /**
+     * Metadatos de la consulta, copiados para poder consultarlos tras el cierre.
+     */
+    private final ResultSetMetaData metadata;
+    private final int columnCount;
+
+    /**
+     * Mapa con los nombres de las columnas en mayusculas y su indice.
+     */
+    private final Map<String, Integer> columnIndexes;
+
+    /**
+     * Buffer acotado de registros leidos por adelantado.
+     */
+    private final BlockingQueue<Object[]> buffer;
+
+    /**
+     * El Thread que lee los registros del driver.
+     */
+    private final Thread reader;
+
+    private volatile boolean closed;
+
+    /**
+     * Indica que el Thread lector ha terminado de usar el ResultSet.
+     */
+    private volatile boolean readerDone;
+
+    /**
+     * Indica que close() ha dejado la liberacion de los recursos al Thread lector, por no haber terminado a tiempo.
+     */
+    private volatile boolean releaseOnReaderExit;
+
+    /**
+     * Indica que ya se han liberado el ResultSet, el Statement y la conexion.
+     */
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /**
+     * Error producido en el Thread lector, que se relanza en el siguiente next().
+     */
+    private volatile Throwable readError;
+
+    private Object[] currentRow;
+    private int rowNum;
+    private int lastAccessColumnIndex = -1;
+
+    /**
+     * Constructor friendly, los cursores se crean desde el AbstractJdbcDao.
+     *
+     * @param dao           El dao que ha abierto la conexion, y que se encargara de liberarla.
+     * @param connection    La conexion abierta.
+     * @param statement     El statement ya ejecutado.
+     * @param resultSet     El ResultSet del driver.
+     * @param sql           El SQL ejecutado, para las trazas.
+     * @param readAheadSize El numero maximo de registros a leer por adelantado.
+     * @param lobPolicy     La politica de copia de los Blob y Clob.
+     * @throws SQLException Si ocurre algun error al leer los metadatos.
+     */
+    JdbcCursor(AbstractJdbcDao dao, Connection connection, PreparedStatement statement, ResultSet resultSet, String sql, int readAheadSize, LobPolicy lobPolicy) throws SQLException
+    {
+        this.dao = dao;
+        this.connection = connection;
+        this.statement = statement;
+        this.resultSet = resultSet;
+        this.sql = sql;
+        this.lobPolicy = lobPolicy;
+        this.metadata = new CachedResultSetMetadata(resultSet.getMetaData());
+        this.columnCount = metadata.getColumnCount();
+        this.columnIndexes = new HashMap<String, Integer>(columnCount << 1);
+        for (int i = 1; i <= columnCount; i++)
+        {
+            columnIndexes.put(metadata.getColumnName(i).toUpperCase(), Integer.valueOf(i));
+        }
+        this.buffer = new ArrayBlockingQueue<Object[]>(Math.max(1, readAheadSize));
+        this.reader = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                readRows();
+            }
+        }, "JdbcCursor-" + Integer.toHexString(System.identityHashCode(this)));
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * Bucle del Thread lector. Lee los registros del driver y los deja en el buffer hasta que no hay mas datos o se
+     * cierra el cursor.
+     */
+    private void readRows()
+    {
+        try
+        {
+            while (!closed && resultSet.next())
+            {
+                Object[] row = new Object[columnCount];
+                for (int i = 1; i <= columnCount; i++)
+                {
+                    row[i - 1] = CachedResultSet.getResultSetValue(resultSet, i, lobPolicy);
+                }
+                offer(row);
+            }
+        }
+        catch (Throwable t)
+        {
+            readError = t;
+        }
+        finally
+        {
+            readerDone = true;
+            if (releaseOnReaderExit)
+            {
+                releaseResources();
+            }
+            offer(END_OF_DATA);
+        }
+    }
+
+    /**
+     * Deja el registro en el buffer, esperando a que haya hueco mientras el cursor siga abierto.
+     *
+     * @param row El registro a dejar en el buffer.
+     */
+    private void offer(Object[] row)
+    {
+        boolean offered = false;
+        try
+        {
+            while (!offered && !closed)
+            {
+                offered = buffer.offer(row, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Avanza al siguiente registro, esperando a que el Thread lector lo obtenga del driver si es necesario.
+     *
+     * @return true si hay un nuevo registro, false si no hay mas registros.
+     * @throws DaoException Si el cursor esta cerrado o ha ocurrido algun error al leer los registros.
+     */
+    public boolean next() throws DaoException
+    {
+        checkNotClosed();
+
+        if (currentRow == END_OF_DATA)
+        {
+            return false;
+        }
+
+        try
+        {
+            currentRow = buffer.take();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new DaoException("Interrumpida la lectura del cursor de la query: " + sql, e);
+        }
+
+        if (currentRow == END_OF_DATA)
+        {
+            if (readError != null)
+            {
+                logger.error("Error al leer los registros de la query: " + sql, readError);
+                throw new DaoException("Error al leer los registros de la query: " + sql, readError);
+            }
+            return false;
+        }
+
+        rowNum++;
+        return true;
+    }
+
+    /**
+     * Obtiene el valor de la columna indicada en el registro actual.
+     *
+     * @param columnIndex El indice de la columna, comenzando en 1.
+     * @return El valor de la columna, o null.
+     * @throws DaoException Si no hay registro actual o la columna no existe.
+     */
+    public Object getObject(int columnIndex) throws DaoException
+    {
+        checkNotClosed();
+        if (currentRow == null || currentRow == END_OF_DATA)
+        {
+            throw new DaoException("Row " + rowNum + " not found in cursor");
+        }
+        if (columnIndex < 1 || columnIndex > columnCount)
+        {
+            throw new DaoException("Column Index " + columnIndex + " not found in cursor");
+        }
+        lastAccessColumnIndex = columnIndex;
+        return currentRow[columnIndex - 1];
+    }
+
+    /**
+     * Obtiene el valor de la columna indicada en el registro actual.
+     *
+     * @param columnName El nombre de la columna.
+     * @return El valor de la columna, o null.
+     * @throws DaoException Si no hay registro actual o la columna no existe.
+     */
+    public Object getObject(String columnName) throws DaoException
+    {
+        return getObject(findColumn(columnName));
+    }
+
+    /**
+     * Obtiene el indice de la columna indicada.
+     *
+     * @param columnName El nombre de la columna, no es case sensitive.
+     * @return El indice de la columna, comenzando en 1.
+     * @throws DaoException Si la columna no existe.
+     */
+    public int findColumn(String columnName) throws DaoException
+    {
+        Integer index = columnIndexes.get(columnName.toUpperCase());
+        if (index == null)
+        {
+            throw new DaoException("Column  " + columnName + " not found in cursor");
+        }
+        return index.intValue();
+    }
+
+    /**
+     * Indica si el ultimo valor leido era nulo.
+     *
+     * @return true si el ultimo valor leido era nulo.
+     */
+    public boolean wasNull()
+    {
+        return getObject(lastAccessColumnIndex) == null;
+    }
+
+    /**
+     * Obtiene el valor de la columna como String.
+     *
+     * @param columnName El nombre de la columna.
+     * @return El valor como String, o null.
+     */
+    public String getString(String columnName)
+    {
+        Object value = getObject(columnName);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Obtiene el valor numerico de la columna como int.
+     *
+     * @param columnName El nombre de la columna.
+     * @return El valor, o 0 si es nulo.
+     */
+    public int getInt(String columnName)
+    {
+        Number value = getNumber(columnName);
+        return value == null ? 0 : value.intValue();
+    }
+
+    /**
+     * Obtiene el valor numerico de la columna como long.
+     *
+     * @param columnName El nombre de la columna.
+     * @return El valor, o 0 si es nulo.
+     */
+    public long getLong(String columnName)
+    {
+        Number value = getNumber(columnName);
+        return value == null ? 0L : value.longValue();
+    }
+
+    /**
+     * Obtiene el valor numerico de la columna como double.
+     *
+     * @param columnName El nombre de la columna.
+     * @return El valor, o 0 si es nulo.
+     */
+    public double getDouble(String columnName)
+    {
+        Number value = getNumber(columnName);
+        return value == null ? 0.0 : value.doubleValue();
+    }
+
+    /**
+     * Obtiene el valor de la columna como BigDecimal.
+     *
+     * @param columnName El nombre de la columna.
+     * @return El valor, o null.
+     */
+    public BigDecimal getBigDecimal(String columnName)
+    {
+        Object value = getObject(columnName);
+        BigDecimal result;
+        if (value == null || value instanceof BigDecimal)
+        {
+            result = (BigDecimal) value;
+        }
+        else
+        {
+            result = new BigDecimal(value.toString());
+        }
+        return result;
+    }
+
+    /**
+     * Obtiene el valor de la columna como Timestamp.
+     *
+     * @param columnName El nombre de la columna.
+     * @return El valor, o null.
+     */
+    public Timestamp getTimestamp(String columnName)
+    {
+        Object value = getObject(columnName);
+        Timestamp result;
+        if (value == null || value instanceof Timestamp)
+        {
+            result = (Timestamp) value;
+        }
+        else if (value instanceof java.util.Date)
+        {
+            result = new Timestamp(((java.util.Date) value).getTime());
+        }
+        else
+        {
+            throw new DaoException("Column  " + columnName + " is not of type java.sql.Timestamp. The correct type is: " + value.getClass().getName());
+        }
+        return result;
+    }
+
+    /**
+     * Obtiene el valor de la columna como Number.
+     *
+     * @param columnName El nombre de la columna.
+     * @return El valor, o null.
+     */
+    private Number getNumber(String columnName)
+    {
+        Object value = getObject(columnName);
+        Number result;
+        if (value == null || value instanceof Number)
+        {
+            result = (Number) value;
+        }
+        else
+        {
+            try
+            {
+                result = new BigDecimal(value.toString());
+            }
+            catch (NumberFormatException e)
+            {
+                throw new DaoException("Column  " + columnName + " could not be converted to a number. The correct type is: " + value.getClass().getName(), e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Devuelve los metadatos de la consulta.
+     *
+     * @return Los metadatos de la consulta.
+     */
+    public ResultSetMetaData getMetaData()
+    {
+        return metadata;
+    }
+
+    /**
+     * Devuelve el numero del registro actual, comenzando en 1.
+     *
+     * @return El numero del registro actual.
+     */
+    public int getRow()
+    {
+        return rowNum;
+    }
+
+    /**
+     * Indica si el cursor se ha cerrado.
+     *
+     * @return true si esta cerrado.
+     */
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Cierra el cursor, deteniendo el Thread lector y liberando el ResultSet, el Statement y la conexion.
+     * Si el Thread lector sigue esperando al driver se cancela la consulta, y se espera a que termine como maximo
+     * cinco segundos. Si aun asi no termina, la conexion no se devuelve al pool mientras el Thread lector la sigue
+     * usando: la libera el propio Thread lector al terminar. Puede invocarse varias veces.
+     */
+    public void close()
+    {
+        if (!closed)
+        {
+            closed = true;
+            buffer.clear();
+
+            if (!awaitReader(CANCEL_AFTER_MILLIS))
+            {
+                cancelStatement();
+                buffer.clear();
+                if (!awaitReader(CLOSE_TIMEOUT_MILLIS))
+                {
+                    logger.warn("El Thread lector del cursor no ha terminado en " + CLOSE_TIMEOUT_MILLIS + " ms. La conexion se liberara cuando termine. Query: " + sql);
+                    reader.interrupt();
+                }
+            }
+            buffer.clear();
+
+            releaseOnReaderExit = true;
+            if (readerDone)
+            {
+                releaseResources();
+            }
+
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Cerrado el cursor tras leer " + rowNum + " registros de la query: " + sql);
+            }
+        }
+    }
+
+    /**
+     * Libera el ResultSet, el Statement y la conexion una sola vez, desde close() o desde el Thread lector, el que
+     * llegue despues de que el cursor se haya cerrado y el Thread lector haya dejado de usar el ResultSet.
+     */
+    private void releaseResources()
+    {
+        if (released.compareAndSet(false, true))
+        {
+            dao.closeTransactionalResources(resultSet, statement, connection);
+        }
+    }
+
+    /**
+     * Espera a que termine el Thread lector.
+     *
+     * @param millis El tiempo maximo de espera en milisegundos.
+     * @return true si el Thread lector ha terminado.
+     */
+    private boolean awaitReader(long millis)
+    {
+        try
+        {
+            reader.join(millis);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrumpida la espera del Thread lector del cursor de la query: " + sql);
+        }
+        return !reader.isAlive();
+    }
+
+    /**
+     * Cancela la consulta en curso, para que el Thread lector no siga esperando al driver.
+     */
+    private void cancelStatement()
+    {
+        try
+        {
+            statement.cancel();
+        }
+        catch (SQLException ex)
+        {
+            logger.warn("No es posible cancelar la query: " + sql, ex);
+        }
+        catch (RuntimeException ex)
+        {
+            logger.warn("Excepcion inesperada. No es posible cancelar la query: " + sql, ex);
+        }
+    }
+
+    /**
+     * Comprueba que el cursor no este cerrado.
+     */
+    private void checkNotClosed()
+    {
+        if (closed)
+        {
+            throw new DaoException("El cursor de la query: " + sql + " esta cerrado");
+        }
+    }
+}
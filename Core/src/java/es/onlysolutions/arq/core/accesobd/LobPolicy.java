@@ -0,0 +1,74 @@
+package es.onlysolutions.arq.core.accesobd;
+
+/**
+ * Politica de copia de los Blob y Clob al cachear los registros de una consulta.<br>
+ * Por defecto los LOB se copian completos en memoria. Si se indica un umbral, los LOB de mayor tamaño se vuelcan a un
+ * fichero temporal mapeado en memoria, de forma que no ocupan heap. En modo diferido solo se guarda el localizador
+ * del driver y los datos se leen en el primer acceso, por lo que <b>solo es valido mientras la conexion sigue
+ * abierta y en el Thread que la utiliza</b>: los registros procesados con un IRowHandler.
+ *
+ * @see CachedBlob
+ * @see CachedClob
+ */
+final class LobPolicy
+{
+    /**
+     * Politica por defecto: los LOB se copian siempre en memoria al leer el registro.
+     */
+    static final LobPolicy IN_MEMORY = new LobPolicy(-1L, false);
+
+    /**
+     * Tamaño a partir del cual los LOB se vuelcan a fichero, en bytes para los Blob y en caracteres para los Clob.
+     * Negativo si nunca se vuelcan.
+     */
+    private final long spillThreshold;
+
+    /**
+     * Indica si la lectura de los datos se retrasa hasta el primer acceso.
+     */
+    private final boolean deferred;
+
+    /**
+     * Construye la politica.
+     *
+     * @param spillThreshold Tamaño a partir del cual los LOB se vuelcan a fichero, o negativo para no volcarlos nunca.
+     * @param deferred       Indica si la lectura de los datos se retrasa hasta el primer acceso.
+     */
+    LobPolicy(long spillThreshold, boolean deferred)
+    {
+        this.spillThreshold = spillThreshold;
+        this.deferred = deferred;
+    }
+
+    /**
+     * Indica si un LOB del tamaño indicado debe volcarse a fichero.
+     *
+     * @param length El tamaño del LOB.
+     * @return true si supera el umbral configurado.
+     */
+    boolean mustSpill(long length)
+    {
+        return spillThreshold >= 0 && length > spillThreshold;
+    }
+
+    /**
+     * Indica si la lectura de los datos se retrasa hasta el primer acceso.
+     *
+     * @return true en modo diferido.
+     */
+    boolean isDeferred()
+    {
+        return deferred;
+    }
+
+    /**
+     * Devuelve la misma politica sin el modo diferido, para las consultas que cierran la conexion antes de devolver
+     * los datos o que los leen en otro Thread (JdbcCursor).
+     *
+     * @return La politica sin modo diferido.
+     */
+    LobPolicy withoutDeferred()
+    {
+        return deferred ? new LobPolicy(spillThreshold, false) : this;
+    }
+}
@@ -0,0 +1,401 @@
+package es.onlysolutions.arq.core.accesobd;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+
+/**
+ * Volcado de los LOB de gran tamaño a ficheros temporales mapeados en memoria.<br>
+ * Los datos se copian en streaming desde el driver al fichero, que se mapea en solo lectura y se borra a
+ * continuacion; el sistema operativo libera el espacio cuando el recolector descarta el buffer mapeado. En los sistemas
+ * que no permiten borrar un fichero mapeado (Windows) el borrado se retrasa al final de la JVM.<br>
+ * Los Clob se guardan en UTF-16, dos bytes por caracter, para poder acceder por posicion. Un buffer mapeado no puede
+ * superar los {@link #MAX_SIZE} bytes, por lo que no se pueden volcar Blob mayores ni Clob de mas de la mitad de
+ * caracteres.
+ */
+final class LobSpillFile
+{
+    /**
+     * Prefijo de los ficheros temporales.
+     */
+    private static final String PREFIX = "cachedlob";
+
+    /**
+     * Tamaño del buffer de copia.
+     */
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    /**
+     * Tamaño maximo en bytes de un fichero que se puede mapear en un buffer.
+     */
+    static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * Clase de utilidades, no se instancia.
+     */
+    private LobSpillFile()
+    {
+    }
+
+    /**
+     * Copia un stream binario a un fichero temporal y lo mapea en memoria.
+     *
+     * @param in El stream a copiar, que se cierra al terminar.
+     * @return El buffer de solo lectura con los datos.
+     * @throws SQLException Si ocurre algun error de E/S o los datos superan {@link #MAX_SIZE} bytes.
+     */
+    static ByteBuffer spill(InputStream in) throws SQLException
+    {
+        try
+        {
+            File file = createTempFile();
+            try
+            {
+                OutputStream out = new FileOutputStream(file);
+                try
+                {
+                    byte[] buf = new byte[COPY_BUFFER_SIZE];
+                    long size = 0L;
+                    int n;
+                    while ((n = in.read(buf)) != -1)
+                    {
+                        size += n;
+                        checkSize(size, "Blob");
+                        out.write(buf, 0, n);
+                    }
+                }
+                finally
+                {
+                    out.close();
+                }
+                return map(file);
+            }
+            catch (IOException e)
+            {
+                throw newSQLException("Error al volcar el Blob al fichero temporal " + file, e);
+            }
+            finally
+            {
+                delete(file);
+            }
+        }
+        finally
+        {
+            close(in);
+        }
+    }
+
+    /**
+     * Copia un stream de caracteres a un fichero temporal en UTF-16 y lo mapea en memoria.
+     *
+     * @param in El stream a copiar, que se cierra al terminar.
+     * @return El buffer de solo lectura con los caracteres.
+     * @throws SQLException Si ocurre algun error de E/S o los datos superan {@link #MAX_SIZE} bytes en UTF-16.
+     */
+    static CharBuffer spill(Reader in) throws SQLException
+    {
+        try
+        {
+            File file = createTempFile();
+            try
+            {
+                OutputStream out = new FileOutputStream(file);
+                try
+                {
+                    char[] cbuf = new char[COPY_BUFFER_SIZE];
+                    byte[] buf = new byte[COPY_BUFFER_SIZE << 1];
+                    long size = 0L;
+                    int n;
+                    while ((n = in.read(cbuf)) != -1)
+                    {
+                        size += n << 1;
+                        checkSize(size, "Clob");
+                        for (int i = 0; i < n; i++)
+                        {
+                            buf[i << 1] = (byte) (cbuf[i] >>> 8);
+                            buf[(i << 1) + 1] = (byte) cbuf[i];
+                        }
+                        out.write(buf, 0, n << 1);
+                    }
+                }
+                finally
+                {
+                    out.close();
+                }
+                return map(file).asCharBuffer();
+            }
+            catch (IOException e)
+            {
+                throw newSQLException("Error al volcar el Clob al fichero temporal " + file, e);
+            }
+            finally
+            {
+                delete(file);
+            }
+        }
+        finally
+        {
+            close(in);
+        }
+    }
+
+    /**
+     * Devuelve un InputStream que lee el buffer indicado sin copiarlo.
+     *
+     * @param data El buffer, que no se modifica.
+     * @return El InputStream.
+     */
+    static InputStream newInputStream(ByteBuffer data)
+    {
+        return new ByteBufferInputStream(data.duplicate());
+    }
+
+    /**
+     * Devuelve un Reader que lee el buffer indicado sin copiarlo.
+     *
+     * @param data El buffer, que no se modifica.
+     * @return El Reader.
+     */
+    static Reader newReader(CharBuffer data)
+    {
+        return new CharBufferReader(data.duplicate());
+    }
+
+    /**
+     * Devuelve un InputStream ASCII que lee el buffer de caracteres indicado sin copiarlo. Los caracteres no ASCII se
+     * sustituyen por '?'.
+     *
+     * @param data El buffer, que no se modifica.
+     * @return El InputStream.
+     */
+    static InputStream newAsciiInputStream(CharBuffer data)
+    {
+        return new AsciiInputStream(data.duplicate());
+    }
+
+    /**
+     * Comprueba que los datos copiados hasta el momento se pueden mapear en un buffer.
+     *
+     * @param size El numero de bytes copiados.
+     * @param lob  El tipo de LOB, para el mensaje.
+     * @throws SQLException Si se supera {@link #MAX_SIZE}.
+     */
+    private static void checkSize(long size, String lob) throws SQLException
+    {
+        if (size > MAX_SIZE)
+        {
+            throw new SQLException("El " + lob + " supera el tamaño maximo de " + MAX_SIZE
+                    + " bytes que se puede volcar a fichero");
+        }
+    }
+
+    /**
+     * Cierra el stream del driver. Los errores al cerrarlo se ignoran, ya que los datos ya se han copiado o se esta
+     * lanzando el error de la copia.
+     *
+     * @param in El stream.
+     */
+    private static void close(Closeable in)
+    {
+        try
+        {
+            in.close();
+        }
+        catch (IOException e)
+        {
+            //Se ignora
+        }
+    }
+
+    /**
+     * Crea el fichero temporal.
+     *
+     * @return El fichero creado.
+     * @throws SQLException Si no es posible crearlo.
+     */
+    private static File createTempFile() throws SQLException
+    {
+        try
+        {
+            return File.createTempFile(PREFIX, ".tmp");
+        }
+        catch (IOException e)
+        {
+            throw newSQLException("No es posible crear el fichero temporal para el LOB", e);
+        }
+    }
+
+    /**
+     * Mapea en memoria un fichero completo en solo lectura.
+     *
+     * @param file El fichero.
+     * @return El buffer mapeado.
+     * @throws IOException Si ocurre algun error de E/S.
+     */
+    private static ByteBuffer map(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Borra el fichero temporal. Si no es posible, se borrara al terminar la JVM.
+     *
+     * @param file El fichero.
+     */
+    private static void delete(File file)
+    {
+        if (!file.delete())
+        {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Crea una SQLException con la causa indicada.
+     *
+     * @param message El mensaje.
+     * @param cause   La causa.
+     * @return La excepcion.
+     */
+    private static SQLException newSQLException(String message, IOException cause)
+    {
+        SQLException e = new SQLException(message);
+        e.initCause(cause);
+        return e;
+    }
+
+    /**
+     * InputStream sobre un ByteBuffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer data;
+
+        private ByteBufferInputStream(ByteBuffer data)
+        {
+            this.data = data;
+        }
+
+        public int read()
+        {
+            return data.hasRemaining() ? data.get() & 0xFF : -1;
+        }
+
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!data.hasRemaining())
+            {
+                return -1;
+            }
+            int n = Math.min(len, data.remaining());
+            data.get(b, off, n);
+            return n;
+        }
+
+        public long skip(long n)
+        {
+            int skipped = (int) Math.max(0L, Math.min(n, (long) data.remaining()));
+            data.position(data.position() + skipped);
+            return skipped;
+        }
+
+        public int available()
+        {
+            return data.remaining();
+        }
+    }
+
+    /**
+     * Reader sobre un CharBuffer.
+     */
+    private static final class CharBufferReader extends Reader
+    {
+        private final CharBuffer data;
+
+        private CharBufferReader(CharBuffer data)
+        {
+            this.data = data;
+        }
+
+        public int read(char[] cbuf, int off, int len)
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!data.hasRemaining())
+            {
+                return -1;
+            }
+            int n = Math.min(len, data.remaining());
+            data.get(cbuf, off, n);
+            return n;
+        }
+
+        public long skip(long n)
+        {
+            int skipped = (int) Math.max(0L, Math.min(n, (long) data.remaining()));
+            data.position(data.position() + skipped);
+            return skipped;
+        }
+
+        public boolean ready()
+        {
+            return true;
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * InputStream ASCII sobre un CharBuffer.
+     */
+    private static final class AsciiInputStream extends InputStream
+    {
+        private final CharBuffer data;
+
+        private AsciiInputStream(CharBuffer data)
+        {
+            this.data = data;
+        }
+
+        public int read()
+        {
+            if (!data.hasRemaining())
+            {
+                return -1;
+            }
+            char c = data.get();
+            return c < 128 ? c : '?';
+        }
+
+        public int available()
+        {
+            return data.remaining();
+        }
+    }
+}
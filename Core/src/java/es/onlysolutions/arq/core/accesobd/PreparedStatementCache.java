@@ -0,0 +1,404 @@
+package es.onlysolutions.arq.core.accesobd;
+
+import es.onlysolutions.arq.core.log.LoggerGenerator;
+import org.apache.commons.logging.Log;
+import org.springframework.jdbc.support.nativejdbc.NativeJdbcExtractor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache de PreparedStatement por conexion fisica, indexada por el texto SQL.<br>
+ * Cada conexion tiene su propia lista LRU de tamaño maximo configurable; al superarse se cierra el statement
+ * utilizado hace mas tiempo. Mientras un statement esta en uso se saca de la cache, por lo que nunca se comparte
+ * entre dos ejecuciones simultaneas.<br>
+ * Los pools (DBCP, c3p0...) devuelven un envoltorio distinto de la conexion en cada peticion y cierran sus statements
+ * al devolverla, por lo que con un NativeJdbcExtractor la cache se indexa por la conexion fisica y prepara los
+ * statements sobre ella, de forma que se reutilizan entre peticiones mientras el pool mantenga abierta la conexion.
+ * Sin NativeJdbcExtractor se indexa por la conexion recibida y solo se reutilizan si el pool devuelve siempre el mismo
+ * objeto Connection; en otro caso es preferible la cache de statements del propio pool.<br>
+ * Los statements de una conexion se cierran y se descartan cuando la conexion aparece como cerrada. La comprobacion
+ * se hace fuera del bloqueo de la cache, y solo cuando el numero de conexiones registradas duplica el de la ultima.
+ *
+ * @see AbstractJdbcDao#setStatementCacheSize(int)
+ * @see AbstractJdbcDao#setNativeJdbcExtractor(NativeJdbcExtractor)
+ */
+final class PreparedStatementCache
+{
+    /**
+     * El logger de la clase.
+     */
+    private static final Log logger = LoggerGenerator.getLogger(PreparedStatementCache.class);
+
+    /**
+     * Numero minimo de conexiones registradas a partir del cual se descartan las cerradas.
+     */
+    private static final int MIN_PURGE_THRESHOLD = 16;
+
+    /**
+     * Numero maximo de statements cacheados por conexion.
+     */
+    private final int maxSize;
+
+    /**
+     * Extractor de la conexion fisica, o null para indexar por la conexion recibida.
+     */
+    private final NativeJdbcExtractor nativeJdbcExtractor;
+
+    /**
+     * Statements cacheados de cada conexion. Se compara por identidad porque las conexiones pueden redefinir equals.
+     */
+    private final Map<Connection, Map<String, PreparedStatement>> statementsByConnection = new IdentityHashMap<Connection, Map<String, PreparedStatement>>();
+
+    /**
+     * Numero de conexiones registradas a partir del cual se descartan las cerradas. Se accede con el bloqueo de
+     * statementsByConnection.
+     */
+    private int purgeThreshold = MIN_PURGE_THRESHOLD;
+
+    /**
+     * Indica si hay un Thread descartando las conexiones cerradas.
+     */
+    private final AtomicBoolean purging = new AtomicBoolean();
+
+    /**
+     * Numero de statements obtenidos de la cache.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Numero de statements que ha habido que preparar.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Construye una cache con el tamaño maximo por conexion indicado.
+     *
+     * @param maxSize             Numero maximo de statements cacheados por conexion.
+     * @param nativeJdbcExtractor El extractor de la conexion fisica, o null para indexar por la conexion recibida.
+     */
+    PreparedStatementCache(int maxSize, NativeJdbcExtractor nativeJdbcExtractor)
+    {
+        if (maxSize <= 0)
+        {
+            throw new IllegalArgumentException("El tamaño de la cache de statements debe ser mayor que 0: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.nativeJdbcExtractor = nativeJdbcExtractor;
+    }
+
+    /**
+     * Obtiene un PreparedStatement para el SQL indicado: el cacheado para la conexion si existe, con sus parametros
+     * y su maximo de registros reiniciados, o uno nuevo en otro caso.<br>
+     * El statement debe devolverse con {@link #release(Connection, String, PreparedStatement)} o cerrarse con
+     * {@link #discard(PreparedStatement)} tras usarlo.
+     *
+     * @param con La conexion abierta.
+     * @param sql El SQL a preparar.
+     * @return El PreparedStatement listo para establecer los parametros.
+     * @throws SQLException Si ocurre algun error al preparar el statement.
+     */
+    PreparedStatement prepare(Connection con, String sql) throws SQLException
+    {
+        Connection physicalCon = getPhysicalConnection(con);
+        Map<String, PreparedStatement> statements = getStatements(physicalCon);
+        PreparedStatement ps;
+        synchronized (statements)
+        {
+            ps = statements.remove(sql);
+        }
+
+        if (ps != null && !isOpen(ps))
+        {
+            ps = null;
+        }
+
+        if (ps != null)
+        {
+            hits.incrementAndGet();
+            ps.clearParameters();
+            ps.setMaxRows(0);
+        }
+        else
+        {
+            misses.incrementAndGet();
+            ps = physicalCon.prepareStatement(sql);
+        }
+        return ps;
+    }
+
+    /**
+     * Devuelve a la cache un statement ejecutado correctamente. Si ya hay otro cacheado para el mismo SQL se cierra.
+     *
+     * @param con La conexion con la que se obtuvo el statement.
+     * @param sql El SQL del statement.
+     * @param ps  El statement a devolver.
+     */
+    void release(Connection con, String sql, PreparedStatement ps)
+    {
+        Map<String, PreparedStatement> statements;
+        try
+        {
+            statements = getStatements(getPhysicalConnection(con));
+        }
+        catch (SQLException ex)
+        {
+            logger.error("No es posible obtener la conexion fisica. Se cierra el statement: " + ps, ex);
+            discard(ps);
+            return;
+        }
+        PreparedStatement previous;
+        synchronized (statements)
+        {
+            previous = statements.put(sql, ps);
+        }
+        if (previous != null && previous != ps)
+        {
+            discard(previous);
+        }
+    }
+
+    /**
+     * Cierra un statement que no debe volver a la cache, por ejemplo tras un error en su ejecucion.
+     *
+     * @param ps El statement a cerrar.
+     */
+    void discard(PreparedStatement ps)
+    {
+        try
+        {
+            ps.close();
+        }
+        catch (SQLException ex)
+        {
+            logger.error("No es posible cerrar el statement: " + ps, ex);
+        }
+        catch (RuntimeException t)
+        {
+            logger.error("Excepcion inesperada. No es posible cerrar el statement: " + ps, t);
+        }
+    }
+
+    /**
+     * Cierra todos los statements cacheados de todas las conexiones.
+     */
+    void clear()
+    {
+        synchronized (statementsByConnection)
+        {
+            for (Map<String, PreparedStatement> statements : statementsByConnection.values())
+            {
+                closeAll(statements);
+            }
+            statementsByConnection.clear();
+        }
+    }
+
+    /**
+     * Devuelve el numero de statements obtenidos de la cache.
+     *
+     * @return El numero de aciertos.
+     */
+    long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Devuelve el numero de statements que ha habido que preparar.
+     *
+     * @return El numero de fallos.
+     */
+    long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Devuelve la conexion sobre la que se preparan y cachean los statements.
+     *
+     * @param con La conexion obtenida del DataSource.
+     * @return La conexion fisica si hay NativeJdbcExtractor, o la propia conexion en otro caso.
+     * @throws SQLException Si ocurre algun error al obtener la conexion fisica.
+     */
+    private Connection getPhysicalConnection(Connection con) throws SQLException
+    {
+        return nativeJdbcExtractor != null ? nativeJdbcExtractor.getNativeConnection(con) : con;
+    }
+
+    /**
+     * Obtiene la lista LRU de statements de una conexion, creandola si no existe. Si al registrar una conexion nueva
+     * se alcanza el umbral de conexiones, se descartan las que ya estan cerradas, de forma que no se acumulan
+     * statements de conexiones cerradas por el pool.
+     *
+     * @param con La conexion.
+     * @return La lista de statements de la conexion.
+     */
+    private Map<String, PreparedStatement> getStatements(Connection con)
+    {
+        Map<String, PreparedStatement> statements;
+        List<Connection> registered = null;
+        synchronized (statementsByConnection)
+        {
+            statements = statementsByConnection.get(con);
+            if (statements == null)
+            {
+                statements = new StatementLru(maxSize);
+                statementsByConnection.put(con, statements);
+                if (statementsByConnection.size() >= purgeThreshold && purging.compareAndSet(false, true))
+                {
+                    registered = new ArrayList<Connection>(statementsByConnection.keySet());
+                }
+            }
+        }
+
+        if (registered != null)
+        {
+            try
+            {
+                purgeClosedConnections(registered);
+            }
+            finally
+            {
+                purging.set(false);
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * Descarta y cierra los statements de las conexiones cerradas. Comprueba las conexiones sin el bloqueo de
+     * statementsByConnection, ya que isClosed puede acceder a la base de datos, y recalcula el umbral de conexiones.
+     *
+     * @param registered Las conexiones registradas.
+     */
+    private void purgeClosedConnections(List<Connection> registered)
+    {
+        for (Connection con : registered)
+        {
+            if (isClosed(con))
+            {
+                Map<String, PreparedStatement> statements;
+                synchronized (statementsByConnection)
+                {
+                    statements = statementsByConnection.remove(con);
+                }
+                if (statements != null)
+                {
+                    closeAll(statements);
+                }
+            }
+        }
+
+        synchronized (statementsByConnection)
+        {
+            purgeThreshold = Math.max(MIN_PURGE_THRESHOLD, statementsByConnection.size() * 2);
+        }
+    }
+
+    /**
+     * Cierra y elimina todos los statements de una lista.
+     *
+     * @param statements La lista de statements.
+     */
+    private void closeAll(Map<String, PreparedStatement> statements)
+    {
+        synchronized (statements)
+        {
+            for (PreparedStatement ps : statements.values())
+            {
+                discard(ps);
+            }
+            statements.clear();
+        }
+    }
+
+    /**
+     * Indica si una conexion esta cerrada. Si no es posible saberlo se considera cerrada.
+     *
+     * @param con La conexion.
+     * @return true si la conexion esta cerrada.
+     */
+    private boolean isClosed(Connection con)
+    {
+        try
+        {
+            return con.isClosed();
+        }
+        catch (SQLException ex)
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Indica si un statement cacheado sigue abierto. Si esta cerrado (por ejemplo porque el pool lo cerro al
+     * devolver la conexion) se cierra igualmente para asegurar que se liberan sus recursos.
+     *
+     * @param ps El statement.
+     * @return true si el statement puede reutilizarse.
+     */
+    private boolean isOpen(PreparedStatement ps)
+    {
+        boolean open;
+        try
+        {
+            open = !ps.isClosed();
+        }
+        catch (SQLException ex)
+        {
+            open = false;
+        }
+        if (!open)
+        {
+            discard(ps);
+        }
+        return open;
+    }
+
+    /**
+     * Lista LRU de statements de una conexion, que cierra el statement utilizado hace mas tiempo al llenarse.
+     */
+    private final class StatementLru extends LinkedHashMap<String, PreparedStatement>
+    {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Numero maximo de statements de la lista.
+         */
+        private final int maxEntries;
+
+        /**
+         * Construye la lista con el tamaño maximo indicado.
+         *
+         * @param maxEntries Numero maximo de statements.
+         */
+        private StatementLru(int maxEntries)
+        {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+        {
+            boolean remove = size() > maxEntries;
+            if (remove)
+            {
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Se descarta de la cache el statement: " + eldest.getKey());
+                }
+                discard(eldest.getValue());
+            }
+            return remove;
+        }
+    }
+}
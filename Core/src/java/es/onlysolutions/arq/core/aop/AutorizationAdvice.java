@@ -12,13 +12,20 @@ import org.springframework.core.Ordered;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Aspecto para comprobar si el usuario logueado actualmente en la session tiene el permiso para la ejecucion
  * del metodo del facade.
  * En caso de que un metodo no este definido en la configuracion se permite siempre su ejecucion.
+ * El permiso de cada metodo se resuelve solo la primera vez que se invoca sobre cada clase y se guarda en un indice
+ * concurrente por clase y Method, incluidos los metodos que no requieren permiso, de forma que las siguientes
+ * llamadas no construyen Strings ni se sincronizan. Las clases generadas por CGLIB se resuelven a su clase original.
  * <b>Debe ejecutarse siempre previamente a cualquier inicio de advice de transaccionalidad</b>
  */
 public class AutorizationAdvice implements Ordered, MethodBeforeAdvice
@@ -33,6 +40,26 @@ public class AutorizationAdvice implements Ordered, MethodBeforeAdvice
      */
     private Properties permissions = new Properties();
 
+    /**
+     * Separador que CGLIB incluye en el nombre de las clases que genera.
+     */
+    private static final String CGLIB_CLASS_SEPARATOR = "$$";
+
+    /**
+     * Valor del indice para los metodos que no requieren permiso.
+     */
+    private static final String NO_PERMISSION = new String("");
+
+    /**
+     * Permisos de la configuracion por nombre de clase y nombre de metodo. Inmutable una vez leida la configuracion.
+     */
+    private Map<String, Map<String, String>> permissionsByClass = Collections.emptyMap();
+
+    /**
+     * Indice de los permisos ya resueltos por clase del objeto y metodo invocado.
+     */
+    private final ConcurrentMap<Class, ConcurrentMap<Method, String>> resolvedPermissions = new ConcurrentHashMap<Class, ConcurrentMap<Method, String>>();
+
     /**
      * Constructor del Aspecto. Lee de la configuracion la relacione de permisos y metodos de facade.
      *
@@ -90,6 +117,24 @@ public class AutorizationAdvice implements Ordered, MethodBeforeAdvice
         logger.info("Leidos " + correctPermissions + " permisos CORRECTOS de la configuracion");
         logger.info("Leidos " + errorPermissions + " permisos ERRONEOS de la configuracion");
 
+        Map<String, Map<String, String>> byClass = new HashMap<String, Map<String, String>>();
+        for (Map.Entry<Object, Object> entry : permissions.entrySet())
+        {
+            String permissionEntry = (String) entry.getKey();
+            if (isConsistentEntry(permissionEntry))
+            {
+                int indexOfArroba = permissionEntry.indexOf('@');
+                String className = permissionEntry.substring(0, indexOfArroba);
+                Map<String, String> byMethod = byClass.get(className);
+                if (byMethod == null)
+                {
+                    byMethod = new HashMap<String, String>();
+                    byClass.put(className, byMethod);
+                }
+                byMethod.put(permissionEntry.substring(indexOfArroba + 1), (String) entry.getValue());
+            }
+        }
+        permissionsByClass = byClass;
     }
 
     /**
@@ -185,14 +230,12 @@ public class AutorizationAdvice implements Ordered, MethodBeforeAdvice
      */
     public void before(Method method, Object[] args, Object target) throws Throwable
     {
-        String className = target.getClass().getName();
         String methodName = method.getName();
-        String fullMethodName = className + '@' + methodName;
-        String requiredPermission = permissions.getProperty(fullMethodName);
+        String requiredPermission = getRequiredPermission(target.getClass(), method);
 
         if (logger.isDebugEnabled())
         {
-            logger.debug("Autorizando " + fullMethodName + " -> " + requiredPermission);
+            logger.debug("Autorizando " + target.getClass().getName() + '@' + methodName + " -> " + requiredPermission);
         }
 
         if (requiredPermission != null)
@@ -220,4 +263,62 @@ public class AutorizationAdvice implements Ordered, MethodBeforeAdvice
             }
         }
     }
+
+    /**
+     * Devuelve el permiso requerido para ejecutar el metodo sobre un objeto de la clase indicada, resolviendolo y
+     * guardandolo en el indice la primera vez.
+     *
+     * @param targetClass La clase del objeto cuyo metodo se va a ejecutar.
+     * @param method      El metodo que se va a ejecutar.
+     * @return El permiso requerido, o null si no requiere permiso.
+     */
+    private String getRequiredPermission(Class targetClass, Method method)
+    {
+        ConcurrentMap<Method, String> byMethod = resolvedPermissions.get(targetClass);
+        if (byMethod == null)
+        {
+            byMethod = new ConcurrentHashMap<Method, String>();
+            ConcurrentMap<Method, String> existing = resolvedPermissions.putIfAbsent(targetClass, byMethod);
+            if (existing != null)
+            {
+                byMethod = existing;
+            }
+        }
+
+        String permission = byMethod.get(method);
+        if (permission == null)
+        {
+            permission = resolvePermission(targetClass, method);
+            byMethod.put(method, permission);
+        }
+
+        return permission == NO_PERMISSION ? null : permission;
+    }
+
+    /**
+     * Busca en la configuracion el permiso de un metodo, con el nombre de la clase original si la clase ha sido
+     * generada por CGLIB.
+     *
+     * @param targetClass La clase del objeto cuyo metodo se va a ejecutar.
+     * @param method      El metodo que se va a ejecutar.
+     * @return El permiso requerido, o NO_PERMISSION si no requiere permiso.
+     */
+    private String resolvePermission(Class targetClass, Method method)
+    {
+        Class userClass = targetClass;
+        while (userClass.getName().indexOf(CGLIB_CLASS_SEPARATOR) != -1 && userClass.getSuperclass() != null)
+        {
+            userClass = userClass.getSuperclass();
+        }
+
+        Map<String, String> byMethod = permissionsByClass.get(userClass.getName());
+        String permission = byMethod != null ? byMethod.get(method.getName()) : null;
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Se resuelve el permiso de " + userClass.getName() + '@' + method.getName() + " -> " + permission);
+        }
+
+        return permission != null ? permission : NO_PERMISSION;
+    }
 }
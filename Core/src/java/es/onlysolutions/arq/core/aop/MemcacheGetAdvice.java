@@ -1,27 +1,70 @@
 package es.onlysolutions.arq.core.aop;
 
+import es.onlysolutions.arq.core.accesobd.IEntityId;
+import es.onlysolutions.arq.core.aop.helper.DigestKeyGenerator;
+import es.onlysolutions.arq.core.aop.helper.ICacheKeyGenerator;
 import es.onlysolutions.arq.core.aop.helper.MethodHelper;
+import es.onlysolutions.arq.core.cache.AsyncCacheWriter;
+import es.onlysolutions.arq.core.cache.CachedValue;
+import es.onlysolutions.arq.core.cache.ICacheProvider;
 import es.onlysolutions.arq.core.cache.IConstantsMemcache;
+import es.onlysolutions.arq.core.cache.MemcacheCacheProvider;
 import es.onlysolutions.arq.core.cache.MemcacheClientWrapper;
-import es.onlysolutions.arq.core.cache.exception.MemcacheException;
+import es.onlysolutions.arq.core.cache.NearCache;
+import es.onlysolutions.arq.core.cache.TagVersions;
 import es.onlysolutions.arq.core.configuration.Configuracion;
+import es.onlysolutions.arq.core.service.utils.EntityUtils;
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.proxy.HibernateProxyHelper;
+import org.springframework.aop.framework.ReflectiveMethodInvocation;
+import org.springframework.aop.support.AopUtils;
 import org.springframework.core.Ordered;
 import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
 
+import java.io.Serializable;
 import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Aspecto para cachear llamadas a los metodos en Memcache.
+ * Aspecto para cachear llamadas a los metodos en Memcache o en cualquier otro ICacheProvider.
+ * Opcionalmente se puede indicar una NearCache, cache local en memoria que se consulta antes que Memcache para
+ * evitar el acceso por red en las claves mas utilizadas.<br/>
+ * Cuando varios Threads piden a la vez una clave que no esta en cache, solo uno de ellos ejecuta el metodo y el resto
+ * espera su resultado, evitando que todas las peticiones lleguen a la base de datos al expirar una clave muy usada.<br/>
+ * Si se indica <i>refreshAfter</i>, se activa el modo stale-while-revalidate: pasado ese tiempo el valor cacheado se
+ * sigue devolviendo mientras se recalcula en segundo plano.<br/>
+ * Las escrituras en Memcache no bloquean la peticion: el resultado se serializa en el Thread de la llamada y el envio
+ * se encola en un AsyncCacheWriter; los fallos se contabilizan en lugar de propagarse.<br/>
+ * La invalidacion se basa en etiquetas versionadas: cada metodo depende de unas etiquetas, por defecto una por cada
+ * argumento no nulo, o las indicadas en <i>methodTags</i> o registradas con
+ * {@link #addDefaultMethodTags(java.util.Map)}, por ejemplo la clase y el id de la entidad. La clave de
+ * cada resultado incluye la version actual de sus etiquetas, que se leen de la cache con una sola operacion por
+ * llamada, de forma que al invalidar una etiqueta basta con incrementar su version para que dejen de encontrarse
+ * todos los resultados que dependen de ella.
  */
 public class MemcacheGetAdvice implements Ordered, MethodInterceptor
 {
@@ -30,12 +73,259 @@ public class MemcacheGetAdvice implements Ordered, MethodInterceptor
      */
     private static final Log logger = LogFactory.getLog(MemcacheGetAdvice.class);
 
-    private MemcacheClientWrapper memcacheClient;
+    private ICacheProvider cacheProvider;
+
+    private AsyncCacheWriter cacheWriter;
+
+    private int writeQueueSize = 1000;
+
+    private NearCache nearCache;
+
+    private ICacheKeyGenerator keyGenerator = new DigestKeyGenerator();
+
+    private TagVersions tagVersions;
+
+    /**
+     * Marca de los metodos sin etiquetas declaradas en <i>resolvedTags</i>.
+     */
+    private static final String[] NO_DECLARED_TAGS = new String[0];
+
+    /**
+     * Etiquetas declaradas de cada metodo, indexadas por el nombre completo de la clase seguido del nombre del metodo.
+     */
+    private volatile Map<String, String[]> methodTags = Collections.emptyMap();
+
+    /**
+     * Etiquetas por defecto de cada metodo, registradas por los componentes que las definen. Las de <i>methodTags</i>
+     * tienen prioridad.
+     */
+    private volatile Map<String, String[]> defaultMethodTags = Collections.emptyMap();
+
+    /**
+     * Etiquetas declaradas ya resueltas para cada metodo, o NO_DECLARED_TAGS si no tiene.
+     */
+    private final ConcurrentMap<Method, String[]> resolvedTags = new ConcurrentHashMap<Method, String[]>();
+
+    /**
+     * Segundos tras los que un valor cacheado se refresca en segundo plano. 0 si no se utiliza stale-while-revalidate.
+     */
+    private int refreshAfter = 0;
+
+    private int refreshThreads = 2;
+
+    /**
+     * Calculos en curso por clave, para que cada clave solo se calcule una vez a la vez.
+     */
+    private final ConcurrentMap<String, FutureTask<Object>> inFlight = new ConcurrentHashMap<String, FutureTask<Object>>();
+
+    private volatile ThreadPoolExecutor refreshExecutor;
+
+    private final AtomicLong coalescedCalls = new AtomicLong();
+
+    private final AtomicLong backgroundRefreshes = new AtomicLong();
     
 
+    /**
+     * Establece el cliente de Memcache. Equivale a indicar un MemcacheCacheProvider sobre el como <i>cacheProvider</i>.
+     * @param memcacheClient El cliente de Memcache.
+     */
     public void setMemcacheClient(MemcacheClientWrapper memcacheClient)
     {
-        this.memcacheClient = memcacheClient;
+        setCacheProvider( new MemcacheCacheProvider( memcacheClient ) );
+    }
+
+    /**
+     * Establece el almacen de cache en el que se guardan los resultados y las versiones de las etiquetas.
+     * @param cacheProvider El almacen de cache.
+     * @see es.onlysolutions.arq.core.cache.EhcacheCacheProvider
+     * @see es.onlysolutions.arq.core.cache.TieredCacheProvider
+     */
+    public void setCacheProvider(ICacheProvider cacheProvider)
+    {
+        this.cacheProvider = cacheProvider;
+        this.cacheWriter = new AsyncCacheWriter( cacheProvider );
+        this.cacheWriter.setQueueSize( writeQueueSize );
+        this.tagVersions = new TagVersions( cacheProvider );
+    }
+
+    /**
+     * Establece el numero maximo de escrituras en Memcache pendientes. Por defecto 1000.
+     * Cuando la cola esta llena las nuevas escrituras se descartan.
+     * @param writeQueueSize El numero maximo de escrituras pendientes.
+     */
+    public void setWriteQueueSize(int writeQueueSize)
+    {
+        this.writeQueueSize = writeQueueSize;
+        if( cacheWriter != null )
+        {
+            cacheWriter.setQueueSize( writeQueueSize );
+        }
+    }
+
+    /**
+     * Devuelve el numero de escrituras en Memcache pendientes.
+     * @return El numero de escrituras pendientes.
+     */
+    public int getPendingWrites()
+    {
+        return cacheWriter != null ? cacheWriter.getPendingWrites() : 0;
+    }
+
+    /**
+     * Devuelve el numero de escrituras en Memcache que han fallado.
+     * @return El numero de escrituras fallidas.
+     */
+    public long getFailedWrites()
+    {
+        return cacheWriter != null ? cacheWriter.getFailedWrites() : 0;
+    }
+
+    /**
+     * Devuelve el numero de escrituras en Memcache descartadas por estar llena la cola.
+     * @return El numero de escrituras descartadas.
+     */
+    public long getDroppedWrites()
+    {
+        return cacheWriter != null ? cacheWriter.getDroppedWrites() : 0;
+    }
+
+    /**
+     * Establece la estrategia de generacion de claves. Por defecto DigestKeyGenerator.
+     * @param keyGenerator La estrategia de generacion de claves.
+     * @see es.onlysolutions.arq.core.aop.helper.ClassNameKeyGenerator
+     */
+    public void setKeyGenerator(ICacheKeyGenerator keyGenerator)
+    {
+        this.keyGenerator = keyGenerator;
+    }
+
+    /**
+     * Establece las etiquetas de las que depende cada metodo, indexadas por el nombre completo de una clase o interfaz
+     * que declara el metodo seguido de un punto y el nombre del metodo, como en <i>methodNamespaces</i> de
+     * DigestKeyGenerator. Las etiquetas se aplican tambien a las sobrescrituras del metodo en las subclases y a las
+     * llamadas a traves de un proxy, ya que se buscan a partir del metodo de la clase del objeto invocado en toda su
+     * jerarquia, con la misma firma.<br/>
+     * Cada valor es una lista de etiquetas separadas por comas en la que <b>{n}</b> se sustituye por el argumento n:
+     * el nombre de la clase si es un Class, <b>{clase}#{id}</b> si es un IEntityId, y su valor como String en otro
+     * caso. Las etiquetas que invalida {@link #invalidateEntity(Class, java.io.Serializable)} son <b>{clase}#{id}</b>,
+     * para los metodos que devuelven una entidad, como <b>{0}#{1}</b> en <b>GenericFacade.get(Class, Serializable)</b>
+     * o <b>{0}</b> en <b>GenericFacade.cargar(IEntityId)</b>, y <b>{clase}</b>, para los que devuelven listados de la
+     * clase.<br/>
+     * Las etiquetas indicadas sustituyen a las registradas por defecto para el mismo metodo. Los metodos sin
+     * etiquetas dependen de cada uno de sus argumentos no nulos.
+     * @param methodTags El mapa con las etiquetas por metodo.
+     * @see #addDefaultMethodTags(java.util.Map)
+     */
+    public void setMethodTags(Map<String, String> methodTags)
+    {
+        this.methodTags = parseTags( methodTags );
+        this.resolvedTags.clear();
+    }
+
+    /**
+     * Registra etiquetas por defecto para los metodos indicados, con el mismo formato que <i>methodTags</i>. Las
+     * declaradas en <i>methodTags</i> para el mismo metodo tienen prioridad. Permite a componentes como GenericFacade
+     * registrar las etiquetas de sus metodos de lectura sin que este aspecto dependa de ellos.
+     * @param defaultTags El mapa con las etiquetas por metodo.
+     */
+    public synchronized void addDefaultMethodTags(Map<String, String> defaultTags)
+    {
+        Map<String, String[]> merged = new HashMap<String, String[]>( this.defaultMethodTags );
+        merged.putAll( parseTags( defaultTags ) );
+        this.defaultMethodTags = merged;
+        this.resolvedTags.clear();
+    }
+
+    /**
+     * Convierte las etiquetas de cada metodo, separadas por comas, en arrays.
+     * @param methodTags El mapa con las etiquetas por metodo, o null.
+     * @return El mapa con los arrays de etiquetas por metodo.
+     */
+    private static Map<String, String[]> parseTags(Map<String, String> methodTags)
+    {
+        Map<String, String[]> parsed = new HashMap<String, String[]>();
+        if( methodTags != null )
+        {
+            for( Map.Entry<String, String> entry : methodTags.entrySet() )
+            {
+                List<String> tags = new ArrayList<String>();
+                for( String tag : entry.getValue().split( "," ) )
+                {
+                    if( tag.trim().length() > 0 )
+                    {
+                        tags.add( tag.trim() );
+                    }
+                }
+                parsed.put( entry.getKey(), tags.toArray( new String[tags.size()] ) );
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Establece la cache local que se consulta antes que Memcache. Es opcional.
+     * @param nearCache La cache local.
+     */
+    public void setNearCache(NearCache nearCache)
+    {
+        this.nearCache = nearCache;
+    }
+
+    /**
+     * Activa el modo stale-while-revalidate: los valores con mas de <i>refreshAfter</i> segundos se siguen devolviendo
+     * mientras se recalculan en segundo plano, hasta que expiran en Memcache. Por defecto 0, desactivado.<br/>
+     * El refresco se ejecuta en otro Thread, fuera de la transaccion y del contexto del usuario que hizo la peticion,
+     * por lo que solo debe activarse para metodos cuyo resultado no dependa de ellos.
+     * @param refreshAfter Los segundos tras los que se refresca un valor, o 0 para desactivarlo.
+     */
+    public void setRefreshAfter(int refreshAfter)
+    {
+        this.refreshAfter = refreshAfter;
+    }
+
+    /**
+     * Establece el numero de Threads que refrescan los valores en segundo plano. Por defecto 2.
+     * @param refreshThreads El numero de Threads.
+     */
+    public void setRefreshThreads(int refreshThreads)
+    {
+        this.refreshThreads = refreshThreads;
+    }
+
+    /**
+     * Devuelve el numero de llamadas que han esperado el resultado calculado por otro Thread en lugar de ejecutar
+     * el metodo.
+     * @return El numero de llamadas agrupadas.
+     */
+    public long getCoalescedCalls()
+    {
+        return coalescedCalls.get();
+    }
+
+    /**
+     * Devuelve el numero de refrescos en segundo plano lanzados en modo stale-while-revalidate.
+     * @return El numero de refrescos.
+     */
+    public long getBackgroundRefreshes()
+    {
+        return backgroundRefreshes.get();
+    }
+
+    /**
+     * Detiene los Threads de refresco y de escritura en segundo plano. Puede indicarse como destroy-method en la
+     * configuracion de Spring.
+     */
+    public void destroy()
+    {
+        ThreadPoolExecutor executor = refreshExecutor;
+        if( executor != null )
+        {
+            executor.shutdown();
+        }
+        if( cacheWriter != null )
+        {
+            cacheWriter.destroy();
+        }
     }
 
     /**
@@ -56,206 +346,689 @@ public class MemcacheGetAdvice implements Ordered, MethodInterceptor
      */
     public Object invoke(MethodInvocation methodInvocation) throws Throwable
     {
-        Object result = getFromCache(methodInvocation);
+        Object target = methodInvocation.getThis();
+        Method method = methodInvocation.getMethod();
+        String key = getKeys( target != null ? target.getClass() : null, method,
+                              Collections.singletonList( methodInvocation.getArguments() ) )[0];
+
+        Object result = nearCache != null ? nearCache.get( key ) : null;
+
+        if( result == null )//No esta en la cache local
+        {
+            result = getFromCache( key );
+            if( result != null && nearCache != null )
+            {
+                nearCache.put( key, result, getExpiration() );
+            }
+        }
+
+        if( result instanceof CachedValue )
+        {
+            CachedValue cachedValue = (CachedValue) result;
+            if( cachedValue.isStale() && !refreshInBackground( key, methodInvocation ) )
+            {
+                return load( key, methodInvocation, true );
+            }
+            return cachedValue.getValue();
+        }
 
         if( result == null )//No esta en cache
         {
-            result = methodInvocation.proceed();
-            putInCache( result, methodInvocation );
+            result = load( key, methodInvocation, false );
+        }
+
+        return result;
+    }
 
+    /**
+     * Ejecuta el metodo y cachea su resultado. Si otro Thread ya lo esta calculando para la misma clave, espera su
+     * resultado en lugar de ejecutarlo de nuevo.
+     * @param key La clave del metodo.
+     * @param methodInvocation El metodo que se esta invocando.
+     * @param replace Indica si se debe sustituir el valor existente en Memcache.
+     * @return El resultado del metodo.
+     * @throws Throwable Si ocurre algo durante la ejecucion del metodo.
+     */
+    private Object load(String key, MethodInvocation methodInvocation, boolean replace) throws Throwable
+    {
+        FutureTask<Object> task = new FutureTask<Object>( new Loader( key, methodInvocation, replace ) );
+        FutureTask<Object> running = inFlight.putIfAbsent( key, task );
+        if( running == null )
+        {
+            running = task;
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                inFlight.remove( key, task );
+            }
+        }
+        else
+        {
+            coalescedCalls.incrementAndGet();
             if( logger.isDebugEnabled() )
             {
-                logger.debug("El metodo " + MethodHelper.toReadableString(methodInvocation.getMethod()) + " no estaba cacheado. Se cachea su resultado");
+                logger.debug("El metodo " + MethodHelper.toReadableString(methodInvocation.getMethod()) + " ya se esta calculando. Se espera su resultado");
             }
-            
         }
 
-        return result;
+        try
+        {
+            return running.get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if( cause instanceof UndeclaredThrowableException )
+            {
+                cause = ((UndeclaredThrowableException) cause).getUndeclaredThrowable();
+            }
+            throw cause;
+        }
     }
 
     /**
-     * Pone en cache el objeto pasado como parametro a menos que sea null.
-     * @param objectToPutInCache El objeto a poner en Memcache.
-     * @param methodInvocation El metodo invocandose en ese momento.
+     * Lanza el refresco en segundo plano de un valor caducado, salvo que ya se este calculando.
+     * @param key La clave del metodo.
+     * @param methodInvocation El metodo que se esta invocando.
+     * @return false si no es posible refrescarlo en segundo plano y debe refrescarse en este Thread.
      */
-    private void putInCache(Object objectToPutInCache, MethodInvocation methodInvocation)
+    private boolean refreshInBackground(String key, MethodInvocation methodInvocation)
     {
-        this.putInCache( objectToPutInCache, MethodHelper.getKeyFromMethod(methodInvocation.getMethod(), methodInvocation.getArguments()) );
+        if( !(methodInvocation instanceof ReflectiveMethodInvocation) )
+        {
+            return false;
+        }
 
-        /**
-         * Actualizamos las listas de metodos para cada argumento, de forma que el aspecto de actualizacion
-         * pueda localizar mas tarde los metodos a limpiar en cache cuando se actualice algun parametro.
-         */
-        addCacheArgumentsList( methodInvocation.getMethod(), methodInvocation.getArguments() );
+        if( inFlight.containsKey( key ) )
+        {
+            return true;
+        }
 
+        MethodInvocation clone = ((ReflectiveMethodInvocation) methodInvocation).invocableClone();
+        final FutureTask<Object> task = new FutureTask<Object>( new Loader( key, clone, true ) );
+        if( inFlight.putIfAbsent( key, task ) == null )
+        {
+            final String taskKey = key;
+            try
+            {
+                getRefreshExecutor().execute( new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            task.run();
+                        }
+                        finally
+                        {
+                            inFlight.remove( taskKey, task );
+                        }
+                    }
+                });
+                backgroundRefreshes.incrementAndGet();
+            }
+            catch (RejectedExecutionException e)
+            {
+                inFlight.remove( key, task );
+                if( logger.isDebugEnabled() )
+                {
+                    logger.debug("No hay Threads libres para refrescar la clave " + key + ". Se sirve el valor anterior");
+                }
+            }
+        }
+        return true;
     }
 
     /**
-     * Pone en cache el objeto indicado bajo la clave indicada.
-     * @param objectToPutInCache El objeto a poner en cache.
-     * @param key La clave bajo la que almacenarla.
-     * @see net.spy.memcached.MemcachedClient#add(String, int, Object)
+     * Devuelve el pool de Threads de refresco, creandolo en el primer uso.
+     * @return El pool de Threads de refresco.
      */
-    private void putInCache(Object objectToPutInCache, String key)
+    private ThreadPoolExecutor getRefreshExecutor()
     {
-        if( objectToPutInCache != null )
+        ThreadPoolExecutor executor = refreshExecutor;
+        if( executor == null )
         {
-            Future<Boolean> futureResult = null;
-            try
+            synchronized( this )
             {
-                Integer expiration = Configuracion.getInteger(IConstantsMemcache.EXPIRATION_TIME);
-                if( expiration == null )
+                executor = refreshExecutor;
+                if( executor == null )
                 {
-                    expiration = 60 * 60 * 24 * 30;
+                    executor = new ThreadPoolExecutor( refreshThreads, refreshThreads, 60L, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<Runnable>( 100 ), new RefreshThreadFactory() );
+                    executor.allowCoreThreadTimeOut( true );
+                    refreshExecutor = executor;
                 }
+            }
+        }
+        return executor;
+    }
 
-                futureResult = this.memcacheClient.client().add(
-                        key,
-                        expiration,
-                        objectToPutInCache);
+    /**
+     * Devuelve las claves de cache de varias invocaciones de un mismo metodo sobre un objeto de la clase indicada,
+     * las mismas que se usan al invocarlo a traves del aspecto: el metodo se resuelve a su implementacion en esa
+     * clase, por lo que las claves coinciden aunque la clase lo sobrescriba o se invoque a traves de una interfaz.
+     * @param targetClass La clase del objeto sobre el que se invoca el metodo, o null para usar el metodo tal cual.
+     * @param method El metodo cacheado, declarado en la clase o en cualquiera de sus superclases o interfaces.
+     * @param argumentsList Los argumentos de cada invocacion.
+     * @return Las claves en el mismo orden que los argumentos.
+     * @see #getAll(String[])
+     */
+    public String[] getKeys(Class targetClass, Method method, List<Object[]> argumentsList)
+    {
+        return getKeys( targetClass != null ? AopUtils.getMostSpecificMethod( method, targetClass ) : method,
+                        argumentsList );
+    }
 
-                Integer timeOut = Configuracion.getInteger(IConstantsMemcache.TIMEOUT);
+    /**
+     * Devuelve las claves de cache de varias invocaciones de un mismo metodo, con la version actual de sus etiquetas.
+     * Las versiones de todas las etiquetas se leen con una unica operacion.
+     * @param method El metodo cacheado, ya resuelto a la clase del objeto sobre el que se invoca.
+     * @param argumentsList Los argumentos de cada invocacion.
+     * @return Las claves en el mismo orden que los argumentos.
+     */
+    private String[] getKeys(Method method, List<Object[]> argumentsList)
+    {
+        List<List<String>> tagKeys = new ArrayList<List<String>>( argumentsList.size() );
+        Set<String> allTagKeys = new LinkedHashSet<String>();
+        for( Object[] arguments : argumentsList )
+        {
+            List<String> invocationTagKeys = getTagKeys( method, arguments );
+            tagKeys.add( invocationTagKeys );
+            allTagKeys.addAll( invocationTagKeys );
+        }
 
-                if( !futureResult.get(timeOut, TimeUnit.SECONDS ) )
-                {
-                    String msg = "No se ha podido insertar en cache el objeto " +
-                            MethodHelper.getKeyFromArgument(objectToPutInCache) + " para el metodo " +
-                            key;
-                    MemcacheException m = new MemcacheException(msg);
-                    logger.error(msg, m);
-                    throw m;
-                }
+        Map<String, Long> versions = tagVersions.getVersions( allTagKeys );
 
-            }
-            catch ( InterruptedException e )
+        String[] keys = new String[argumentsList.size()];
+        for( int i = 0; i < keys.length; i++ )
+        {
+            String key = keyGenerator.getKeyFromMethod( method, argumentsList.get( i ) );
+            List<String> invocationTagKeys = tagKeys.get( i );
+            if( !invocationTagKeys.isEmpty() )
             {
-                if( futureResult != null )
+                long hash = 17;
+                for( String tagKey : invocationTagKeys )
                 {
-                    futureResult.cancel(false);
+                    hash = 31 * hash + versions.get( tagKey );
                 }
-                logger.error("Error al tratar de poner en cache el objeto " + MethodHelper.getKeyFromArgument(objectToPutInCache));
-                throw new MemcacheException("Error al tratar de poner en cache el objeto " + MethodHelper.getKeyFromArgument(objectToPutInCache), e);
+                key += IConstantsMemcache.KEY_SEPARATOR + Long.toHexString( hash );
             }
-            catch (ExecutionException e)
+            keys[i] = key;
+        }
+        return keys;
+    }
+
+    /**
+     * Obtiene de cache los valores de varias claves, consultando la cache local y despues el resto de claves con una
+     * unica operacion getBulk. Permite a quien va a invocar un metodo para una lista de argumentos resolver de una vez
+     * las que ya estan cacheadas y cargar juntas las que faltan.<br/>
+     * Los valores pendientes de refresco en modo stale-while-revalidate se devuelven sin lanzar el refresco.
+     * @param keys Las claves, obtenidas con {@link #getKeys(Class, java.lang.reflect.Method, java.util.List)}.
+     * @return Los valores cacheados en el mismo orden que las claves, con null para los que no estan en cache.
+     * @see #putAll(String[], Object[])
+     */
+    public Object[] getAll(String[] keys)
+    {
+        Object[] results = new Object[keys.length];
+        Map<String, List<Integer>> pending = new LinkedHashMap<String, List<Integer>>();
+
+        for( int i = 0; i < results.length; i++ )
+        {
+            results[i] = nearCache != null ? nearCache.get( keys[i] ) : null;
+            if( results[i] == null )
             {
-                if( futureResult != null )
+                List<Integer> positions = pending.get( keys[i] );
+                if( positions == null )
                 {
-                    futureResult.cancel(false);
+                    positions = new ArrayList<Integer>( 1 );
+                    pending.put( keys[i], positions );
                 }
-                logger.error("Error al tratar de poner en cache el objeto " + MethodHelper.getKeyFromArgument(objectToPutInCache));
-                throw new MemcacheException("Error al tratar de poner en cache el objeto " + MethodHelper.getKeyFromArgument(objectToPutInCache), e);
+                positions.add( i );
             }
-            catch (TimeoutException e)
+        }
+
+        if( !pending.isEmpty() )
+        {
+            Map<String, Object> found = cacheProvider.getBulk( pending.keySet() );
+            for( Map.Entry<String, Object> entry : found.entrySet() )
             {
-                if( futureResult != null )
+                List<Integer> positions = pending.get( entry.getKey() );
+                if( positions != null && entry.getValue() != null )
                 {
-                    futureResult.cancel(false);
+                    for( Integer position : positions )
+                    {
+                        results[position] = entry.getValue();
+                    }
+                    if( nearCache != null )
+                    {
+                        nearCache.put( entry.getKey(), entry.getValue(), getExpiration() );
+                    }
                 }
-                logger.error("Error al tratar de poner en cache el objeto " + MethodHelper.getKeyFromArgument(objectToPutInCache));
-                throw new MemcacheException("Error al tratar de poner en cache el objeto " + MethodHelper.getKeyFromArgument(objectToPutInCache), e);
+            }
+
+            if( logger.isDebugEnabled() )
+            {
+                logger.debug("Se obtienen de cache " + found.size() + " de " + pending.size() + " claves con una sola operacion");
             }
         }
+
+        for( int i = 0; i < results.length; i++ )
+        {
+            if( results[i] instanceof CachedValue )
+            {
+                results[i] = ((CachedValue) results[i]).getValue();
+            }
+        }
+        return results;
     }
 
     /**
-     * Actualiza la lista de metodos cacheados para cada parametro que ejecuta el metodo, o la crea de no existir ya.
-     * @param method El metodo que se esta ejecutando.
-     * @param arguments El array de argumentos.
+     * Pone en cache los resultados de varias invocaciones de un mismo metodo, como si se hubiera invocado para cada
+     * uno de ellos. Las claves deben ser las obtenidas antes de calcular los resultados, de forma que si entretanto
+     * se invalida alguna etiqueta los resultados queden bajo la version anterior. Los resultados null no se cachean.
+     * @param keys Las claves, obtenidas con {@link #getKeys(Class, java.lang.reflect.Method, java.util.List)}.
+     * @param results Los resultados, en el mismo orden que las claves.
+     * @see #getAll(String[])
      */
-    private void addCacheArgumentsList(Method method, Object[] arguments)
+    public void putAll(String[] keys, Object[] results)
     {
-        if( arguments != null )
+        Assert.isTrue( keys.length == results.length, "Debe haber un resultado por cada clave" );
+        for( int i = 0; i < results.length; i++ )
         {
-            for( Object arg : arguments )
-            {
-                String argKey = MethodHelper.getKeyFromArgument(arg);
+            putInCache( results[i], keys[i], false );
+        }
+    }
 
-                Object keyValue = getFromCache( argKey );
+    /**
+     * Invalida los resultados de todos los metodos que dependen del argumento indicado, incrementando la version de
+     * su etiqueta. Solo afecta a los metodos sin etiquetas declaradas en <i>methodTags</i>.
+     * @param argument El argumento que se ha modificado.
+     */
+    public void invalidate(Object argument)
+    {
+        invalidateTagKey( keyGenerator.getKeyFromArgument( argument ) );
+    }
 
-                //El nuevo valor a insertar.
-                String newKeyValueToAdd = MethodHelper.getKeyFromMethod( method, arguments );
+    /**
+     * Invalida los resultados de todos los metodos que declaran la etiqueta indicada en <i>methodTags</i>.
+     * @param tag La etiqueta, con los argumentos ya sustituidos.
+     */
+    public void invalidateTag(String tag)
+    {
+        invalidateTagKey( keyGenerator.getKeyFromArgument( tag ) );
+    }
 
-                if( keyValue != null )
-                {
-                    Assert.isInstanceOf( List.class, keyValue, "Error de almacenamiento en cache. Ha habido una colision en la clave " +
-                            argKey + " y no se ha obtenido un objeto de cache del tipo esperado (" + List.class.getName() + ")" );
+    /**
+     * Invalida los resultados que dependen de una entidad: los de las etiquetas <b>{clase}</b> y <b>{clase}#{id}</b>.
+     * @param entityClass La clase de la entidad.
+     * @param id El id de la entidad, o null para invalidar solo la etiqueta de la clase.
+     * @see #setMethodTags(java.util.Map)
+     */
+    public void invalidateEntity(Class entityClass, Serializable id)
+    {
+        invalidateTag( entityTag( entityClass ) );
+        if( id != null )
+        {
+            invalidateTag( entityTag( entityClass, id ) );
+        }
+    }
 
-                    List<String> argList = (List<String>) keyValue;//La lista de metodos a refrescar ya en cache.
-                    argList.add( newKeyValueToAdd );
-                    putInCache( argList, argKey );
-                }
-                else //No existia nada, asi que se inserta un nuevo objeto.
-                {
-                    List<String> argList = new ArrayList<String>(3);
-                    argList.add( newKeyValueToAdd );
-                    putInCache( argList, argKey );
-                }
-            }
+    /**
+     * Devuelve la etiqueta de los listados de una clase de entidad, <b>{clase}</b>.
+     * @param entityClass La clase de la entidad.
+     * @return La etiqueta.
+     */
+    public static String entityTag(Class entityClass)
+    {
+        return entityClass.getName();
+    }
+
+    /**
+     * Devuelve la etiqueta de una entidad concreta, <b>{clase}#{id}</b>.
+     * @param entityClass La clase de la entidad.
+     * @param id El id de la entidad.
+     * @return La etiqueta.
+     */
+    public static String entityTag(Class entityClass, Serializable id)
+    {
+        return entityClass.getName() + "#" + id;
+    }
+
+    /**
+     * Incrementa la version de una etiqueta.
+     * @param tagKey La clave de la etiqueta, o null.
+     */
+    private void invalidateTagKey(String tagKey)
+    {
+        if( tagKey == null )
+        {
+            return;
+        }
+
+        tagVersions.increment( tagKey );
+
+        if( logger.isDebugEnabled() )
+        {
+            logger.debug("Se invalidan los metodos cacheados para la etiqueta " + tagKey);
         }
     }
 
     /**
-     * Obtiene de Memcache el resultado del metodo almacenado en cache, o null si no lo esta.<br/>
-     * El TIMEOUT de la peticion GET se controla mediante la propiedad <b>memcache.timeout</b> definida en la configuracion.
-     * @param methodInvocation El metodo a invocar.
-     * @return El resultado almacenado en Memcache, o null si no estaba almacenado o ocurre algun error al obtener el valor.
+     * Devuelve las claves de las etiquetas de las que depende una invocacion: las declaradas para el metodo, o en su
+     * defecto las de cada argumento no nulo.
+     * @param method El metodo.
+     * @param arguments Los argumentos.
+     * @return Las claves de las etiquetas.
      */
-    private Object getFromCache(MethodInvocation methodInvocation)
+    private List<String> getTagKeys(Method method, Object[] arguments)
     {
-        return getFromCache( MethodHelper.getKeyFromMethod(methodInvocation.getMethod(), methodInvocation.getArguments()) );
+        String[] tags = resolvedTags.get( method );
+        if( tags == null )
+        {
+            tags = findDeclaredTags( method );
+            resolvedTags.put( method, tags != null ? tags : NO_DECLARED_TAGS );
+        }
+        else if( tags == NO_DECLARED_TAGS )
+        {
+            tags = null;
+        }
+
+        if( tags == null )
+        {
+            return getArgumentKeys( arguments );
+        }
+
+        List<String> tagKeys = new ArrayList<String>( tags.length );
+        for( String tag : tags )
+        {
+            tagKeys.add( keyGenerator.getKeyFromArgument( resolveTag( tag, arguments ) ) );
+        }
+        return tagKeys;
     }
 
     /**
-     * Obtiene de Memcache el objeto almacenado bajo la clave 'key'.
-     * @param key La clave de la que obtener el valor.
-     * @return El valor o null si no existe actualmente nada cacheado.
+     * Busca las etiquetas declaradas para un metodo en la clase que lo declara, en sus superclases y en sus
+     * interfaces, siempre que declaren un metodo con la misma firma.
+     * @param method El metodo.
+     * @return Las etiquetas declaradas, o null si no hay ninguna.
      */
-    private Object getFromCache( String key )
+    private String[] findDeclaredTags(Method method)
     {
-        Object myObj = null;
-        Future<Object> future = memcacheClient.client().asyncGet( key );
+        Class<?> declaringClass = method.getDeclaringClass();
+        for( Class<?> type = declaringClass; type != null; type = type.getSuperclass() )
+        {
+            String[] tags = findDeclaredTags( type, method );
+            if( tags != null )
+            {
+                return tags;
+            }
+        }
+        for( Class<?> type : ClassUtils.getAllInterfacesForClass( declaringClass ) )
+        {
+            String[] tags = findDeclaredTags( type, method );
+            if( tags != null )
+            {
+                return tags;
+            }
+        }
+        return null;
+    }
 
-        Integer timeOut = Configuracion.getInteger(IConstantsMemcache.TIMEOUT);
-        if( timeOut == null )
+    /**
+     * Devuelve las etiquetas declaradas para un metodo en un tipo concreto, si el tipo declara el metodo.
+     * @param type La clase o interfaz.
+     * @param method El metodo.
+     * @return Las etiquetas declaradas, o null si no hay ninguna o el tipo no declara el metodo.
+     */
+    private String[] findDeclaredTags(Class<?> type, Method method)
+    {
+        String name = type.getName() + "." + method.getName();
+        String[] tags = methodTags.get( name );
+        if( tags == null )
+        {
+            tags = defaultMethodTags.get( name );
+        }
+        if( tags == null )
         {
-            timeOut = 5;
+            return null;
         }
 
         try
         {
-            myObj = future.get(timeOut, TimeUnit.SECONDS);
+            type.getDeclaredMethod( method.getName(), method.getParameterTypes() );
+            return tags;
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+    }
 
-            if( logger.isDebugEnabled() )
+    /**
+     * Sustituye en una etiqueta declarada cada <b>{n}</b> por el argumento n.
+     * @param tag La etiqueta declarada.
+     * @param arguments Los argumentos.
+     * @return La etiqueta con los argumentos sustituidos.
+     */
+    private static String resolveTag(String tag, Object[] arguments)
+    {
+        StringBuilder resolved = new StringBuilder( tag.length() + 32 );
+        int start = 0;
+        int open;
+        while( (open = tag.indexOf( '{', start )) != -1 )
+        {
+            int close = tag.indexOf( '}', open );
+            if( close == -1 )
             {
-                if( myObj != null )
-                {
-                    logger.debug("Obtenemos de cache: " + myObj + " para la clave " + key);
-                }
-                else
-                {
-                    logger.debug("En cache no habia nada para la key " + key);
-                }
+                break;
+            }
+
+            int index;
+            try
+            {
+                index = Integer.parseInt( tag.substring( open + 1, close ) );
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException( "La etiqueta " + tag + " contiene un indice de argumento no valido", e );
+            }
+            if( arguments == null || index < 0 || index >= arguments.length )
+            {
+                throw new IllegalArgumentException( "La etiqueta " + tag + " hace referencia al argumento " + index + " que no existe" );
             }
 
+            Object argument = arguments[index];
+            resolved.append( tag, start, open );
+            if( argument instanceof Class )
+            {
+                resolved.append( ((Class) argument).getName() );
+            }
+            else if( argument instanceof IEntityId )
+            {
+                Class entityClass = HibernateProxyHelper.getClassWithoutInitializingProxy( argument );
+                resolved.append( entityTag( entityClass, EntityUtils.getId( (IEntityId) argument ) ) );
+            }
+            else
+            {
+                resolved.append( String.valueOf( argument ) );
+            }
+            start = close + 1;
         }
-        catch (TimeoutException e)
+        resolved.append( tag, start, tag.length() );
+        return resolved.toString();
+    }
+
+    /**
+     * Pone en cache el objeto pasado como parametro a menos que sea null.
+     * @param objectToPutInCache El objeto a poner en Memcache.
+     * @param key La clave del metodo, con las versiones de sus etiquetas.
+     * @param replace Indica si se debe sustituir el valor existente en Memcache.
+     */
+    private void putInCache(Object objectToPutInCache, String key, boolean replace)
+    {
+        if( objectToPutInCache == null )
         {
-            future.cancel(false);
-            logger.error("El TimeOut ha sido excedido, se interrumpe la ejecucion y devolvemos null",e);
+            return;
         }
-        catch (ExecutionException e)
+
+        Object value = objectToPutInCache;
+        if( refreshAfter > 0 )
+        {
+            value = new CachedValue( objectToPutInCache, System.currentTimeMillis() + refreshAfter * 1000L );
+        }
+
+        this.writeToCache( value, key, replace );
+
+        if( nearCache != null )
+        {
+            nearCache.put( key, value, getExpiration() );
+        }
+    }
+
+    /**
+     * Encola la escritura en cache del objeto indicado bajo la clave indicada.
+     * @param objectToPutInCache El objeto a poner en cache.
+     * @param key La clave bajo la que almacenarla.
+     * @param replace Indica si se debe sustituir el valor existente (set) o solo insertarlo si no existe (add).
+     * @see AsyncCacheWriter
+     */
+    private void writeToCache(Object objectToPutInCache, String key, boolean replace)
+    {
+        if( objectToPutInCache != null )
         {
-            future.cancel(false);
-            logger.error("Error durante la ejecucion, se interrumpe la ejecucion y devolvemos null",e);
+            if( replace )
+            {
+                cacheWriter.set( key, getExpiration(), objectToPutInCache );
+            }
+            else
+            {
+                cacheWriter.add( key, getExpiration(), objectToPutInCache );
+            }
+        }
+    }
+
+    /**
+     * Devuelve el tiempo de expiracion en segundos de los objetos puestos en Memcache.
+     * @return El valor de la propiedad <b>memcache.expiration</b>, o el maximo permitido si no se especifica.
+     */
+    private int getExpiration()
+    {
+        Integer expiration = Configuracion.getInteger(IConstantsMemcache.EXPIRATION_TIME);
+        if( expiration == null )
+        {
+            expiration = 60 * 60 * 24 * 30;
+        }
+        return expiration;
+    }
+
+    /**
+     * Devuelve las claves de los argumentos no nulos, las de sus etiquetas por defecto.
+     * @param arguments El array de argumentos.
+     * @return La lista de claves.
+     */
+    private List<String> getArgumentKeys(Object[] arguments)
+    {
+        List<String> argKeys = new ArrayList<String>( arguments != null ? arguments.length : 0 );
+        if( arguments != null )
+        {
+            for( Object arg : arguments )
+            {
+                String argKey = keyGenerator.getKeyFromArgument(arg);
+                if( argKey != null )
+                {
+                    argKeys.add( argKey );
+                }
+            }
         }
-        catch (InterruptedException e)
+        return argKeys;
+    }
+
+    /**
+     * Obtiene de la cache el objeto almacenado bajo la clave 'key'.
+     * @param key La clave de la que obtener el valor.
+     * @return El valor o null si no existe actualmente nada cacheado.
+     */
+    private Object getFromCache( String key )
+    {
+        Object myObj = cacheProvider.get( key );
+
+        if( logger.isDebugEnabled() )
         {
-            future.cancel(false);
-            logger.error("Error de interrupcion del Thread, se interrumpe la ejecucion y devolvemos null",e);
+            if( myObj != null )
+            {
+                logger.debug("Obtenemos de cache: " + myObj + " para la clave " + key);
+            }
+            else
+            {
+                logger.debug("En cache no habia nada para la key " + key);
+            }
         }
 
         return myObj;
     }
 
+    /**
+     * Calculo del resultado de un metodo y su almacenamiento en cache.
+     */
+    private final class Loader implements Callable<Object>
+    {
+        private final String key;
+        private final MethodInvocation methodInvocation;
+        private final boolean replace;
+
+        private Loader(String key, MethodInvocation methodInvocation, boolean replace)
+        {
+            this.key = key;
+            this.methodInvocation = methodInvocation;
+            this.replace = replace;
+        }
+
+        public Object call() throws Exception
+        {
+            Object result;
+            try
+            {
+                result = methodInvocation.proceed();
+            }
+            catch (Exception e)
+            {
+                throw e;
+            }
+            catch (Error e)
+            {
+                throw e;
+            }
+            catch (Throwable t)
+            {
+                throw new UndeclaredThrowableException( t );
+            }
+
+            putInCache( result, key, replace );
+
+            if( logger.isDebugEnabled() )
+            {
+                logger.debug("El metodo " + MethodHelper.toReadableString(methodInvocation.getMethod()) + " no estaba cacheado. Se cachea su resultado");
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Factoria de los Threads de refresco en segundo plano.
+     */
+    private static final class RefreshThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger threadNumber = new AtomicInteger();
 
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread( r, "MemcacheRefresh-" + threadNumber.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        }
+    }
 }
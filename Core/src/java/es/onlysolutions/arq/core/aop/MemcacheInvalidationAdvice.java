@@ -0,0 +1,232 @@
+package es.onlysolutions.arq.core.aop;
+
+import es.onlysolutions.arq.core.accesobd.IEntityId;
+import es.onlysolutions.arq.core.service.utils.EntityUtils;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.EntityMode;
+import org.hibernate.SessionFactory;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.proxy.HibernateProxyHelper;
+import org.springframework.core.Ordered;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.Assert;
+
+import java.io.Serializable;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aspecto complementario de MemcacheGetAdvice que invalida los resultados cacheados de las entidades que se
+ * modifican. Se aplica a los metodos de modificacion, como <b>GenericFacade.guardar/borrar</b> o
+ * <b>AbstractHibernateDao.save/update/delete</b>: cuando el metodo termina correctamente se invalidan, para cada
+ * argumento que sea una entidad, las etiquetas de su clase y de su id.<br/>
+ * Si hay una transaccion activa, las invalidaciones se acumulan sin repetir etiquetas y se realizan de una vez tras
+ * el commit, de forma que no se invalida nada si la transaccion se deshace y ninguna lectura concurrente puede volver
+ * a cachear los datos anteriores al commit. Sin transaccion se invalidan al terminar el metodo.<br/>
+ * Las entidades se reconocen por los metadatos de Hibernate si se indica <i>sessionFactory</i>, y en otro caso por
+ * implementar IEntityId.<br/>
+ * <b>NOTA: Debe ejecutarse dentro del aspecto de transaccionalidad, para que la transaccion ya este iniciada.</b>
+ * @see MemcacheGetAdvice#invalidateEntity(Class, java.io.Serializable)
+ */
+public class MemcacheInvalidationAdvice implements Ordered, MethodInterceptor
+{
+    /**
+     * El logger de la clase.
+     */
+    private static final Log logger = LogFactory.getLog(MemcacheInvalidationAdvice.class);
+
+    private MemcacheGetAdvice cacheAdvice;
+
+    private SessionFactory sessionFactory;
+
+    private final AtomicLong invalidatedTags = new AtomicLong();
+
+    /**
+     * Establece el aspecto de cache cuyos resultados se invalidan.
+     * @param cacheAdvice El aspecto de cache.
+     */
+    public void setCacheAdvice(MemcacheGetAdvice cacheAdvice)
+    {
+        this.cacheAdvice = cacheAdvice;
+    }
+
+    /**
+     * Establece la SessionFactory de Hibernate con cuyos metadatos se reconocen las entidades y sus ids. Es opcional.
+     * @param sessionFactory La SessionFactory de Hibernate.
+     */
+    public void setSessionFactory(SessionFactory sessionFactory)
+    {
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Devuelve el numero de etiquetas invalidadas.
+     * @return El numero de etiquetas invalidadas.
+     */
+    public long getInvalidatedTags()
+    {
+        return invalidatedTags.get();
+    }
+
+    /**
+     * Devuelve siempre el valor Ordered.LOWEST_PRECEDENCE.
+     * @return Devuelve siempre el valor Ordered.LOWEST_PRECEDENCE.
+     */
+    public int getOrder()
+    {
+        return Ordered.LOWEST_PRECEDENCE;
+    }
+
+    /**
+     * Ejecuta el metodo de modificacion y, si termina correctamente, invalida o programa tras el commit la
+     * invalidacion de las entidades recibidas como argumento.
+     * @param methodInvocation El metodo que se esta invocando.
+     * @return El resultado del metodo.
+     * @throws Throwable Si ocurre algo durante la ejecucion del metodo.
+     */
+    public Object invoke(MethodInvocation methodInvocation) throws Throwable
+    {
+        Assert.notNull( cacheAdvice, "No se ha indicado el aspecto de cache. Utilize la propiedad \"cacheAdvice\" en la configuracion del bean" );
+
+        Object result = methodInvocation.proceed();
+
+        Set<String> tags = new LinkedHashSet<String>();
+        Object[] arguments = methodInvocation.getArguments();
+        if( arguments != null )
+        {
+            for( Object argument : arguments )
+            {
+                addEntityTags( argument, tags );
+            }
+        }
+
+        if( !tags.isEmpty() )
+        {
+            if( TransactionSynchronizationManager.isSynchronizationActive() )
+            {
+                getPendingInvalidations().tags.addAll( tags );
+            }
+            else
+            {
+                invalidate( tags );
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Añade las etiquetas de un argumento si es una entidad: la de su clase y, si ya tiene id, la de su id.
+     * @param argument El argumento.
+     * @param tags Las etiquetas a invalidar.
+     */
+    private void addEntityTags(Object argument, Set<String> tags)
+    {
+        if( argument == null )
+        {
+            return;
+        }
+
+        Class entityClass = HibernateProxyHelper.getClassWithoutInitializingProxy( argument );
+        ClassMetadata metadata = sessionFactory != null ? sessionFactory.getClassMetadata( entityClass ) : null;
+
+        Serializable id;
+        if( metadata != null )
+        {
+            id = metadata.getIdentifier( argument, EntityMode.POJO );
+        }
+        else if( argument instanceof IEntityId )
+        {
+            id = EntityUtils.getId( (IEntityId) argument );
+        }
+        else
+        {
+            return;
+        }
+
+        tags.add( MemcacheGetAdvice.entityTag( entityClass ) );
+        if( id != null )
+        {
+            tags.add( MemcacheGetAdvice.entityTag( entityClass, id ) );
+        }
+    }
+
+    /**
+     * Invalida las etiquetas indicadas. Los errores se registran en el log sin propagarse, ya que la modificacion ya
+     * se ha realizado.
+     * @param tags Las etiquetas.
+     */
+    private void invalidate(Set<String> tags)
+    {
+        for( String tag : tags )
+        {
+            try
+            {
+                cacheAdvice.invalidateTag( tag );
+                invalidatedTags.incrementAndGet();
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Error al invalidar la etiqueta de cache " + tag, e);
+            }
+        }
+
+        if( logger.isDebugEnabled() )
+        {
+            logger.debug("Se invalidan las etiquetas de cache " + tags);
+        }
+    }
+
+    /**
+     * Devuelve las invalidaciones pendientes de la transaccion actual, registrandolas en la transaccion si aun no lo
+     * estan.
+     * @return Las invalidaciones pendientes.
+     */
+    private PendingInvalidations getPendingInvalidations()
+    {
+        PendingInvalidations pending = (PendingInvalidations) TransactionSynchronizationManager.getResource( this );
+        if( pending == null )
+        {
+            pending = new PendingInvalidations();
+            TransactionSynchronizationManager.bindResource( this, pending );
+            TransactionSynchronizationManager.registerSynchronization( pending );
+        }
+        return pending;
+    }
+
+    /**
+     * Invalidaciones acumuladas durante una transaccion, que se realizan tras su commit.
+     */
+    private final class PendingInvalidations extends TransactionSynchronizationAdapter
+    {
+        private final Set<String> tags = new LinkedHashSet<String>();
+
+        public void suspend()
+        {
+            TransactionSynchronizationManager.unbindResource( MemcacheInvalidationAdvice.this );
+        }
+
+        public void resume()
+        {
+            TransactionSynchronizationManager.bindResource( MemcacheInvalidationAdvice.this, this );
+        }
+
+        public void afterCommit()
+        {
+            invalidate( tags );
+        }
+
+        public void afterCompletion(int status)
+        {
+            if( TransactionSynchronizationManager.getResource( MemcacheInvalidationAdvice.this ) == this )
+            {
+                TransactionSynchronizationManager.unbindResource( MemcacheInvalidationAdvice.this );
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package es.onlysolutions.arq.core.aop.helper;
+
+import java.lang.reflect.Method;
+
+/**
+ * Generador de claves legible basado en el nombre de la clase, del metodo y el hashCode de los argumentos.
+ * Es el formato original de la arquitectura: las claves son faciles de localizar en Memcache, pero dos argumentos
+ * distintos con el mismo hashCode colisionan y las claves pueden superar el limite de 250 bytes de Memcache.
+ * @see MethodHelper#getKeyFromMethod(Method, Object[])
+ * @see DigestKeyGenerator
+ */
+public class ClassNameKeyGenerator implements ICacheKeyGenerator
+{
+    public String getKeyFromMethod(Method method, Object[] arguments)
+    {
+        return MethodHelper.getKeyFromMethod( method, arguments );
+    }
+
+    public String getKeyFromArgument(Object argument)
+    {
+        return MethodHelper.getKeyFromArgument( argument );
+    }
+}
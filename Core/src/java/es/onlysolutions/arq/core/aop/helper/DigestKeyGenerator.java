@@ -0,0 +1,493 @@
+package es.onlysolutions.arq.core.aop.helper;
+
+import es.onlysolutions.arq.core.cache.IConstantsMemcache;
+import es.onlysolutions.arq.core.cache.exception.MemcacheException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generador de claves compactas y sin colisiones practicas.
+ * Los argumentos se serializan de forma estable (el mismo valor produce siempre los mismos bytes, con independencia
+ * del orden interno de los Set y Map o de su hashCode) y se resumen junto con la firma completa del metodo mediante
+ * un algoritmo de digest, SHA-1 por defecto. La clave resultante tiene longitud fija: el prefijo seguido del digest
+ * en hexadecimal.<br/>
+ * El prefijo es el namespace general, <b>arq</b> por defecto, o el indicado para cada metodo en
+ * <i>methodNamespaces</i>, lo que permite invalidar todas las entradas de un metodo cambiando su version, por
+ * ejemplo de <b>usuarios-v1</b> a <b>usuarios-v2</b>.<br/>
+ * Los valores simples (String, numeros, fechas, Boolean, Character, enumerados y Class), arrays, colecciones y mapas
+ * se serializan directamente; el resto de objetos Serializable mediante la serializacion de Java, por lo que deben
+ * ser objetos de valor cuya serializacion no dependa de la identidad. Los objetos no serializables se representan por
+ * su clase y su hashCode, como en el formato original, y se avisa en el log.
+ */
+public class DigestKeyGenerator implements ICacheKeyGenerator
+{
+    /**
+     * El logger de la clase.
+     */
+    private static final Log logger = LogFactory.getLog(DigestKeyGenerator.class);
+
+    /**
+     * Longitud maxima de los prefijos, para no superar el limite de 250 bytes de las claves de Memcache.
+     */
+    private static final int MAX_PREFIX_LENGTH = 100;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte SHORT = 4;
+    private static final byte BYTE = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte FLOAT = 7;
+    private static final byte BOOLEAN = 8;
+    private static final byte CHARACTER = 9;
+    private static final byte BIG_DECIMAL = 10;
+    private static final byte BIG_INTEGER = 11;
+    private static final byte DATE = 12;
+    private static final byte ENUM = 13;
+    private static final byte CLASS = 14;
+    private static final byte ARRAY = 15;
+    private static final byte LIST = 16;
+    private static final byte SET = 17;
+    private static final byte MAP = 18;
+    private static final byte SERIALIZABLE = 19;
+    private static final byte HASHCODE = 20;
+
+    /**
+     * Orden de los digest de los elementos de los Set y Map.
+     */
+    private static final Comparator<byte[]> DIGEST_ORDER = new Comparator<byte[]>()
+    {
+        public int compare(byte[] a, byte[] b)
+        {
+            for( int i = 0; i < a.length && i < b.length; i++ )
+            {
+                int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+                if( cmp != 0 )
+                {
+                    return cmp;
+                }
+            }
+            return a.length - b.length;
+        }
+    };
+
+    private String algorithm = "SHA-1";
+
+    private String namespace = "arq";
+
+    private Map<String, String> methodNamespaces = new HashMap<String, String>();
+
+    /**
+     * Establece el algoritmo de digest. Por defecto SHA-1.
+     * @param algorithm El nombre del algoritmo para MessageDigest.
+     */
+    public void setAlgorithm(String algorithm)
+    {
+        this.algorithm = algorithm;
+        newDigest();
+    }
+
+    /**
+     * Establece el namespace general que precede a todas las claves. Por defecto <b>arq</b>.
+     * Cambiando el namespace se invalida de una vez todo el contenido cacheado.
+     * @param namespace El namespace.
+     */
+    public void setNamespace(String namespace)
+    {
+        this.namespace = checkPrefix( namespace );
+    }
+
+    /**
+     * Establece el namespace de cada metodo, indexado por el nombre completo de la clase que declara el metodo
+     * seguido de un punto y el nombre del metodo, por ejemplo
+     * <b>es.empresa.facade.UsuarioFacade.buscarUsuarios</b>. Los metodos no indicados utilizan el namespace general.
+     * @param methodNamespaces El mapa con los namespaces por metodo.
+     */
+    public void setMethodNamespaces(Map<String, String> methodNamespaces)
+    {
+        Map<String, String> checked = new HashMap<String, String>();
+        if( methodNamespaces != null )
+        {
+            for( Map.Entry<String, String> entry : methodNamespaces.entrySet() )
+            {
+                checked.put( entry.getKey(), checkPrefix( entry.getValue() ) );
+            }
+        }
+        this.methodNamespaces = checked;
+    }
+
+    public String getKeyFromMethod(Method method, Object[] arguments)
+    {
+        String methodName = method.getDeclaringClass().getName() + "." + method.getName();
+        String prefix = methodNamespaces.get( methodName );
+        if( prefix == null )
+        {
+            prefix = namespace;
+        }
+
+        MessageDigest digest = newDigest();
+        DataOutputStream out = new DataOutputStream( new DigestOutputStream( NullOutputStream.INSTANCE, digest ) );
+        try
+        {
+            out.writeUTF( methodName );
+            Class<?>[] parameterTypes = method.getParameterTypes();
+            out.writeInt( parameterTypes.length );
+            for( Class<?> parameterType : parameterTypes )
+            {
+                out.writeUTF( parameterType.getName() );
+            }
+            int numArguments = arguments != null ? arguments.length : 0;
+            out.writeInt( numArguments );
+            for( int i = 0; i < numArguments; i++ )
+            {
+                write( out, arguments[i] );
+            }
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            throw new MemcacheException("Error al generar la clave del metodo " + methodName, e);
+        }
+
+        return prefix + IConstantsMemcache.KEY_SEPARATOR + toHex( digest.digest() );
+    }
+
+    public String getKeyFromArgument(Object argument)
+    {
+        if( argument == null )
+        {
+            return null;
+        }
+        return namespace + IConstantsMemcache.KEY_SEPARATOR + "arg" + IConstantsMemcache.KEY_SEPARATOR + toHex( digestOf( argument ) );
+    }
+
+    /**
+     * Escribe la representacion estable de un valor.
+     * @param out El stream de salida.
+     * @param value El valor.
+     * @throws IOException Si ocurre algun error de E/S.
+     */
+    private void write(DataOutputStream out, Object value) throws IOException
+    {
+        if( value == null )
+        {
+            out.writeByte( NULL );
+        }
+        else if( value instanceof String )
+        {
+            out.writeByte( STRING );
+            writeString( out, (String) value );
+        }
+        else if( value instanceof Integer )
+        {
+            out.writeByte( INTEGER );
+            out.writeInt( (Integer) value );
+        }
+        else if( value instanceof Long )
+        {
+            out.writeByte( LONG );
+            out.writeLong( (Long) value );
+        }
+        else if( value instanceof Short )
+        {
+            out.writeByte( SHORT );
+            out.writeShort( (Short) value );
+        }
+        else if( value instanceof Byte )
+        {
+            out.writeByte( BYTE );
+            out.writeByte( (Byte) value );
+        }
+        else if( value instanceof Double )
+        {
+            out.writeByte( DOUBLE );
+            out.writeLong( Double.doubleToLongBits( (Double) value ) );
+        }
+        else if( value instanceof Float )
+        {
+            out.writeByte( FLOAT );
+            out.writeInt( Float.floatToIntBits( (Float) value ) );
+        }
+        else if( value instanceof Boolean )
+        {
+            out.writeByte( BOOLEAN );
+            out.writeBoolean( (Boolean) value );
+        }
+        else if( value instanceof Character )
+        {
+            out.writeByte( CHARACTER );
+            out.writeChar( (Character) value );
+        }
+        else if( value instanceof BigDecimal )
+        {
+            out.writeByte( BIG_DECIMAL );
+            writeString( out, value.toString() );
+        }
+        else if( value instanceof BigInteger )
+        {
+            out.writeByte( BIG_INTEGER );
+            writeString( out, value.toString() );
+        }
+        else if( value instanceof Date )
+        {
+            out.writeByte( DATE );
+            out.writeUTF( value.getClass().getName() );
+            out.writeLong( ((Date) value).getTime() );
+        }
+        else if( value instanceof Enum )
+        {
+            out.writeByte( ENUM );
+            out.writeUTF( ((Enum) value).getDeclaringClass().getName() );
+            out.writeUTF( ((Enum) value).name() );
+        }
+        else if( value instanceof Class )
+        {
+            out.writeByte( CLASS );
+            out.writeUTF( ((Class) value).getName() );
+        }
+        else if( value.getClass().isArray() )
+        {
+            out.writeByte( ARRAY );
+            out.writeUTF( value.getClass().getComponentType().getName() );
+            int length = Array.getLength( value );
+            out.writeInt( length );
+            for( int i = 0; i < length; i++ )
+            {
+                write( out, Array.get( value, i ) );
+            }
+        }
+        else if( value instanceof Set )
+        {
+            out.writeByte( SET );
+            writeUnordered( out, (Set<?>) value );
+        }
+        else if( value instanceof Collection )
+        {
+            Collection<?> collection = (Collection<?>) value;
+            out.writeByte( LIST );
+            out.writeInt( collection.size() );
+            for( Object element : collection )
+            {
+                write( out, element );
+            }
+        }
+        else if( value instanceof Map )
+        {
+            Map<?, ?> map = (Map<?, ?>) value;
+            List<byte[]> entries = new ArrayList<byte[]>( map.size() );
+            for( Map.Entry<?, ?> entry : map.entrySet() )
+            {
+                byte[] keyDigest = digestOf( entry.getKey() );
+                byte[] valueDigest = digestOf( entry.getValue() );
+                byte[] entryDigest = Arrays.copyOf( keyDigest, keyDigest.length + valueDigest.length );
+                System.arraycopy( valueDigest, 0, entryDigest, keyDigest.length, valueDigest.length );
+                entries.add( entryDigest );
+            }
+            Collections.sort( entries, DIGEST_ORDER );
+            out.writeByte( MAP );
+            out.writeInt( entries.size() );
+            for( byte[] entry : entries )
+            {
+                out.write( entry );
+            }
+        }
+        else
+        {
+            ByteArrayOutputStream bytes = value instanceof Serializable ? serialize( value ) : null;
+            if( bytes != null )
+            {
+                out.writeByte( SERIALIZABLE );
+                out.writeUTF( value.getClass().getName() );
+                out.writeInt( bytes.size() );
+                bytes.writeTo( out );
+            }
+            else
+            {
+                if( logger.isWarnEnabled() )
+                {
+                    logger.warn("El argumento de la clase " + value.getClass().getName() +
+                            " no es serializable, la clave se genera a partir de su hashCode y puede colisionar");
+                }
+                out.writeByte( HASHCODE );
+                out.writeUTF( value.getClass().getName() );
+                out.writeInt( value.hashCode() );
+            }
+        }
+    }
+
+    /**
+     * Serializa un valor. Un objeto Serializable puede no serializarse si alguno de sus campos no lo es.
+     * @param value El valor.
+     * @return Los bytes del valor serializado, o null si no se ha podido serializar.
+     */
+    private ByteArrayOutputStream serialize(Object value)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( 256 );
+        try
+        {
+            ObjectOutputStream oos = new ObjectOutputStream( bytes );
+            oos.writeObject( value );
+            oos.close();
+            return bytes;
+        }
+        catch (IOException e)
+        {
+            if( logger.isDebugEnabled() )
+            {
+                logger.debug("No se ha podido serializar el argumento de la clase " + value.getClass().getName(), e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Escribe los elementos de una coleccion sin orden, ordenando los digest de sus elementos.
+     * @param out El stream de salida.
+     * @param collection La coleccion.
+     * @throws IOException Si ocurre algun error de E/S.
+     */
+    private void writeUnordered(DataOutputStream out, Collection<?> collection) throws IOException
+    {
+        List<byte[]> digests = new ArrayList<byte[]>( collection.size() );
+        for( Object element : collection )
+        {
+            digests.add( digestOf( element ) );
+        }
+        Collections.sort( digests, DIGEST_ORDER );
+        out.writeInt( digests.size() );
+        for( byte[] elementDigest : digests )
+        {
+            out.write( elementDigest );
+        }
+    }
+
+    /**
+     * Escribe un String sin el limite de 64K de writeUTF.
+     * @param out El stream de salida.
+     * @param value El String.
+     * @throws IOException Si ocurre algun error de E/S.
+     */
+    private void writeString(DataOutputStream out, String value) throws IOException
+    {
+        out.writeInt( value.length() );
+        out.writeChars( value );
+    }
+
+    /**
+     * Calcula el digest de la representacion estable de un valor.
+     * @param value El valor.
+     * @return El digest.
+     */
+    private byte[] digestOf(Object value)
+    {
+        MessageDigest digest = newDigest();
+        DataOutputStream out = new DataOutputStream( new DigestOutputStream( NullOutputStream.INSTANCE, digest ) );
+        try
+        {
+            write( out, value );
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            throw new MemcacheException("Error al generar la clave del argumento de la clase " + value.getClass().getName(), e);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Crea una instancia del algoritmo de digest configurado.
+     * @return El MessageDigest.
+     */
+    private MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance( algorithm );
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new MemcacheException("El algoritmo de digest " + algorithm + " no esta disponible", e);
+        }
+    }
+
+    /**
+     * Comprueba que un prefijo es valido para una clave de Memcache.
+     * @param prefix El prefijo.
+     * @return El mismo prefijo.
+     */
+    private static String checkPrefix(String prefix)
+    {
+        if( prefix == null || prefix.length() == 0 || prefix.length() > MAX_PREFIX_LENGTH )
+        {
+            throw new IllegalArgumentException("El namespace debe tener entre 1 y " + MAX_PREFIX_LENGTH + " caracteres: " + prefix);
+        }
+        for( int i = 0; i < prefix.length(); i++ )
+        {
+            char c = prefix.charAt( i );
+            if( c <= ' ' || c >= 127 )
+            {
+                throw new IllegalArgumentException("El namespace solo puede contener caracteres ASCII visibles: " + prefix);
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * Convierte un array de bytes a hexadecimal.
+     * @param bytes Los bytes.
+     * @return El String en hexadecimal.
+     */
+    private static String toHex(byte[] bytes)
+    {
+        char[] chars = new char[bytes.length << 1];
+        for( int i = 0; i < bytes.length; i++ )
+        {
+            chars[i << 1] = HEX[(bytes[i] >> 4) & 0x0F];
+            chars[(i << 1) + 1] = HEX[bytes[i] & 0x0F];
+        }
+        return new String( chars );
+    }
+
+    /**
+     * OutputStream que descarta todo lo que se escribe, utilizado para alimentar el digest.
+     */
+    private static final class NullOutputStream extends OutputStream
+    {
+        private static final NullOutputStream INSTANCE = new NullOutputStream();
+
+        public void write(int b)
+        {
+        }
+
+        public void write(byte[] b, int off, int len)
+        {
+        }
+    }
+}
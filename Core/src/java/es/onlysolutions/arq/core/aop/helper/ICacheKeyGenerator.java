@@ -0,0 +1,28 @@
+package es.onlysolutions.arq.core.aop.helper;
+
+import java.lang.reflect.Method;
+
+/**
+ * Estrategia de generacion de las claves de cache utilizadas por el aspecto de Memcache.
+ * Las claves deben ser validas para Memcache: sin espacios ni caracteres de control y de 250 bytes como maximo.
+ * @see es.onlysolutions.arq.core.aop.MemcacheGetAdvice#setKeyGenerator(ICacheKeyGenerator)
+ */
+public interface ICacheKeyGenerator
+{
+    /**
+     * Devuelve la clave bajo la que se cachea el resultado del metodo invocado con los argumentos indicados.
+     * @param method El metodo del que obtener la clave.
+     * @param arguments La lista de argumentos que se le pasa a este metodo.
+     * @return La clave como un String.
+     */
+    public String getKeyFromMethod(Method method, Object[] arguments);
+
+    /**
+     * Devuelve la clave de la etiqueta de un argumento, bajo la que se guarda la version de la etiqueta que incluyen
+     * las claves de los metodos cacheados que dependen de el.
+     * @param argument El argumento o la etiqueta de la que obtener la clave.
+     * @return La clave, o null si el argumento es null.
+     * @see es.onlysolutions.arq.core.cache.TagVersions
+     */
+    public String getKeyFromArgument(Object argument);
+}
@@ -6,6 +6,8 @@ import java.lang.reflect.Method;
 
 /**
  * Helper con metodos para manejar objetos Method y ayuda en la API de reflejtion.
+ * Los metodos de generacion de claves corresponden al formato original, que utiliza el ClassNameKeyGenerator.
+ * @see ICacheKeyGenerator
  */
 public final class MethodHelper
 {
@@ -16,7 +18,7 @@ public final class MethodHelper
      */
     public static String toReadableString( Method m )
     {
-        return m.getClass().getName() + "-" + m.getName();
+        return m.getDeclaringClass().getName() + "-" + m.getName();
     }
 
     /**
@@ -61,7 +63,7 @@ public final class MethodHelper
 
         if( argument != null)
         {
-            result += argument.getClass().getName() + IConstantsMemcache.KEY_SEPARATOR + argument.hashCode();
+            result = argument.getClass().getName() + IConstantsMemcache.KEY_SEPARATOR + argument.hashCode();
         }
 
         return result;
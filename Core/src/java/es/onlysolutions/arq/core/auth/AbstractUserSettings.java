@@ -0,0 +1,89 @@
+package es.onlysolutions.arq.core.auth;
+
+import java.io.Serializable;
+import java.util.Collection;
+
+/**
+ * Implementacion base de IUserSettings con el modelo de permisos del framework.
+ * Los permisos del usuario se indican al hacer login con {@link #setPermissions(java.util.Collection)} y se guardan
+ * como un PermissionSet, de forma que {@link #hasPermission(String)} y los tags de permisos son una comprobacion de
+ * bits. Las aplicaciones solo deben implementar {@link #getUserLogin()}.
+ */
+public abstract class AbstractUserSettings implements IUserSettings, Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private String remoteAddress;
+
+    private PermissionSet permissions = PermissionSet.EMPTY;
+
+    /**
+     * Establece los permisos del usuario. Debe llamarse al hacer login o al cambiar los permisos del usuario.
+     *
+     * @param permissions Los nombres de los permisos del usuario.
+     */
+    public void setPermissions(Collection<String> permissions)
+    {
+        this.permissions = permissions != null ? new PermissionSet(permissions) : PermissionSet.EMPTY;
+    }
+
+    /**
+     * Devuelve los permisos del usuario.
+     *
+     * @return El conjunto de permisos del usuario. Nunca es null.
+     */
+    public PermissionSet getPermissions()
+    {
+        return permissions;
+    }
+
+    /**
+     * Comprueba si el usuario tiene el permiso indicado.
+     *
+     * @param strPermission El permiso a comprobar si se tiene.
+     * @return true si se tiene el permiso indicado, false en otro caso.
+     */
+    public boolean hasPermission(String strPermission)
+    {
+        return permissions.contains(strPermission);
+    }
+
+    /**
+     * Comprueba si el usuario tiene el permiso con el identificador indicado.
+     *
+     * @param permissionId El identificador del permiso.
+     * @return true si se tiene el permiso indicado, false en otro caso.
+     * @see PermissionSet#getId(String)
+     */
+    public boolean hasPermission(int permissionId)
+    {
+        return permissions.contains(permissionId);
+    }
+
+    /**
+     * Establece la direccion remota del usuario.
+     *
+     * @param remoteAddress La direccion remota de la ultima peticion del usuario.
+     */
+    public void setRemoteAddress(String remoteAddress)
+    {
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Devuelve la direccion remota del usuario.
+     *
+     * @return La direccion remota de la ultima peticion del usuario, o null si no se conoce.
+     */
+    public String getRemoteAddress()
+    {
+        return remoteAddress;
+    }
+
+    /**
+     * Devuelve el login del usuario.
+     *
+     * @return El login del usuario. Nunca debe devolver un valor nulo.
+     */
+    public abstract Serializable getUserLogin();
+}
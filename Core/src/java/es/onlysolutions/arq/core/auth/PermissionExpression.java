@@ -0,0 +1,139 @@
+package es.onlysolutions.arq.core.auth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Expresion de permisos precompilada: una lista de permisos separados por comas, que se evaluan con AND u OR.
+ * Cada permiso puede negarse con el prefijo '!', en cuyo caso se cumple si el usuario NO lo tiene.<br/>
+ * Los nombres se traducen a identificadores al compilar la expresion, por lo que su evaluacion sobre un
+ * AbstractUserSettings solo comprueba bits, sin partir Strings ni buscar en mapas.
+ * Las expresiones compiladas se reutilizan mediante {@link #compile(String, boolean, boolean)}.
+ *
+ * @see es.onlysolutions.arq.core.auth.PermissionSet
+ */
+public final class PermissionExpression
+{
+    /**
+     * Token de separacion para los permisos.
+     */
+    private static final String TOKEN = ",";
+
+    /**
+     * Prefijo para negar un permiso.
+     */
+    private static final char NOT = '!';
+
+    /**
+     * Numero maximo de expresiones distintas que se guardan ya compiladas.
+     */
+    private static final int MAX_CACHED_EXPRESSIONS = 4096;
+
+    /**
+     * Las expresiones ya compiladas.
+     */
+    private static final ConcurrentMap<String, PermissionExpression> compiled = new ConcurrentHashMap<String, PermissionExpression>();
+
+    private final String[] names;
+
+    private final int[] ids;
+
+    private final boolean[] negated;
+
+    private final boolean or;
+
+    /**
+     * Crea una expresion ya compilada.
+     *
+     * @param names   Los nombres de los permisos.
+     * @param negated Indica para cada permiso si esta negado.
+     * @param or      true para evaluar con OR, false para evaluar con AND.
+     */
+    private PermissionExpression(List<String> names, List<Boolean> negated, boolean or)
+    {
+        this.names = names.toArray(new String[names.size()]);
+        this.ids = new int[this.names.length];
+        this.negated = new boolean[this.names.length];
+        for (int i = 0; i < this.names.length; i++)
+        {
+            this.ids[i] = PermissionSet.getId(this.names[i]);
+            this.negated[i] = negated.get(i);
+        }
+        this.or = or;
+    }
+
+    /**
+     * Devuelve la expresion compilada, compilandola solo la primera vez que se utiliza.
+     *
+     * @param expression La lista de permisos separados por comas.
+     * @param or         true para evaluar con OR, false para evaluar con AND.
+     * @param negateAll  true para negar todos los permisos de la lista.
+     * @return La expresion compilada.
+     */
+    public static PermissionExpression compile(String expression, boolean or, boolean negateAll)
+    {
+        String key = (or ? "OR" : "AND") + (negateAll ? NOT : ' ') + expression;
+        PermissionExpression result = compiled.get(key);
+        if (result == null)
+        {
+            List<String> names = new ArrayList<String>();
+            List<Boolean> negated = new ArrayList<Boolean>();
+            StringTokenizer st = new StringTokenizer(expression, TOKEN);
+            while (st.hasMoreTokens())
+            {
+                String name = st.nextToken().trim();
+                boolean not = negateAll;
+                if (name.length() > 0 && name.charAt(0) == NOT)
+                {
+                    not = !not;
+                    name = name.substring(1).trim();
+                }
+                names.add(name);
+                negated.add(not);
+            }
+
+            result = new PermissionExpression(names, negated, or);
+            if (compiled.size() < MAX_CACHED_EXPRESSIONS)
+            {
+                compiled.putIfAbsent(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Evalua la expresion para el usuario indicado. Si el usuario no extiende AbstractUserSettings se comprueba cada
+     * permiso con {@link IUserSettings#hasPermission(String)}.
+     *
+     * @param userSettings El usuario.
+     * @return true si el usuario cumple la expresion.
+     */
+    public boolean evaluate(IUserSettings userSettings)
+    {
+        PermissionSet permissionSet = null;
+        if (userSettings instanceof AbstractUserSettings)
+        {
+            permissionSet = ((AbstractUserSettings) userSettings).getPermissions();
+        }
+
+        for (int i = 0; i < ids.length; i++)
+        {
+            boolean has = permissionSet != null ? permissionSet.contains(ids[i]) : userSettings.hasPermission(names[i]);
+            if (has != negated[i])
+            {
+                if (or)
+                {
+                    return true;
+                }
+            }
+            else if (!or)
+            {
+                return false;
+            }
+        }
+        return !or && ids.length > 0;
+    }
+}
@@ -0,0 +1,187 @@
+package es.onlysolutions.arq.core.auth;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Conjunto inmutable de permisos de un usuario.
+ * Cada nombre de permiso se traduce una unica vez a un identificador entero, comun a toda la aplicacion, y los
+ * permisos del usuario se guardan como un BitSet, de forma que comprobar un permiso ya traducido consiste en leer
+ * un bit.<br/>
+ * Los identificadores solo son validos dentro de la JVM actual, por lo que al serializarse (por ejemplo al replicar la
+ * sesion) se guardan los nombres de los permisos y el BitSet se reconstruye al leerlo.
+ *
+ * @see es.onlysolutions.arq.core.auth.PermissionExpression
+ */
+public final class PermissionSet implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Identificadores de los permisos por nombre.
+     */
+    private static final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * El siguiente identificador a asignar. Protegido por el monitor de ids.
+     */
+    private static int nextId;
+
+    /**
+     * El conjunto vacio.
+     */
+    public static final PermissionSet EMPTY = new PermissionSet(Collections.<String>emptyList());
+
+    /**
+     * Los nombres de los permisos del conjunto.
+     */
+    private final String[] permissions;
+
+    /**
+     * Los permisos del conjunto indexados por su identificador.
+     */
+    private transient BitSet bits;
+
+    /**
+     * Crea el conjunto con los permisos indicados.
+     *
+     * @param permissions Los nombres de los permisos. Los valores null se ignoran.
+     */
+    public PermissionSet(Collection<String> permissions)
+    {
+        List<String> permissionNames = new ArrayList<String>(permissions.size());
+        for (String permission : permissions)
+        {
+            if (permission != null)
+            {
+                permissionNames.add(permission.trim());
+            }
+        }
+        this.permissions = permissionNames.toArray(new String[permissionNames.size()]);
+        this.bits = toBits(this.permissions);
+    }
+
+    /**
+     * Devuelve el identificador de un permiso, asignandole uno nuevo si es la primera vez que se utiliza.
+     *
+     * @param permission El nombre del permiso.
+     * @return El identificador del permiso.
+     */
+    public static int getId(String permission)
+    {
+        String name = permission.trim();
+        Integer id = ids.get(name);
+        if (id == null)
+        {
+            synchronized (ids)
+            {
+                id = ids.get(name);
+                if (id == null)
+                {
+                    id = nextId++;
+                    ids.put(name, id);
+                }
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Comprueba si el conjunto contiene el permiso con el identificador indicado.
+     *
+     * @param permissionId El identificador del permiso.
+     * @return true si el conjunto contiene el permiso.
+     * @see #getId(String)
+     */
+    public boolean contains(int permissionId)
+    {
+        return bits.get(permissionId);
+    }
+
+    /**
+     * Comprueba si el conjunto contiene el permiso indicado.
+     *
+     * @param permission El nombre del permiso.
+     * @return true si el conjunto contiene el permiso.
+     */
+    public boolean contains(String permission)
+    {
+        if (permission == null)
+        {
+            return false;
+        }
+        Integer id = ids.get(permission);
+        if (id == null)
+        {
+            id = ids.get(permission.trim());
+        }
+        return id != null && bits.get(id);
+    }
+
+    /**
+     * Devuelve el numero de permisos del conjunto.
+     *
+     * @return El numero de permisos.
+     */
+    public int size()
+    {
+        return bits.cardinality();
+    }
+
+    /**
+     * Traduce los nombres de los permisos a su BitSet.
+     *
+     * @param permissions Los nombres de los permisos.
+     * @return El BitSet con los identificadores de los permisos.
+     */
+    private static BitSet toBits(String[] permissions)
+    {
+        BitSet result = new BitSet();
+        for (String permission : permissions)
+        {
+            result.set(getId(permission));
+        }
+        return result;
+    }
+
+    /**
+     * Reconstruye el BitSet con los identificadores de esta JVM.
+     *
+     * @param in El stream de entrada.
+     * @throws IOException            Si ocurre un error de lectura.
+     * @throws ClassNotFoundException Si no se encuentra alguna clase.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        this.bits = toBits(this.permissions);
+    }
+
+    /**
+     * Devuelve los nombres de los permisos del conjunto.
+     *
+     * @return La representacion del conjunto.
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < permissions.length; i++)
+        {
+            if (i > 0)
+            {
+                sb.append(", ");
+            }
+            sb.append(permissions[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
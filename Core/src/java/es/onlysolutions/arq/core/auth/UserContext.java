@@ -0,0 +1,50 @@
+package es.onlysolutions.arq.core.auth;
+
+/**
+ * Copia inmutable del usuario del UserManager en un Thread, para restaurarlo en otro Thread.<br/>
+ * Se restaura de forma acotada, devolviendo el contexto anterior para volver a dejarlo al terminar:<br/>
+ * UserContext previous = context.restore();<br/>
+ * try { ... } finally { previous.restore(); }
+ *
+ * @see UserManager#capture()
+ * @see UserManager#wrap(Runnable)
+ */
+public final class UserContext
+{
+    /**
+     * Contexto sin usuario.
+     */
+    static final UserContext EMPTY = new UserContext(null);
+
+    private final IUserSettings user;
+
+    /**
+     * Crea el contexto con el usuario indicado.
+     *
+     * @param user El usuario, o null.
+     */
+    UserContext(IUserSettings user)
+    {
+        this.user = user;
+    }
+
+    /**
+     * Devuelve el usuario del contexto.
+     *
+     * @return El usuario, o null si el contexto no tiene usuario.
+     */
+    public IUserSettings getUser()
+    {
+        return user;
+    }
+
+    /**
+     * Establece este contexto en el Thread actual.
+     *
+     * @return El contexto que tenia el Thread actual, para restaurarlo al terminar.
+     */
+    public UserContext restore()
+    {
+        return UserManager.instance().restore(this);
+    }
+}
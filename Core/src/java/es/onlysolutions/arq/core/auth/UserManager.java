@@ -1,15 +1,21 @@
 package es.onlysolutions.arq.core.auth;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
 /**
  * Manager para los usuarios. Almacena en un ThreadLocal el objeto usuario para tener acceso a �l desde capas
  * inferiores de la aplicacion en cada peticion.
+ * El UserManagerInterceptor lo elimina al terminar cada peticion, tras renderizar la vista. Para utilizar el usuario
+ * desde otros Threads (executors, tareas o trabajo en paralelo) se captura con {@link #capture()} o se envuelven las
+ * tareas con los metodos wrap, que lo restauran durante la ejecucion y lo eliminan despues.
  */
 public class UserManager
 {
     /**
      * El ThreadLocal donde se almacenaran los usuarios por Thread.
      */
-    private ThreadLocal<IUserSettings> currentUser = new ThreadLocal<IUserSettings>();
+    private volatile ThreadLocal<IUserSettings> currentUser = new ThreadLocal<IUserSettings>();
 
     /**
      * La unica instancia de la clase.
@@ -34,14 +40,151 @@ public class UserManager
         return instance;
     }
 
+    /**
+     * Indica si los Threads creados heredan el usuario del Thread que los crea. Debe establecerse al arrancar la
+     * aplicacion, ya que se pierden los usuarios guardados hasta ese momento.<br/>
+     * <b>NOTA: Los Threads de un pool heredan el usuario del Thread que los crea y lo mantienen para las siguientes
+     * tareas, por lo que con pools deben utilizarse los metodos wrap.</b>
+     *
+     * @param inheritable true para que los Threads hijos hereden el usuario.
+     */
+    public void setInheritable(boolean inheritable)
+    {
+        if (inheritable != isInheritable())
+        {
+            this.currentUser = inheritable ? new InheritableThreadLocal<IUserSettings>() : new ThreadLocal<IUserSettings>();
+        }
+    }
+
+    /**
+     * Indica si los Threads creados heredan el usuario del Thread que los crea.
+     *
+     * @return true si los Threads hijos heredan el usuario.
+     */
+    public boolean isInheritable()
+    {
+        return this.currentUser instanceof InheritableThreadLocal;
+    }
+
     /**
      * Guarda en el Thread actual el objeto usuario.
      *
-     * @param user El objeto Usuario a almacenar.
+     * @param user El objeto Usuario a almacenar, o null para eliminarlo.
      */
     public void setUser(IUserSettings user)
     {
-        this.currentUser.set(user);
+        if (user != null)
+        {
+            this.currentUser.set(user);
+        }
+        else
+        {
+            this.currentUser.remove();
+        }
+    }
+
+    /**
+     * Elimina el usuario del Thread actual.
+     */
+    public void clear()
+    {
+        this.currentUser.remove();
+    }
+
+    /**
+     * Captura el usuario del Thread actual para restaurarlo en otro Thread.
+     *
+     * @return El contexto con el usuario actual.
+     */
+    public UserContext capture()
+    {
+        IUserSettings user = getUser();
+        return user != null ? new UserContext(user) : UserContext.EMPTY;
+    }
+
+    /**
+     * Envuelve un Runnable para que se ejecute con el usuario del Thread actual, restaurando despues el que tuviera
+     * el Thread que lo ejecuta.
+     *
+     * @param task El Runnable a envolver.
+     * @return El Runnable que restaura el usuario.
+     */
+    public Runnable wrap(final Runnable task)
+    {
+        final UserContext context = capture();
+        return new Runnable()
+        {
+            public void run()
+            {
+                UserContext previous = context.restore();
+                try
+                {
+                    task.run();
+                }
+                finally
+                {
+                    previous.restore();
+                }
+            }
+        };
+    }
+
+    /**
+     * Envuelve un Callable para que se ejecute con el usuario del Thread actual, restaurando despues el que tuviera
+     * el Thread que lo ejecuta.
+     *
+     * @param task El Callable a envolver.
+     * @param <T>  El tipo del resultado.
+     * @return El Callable que restaura el usuario.
+     */
+    public <T> Callable<T> wrap(final Callable<T> task)
+    {
+        final UserContext context = capture();
+        return new Callable<T>()
+        {
+            public T call() throws Exception
+            {
+                UserContext previous = context.restore();
+                try
+                {
+                    return task.call();
+                }
+                finally
+                {
+                    previous.restore();
+                }
+            }
+        };
+    }
+
+    /**
+     * Envuelve un Executor para que cada tarea se ejecute con el usuario del Thread que la envia.
+     *
+     * @param executor El Executor a envolver.
+     * @return El Executor que propaga el usuario.
+     */
+    public Executor wrap(final Executor executor)
+    {
+        return new Executor()
+        {
+            public void execute(Runnable task)
+            {
+                executor.execute(wrap(task));
+            }
+        };
+    }
+
+    /**
+     * Establece en el Thread actual el usuario de un contexto.
+     *
+     * @param context El contexto a establecer.
+     * @return El contexto que tenia el Thread actual.
+     */
+    UserContext restore(UserContext context)
+    {
+        UserContext previous = capture();
+        setUser(context.getUser());
+        return previous;
     }
 
     /**
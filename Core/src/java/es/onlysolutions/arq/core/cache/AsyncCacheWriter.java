@@ -0,0 +1,385 @@
+package es.onlysolutions.arq.core.cache;
+
+import es.onlysolutions.arq.core.configuration.Configuracion;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Escritor asincrono sobre un ICacheProvider. Las escrituras se encolan en una cola acotada y las realiza un Thread en
+ * segundo plano, de forma que el Thread que pide la escritura no espera la respuesta de la cache.<br/>
+ * Si la cola esta llena la escritura se descarta; tanto las escrituras descartadas como las fallidas se contabilizan
+ * y se registran en el log, pero nunca se propaga una excepcion al que pidio la escritura. Al tratarse de una cache,
+ * perder una escritura solo supone un fallo de cache posterior.<br/>
+ * Las escrituras se realizan en el orden en que se encolaron.<br/>
+ * Los valores se preparan con {@link ICacheProvider#prepare(Object)} antes de encolarlos, en el Thread que pide la
+ * escritura: se escribe el estado del valor en ese momento aunque despues se modifique, y su serializacion no accede
+ * desde otro Thread a recursos del que lo pidio, como la sesion de Hibernate. Solo el envio a la cache es asincrono.
+ */
+public class AsyncCacheWriter
+{
+    /**
+     * El logger de la clase.
+     */
+    private static final Log logger = LogFactory.getLog(AsyncCacheWriter.class);
+
+    /**
+     * Numero maximo de escrituras que se lanzan a la cache antes de esperar sus respuestas.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    private final ICacheProvider cacheProvider;
+
+    private int queueSize = 1000;
+
+    private volatile BlockingQueue<Write> queue;
+
+    private volatile Thread writerThread;
+
+    private volatile boolean stopped = false;
+
+    private final AtomicLong completedWrites = new AtomicLong();
+    private final AtomicLong failedWrites = new AtomicLong();
+    private final AtomicLong droppedWrites = new AtomicLong();
+
+    /**
+     * Construye el escritor sobre el almacen de cache indicado.
+     * @param cacheProvider El almacen de cache.
+     */
+    public AsyncCacheWriter(ICacheProvider cacheProvider)
+    {
+        Assert.notNull( cacheProvider, "El almacen de cache no puede ser null" );
+        this.cacheProvider = cacheProvider;
+    }
+
+    /**
+     * Establece el tamaño maximo de la cola de escrituras pendientes. Por defecto 1000.
+     * Solo tiene efecto antes de la primera escritura.
+     * @param queueSize El numero maximo de escrituras pendientes.
+     */
+    public void setQueueSize(int queueSize)
+    {
+        if( queueSize <= 0 )
+        {
+            throw new IllegalArgumentException("El tamaño de la cola de escrituras debe ser mayor que 0: " + queueSize);
+        }
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Encola la escritura del valor sustituyendo el existente.
+     * @param key La clave.
+     * @param expiration La expiracion en segundos.
+     * @param value El valor.
+     * @return false si la escritura se ha descartado por estar llena la cola o no se ha podido preparar el valor.
+     * @see ICacheProvider#set(String, Object, int)
+     */
+    public boolean set(String key, int expiration, Object value)
+    {
+        return enqueue( Write.SET, key, expiration, value );
+    }
+
+    /**
+     * Encola la escritura del valor solo si no existe ya un valor para la clave.
+     * Que la clave ya exista no se considera un fallo.
+     * @param key La clave.
+     * @param expiration La expiracion en segundos.
+     * @param value El valor.
+     * @return false si la escritura se ha descartado por estar llena la cola o no se ha podido preparar el valor.
+     * @see ICacheProvider#add(String, Object, int)
+     */
+    public boolean add(String key, int expiration, Object value)
+    {
+        return enqueue( Write.ADD, key, expiration, value );
+    }
+
+    /**
+     * Devuelve el numero de escrituras pendientes en la cola.
+     * @return El numero de escrituras pendientes.
+     */
+    public int getPendingWrites()
+    {
+        BlockingQueue<Write> q = queue;
+        return q != null ? q.size() : 0;
+    }
+
+    /**
+     * Devuelve el numero de escrituras realizadas correctamente.
+     * @return El numero de escrituras realizadas.
+     */
+    public long getCompletedWrites()
+    {
+        return completedWrites.get();
+    }
+
+    /**
+     * Devuelve el numero de escrituras que han fallado o excedido el TimeOut.
+     * @return El numero de escrituras fallidas.
+     */
+    public long getFailedWrites()
+    {
+        return failedWrites.get();
+    }
+
+    /**
+     * Devuelve el numero de escrituras descartadas por estar llena la cola.
+     * @return El numero de escrituras descartadas.
+     */
+    public long getDroppedWrites()
+    {
+        return droppedWrites.get();
+    }
+
+    /**
+     * Detiene el Thread de escritura. Las escrituras aun encoladas se descartan.
+     */
+    public void destroy()
+    {
+        stopped = true;
+        Thread t = writerThread;
+        if( t != null )
+        {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Prepara el valor y encola la escritura, arrancando el Thread de escritura en el primer uso.
+     * @param operation La operacion, SET o ADD.
+     * @param key La clave.
+     * @param expiration La expiracion en segundos.
+     * @param value El valor.
+     * @return false si se ha descartado.
+     */
+    private boolean enqueue(int operation, String key, int expiration, Object value)
+    {
+        if( stopped )
+        {
+            droppedWrites.incrementAndGet();
+            return false;
+        }
+
+        Write write;
+        try
+        {
+            write = new Write( operation, key, expiration, cacheProvider.prepare( value ) );
+        }
+        catch (RuntimeException e)
+        {
+            failedWrites.incrementAndGet();
+            logger.error("Error al preparar el valor de la clave " + key + " para escribirlo en cache", e);
+            return false;
+        }
+
+        if( !getQueue().offer( write ) )
+        {
+            droppedWrites.incrementAndGet();
+            if( logger.isDebugEnabled() )
+            {
+                logger.debug("La cola de escrituras de la cache esta llena. Se descarta la escritura de la clave " + write.key);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Devuelve la cola de escrituras, creandola junto al Thread de escritura si no existe.
+     * @return La cola de escrituras.
+     */
+    private BlockingQueue<Write> getQueue()
+    {
+        BlockingQueue<Write> q = queue;
+        if( q == null )
+        {
+            synchronized( this )
+            {
+                q = queue;
+                if( q == null )
+                {
+                    q = new ArrayBlockingQueue<Write>( queueSize );
+                    queue = q;
+                    Thread t = new Thread( new Writer(), "CacheWriter" );
+                    t.setDaemon( true );
+                    t.start();
+                    writerThread = t;
+                }
+            }
+        }
+        return q;
+    }
+
+    /**
+     * Devuelve el TimeOut de las operaciones de la cache.
+     * @return El valor de la propiedad <b>memcache.timeout</b>, o 5 segundos si no se especifica.
+     */
+    private int getTimeOut()
+    {
+        Integer timeOut = Configuracion.getInteger( IConstantsMemcache.TIMEOUT );
+        return timeOut != null ? timeOut : 5;
+    }
+
+    /**
+     * Lanza la operacion de una escritura.
+     * @param write La escritura.
+     * @return El Future con el resultado de la operacion.
+     */
+    private Future<Boolean> execute(Write write)
+    {
+        if( write.operation == Write.SET )
+        {
+            return cacheProvider.set( write.key, write.value, write.expiration );
+        }
+        return cacheProvider.add( write.key, write.value, write.expiration );
+    }
+
+    /**
+     * Espera el resultado de una operacion de escritura.
+     * @param write La escritura.
+     * @param future El Future de la operacion.
+     * @return El resultado de la operacion, o null si ha fallado.
+     */
+    private Boolean waitFor(Write write, Future<Boolean> future)
+    {
+        try
+        {
+            return future.get( getTimeOut(), TimeUnit.SECONDS );
+        }
+        catch (TimeoutException e)
+        {
+            future.cancel( false );
+            logger.error("El TimeOut ha sido excedido al escribir en cache la clave " + write.key, e);
+        }
+        catch (ExecutionException e)
+        {
+            future.cancel( false );
+            logger.error("Error al escribir en cache la clave " + write.key, e);
+        }
+        catch (InterruptedException e)
+        {
+            future.cancel( false );
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * Contabiliza el resultado de una escritura. Que un add no se realice por existir ya la clave no es un fallo.
+     * @param write La escritura.
+     * @param result El resultado de la escritura, o null si ha fallado.
+     */
+    private void complete(Write write, Boolean result)
+    {
+        if( result == null || (!result && write.operation != Write.ADD) )
+        {
+            failedWrites.incrementAndGet();
+            if( result != null )
+            {
+                logger.error("No se ha podido escribir en cache la clave " + write.key);
+            }
+        }
+        else
+        {
+            completedWrites.incrementAndGet();
+        }
+    }
+
+    /**
+     * Bucle del Thread de escritura. Toma las escrituras de la cola en bloques, lanza todas las operaciones del bloque
+     * y despues espera sus respuestas, de forma que las operaciones de un bloque viajan juntas a la cache.
+     */
+    private final class Writer implements Runnable
+    {
+        public void run()
+        {
+            List<Write> batch = new ArrayList<Write>( BATCH_SIZE );
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>( BATCH_SIZE );
+            while( !stopped )
+            {
+                try
+                {
+                    batch.add( queue.take() );
+                    queue.drainTo( batch, BATCH_SIZE - 1 );
+
+                    for( Write write : batch )
+                    {
+                        try
+                        {
+                            futures.add( execute( write ) );
+                        }
+                        catch (RuntimeException e)
+                        {
+                            futures.add( null );
+                            failedWrites.incrementAndGet();
+                            logger.error("Error al escribir en cache la clave " + write.key, e);
+                        }
+                    }
+
+                    completeAll( batch, futures );
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error("Error inesperado en el Thread de escritura de la cache", e);
+                }
+                finally
+                {
+                    batch.clear();
+                    futures.clear();
+                }
+            }
+        }
+
+        /**
+         * Espera las respuestas de las operaciones lanzadas del bloque.
+         * @param batch El bloque de escrituras.
+         * @param futures Los Future de las operaciones lanzadas, null para las que no se han podido lanzar.
+         */
+        private void completeAll(List<Write> batch, List<Future<Boolean>> futures)
+        {
+            for( int i = 0; i < futures.size(); i++ )
+            {
+                if( futures.get( i ) != null )
+                {
+                    complete( batch.get( i ), waitFor( batch.get( i ), futures.get( i ) ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * Escritura pendiente.
+     */
+    private static final class Write
+    {
+        private static final int SET = 0;
+        private static final int ADD = 1;
+
+        private final int operation;
+        private final String key;
+        private final int expiration;
+        private final Object value;
+
+        private Write(int operation, String key, int expiration, Object value)
+        {
+            this.operation = operation;
+            this.key = key;
+            this.expiration = expiration;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package es.onlysolutions.arq.core.cache;
+
+/**
+ * Valor leido de un ICacheProvider junto con su identificador de version.
+ * @see ICacheProvider#gets(String)
+ */
+public final class CacheItem
+{
+    private final Object value;
+
+    private final long cas;
+
+    /**
+     * Construye el valor leido.
+     * @param value El valor.
+     * @param cas El identificador de version.
+     */
+    public CacheItem(Object value, long cas)
+    {
+        this.value = value;
+        this.cas = cas;
+    }
+
+    /**
+     * Devuelve el valor.
+     * @return El valor.
+     */
+    public Object getValue()
+    {
+        return value;
+    }
+
+    /**
+     * Devuelve el identificador de version, que se debe indicar al modificar el valor con cas.
+     * @return El identificador de version.
+     */
+    public long getCas()
+    {
+        return cas;
+    }
+
+    public String toString()
+    {
+        return "CacheItem[cas=" + cas + ", value=" + value + "]";
+    }
+}
@@ -0,0 +1,52 @@
+package es.onlysolutions.arq.core.cache;
+
+import java.io.Serializable;
+
+/**
+ * Envoltorio de un valor cacheado con el instante a partir del cual debe refrescarse.
+ * Lo utiliza el aspecto de Memcache en modo stale-while-revalidate: una vez pasado ese instante el valor se sigue
+ * sirviendo mientras se recalcula en segundo plano, hasta que expira definitivamente en Memcache.
+ * @see es.onlysolutions.arq.core.aop.MemcacheGetAdvice#setRefreshAfter(int)
+ */
+public final class CachedValue implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final Object value;
+
+    private final long refreshAt;
+
+    /**
+     * Construye el envoltorio.
+     * @param value El valor cacheado.
+     * @param refreshAt El instante, en milisegundos, a partir del cual el valor debe refrescarse.
+     */
+    public CachedValue(Object value, long refreshAt)
+    {
+        this.value = value;
+        this.refreshAt = refreshAt;
+    }
+
+    /**
+     * Devuelve el valor cacheado.
+     * @return El valor cacheado.
+     */
+    public Object getValue()
+    {
+        return value;
+    }
+
+    /**
+     * Indica si el valor debe refrescarse.
+     * @return true si ya ha pasado el instante de refresco.
+     */
+    public boolean isStale()
+    {
+        return System.currentTimeMillis() >= refreshAt;
+    }
+
+    public String toString()
+    {
+        return "CachedValue[refreshAt=" + refreshAt + ", value=" + value + "]";
+    }
+}
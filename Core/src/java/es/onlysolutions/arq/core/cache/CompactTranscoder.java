@@ -0,0 +1,487 @@
+package es.onlysolutions.arq.core.cache;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Transcoder para los valores almacenados en Memcache con un formato binario mas compacto que la serializacion por
+ * defecto de Java.<br/>
+ * Los objetos se serializan en un unico stream por valor, de forma que cada clase se describe una sola vez, y la
+ * descripcion de cada clase se reduce a su nombre, su serialVersionUID y un hash del nombre y el tipo de sus campos en
+ * lugar de la lista completa de campos. Al leer se utiliza la descripcion de la clase local, y si el serialVersionUID
+ * o el hash de los campos no coinciden el valor se descarta como si no estuviera en la cache.<br/>
+ * Los String, numeros, fechas y byte[] se delegan en el transcoder por defecto de spymemcached, que ya los almacena
+ * sin serializar.<br/>
+ * Los valores que superan <i>compressionThreshold</i> bytes se comprimen con Deflate, conservando la version
+ * comprimida solo si ocupa menos.<br/>
+ * Los valores escritos con el transcoder por defecto de spymemcached se siguen leyendo, de forma que puede
+ * activarse sin vaciar la cache.<br/>
+ * Se mantiene un histograma del tamaño final de los valores escritos, consultable con {@link #getSizeHistogram()}.
+ * <b>NOTA: Los cambios que no afectan a los campos serializados, como el codigo de los metodos, no invalidan los
+ * valores. Si cambia el significado de un campo sin cambiar su nombre ni su tipo debe modificarse el
+ * serialVersionUID.</b>
+ */
+public class CompactTranscoder implements Transcoder<Object>
+{
+    /**
+     * El logger de la clase.
+     */
+    private static final Log logger = LogFactory.getLog(CompactTranscoder.class);
+
+    /**
+     * Flag de los valores serializados con el formato compacto.
+     */
+    public static final int COMPACT = 1 << 4;
+
+    /**
+     * Flag de los valores comprimidos con Deflate.
+     */
+    public static final int DEFLATED = 1 << 5;
+
+    /**
+     * Flag de los valores cuya descripcion de clases incluye el hash de los campos. Los valores con el formato
+     * compacto sin este flag se escribieron sin el hash y se descartan.
+     */
+    public static final int FIELD_HASH = 1 << 6;
+
+    /**
+     * Limites superiores en bytes de los intervalos del histograma. El ultimo intervalo no tiene limite.
+     */
+    private static final int[] HISTOGRAM_BOUNDS = { 256, 1024, 4096, 16384, 65536, 262144 };
+
+    private int compressionThreshold = 2048;
+
+    private int compressionLevel = Deflater.BEST_SPEED;
+
+    /**
+     * Transcoder para los valores escritos con el formato por defecto de spymemcached.
+     */
+    private final SerializingTranscoder defaultTranscoder = new SerializingTranscoder();
+
+    private final AtomicLongArray sizeHistogram = new AtomicLongArray( HISTOGRAM_BOUNDS.length + 1 );
+
+    private final AtomicLong encodedValues = new AtomicLong();
+
+    private final AtomicLong compressedValues = new AtomicLong();
+
+    private final AtomicLong rawBytes = new AtomicLong();
+
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    private final AtomicLong decodeErrors = new AtomicLong();
+
+    /**
+     * Constructor de la clase sin parametros para cumplir con el standar de JavaBean.
+     */
+    public CompactTranscoder()
+    {
+        super();
+        defaultTranscoder.setCompressionThreshold( compressionThreshold );
+    }
+
+    /**
+     * Establece el tamaño en bytes a partir del cual se comprimen los valores. Por defecto 2048.
+     * @param compressionThreshold El tamaño en bytes.
+     */
+    public void setCompressionThreshold(int compressionThreshold)
+    {
+        Assert.isTrue( compressionThreshold >= 0, "El umbral de compresion no puede ser negativo" );
+        this.compressionThreshold = compressionThreshold;
+        this.defaultTranscoder.setCompressionThreshold( compressionThreshold );
+    }
+
+    /**
+     * Establece el nivel de compresion de Deflate, de 1 a 9. Por defecto 1, el mas rapido.
+     * @param compressionLevel El nivel de compresion.
+     */
+    public void setCompressionLevel(int compressionLevel)
+    {
+        Assert.isTrue( compressionLevel >= Deflater.BEST_SPEED && compressionLevel <= Deflater.BEST_COMPRESSION,
+                "El nivel de compresion debe estar entre 1 y 9" );
+        this.compressionLevel = compressionLevel;
+    }
+
+    public CachedData encode(Object o)
+    {
+        CachedData cachedData;
+        if( isDefaultType( o ) )
+        {
+            cachedData = defaultTranscoder.encode( o );
+            rawBytes.addAndGet( cachedData.getData().length );
+        }
+        else
+        {
+            int flags = COMPACT | FIELD_HASH;
+            byte[] data = serialize( o );
+            rawBytes.addAndGet( data.length );
+            if( data.length > compressionThreshold )
+            {
+                byte[] compressed = compress( data );
+                if( compressed.length < data.length )
+                {
+                    flags |= DEFLATED;
+                    data = compressed;
+                    compressedValues.incrementAndGet();
+                }
+            }
+            cachedData = new CachedData( flags, data );
+        }
+
+        int size = cachedData.getData().length;
+        encodedValues.incrementAndGet();
+        storedBytes.addAndGet( size );
+        sizeHistogram.incrementAndGet( bucket( size ) );
+        return cachedData;
+    }
+
+    public Object decode(CachedData d)
+    {
+        int flags = d.getFlags();
+        if( (flags & COMPACT) == 0 )
+        {
+            return defaultTranscoder.decode( d );
+        }
+        if( (flags & FIELD_HASH) == 0 )
+        {
+            decodeErrors.incrementAndGet();
+            logger.warn("El valor de Memcache se escribio sin el hash de los campos de sus clases, se descarta");
+            return null;
+        }
+
+        try
+        {
+            byte[] data = d.getData();
+            if( (flags & DEFLATED) != 0 )
+            {
+                data = decompress( data );
+            }
+            return deserialize( data );
+        }
+        catch (IOException e)
+        {
+            decodeErrors.incrementAndGet();
+            logger.warn("No se ha podido leer el valor de Memcache, se descarta: " + e.getMessage());
+        }
+        catch (ClassNotFoundException e)
+        {
+            decodeErrors.incrementAndGet();
+            logger.warn("No se ha encontrado la clase del valor de Memcache, se descarta: " + e.getMessage());
+        }
+        catch (DataFormatException e)
+        {
+            decodeErrors.incrementAndGet();
+            logger.warn("No se ha podido descomprimir el valor de Memcache, se descarta: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Devuelve el numero de valores escritos.
+     * @return El numero de valores escritos.
+     */
+    public long getEncodedValues()
+    {
+        return encodedValues.get();
+    }
+
+    /**
+     * Devuelve el numero de valores escritos comprimidos.
+     * @return El numero de valores comprimidos.
+     */
+    public long getCompressedValues()
+    {
+        return compressedValues.get();
+    }
+
+    /**
+     * Devuelve el total de bytes de los valores escritos antes de comprimirlos con Deflate.
+     * @return El total de bytes sin comprimir.
+     */
+    public long getRawBytes()
+    {
+        return rawBytes.get();
+    }
+
+    /**
+     * Devuelve el total de bytes enviados a Memcache.
+     * @return El total de bytes almacenados.
+     */
+    public long getStoredBytes()
+    {
+        return storedBytes.get();
+    }
+
+    /**
+     * Devuelve el numero de valores leidos que se han descartado por no poder deserializarse.
+     * @return El numero de errores de lectura.
+     */
+    public long getDecodeErrors()
+    {
+        return decodeErrors.get();
+    }
+
+    /**
+     * Devuelve el histograma del tamaño final de los valores escritos: para cada intervalo, indicado por su limite
+     * superior (por ejemplo <i>&lt;=1024</i>), el numero de valores.
+     * @return El histograma, ordenado de menor a mayor tamaño.
+     */
+    public Map<String, Long> getSizeHistogram()
+    {
+        Map<String, Long> histogram = new LinkedHashMap<String, Long>();
+        for( int i = 0; i < HISTOGRAM_BOUNDS.length; i++ )
+        {
+            histogram.put( "<=" + HISTOGRAM_BOUNDS[i], sizeHistogram.get( i ) );
+        }
+        histogram.put( ">" + HISTOGRAM_BOUNDS[HISTOGRAM_BOUNDS.length - 1], sizeHistogram.get( HISTOGRAM_BOUNDS.length ) );
+        return histogram;
+    }
+
+    /**
+     * Devuelve el intervalo del histograma que corresponde a un tamaño.
+     * @param size El tamaño en bytes.
+     * @return El indice del intervalo.
+     */
+    private static int bucket(int size)
+    {
+        int i = 0;
+        while( i < HISTOGRAM_BOUNDS.length && size > HISTOGRAM_BOUNDS[i] )
+        {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Indica si el objeto es de uno de los tipos que el transcoder de spymemcached almacena sin serializar.
+     * @param o El objeto.
+     * @return true si es String, Boolean, Integer, Long, Date, Byte, Float, Double o byte[].
+     */
+    private static boolean isDefaultType(Object o)
+    {
+        return o instanceof String || o instanceof Boolean || o instanceof Integer || o instanceof Long ||
+                o instanceof Date || o instanceof Byte || o instanceof Float || o instanceof Double ||
+                o instanceof byte[];
+    }
+
+    /**
+     * Serializa el objeto con el formato compacto.
+     * @param o El objeto.
+     * @return Los bytes del objeto serializado.
+     */
+    private static byte[] serialize(Object o)
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try
+        {
+            ObjectOutputStream out = new CompactObjectOutputStream( bos );
+            out.writeObject( o );
+            out.close();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException( "No se ha podido serializar el valor de tipo " + o.getClass().getName(), e );
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Deserializa un objeto escrito con el formato compacto.
+     * @param data Los bytes del objeto serializado.
+     * @return El objeto.
+     * @throws IOException Si los bytes no son validos o la clase local no es compatible.
+     * @throws ClassNotFoundException Si no se encuentra alguna de las clases.
+     */
+    private static Object deserialize(byte[] data) throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream in = new CompactObjectInputStream( new ByteArrayInputStream( data ) );
+        try
+        {
+            return in.readObject();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private byte[] compress(byte[] data)
+    {
+        Deflater deflater = new Deflater( compressionLevel );
+        try
+        {
+            deflater.setInput( data );
+            deflater.finish();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream( data.length / 2 );
+            byte[] buffer = new byte[4096];
+            while( !deflater.finished() )
+            {
+                int count = deflater.deflate( buffer );
+                bos.write( buffer, 0, count );
+            }
+            return bos.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] data) throws DataFormatException
+    {
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput( data );
+            ByteArrayOutputStream bos = new ByteArrayOutputStream( data.length * 3 );
+            byte[] buffer = new byte[4096];
+            while( !inflater.finished() )
+            {
+                int count = inflater.inflate( buffer );
+                if( count == 0 && (inflater.needsInput() || inflater.needsDictionary()) )
+                {
+                    throw new DataFormatException( "Datos comprimidos incompletos" );
+                }
+                bos.write( buffer, 0, count );
+            }
+            return bos.toByteArray();
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Calcula un hash (FNV-1a de 64 bits) del nombre y el tipo de los campos serializados de una clase, en el orden
+     * en que se serializan.
+     * @param desc La descripcion de la clase.
+     * @return El hash de los campos.
+     */
+    private static long fieldHash(ObjectStreamClass desc)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for( ObjectStreamField field : desc.getFields() )
+        {
+            String signature = field.getName() + ':' + (field.isPrimitive() ? String.valueOf( field.getTypeCode() ) : field.getTypeString()) + ';';
+            for( int i = 0; i < signature.length(); i++ )
+            {
+                hash ^= signature.charAt( i );
+                hash *= 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * ObjectOutputStream que describe cada clase solo con su nombre, su serialVersionUID y el hash de sus campos, y
+     * sin cabecera de stream.
+     */
+    private static final class CompactObjectOutputStream extends ObjectOutputStream
+    {
+        private CompactObjectOutputStream(OutputStream out) throws IOException
+        {
+            super( out );
+        }
+
+        @Override
+        protected void writeStreamHeader() throws IOException
+        {
+            //Sin cabecera
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException
+        {
+            writeUTF( desc.getName() );
+            writeLong( desc.getSerialVersionUID() );
+            writeLong( fieldHash( desc ) );
+        }
+    }
+
+    /**
+     * ObjectInputStream que lee las clases descritas por CompactObjectOutputStream, utilizando la descripcion de la
+     * clase local y el ClassLoader del Thread actual.
+     */
+    private static final class CompactObjectInputStream extends ObjectInputStream
+    {
+        private CompactObjectInputStream(InputStream in) throws IOException
+        {
+            super( in );
+        }
+
+        @Override
+        protected void readStreamHeader() throws IOException
+        {
+            //Sin cabecera
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException
+        {
+            String name = readUTF();
+            long serialVersionUID = readLong();
+            long fieldHash = readLong();
+            ObjectStreamClass desc = ObjectStreamClass.lookup( loadClass( name ) );
+            if( desc == null )
+            {
+                throw new InvalidClassException( name, "La clase no es Serializable" );
+            }
+            if( desc.getSerialVersionUID() != serialVersionUID )
+            {
+                throw new InvalidClassException( name, "El serialVersionUID almacenado " + serialVersionUID +
+                        " no coincide con el de la clase local " + desc.getSerialVersionUID() );
+            }
+            if( fieldHash( desc ) != fieldHash )
+            {
+                throw new InvalidClassException( name, "Los campos almacenados no coinciden con los de la clase local" );
+            }
+            return desc;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+        {
+            return loadClass( desc.getName() );
+        }
+
+        private Class<?> loadClass(String name) throws ClassNotFoundException
+        {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if( loader != null )
+            {
+                try
+                {
+                    return Class.forName( name, false, loader );
+                }
+                catch (ClassNotFoundException e)
+                {
+                    //Se intenta con el ClassLoader de la clase
+                }
+            }
+            return Class.forName( name, false, CompactTranscoder.class.getClassLoader() );
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package es.onlysolutions.arq.core.cache;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Future de una operacion ya terminada, para los almacenes de cache que operan de forma sincrona.
+ */
+final class CompletedFuture<V> implements Future<V>
+{
+    private final V value;
+
+    CompletedFuture(V value)
+    {
+        this.value = value;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        return false;
+    }
+
+    public boolean isCancelled()
+    {
+        return false;
+    }
+
+    public boolean isDone()
+    {
+        return true;
+    }
+
+    public V get()
+    {
+        return value;
+    }
+
+    public V get(long timeout, TimeUnit unit)
+    {
+        return value;
+    }
+}
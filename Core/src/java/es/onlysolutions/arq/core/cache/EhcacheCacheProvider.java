@@ -0,0 +1,227 @@
+package es.onlysolutions.arq.core.cache;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import org.springframework.util.Assert;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Almacen de cache sobre una cache de Ehcache, en memoria del propio proceso y opcionalmente con desbordamiento a
+ * disco segun su configuracion. Permite cachear sin acceso por red en despliegues de un solo nodo, y ejecutar las
+ * pruebas sin ningun servidor de Memcache.<br/>
+ * Las operaciones son sincronas, por lo que los Future devueltos ya estan terminados. La expiracion de cada valor
+ * sustituye a la configurada en la cache.<br/>
+ * Cada valor se guarda junto con una version asignada por el propio almacen en cada escritura, unica para todas las
+ * claves, que es la que devuelve gets y comprueba cas. No se usa la version de los elementos de Ehcache porque la
+ * cache la sustituye por el instante actual al volver a escribir una clave.<br/>
+ * <b>NOTA: Los valores que se mantienen en memoria se comparten entre todos los Threads sin copiarse, por lo que deben
+ * tratarse como de solo lectura. Solo los valores Serializable pueden desbordarse a disco.</b>
+ */
+public class EhcacheCacheProvider implements ICacheProvider
+{
+    /**
+     * Numero de bloqueos entre los que se reparten las claves para las operaciones add, cas e incr.
+     */
+    private static final int LOCKS = 32;
+
+    private Ehcache cache;
+
+    private final Object[] locks = new Object[LOCKS];
+
+    /**
+     * Ultima version asignada a una escritura.
+     */
+    private final AtomicLong versions = new AtomicLong();
+
+    /**
+     * Constructor de la clase sin parametros para cumplir con el standar de JavaBean.
+     */
+    public EhcacheCacheProvider()
+    {
+        super();
+        for( int i = 0; i < LOCKS; i++ )
+        {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Establece la cache de Ehcache en la que almacenar los valores.
+     * @param cache La cache, ya inicializada.
+     */
+    public void setCache(Ehcache cache)
+    {
+        this.cache = cache;
+    }
+
+    public Object get(String key)
+    {
+        VersionedValue versioned = getVersioned( key );
+        return versioned != null ? versioned.value : null;
+    }
+
+    public Map<String, Object> getBulk(Collection<String> keys)
+    {
+        Map<String, Object> values = new HashMap<String, Object>( keys.size() * 2 );
+        for( String key : keys )
+        {
+            Object value = get( key );
+            if( value != null )
+            {
+                values.put( key, value );
+            }
+        }
+        return values;
+    }
+
+    public CacheItem gets(String key)
+    {
+        VersionedValue versioned = getVersioned( key );
+        return versioned != null ? new CacheItem( versioned.value, versioned.version ) : null;
+    }
+
+    public Object prepare(Object value)
+    {
+        return value;
+    }
+
+    public Future<Boolean> set(String key, Object value, int expiration)
+    {
+        synchronized( lockFor( key ) )
+        {
+            getCache().put( createElement( key, value, expiration ) );
+        }
+        return new CompletedFuture<Boolean>( Boolean.TRUE );
+    }
+
+    public Future<Boolean> add(String key, Object value, int expiration)
+    {
+        synchronized( lockFor( key ) )
+        {
+            if( getCache().get( key ) != null )
+            {
+                return new CompletedFuture<Boolean>( Boolean.FALSE );
+            }
+            getCache().put( createElement( key, value, expiration ) );
+        }
+        return new CompletedFuture<Boolean>( Boolean.TRUE );
+    }
+
+    public Future<Boolean> cas(String key, long cas, Object value, int expiration)
+    {
+        synchronized( lockFor( key ) )
+        {
+            VersionedValue versioned = getVersioned( key );
+            if( versioned == null || versioned.version != cas )
+            {
+                return new CompletedFuture<Boolean>( Boolean.FALSE );
+            }
+            getCache().put( createElement( key, value, expiration ) );
+        }
+        return new CompletedFuture<Boolean>( Boolean.TRUE );
+    }
+
+    public Future<Boolean> delete(String key)
+    {
+        boolean removed;
+        synchronized( lockFor( key ) )
+        {
+            removed = getCache().remove( key );
+        }
+        return new CompletedFuture<Boolean>( removed );
+    }
+
+    public long incr(String key, int by, long initial)
+    {
+        synchronized( lockFor( key ) )
+        {
+            VersionedValue versioned = getVersioned( key );
+            long value = initial;
+            if( versioned != null && versioned.value instanceof Number )
+            {
+                value = ((Number) versioned.value).longValue() + by;
+            }
+            if( versioned == null || by != 0 )
+            {
+                getCache().put( createElement( key, value, 0 ) );
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Lee el valor de una clave junto con su version.
+     * @param key La clave.
+     * @return El valor y su version, o null si no existe.
+     */
+    private VersionedValue getVersioned(String key)
+    {
+        Element element = getCache().get( key );
+        return element != null ? (VersionedValue) element.getObjectValue() : null;
+    }
+
+    /**
+     * Crea el elemento de Ehcache con una nueva version y la expiracion indicada.
+     * @param key La clave.
+     * @param value El valor.
+     * @param expiration La expiracion en segundos, 0 para no expirar.
+     * @return El elemento.
+     */
+    private Element createElement(String key, Object value, int expiration)
+    {
+        Element element = new Element( key, new VersionedValue( value, versions.incrementAndGet() ) );
+        if( expiration > 0 )
+        {
+            element.setTimeToLive( expiration );
+        }
+        else
+        {
+            element.setEternal( true );
+        }
+        return element;
+    }
+
+    /**
+     * Devuelve el bloqueo de una clave.
+     * @param key La clave.
+     * @return El bloqueo.
+     */
+    private Object lockFor(String key)
+    {
+        return locks[ (key.hashCode() & Integer.MAX_VALUE) % LOCKS ];
+    }
+
+    /**
+     * Devuelve la cache, comprobando que se ha indicado.
+     * @return La cache.
+     */
+    private Ehcache getCache()
+    {
+        Assert.notNull( cache, "No se ha indicado la cache de Ehcache. Utilize la propiedad \"cache\" en la configuracion del bean" );
+        return cache;
+    }
+
+    /**
+     * Valor guardado en la cache junto con la version de la escritura. Es Serializable para que pueda desbordarse a
+     * disco si lo es el valor.
+     */
+    private static final class VersionedValue implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Object value;
+        private final long version;
+
+        private VersionedValue(Object value, long version)
+        {
+            this.value = value;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package es.onlysolutions.arq.core.cache;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Almacen de cache utilizado por el aspecto de cache. Permite sustituir Memcache por una cache en memoria del propio
+ * proceso o por una combinacion de ambas.<br/>
+ * Las lecturas son sincronas y devuelven null si la clave no existe o si no se ha podido leer a tiempo. Las escrituras
+ * son asincronas: devuelven un Future con el resultado, que puede no consultarse.<br/>
+ * Las expiraciones se indican en segundos, y 0 significa sin expiracion.
+ * @see MemcacheCacheProvider
+ * @see EhcacheCacheProvider
+ * @see TieredCacheProvider
+ */
+public interface ICacheProvider
+{
+    /**
+     * Obtiene el valor de una clave.
+     * @param key La clave.
+     * @return El valor, o null si no existe.
+     */
+    public Object get(String key);
+
+    /**
+     * Obtiene los valores de varias claves en una sola operacion.
+     * @param keys Las claves.
+     * @return Un mapa con las claves encontradas y sus valores. Las claves que no existen no se incluyen.
+     */
+    public Map<String, Object> getBulk(Collection<String> keys);
+
+    /**
+     * Obtiene el valor de una clave junto con su identificador de version, para una posterior modificacion con cas.
+     * @param key La clave.
+     * @return El valor y su version, o null si no existe.
+     * @see #cas(String, long, Object, int)
+     */
+    public CacheItem gets(String key);
+
+    /**
+     * Prepara un valor para escribirlo mas tarde con set o add desde otro Thread. Se llama en el Thread que pide la
+     * escritura, de forma que se escribe el estado del valor en ese momento y su serializacion no se ejecuta en otro
+     * Thread. Los almacenes que no serializan los valores lo devuelven sin cambios.
+     * @param value El valor.
+     * @return El valor preparado, que set, add y cas aceptan en lugar del original.
+     */
+    public Object prepare(Object value);
+
+    /**
+     * Almacena el valor bajo la clave indicada, sustituyendo el existente.
+     * @param key La clave.
+     * @param value El valor.
+     * @param expiration La expiracion en segundos.
+     * @return El Future con el resultado de la escritura.
+     */
+    public Future<Boolean> set(String key, Object value, int expiration);
+
+    /**
+     * Almacena el valor bajo la clave indicada solo si no existe ya.
+     * @param key La clave.
+     * @param value El valor.
+     * @param expiration La expiracion en segundos.
+     * @return El Future con el resultado, false si la clave ya existia.
+     */
+    public Future<Boolean> add(String key, Object value, int expiration);
+
+    /**
+     * Sustituye el valor de una clave solo si no se ha modificado desde que se leyo con gets.
+     * @param key La clave.
+     * @param cas La version obtenida con gets.
+     * @param value El nuevo valor, o el preparado con {@link #prepare(Object)}.
+     * @param expiration La expiracion en segundos.
+     * @return El Future con el resultado, false si la clave se ha modificado o eliminado entretanto.
+     * @see #gets(String)
+     */
+    public Future<Boolean> cas(String key, long cas, Object value, int expiration);
+
+    /**
+     * Elimina una clave.
+     * @param key La clave.
+     * @return El Future con el resultado, false si la clave no existia.
+     */
+    public Future<Boolean> delete(String key);
+
+    /**
+     * Incrementa de forma atomica el contador guardado bajo la clave indicada, creandolo sin expiracion con el valor
+     * inicial si no existe. Con un incremento de 0 obtiene el valor actual o crea el contador, sin modificar el de
+     * otro nodo que lo haya creado a la vez. Espera el resultado como maximo el TimeOut configurado
+     * (<b>memcache.timeout</b>).<br/>
+     * get devuelve el contador como un Number o como un String con su valor decimal, segun el almacen.
+     * @param key La clave.
+     * @param by El incremento, mayor o igual que 0.
+     * @param initial El valor con el que se crea el contador si no existe.
+     * @return El valor del contador tras el incremento, o -1 si no se ha podido incrementar.
+     */
+    public long incr(String key, int by, long initial);
+}
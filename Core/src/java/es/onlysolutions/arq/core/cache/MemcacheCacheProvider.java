@@ -0,0 +1,255 @@
+package es.onlysolutions.arq.core.cache;
+
+import es.onlysolutions.arq.core.configuration.Configuracion;
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.MemcachedClient;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Almacen de cache sobre Memcache, a traves de un MemcacheClientWrapper.
+ * Las lecturas esperan como maximo el valor de la propiedad <b>memcache.timeout</b> y devuelven null si se excede.
+ * Con replicacion configurada en el wrapper, get, set, add y delete se aplican a todas las copias, mientras que
+ * gets y cas solo operan sobre la clave original. Las versiones de
+ * las etiquetas se leen y escriben con los clientes fijos del wrapper, sin seguir sus expulsiones.<br/>
+ * Los contadores de incr se guardan como texto decimal, que es lo que requiere la operacion incr de Memcache, y no se
+ * replican: se guardan solo en el servidor principal de la clave.
+ */
+public class MemcacheCacheProvider implements ICacheProvider
+{
+    /**
+     * El logger de la clase.
+     */
+    private static final Log logger = LogFactory.getLog(MemcacheCacheProvider.class);
+
+    private MemcacheClientWrapper memcacheClient;
+
+    /**
+     * Constructor de la clase sin parametros para cumplir con el standar de JavaBean.
+     */
+    public MemcacheCacheProvider()
+    {
+        super();
+    }
+
+    /**
+     * Construye el almacen sobre el cliente de Memcache indicado.
+     * @param memcacheClient El cliente de Memcache.
+     */
+    public MemcacheCacheProvider(MemcacheClientWrapper memcacheClient)
+    {
+        this.memcacheClient = memcacheClient;
+    }
+
+    public void setMemcacheClient(MemcacheClientWrapper memcacheClient)
+    {
+        this.memcacheClient = memcacheClient;
+    }
+
+    public Object get(String key)
+    {
+        return waitFor( key, getMemcacheClient().asyncGet( key ) );
+    }
+
+    public Map<String, Object> getBulk(Collection<String> keys)
+    {
+        List<String> pinned = new ArrayList<String>();
+        List<String> others = new ArrayList<String>( keys.size() );
+        for( String key : keys )
+        {
+            if( MemcacheClientWrapper.isPinned( key ) )
+            {
+                pinned.add( key );
+            }
+            else
+            {
+                others.add( key );
+            }
+        }
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        if( !pinned.isEmpty() )
+        {
+            putAll( values, waitFor( pinned, getMemcacheClient().pinnedClient().asyncGetBulk( pinned ) ) );
+        }
+        if( !others.isEmpty() )
+        {
+            putAll( values, waitFor( others, getMemcacheClient().client().asyncGetBulk( others ) ) );
+        }
+        return values;
+    }
+
+    public CacheItem gets(String key)
+    {
+        CASValue<Object> casValue = waitFor( key, clientFor( key ).asyncGets( key ) );
+        return casValue != null ? new CacheItem( casValue.getValue(), casValue.getCas() ) : null;
+    }
+
+    public Object prepare(Object value)
+    {
+        return getMemcacheClient().encode( value );
+    }
+
+    public Future<Boolean> set(String key, Object value, int expiration)
+    {
+        return getMemcacheClient().set( key, expiration, value );
+    }
+
+    public Future<Boolean> add(String key, Object value, int expiration)
+    {
+        return getMemcacheClient().add( key, expiration, value );
+    }
+
+    /**
+     * Sustituye el valor si no se ha modificado desde que se leyo.
+     * <b>NOTA: El cliente de Memcache no permite indicar la expiracion en la operacion cas, por lo que el valor
+     * queda sin expiracion y el parametro se ignora.</b>
+     */
+    public Future<Boolean> cas(String key, long cas, Object value, int expiration)
+    {
+        return new CasFuture( clientFor( key ).asyncCAS( key, cas, value ) );
+    }
+
+    public Future<Boolean> delete(String key)
+    {
+        return getMemcacheClient().delete( key );
+    }
+
+    public long incr(String key, int by, long initial)
+    {
+        MemcachedClient client = clientFor( key );
+        Long value = waitFor( key, client.asyncIncr( key, by ) );
+        if( value != null && value < 0 )
+        {
+            //No existe: se crea con el valor inicial y, si otro lo ha creado a la vez, se incrementa el suyo
+            CachedData counter = new CachedData( 0, String.valueOf( initial ).getBytes(), CachedData.MAX_SIZE );
+            if( Boolean.TRUE.equals( waitFor( key, client.add( key, 0, counter ) ) ) )
+            {
+                return initial;
+            }
+            value = waitFor( key, client.asyncIncr( key, by ) );
+        }
+        return value != null && value >= 0 ? value : -1;
+    }
+
+    /**
+     * Incluye los valores leidos, si se han leido a tiempo.
+     * @param values Los valores acumulados.
+     * @param found Los valores leidos, o null.
+     */
+    private static void putAll(Map<String, Object> values, Map<String, Object> found)
+    {
+        if( found != null )
+        {
+            values.putAll( found );
+        }
+    }
+
+    /**
+     * Devuelve el cliente con el que operar sobre la clave original, sin replicas: el fijo para las versiones de las
+     * etiquetas y el actual para el resto.
+     * @param key La clave.
+     * @return El cliente de spymemcached.
+     */
+    private MemcachedClient clientFor(String key)
+    {
+        return MemcacheClientWrapper.isPinned( key ) ? getMemcacheClient().pinnedClient() : getMemcacheClient().client();
+    }
+
+    /**
+     * Devuelve el cliente de Memcache, comprobando que se ha indicado.
+     * @return El cliente de Memcache.
+     */
+    private MemcacheClientWrapper getMemcacheClient()
+    {
+        Assert.notNull( memcacheClient, "No se ha indicado el cliente de Memcache. Utilize la propiedad \"memcacheClient\" en la configuracion del bean" );
+        return memcacheClient;
+    }
+
+    /**
+     * Espera el resultado de una lectura como maximo el TimeOut configurado.
+     * @param key La clave o claves leidas, para el log.
+     * @param future El Future de la lectura.
+     * @return El resultado, o null si no se ha obtenido a tiempo.
+     */
+    private <T> T waitFor(Object key, Future<T> future)
+    {
+        Integer timeOut = Configuracion.getInteger(IConstantsMemcache.TIMEOUT);
+        if( timeOut == null )
+        {
+            timeOut = 5;
+        }
+
+        try
+        {
+            return future.get(timeOut, TimeUnit.SECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            future.cancel(false);
+            logger.error("El TimeOut ha sido excedido al leer de Memcache " + key + ", devolvemos null", e);
+        }
+        catch (ExecutionException e)
+        {
+            future.cancel(false);
+            logger.error("Error al leer de Memcache " + key + ", devolvemos null", e);
+        }
+        catch (InterruptedException e)
+        {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * Adaptador del resultado de la operacion cas de Memcache a un Future&lt;Boolean&gt;.
+     */
+    private static final class CasFuture implements Future<Boolean>
+    {
+        private final Future<CASResponse> future;
+
+        private CasFuture(Future<CASResponse> future)
+        {
+            this.future = future;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return future.cancel( mayInterruptIfRunning );
+        }
+
+        public boolean isCancelled()
+        {
+            return future.isCancelled();
+        }
+
+        public boolean isDone()
+        {
+            return future.isDone();
+        }
+
+        public Boolean get() throws InterruptedException, ExecutionException
+        {
+            return future.get() == CASResponse.OK;
+        }
+
+        public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+        {
+            return future.get( timeout, unit ) == CASResponse.OK;
+        }
+    }
+}
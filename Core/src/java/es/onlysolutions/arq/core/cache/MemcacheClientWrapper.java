@@ -2,21 +2,112 @@ package es.onlysolutions.arq.core.cache;
 
 import es.onlysolutions.arq.core.cache.exception.MemcacheException;
 import net.spy.memcached.AddrUtil;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.KetamaConnectionFactory;
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.Transcoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.util.Assert;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Wrapper sobre el objeto net.spy.memcached.MemcachedClient para introducirlo como bean en el IoC.
  * Esta clase no implementa el patron Singleton, por lo que de no incluirse como tal en el IoC se debera controlar
- * de forma externa.
+ * de forma externa.<br/>
+ * Por defecto las claves se reparten entre los servidores con hashing consistente (Ketama), de forma que al añadir o
+ * quitar un servidor solo cambia de servidor la parte de las claves que le correspondian.<br/>
+ * Opcionalmente se puede:
+ * <ul>
+ * <li>Crear un pool de clientes (<i>poolSize</i>), cada uno con su propio Thread de I/O, para repartir la carga
+ * entre varios procesadores.</li>
+ * <li>Replicar cada valor en varias claves (<i>replicas</i>) que normalmente caen en servidores distintos, para
+ * repartir las lecturas de las claves mas utilizadas. La replicacion solo se aplica a las operaciones de este wrapper
+ * (asyncGet, set, add y delete), por lo que conviene definir un wrapper replicado aparte para los datos mas leidos.</li>
+ * <li>Comprobar periodicamente los servidores (<i>healthCheckInterval</i>), expulsando del reparto de claves los que
+ * fallan varias comprobaciones seguidas y volviendo a incluirlos cuando responden de nuevo. La expulsion solo la ve
+ * el nodo que detecta el fallo, por lo que solo se aplica a los valores: las versiones de las etiquetas (claves con
+ * el prefijo {@link TagVersions#VERSION_PREFIX}) se leen y escriben siempre en el servidor que les corresponde entre
+ * todos los configurados, sin replicas, para que todos los nodos vean las mismas versiones.</li>
+ * <li>Indicar el transcoder con el que se serializan los valores (<i>transcoder</i>), por ejemplo un
+ * {@link CompactTranscoder} para reducir su tamaño.</li>
+ * </ul>
+ * Los clientes se crean en el primer uso.
  */
 public class MemcacheClientWrapper
 {
-    private MemcachedClient memcachedClient;
+    /**
+     * El logger de la clase.
+     */
+    private static final Log logger = LogFactory.getLog(MemcacheClientWrapper.class);
+
+    /**
+     * Separador entre la clave y el numero de replica.
+     */
+    public static final String REPLICA_SEPARATOR = "#";
+
+    /**
+     * TimeOut en milisegundos para conectar con un servidor expulsado y comprobar si responde.
+     */
+    private static final int PROBE_TIMEOUT = 1000;
+
+    private List<InetSocketAddress> servers;
+
+    private boolean consistentHashing = true;
+
+    private int poolSize = 1;
+
+    private int replicas = 1;
+
+    private int healthCheckInterval = 10;
+
+    private int failureThreshold = 3;
+
+    private Transcoder<Object> transcoder;
+
+    private volatile MemcachedClient[] clients;
+
+    /**
+     * Clientes sobre todos los servidores configurados, para las claves que no siguen las expulsiones. Son los mismos
+     * que <i>clients</i> mientras no hay servidores expulsados.
+     */
+    private volatile MemcachedClient[] pinnedClients;
+
+    private final AtomicInteger nextClient = new AtomicInteger();
+
+    private final Random random = new Random();
+
+    /**
+     * Servidores expulsados del reparto de claves.
+     */
+    private final List<InetSocketAddress> ejectedServers = Collections.synchronizedList(new ArrayList<InetSocketAddress>());
+
+    /**
+     * Numero de comprobaciones seguidas fallidas de cada servidor. Solo se accede desde el Thread de comprobacion.
+     */
+    private final Map<InetSocketAddress, Integer> failures = new HashMap<InetSocketAddress, Integer>();
+
+    private ScheduledExecutorService healthChecker;
 
     /**
      * Constructor de la clase sin parametros para cumplir con el standar de JavaBean.
@@ -27,8 +118,8 @@ public class MemcacheClientWrapper
     }
 
     /**
-     * Establece la lista de servidores de Memcache. En cada ejecucion se instancia de nuevo un cliente de Memcache,
-     * por lo que se sustituyen los servidores indicados anteriormente.
+     * Establece la lista de servidores de Memcache. Si ya se habian creado los clientes se cierran y se vuelven a
+     * crear con los nuevos servidores en el siguiente uso.
      * @param addresses La lista de servidores indicados de forma host:port.
      */
     public void setServers( List<String> addresses )
@@ -40,31 +131,570 @@ public class MemcacheClientWrapper
             {
                 strAddresses += address + " ";
             }
-            List<InetSocketAddress> inetSocketAddressList = AddrUtil.getAddresses( strAddresses );
 
+            synchronized( this )
+            {
+                this.servers = AddrUtil.getAddresses( strAddresses );
+                this.ejectedServers.clear();
+                shutdownAll();
+            }
+        }
+    }
+
+    /**
+     * Indica si se reparten las claves con hashing consistente (Ketama). Por defecto true.
+     * Con false se utiliza el reparto por modulo original de spymemcached.
+     * @param consistentHashing true para utilizar hashing consistente.
+     */
+    public void setConsistentHashing(boolean consistentHashing)
+    {
+        this.consistentHashing = consistentHashing;
+    }
+
+    /**
+     * Establece el numero de clientes del pool. Por defecto 1.
+     * @param poolSize El numero de clientes.
+     */
+    public void setPoolSize(int poolSize)
+    {
+        Assert.isTrue( poolSize > 0, "El tamaño del pool de clientes debe ser mayor que 0" );
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * Establece el numero de copias de cada valor. Por defecto 1, sin replicacion.
+     * @param replicas El numero de copias.
+     */
+    public void setReplicas(int replicas)
+    {
+        Assert.isTrue( replicas > 0, "El numero de replicas debe ser mayor que 0" );
+        this.replicas = replicas;
+    }
+
+    /**
+     * Establece cada cuantos segundos se comprueban los servidores. Por defecto 10; 0 para no comprobarlos.
+     * @param healthCheckInterval Los segundos entre comprobaciones.
+     */
+    public void setHealthCheckInterval(int healthCheckInterval)
+    {
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+    /**
+     * Establece el numero de comprobaciones seguidas que debe fallar un servidor para expulsarlo. Por defecto 3.
+     * @param failureThreshold El numero de comprobaciones fallidas.
+     */
+    public void setFailureThreshold(int failureThreshold)
+    {
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Establece el transcoder con el que los clientes serializan los valores. Por defecto el de spymemcached.
+     * @param transcoder El transcoder.
+     */
+    public void setTranscoder(Transcoder<Object> transcoder)
+    {
+        this.transcoder = transcoder;
+    }
+
+    /**
+     * Devuelve el transcoder configurado.
+     * @return El transcoder, o null si se utiliza el de spymemcached.
+     */
+    public Transcoder<Object> getTranscoder()
+    {
+        return transcoder;
+    }
+
+    /**
+     * Devuelve el cliente de Memcache instanciado y correctamente configurado. Con un pool de clientes se van
+     * devolviendo de forma rotatoria.
+     * Si no estuviera correctamente instancia se obtiene una excepcion.
+     * @return El cliente de Memcache instanciado y correctamente configurado.
+     * @see net.spy.memcached.MemcachedClient
+     */
+    public MemcachedClient client()
+    {
+        return select( getClients() );
+    }
+
+    /**
+     * Devuelve un cliente sobre todos los servidores configurados, incluidos los expulsados, de forma que cada clave
+     * va siempre al mismo servidor en todos los nodos. Se utiliza para las versiones de las etiquetas.
+     * @return El cliente.
+     */
+    public MemcachedClient pinnedClient()
+    {
+        getClients();
+        return select( this.pinnedClients );
+    }
+
+    /**
+     * Indica si una clave se guarda siempre en su servidor, sin seguir las expulsiones ni replicarse.
+     * @param key La clave.
+     * @return true si es la version de una etiqueta.
+     */
+    public static boolean isPinned(String key)
+    {
+        return key.startsWith( TagVersions.VERSION_PREFIX );
+    }
+
+    /**
+     * Lee el valor de la clave indicada. Con replicacion se lee una de las copias al azar.
+     * @param key La clave.
+     * @return El Future con el valor.
+     * @see net.spy.memcached.MemcachedClient#asyncGet(String)
+     */
+    public Future<Object> asyncGet(String key)
+    {
+        if( isPinned( key ) )
+        {
+            return pinnedClient().asyncGet( key );
+        }
+        if( replicas == 1 )
+        {
+            return client().asyncGet( key );
+        }
+        return client().asyncGet( replicaKey( key, random.nextInt( replicas ) ) );
+    }
+
+    /**
+     * Codifica un valor con el transcoder de los clientes. Las operaciones de escritura aceptan el valor codificado en
+     * lugar del original y lo envian sin volver a codificarlo, de forma que puede codificarse en un Thread y escribirse
+     * desde otro.
+     * @param value El valor.
+     * @return El valor codificado.
+     */
+    public CachedData encode(Object value)
+    {
+        return client().getTranscoder().encode( value );
+    }
+
+    /**
+     * Escribe el valor en la clave indicada y en todas sus copias.
+     * @param key La clave.
+     * @param expiration La expiracion en segundos.
+     * @param value El valor.
+     * @return El Future con el resultado de la escritura de la clave original.
+     * @see net.spy.memcached.MemcachedClient#set(String, int, Object)
+     */
+    public Future<Boolean> set(String key, int expiration, Object value)
+    {
+        if( isPinned( key ) )
+        {
+            return pinnedClient().set( key, expiration, value );
+        }
+        MemcachedClient c = client();
+        for( int i = 1; i < replicas; i++ )
+        {
+            c.set( replicaKey( key, i ), expiration, value );
+        }
+        return c.set( key, expiration, value );
+    }
+
+    /**
+     * Escribe el valor en la clave indicada y en todas sus copias, salvo en las que ya existan.
+     * @param key La clave.
+     * @param expiration La expiracion en segundos.
+     * @param value El valor.
+     * @return El Future con el resultado de la escritura de la clave original.
+     * @see net.spy.memcached.MemcachedClient#add(String, int, Object)
+     */
+    public Future<Boolean> add(String key, int expiration, Object value)
+    {
+        if( isPinned( key ) )
+        {
+            return pinnedClient().add( key, expiration, value );
+        }
+        MemcachedClient c = client();
+        for( int i = 1; i < replicas; i++ )
+        {
+            c.add( replicaKey( key, i ), expiration, value );
+        }
+        return c.add( key, expiration, value );
+    }
+
+    /**
+     * Elimina la clave indicada y todas sus copias.
+     * @param key La clave.
+     * @return El Future con el resultado del borrado de la clave original.
+     * @see net.spy.memcached.MemcachedClient#delete(String)
+     */
+    public Future<Boolean> delete(String key)
+    {
+        if( isPinned( key ) )
+        {
+            return pinnedClient().delete( key );
+        }
+        MemcachedClient c = client();
+        for( int i = 1; i < replicas; i++ )
+        {
+            c.delete( replicaKey( key, i ) );
+        }
+        return c.delete( key );
+    }
+
+    /**
+     * Devuelve los servidores que participan en el reparto de claves.
+     * @return Los servidores activos.
+     */
+    public List<InetSocketAddress> getActiveServers()
+    {
+        List<InetSocketAddress> active = new ArrayList<InetSocketAddress>();
+        if( servers != null )
+        {
+            active.addAll( servers );
+            active.removeAll( getEjectedServers() );
+        }
+        return active;
+    }
+
+    /**
+     * Devuelve los servidores expulsados del reparto de claves por no responder.
+     * @return Los servidores expulsados.
+     */
+    public List<InetSocketAddress> getEjectedServers()
+    {
+        synchronized( ejectedServers )
+        {
+            return new ArrayList<InetSocketAddress>( ejectedServers );
+        }
+    }
+
+    /**
+     * Cierra los clientes y detiene la comprobacion de servidores. Puede indicarse como destroy-method en la
+     * configuracion de Spring.
+     */
+    public synchronized void destroy()
+    {
+        if( healthChecker != null )
+        {
+            healthChecker.shutdownNow();
+            healthChecker = null;
+        }
+        shutdownAll();
+    }
+
+    /**
+     * Devuelve los clientes, creandolos si aun no existen.
+     * @return Los clientes.
+     */
+    private MemcachedClient[] getClients()
+    {
+        MemcachedClient[] current = this.clients;
+        if( current == null )
+        {
+            synchronized( this )
+            {
+                current = this.clients;
+                if( current == null )
+                {
+                    Assert.notNull( this.servers, "No se han indicado servidores de Memcache. Utilize la propiedad \"servers\"  en la configuracion del bean" );
+                    current = createClients( getActiveServers() );
+                    this.clients = current;
+                    this.pinnedClients = getEjectedServers().isEmpty() ? current : createClients( this.servers );
+                    startHealthChecker();
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Crea el pool de clientes para los servidores indicados.
+     * @param addresses Los servidores.
+     * @return Los clientes.
+     */
+    private MemcachedClient[] createClients(List<InetSocketAddress> addresses)
+    {
+        MemcachedClient[] newClients = new MemcachedClient[poolSize];
+        try
+        {
+            for( int i = 0; i < poolSize; i++ )
+            {
+                ConnectionFactory factory = consistentHashing ? new KetamaConnectionFactory() : new DefaultConnectionFactory();
+                newClients[i] = new MemcachedClient( factory, addresses );
+                Transcoder<Object> delegate = transcoder != null ? transcoder : newClients[i].getTranscoder();
+                newClients[i].setTranscoder( new EncodedTranscoder( delegate ) );
+            }
+        }
+        catch (IOException e)
+        {
+            shutdownClients( newClients );
+            throw new MemcacheException("Error al tratar de instanciar el objeto " +
+                    "net.spy.memcached.MemcachedClient con los servidores: " + addresses, e);
+        }
+        return newClients;
+    }
+
+    /**
+     * Devuelve uno de los clientes del pool, de forma rotatoria.
+     * @param pool Los clientes.
+     * @return El cliente.
+     */
+    private MemcachedClient select(MemcachedClient[] pool)
+    {
+        if( pool.length == 1 )
+        {
+            return pool[0];
+        }
+        return pool[ (nextClient.getAndIncrement() & Integer.MAX_VALUE) % pool.length ];
+    }
+
+    /**
+     * Cierra todos los clientes. Se vuelven a crear en el siguiente uso.
+     */
+    private synchronized void shutdownAll()
+    {
+        if( this.pinnedClients != this.clients )
+        {
+            shutdownClients( this.pinnedClients );
+        }
+        shutdownClients( this.clients );
+        this.clients = null;
+        this.pinnedClients = null;
+    }
+
+    /**
+     * Cierra los clientes indicados, esperando las operaciones pendientes como maximo un segundo.
+     * @param toShutdown Los clientes, puede ser null.
+     */
+    private void shutdownClients(MemcachedClient[] toShutdown)
+    {
+        if( toShutdown != null )
+        {
+            for( MemcachedClient c : toShutdown )
+            {
+                if( c != null )
+                {
+                    c.shutdown( 1, TimeUnit.SECONDS );
+                }
+            }
+        }
+    }
+
+    /**
+     * Arranca la comprobacion periodica de servidores, si esta configurada y no esta ya arrancada.
+     */
+    private void startHealthChecker()
+    {
+        if( healthCheckInterval > 0 && healthChecker == null )
+        {
+            healthChecker = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread( r, "MemcacheHealthCheck" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            });
+            healthChecker.scheduleWithFixedDelay( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        checkServers();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        logger.error("Error al comprobar los servidores de Memcache", e);
+                    }
+                }
+            }, healthCheckInterval, healthCheckInterval, TimeUnit.SECONDS );
+        }
+    }
+
+    /**
+     * Comprueba los servidores con el comando <i>version</i>, ya que el cliente no detecta la caida de un servidor
+     * hasta que le envia una operacion. Los activos que no responden acumulan un fallo y se expulsan al llegar a
+     * <i>failureThreshold</i>, salvo que sea el ultimo servidor activo, y los expulsados que vuelven a responder se
+     * incluyen de nuevo. Si cambian los servidores activos se sustituyen los clientes.<br/>
+     * Los servidores no se vacian al volver, ya que son compartidos por todos los nodos. Los valores que se han
+     * invalidado mientras estaba expulsado no se vuelven a leer porque sus claves llevan versiones de etiquetas
+     * anteriores; los valores sin etiquetas pueden leerse hasta que expiran.
+     */
+    private void checkServers()
+    {
+        if( this.clients == null )
+        {
+            return;
+        }
+
+        boolean changed = false;
+        List<InetSocketAddress> active = getActiveServers();
+        for( InetSocketAddress server : active )
+        {
+            if( !probe( server ) )
+            {
+                Integer count = failures.get( server );
+                count = count == null ? 1 : count + 1;
+                failures.put( server, count );
+                if( count >= failureThreshold && active.size() - ejectedCount( active ) > 1 )
+                {
+                    logger.error("El servidor de Memcache " + server + " no responde. Se expulsa del reparto de claves");
+                    ejectedServers.add( server );
+                    failures.remove( server );
+                    changed = true;
+                }
+            }
+            else
+            {
+                failures.remove( server );
+            }
+        }
+
+        for( InetSocketAddress server : getEjectedServers() )
+        {
+            if( !active.contains( server ) && probe( server ) )//Los recien expulsados se comprueban en la siguiente
+            {
+                logger.info("El servidor de Memcache " + server + " vuelve a responder. Se incluye en el reparto de claves");
+                ejectedServers.remove( server );
+                changed = true;
+            }
+        }
+
+        if( changed )
+        {
+            replaceClients();
+        }
+    }
+
+    /**
+     * Cuenta los servidores de la lista que ya estan expulsados.
+     * @param active La lista de servidores.
+     * @return El numero de servidores expulsados.
+     */
+    private int ejectedCount(List<InetSocketAddress> active)
+    {
+        int count = 0;
+        for( InetSocketAddress server : getEjectedServers() )
+        {
+            if( active.contains( server ) )
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sustituye los clientes por unos nuevos con los servidores activos actuales y cierra los anteriores. Los clientes
+     * sobre todos los servidores se conservan, y vuelven a utilizarse para todo cuando no queda ningun expulsado.
+     */
+    private void replaceClients()
+    {
+        MemcachedClient[] old;
+        synchronized( this )
+        {
+            old = this.clients;
+            if( old == null )
+            {
+                return;
+            }
             try
             {
-                this.memcachedClient = new MemcachedClient( inetSocketAddressList );
+                this.clients = getEjectedServers().isEmpty() ? this.pinnedClients : createClients( getActiveServers() );
+            }
+            catch (MemcacheException e)
+            {
+                logger.error("No se han podido sustituir los clientes de Memcache. Se mantienen los anteriores", e);
+                return;
+            }
+        }
+        if( old != this.pinnedClients )
+        {
+            shutdownClients( old );
+        }
+
+        if( logger.isInfoEnabled() )
+        {
+            logger.info("Servidores de Memcache activos: " + getActiveServers() + ", expulsados: " + getEjectedServers());
+        }
+    }
+
+    /**
+     * Comprueba si un servidor responde al comando <i>version</i>.
+     * @param server El servidor.
+     * @return true si responde.
+     */
+    private boolean probe(InetSocketAddress server)
+    {
+        return sendCommand( server, "version", "VERSION" );
+    }
+
+    /**
+     * Envia un comando a un servidor por una conexion propia y comprueba su respuesta.
+     * @param server El servidor.
+     * @param command El comando, sin el fin de linea.
+     * @param expected El comienzo esperado de la respuesta.
+     * @return true si el servidor responde a tiempo con la respuesta esperada.
+     */
+    private boolean sendCommand(InetSocketAddress server, String command, String expected)
+    {
+        Socket socket = new Socket();
+        try
+        {
+            socket.connect( server, PROBE_TIMEOUT );
+            socket.setSoTimeout( PROBE_TIMEOUT );
+            OutputStream out = socket.getOutputStream();
+            out.write( (command + "\r\n").getBytes( "US-ASCII" ) );
+            out.flush();
+            BufferedReader in = new BufferedReader( new InputStreamReader( socket.getInputStream(), "US-ASCII" ) );
+            String line = in.readLine();
+            return line != null && line.startsWith( expected );
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
             }
             catch (IOException e)
             {
-                throw new MemcacheException("Error al tratar de instanciar el objeto " +
-                        "net.spy.memcached.MemcachedClient con los servidores: " + strAddresses, e);
+                //Se ignora
             }
         }
     }
 
     /**
-     * Devuelve el cliente de Memcache instanciado y correctamente configurado.
-     * Si no estuviera correctamente instancia se obtiene una excepcion.
-     * @return El cliente de Memcache instanciado y correctamente configurado.
-     * @see net.spy.memcached.MemcachedClient  
+     * Devuelve la clave de una copia.
+     * @param key La clave original.
+     * @param replica El numero de copia, 0 para la original.
+     * @return La clave de la copia.
      */
-    public MemcachedClient client()
+    private static String replicaKey(String key, int replica)
     {
-        Assert.notNull( this.memcachedClient, "No se han indicado servidores de Memcache. Utilize la propiedad \"servers\"  en la configuracion del bean" );
-        return this.memcachedClient;
+        return replica == 0 ? key : key + REPLICA_SEPARATOR + replica;
     }
 
+    /**
+     * Transcoder de los clientes: envia tal cual los valores ya codificados con {@link #encode(Object)} y delega el
+     * resto, y todas las lecturas, en el transcoder configurado.
+     */
+    private static final class EncodedTranscoder implements Transcoder<Object>
+    {
+        private final Transcoder<Object> delegate;
 
+        private EncodedTranscoder(Transcoder<Object> delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        public CachedData encode(Object value)
+        {
+            return value instanceof CachedData ? (CachedData) value : delegate.encode( value );
+        }
+
+        public Object decode(CachedData data)
+        {
+            return delegate.decode( data );
+        }
+    }
 }
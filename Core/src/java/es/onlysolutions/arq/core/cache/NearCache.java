@@ -0,0 +1,332 @@
+package es.onlysolutions.arq.core.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache local en memoria (L1) que se situa delante de Memcache para las claves mas utilizadas.
+ * Esta acotada en numero de entradas con expulsion LRU, cada entrada tiene su propio tiempo de vida y se mantienen
+ * estadisticas de aciertos, fallos y expulsiones.<br/>
+ * Las claves incluyen la version de sus etiquetas, por lo que las entradas invalidadas dejan de encontrarse sin
+ * necesidad de eliminarlas y se descartan al expirar o por LRU.<br/>
+ * Para reducir la contencion, las entradas se reparten en segmentos con bloqueo independiente.<br/>
+ * <b>NOTA: Los objetos devueltos se comparten entre todos los Threads, por lo que deben tratarse como de solo lectura.
+ * En caso de configuracion en cluster, cada nodo tiene su propia cache local y solo se invalida la del nodo que
+ * realiza la invalidacion; el resto expira por tiempo de vida.</b>
+ */
+public class NearCache
+{
+    /**
+     * Numero de segmentos en los que se reparten las entradas.
+     */
+    private static final int SEGMENTS = 16;
+
+    private int maxEntries = 10000;
+
+    private int timeToLive = 60;
+
+    private volatile Segment[] segments;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Constructor de la clase sin parametros para cumplir con el standar de JavaBean.
+     */
+    public NearCache()
+    {
+        super();
+        this.segments = createSegments( maxEntries );
+    }
+
+    /**
+     * Establece el numero maximo de entradas de la cache. Por defecto 10000.
+     * Al cambiarlo se vacia la cache.
+     * @param maxEntries El numero maximo de entradas.
+     */
+    public void setMaxEntries(int maxEntries)
+    {
+        if( maxEntries < SEGMENTS )
+        {
+            throw new IllegalArgumentException("El numero maximo de entradas debe ser al menos " + SEGMENTS + ": " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.segments = createSegments( maxEntries );
+    }
+
+    /**
+     * Establece el tiempo de vida maximo de las entradas en segundos. Por defecto 60.
+     * En ningun caso una entrada vive mas que el tiempo de expiracion con el que se guardo en Memcache.
+     * @param timeToLive El tiempo de vida en segundos.
+     */
+    public void setTimeToLive(int timeToLive)
+    {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Devuelve el tiempo de vida maximo de las entradas en segundos.
+     * @return El tiempo de vida maximo de las entradas en segundos.
+     */
+    public int getTimeToLive()
+    {
+        return timeToLive;
+    }
+
+    /**
+     * Obtiene el valor almacenado bajo la clave indicada, o null si no existe o ha expirado.
+     * @param key La clave.
+     * @return El valor o null.
+     */
+    public Object get(String key)
+    {
+        Segment segment = segmentFor( key );
+        CacheEntry entry;
+        boolean expired = false;
+        synchronized( segment )
+        {
+            entry = segment.get( key );
+            if( entry != null && entry.isExpired( System.currentTimeMillis() ) )
+            {
+                segment.remove( key );
+                expired = true;
+            }
+        }
+
+        if( expired )
+        {
+            expirations.incrementAndGet();
+            entry = null;
+        }
+
+        if( entry == null )
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Almacena el valor bajo la clave indicada.
+     * @param key La clave.
+     * @param value El valor, los valores null no se almacenan.
+     * @param ttlSeconds El tiempo de vida en segundos. Se limita al tiempo de vida maximo de la cache.
+     */
+    public void put(String key, Object value, int ttlSeconds)
+    {
+        if( value == null )
+        {
+            return;
+        }
+
+        int ttl = Math.min( ttlSeconds, timeToLive );
+        if( ttl <= 0 )
+        {
+            return;
+        }
+
+        CacheEntry entry = new CacheEntry( value, System.currentTimeMillis() + ttl * 1000L );
+
+        Segment segment = segmentFor( key );
+        synchronized( segment )
+        {
+            segment.put( key, entry );
+        }
+    }
+
+    /**
+     * Elimina la entrada de la clave indicada.
+     * @param key La clave.
+     */
+    public void remove(String key)
+    {
+        Segment segment = segmentFor( key );
+        CacheEntry entry;
+        synchronized( segment )
+        {
+            entry = segment.remove( key );
+        }
+        if( entry != null )
+        {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Vacia la cache. No se reinician las estadisticas.
+     */
+    public void clear()
+    {
+        for( Segment segment : segments )
+        {
+            synchronized( segment )
+            {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Devuelve el numero de entradas actualmente en la cache, incluidas las expiradas aun no eliminadas.
+     * @return El numero de entradas.
+     */
+    public int getSize()
+    {
+        int size = 0;
+        for( Segment segment : segments )
+        {
+            synchronized( segment )
+            {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Devuelve el numero de aciertos.
+     * @return El numero de aciertos.
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Devuelve el numero de fallos, incluidas las entradas expiradas.
+     * @return El numero de fallos.
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Devuelve el numero de entradas expulsadas por falta de espacio.
+     * @return El numero de expulsiones.
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * Devuelve el numero de entradas eliminadas por haber expirado.
+     * @return El numero de expiraciones.
+     */
+    public long getExpirations()
+    {
+        return expirations.get();
+    }
+
+    /**
+     * Devuelve el numero de entradas eliminadas por invalidacion.
+     * @return El numero de invalidaciones.
+     */
+    public long getInvalidations()
+    {
+        return invalidations.get();
+    }
+
+    /**
+     * Devuelve el porcentaje de aciertos sobre el total de accesos, entre 0 y 1.
+     * @return El porcentaje de aciertos.
+     */
+    public double getHitRatio()
+    {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total > 0 ? (double) h / total : 0d;
+    }
+
+    /**
+     * Devuelve un resumen de las estadisticas de la cache.
+     * @return Un String con las estadisticas.
+     */
+    public String toString()
+    {
+        return "NearCache[size=" + getSize() + ", hits=" + getHits() + ", misses=" + getMisses() +
+                ", evictions=" + getEvictions() + ", expirations=" + getExpirations() +
+                ", invalidations=" + getInvalidations() + "]";
+    }
+
+    /**
+     * Obtiene el segmento de una clave.
+     * @param key La clave.
+     * @return El segmento.
+     */
+    private Segment segmentFor(String key)
+    {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Crea los segmentos repartiendo entre ellos el numero maximo de entradas.
+     * @param maxEntries El numero maximo de entradas.
+     * @return Los segmentos.
+     */
+    private Segment[] createSegments(int maxEntries)
+    {
+        Segment[] newSegments = new Segment[SEGMENTS];
+        for( int i = 0; i < SEGMENTS; i++ )
+        {
+            newSegments[i] = new Segment( maxEntries / SEGMENTS );
+        }
+        return newSegments;
+    }
+
+    /**
+     * Entrada de la cache.
+     */
+    private static final class CacheEntry
+    {
+        private final Object value;
+        private final long expiresAt;
+
+        private CacheEntry(Object value, long expiresAt)
+        {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now)
+        {
+            return now >= expiresAt;
+        }
+    }
+
+    /**
+     * Segmento LRU de la cache. Debe accederse siempre con su bloqueo.
+     */
+    private final class Segment extends LinkedHashMap<String, CacheEntry>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        private Segment(int capacity)
+        {
+            super( 16, 0.75f, true );
+            this.capacity = capacity;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest)
+        {
+            boolean remove = size() > capacity;
+            if( remove )
+            {
+                evictions.incrementAndGet();
+            }
+            return remove;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package es.onlysolutions.arq.core.cache;
+
+import es.onlysolutions.arq.core.configuration.Configuracion;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Versiones de las etiquetas de cache, guardadas como contadores en el propio ICacheProvider.<br/>
+ * Las claves de los valores cacheados incluyen la version actual de cada una de sus etiquetas, por lo que al
+ * incrementar la version de una etiqueta todos los valores que dependen de ella dejan de encontrarse, con una sola
+ * operacion atomica y sin mantener listas de dependencias, aunque varios nodos invaliden la misma etiqueta a la vez.
+ * Los valores anteriores no se vuelven a leer y la cache los descarta al expirar o al necesitar el espacio.<br/>
+ * Las versiones se guardan sin expiracion. Si la cache descarta una version, se vuelve a crear partiendo del instante
+ * actual en milisegundos, que supera a la version perdida salvo que la etiqueta se incrementara mas veces que
+ * milisegundos han pasado desde que se creo. En ese caso la version recreada podria coincidir con una anterior y
+ * volver a leerse valores ya invalidados hasta que expiren.<br/>
+ * Las versiones leidas se conservan en local durante <b>memcache.tagVersions.localTtl</b> milisegundos (1000 por
+ * defecto, 0 para no conservarlas), de forma que los valores de la cache local se encuentran sin acceder a la cache
+ * y, si esta no responde, no se crea una version nueva en cada llamada. Las invalidaciones de este nodo se aplican en
+ * local de inmediato; las de otros nodos se ven como mucho tras ese tiempo.
+ */
+public class TagVersions
+{
+    /**
+     * El logger de la clase.
+     */
+    private static final Log logger = LogFactory.getLog(TagVersions.class);
+
+    /**
+     * Prefijo de las claves bajo las que se guardan las versiones.
+     */
+    public static final String VERSION_PREFIX = "ver" + IConstantsMemcache.KEY_SEPARATOR;
+
+    /**
+     * Propiedad con los milisegundos durante los que se conservan en local las versiones leidas.
+     */
+    public static final String LOCAL_TTL = "memcache.tagVersions.localTtl";
+
+    /**
+     * Numero de versiones locales a partir del cual se descartan las expiradas.
+     */
+    private static final int MAX_LOCAL_VERSIONS = 10000;
+
+    private final ICacheProvider cacheProvider;
+
+    /**
+     * Milisegundos durante los que se conservan en local las versiones leidas. 0 si no se conservan.
+     */
+    private final long localTtl;
+
+    /**
+     * Ultimo valor inicial de version generado por este nodo.
+     */
+    private final AtomicLong lastVersion = new AtomicLong();
+
+    /**
+     * Versiones leidas recientemente, indexadas por la clave de su etiqueta.
+     */
+    private final ConcurrentMap<String, LocalVersion> localVersions = new ConcurrentHashMap<String, LocalVersion>();
+
+    /**
+     * Construye las versiones sobre el almacen de cache indicado.
+     * @param cacheProvider El almacen de cache.
+     */
+    public TagVersions(ICacheProvider cacheProvider)
+    {
+        Assert.notNull( cacheProvider, "El almacen de cache no puede ser null" );
+        this.cacheProvider = cacheProvider;
+        this.localTtl = readLocalTtl();
+    }
+
+    /**
+     * Devuelve la version actual de cada etiqueta, creando las que no existen. Las que no se conservan en local se
+     * leen con una unica lectura.
+     * @param tagKeys Las claves de las etiquetas.
+     * @return Las versiones indexadas por la clave de su etiqueta.
+     */
+    public Map<String, Long> getVersions(Collection<String> tagKeys)
+    {
+        Map<String, Long> versions = new HashMap<String, Long>( tagKeys.size() * 2 );
+        if( tagKeys.isEmpty() )
+        {
+            return versions;
+        }
+
+        long now = System.currentTimeMillis();
+        List<String> versionKeys = new ArrayList<String>( tagKeys.size() );
+        for( String tagKey : tagKeys )
+        {
+            LocalVersion local = localVersions.get( tagKey );
+            if( local != null && local.expires > now )
+            {
+                versions.put( tagKey, local.version );
+            }
+            else
+            {
+                versionKeys.add( VERSION_PREFIX + tagKey );
+            }
+        }
+
+        if( versionKeys.isEmpty() )
+        {
+            return versions;
+        }
+
+        Map<String, Object> found = cacheProvider.getBulk( versionKeys );
+        for( String versionKey : versionKeys )
+        {
+            String tagKey = versionKey.substring( VERSION_PREFIX.length() );
+            long value = toVersion( found.get( versionKey ) );
+            if( value < 0 )
+            {
+                //Si otro nodo la crea a la vez se obtiene la suya
+                value = cacheProvider.incr( versionKey, 0, nextVersion() );
+            }
+            if( value < 0 )
+            {
+                //La cache no responde: una version local que no coincide con la de ningun valor cacheado
+                value = nextVersion();
+            }
+            versions.put( tagKey, value );
+            putLocal( tagKey, value, now );
+        }
+        return versions;
+    }
+
+    /**
+     * Incrementa de forma atomica la version de una etiqueta, invalidando todos los valores cacheados que dependen de
+     * ella. Espera a que la cache confirme el incremento como maximo el TimeOut configurado (<b>memcache.timeout</b>).
+     * Aunque no se confirme, en este nodo la invalidacion se aplica en local.
+     * @param tagKey La clave de la etiqueta.
+     * @return false si no se ha podido confirmar el incremento.
+     */
+    public boolean increment(String tagKey)
+    {
+        long version = cacheProvider.incr( VERSION_PREFIX + tagKey, 1, nextVersion() );
+        if( version < 0 )
+        {
+            logger.error("No se ha podido incrementar la version de la etiqueta " + tagKey);
+            putLocal( tagKey, nextVersion(), System.currentTimeMillis() );
+            return false;
+        }
+        putLocal( tagKey, version, System.currentTimeMillis() );
+        return true;
+    }
+
+    /**
+     * Convierte el valor leido de una version, que segun el almacen es un Number o un String con su valor decimal.
+     * @param version El valor leido, o null.
+     * @return La version, o -1 si no existe o no es valida.
+     */
+    private static long toVersion(Object version)
+    {
+        if( version instanceof Number )
+        {
+            return ((Number) version).longValue();
+        }
+        if( version instanceof String )
+        {
+            try
+            {
+                return Long.parseLong( ((String) version).trim() );
+            }
+            catch (NumberFormatException e)
+            {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Genera un valor inicial de version: el instante actual en milisegundos, o el siguiente al ultimo generado si es
+     * mayor. Se usa al crear una version y, si la cache no responde, como version local que no coincide con la de
+     * ningun valor cacheado.
+     * @return El valor inicial de version.
+     */
+    private long nextVersion()
+    {
+        while( true )
+        {
+            long last = lastVersion.get();
+            long next = Math.max( System.currentTimeMillis(), last + 1 );
+            if( lastVersion.compareAndSet( last, next ) )
+            {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Conserva en local la version de una etiqueta. Si hay demasiadas versiones locales descarta antes las expiradas.
+     * @param tagKey La clave de la etiqueta.
+     * @param version La version.
+     * @param now El instante actual en milisegundos.
+     */
+    private void putLocal(String tagKey, long version, long now)
+    {
+        if( localTtl <= 0 )
+        {
+            return;
+        }
+
+        if( localVersions.size() >= MAX_LOCAL_VERSIONS )
+        {
+            for( Iterator<LocalVersion> it = localVersions.values().iterator(); it.hasNext(); )
+            {
+                if( it.next().expires <= now )
+                {
+                    it.remove();
+                }
+            }
+            if( localVersions.size() >= MAX_LOCAL_VERSIONS )
+            {
+                localVersions.clear();
+            }
+        }
+        localVersions.put( tagKey, new LocalVersion( version, now + localTtl ) );
+    }
+
+    /**
+     * Lee los milisegundos durante los que se conservan en local las versiones leidas.
+     * @return El valor de la propiedad <b>memcache.tagVersions.localTtl</b>, o 1000 si no se especifica.
+     */
+    private static long readLocalTtl()
+    {
+        try
+        {
+            Integer ttl = Configuracion.getInteger( LOCAL_TTL );
+            return ttl != null ? ttl : 1000L;
+        }
+        catch (RuntimeException e)
+        {
+            return 1000L;
+        }
+    }
+
+    /**
+     * Version conservada en local y el instante en que deja de ser valida.
+     */
+    private static final class LocalVersion
+    {
+        private final long version;
+        private final long expires;
+
+        private LocalVersion(long version, long expires)
+        {
+            this.version = version;
+            this.expires = expires;
+        }
+    }
+}
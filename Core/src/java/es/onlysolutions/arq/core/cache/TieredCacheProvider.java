@@ -0,0 +1,240 @@
+package es.onlysolutions.arq.core.cache;
+
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Almacen de cache en dos niveles: normalmente un EhcacheCacheProvider local como primer nivel y un
+ * MemcacheCacheProvider compartido como segundo nivel.<br/>
+ * Las lecturas consultan primero el primer nivel y, si no encuentran el valor, el segundo, copiando en el primero lo
+ * encontrado. Las escrituras y borrados se aplican a ambos; add, cas e incr se resuelven en el segundo nivel, que es
+ * el que comparten todos los nodos, y eliminan la clave del primero. gets lee siempre del segundo nivel.<br/>
+ * En el primer nivel los valores nunca viven mas de <i>firstLevelExpiration</i> segundos.<br/>
+ * Las versiones de las etiquetas (claves con el prefijo {@link TagVersions#VERSION_PREFIX}) se leen y escriben solo en
+ * el segundo nivel, ya que una version antigua en el primero haria devolver valores ya invalidados por otros nodos.<br/>
+ * <b>NOTA: En caso de configuracion en cluster, cada nodo tiene su propio primer nivel y solo se borra el del nodo que
+ * realiza el borrado; en el resto el valor expira por tiempo.</b>
+ */
+public class TieredCacheProvider implements ICacheProvider
+{
+    private ICacheProvider firstLevel;
+
+    private ICacheProvider secondLevel;
+
+    private int firstLevelExpiration = 60;
+
+    /**
+     * Constructor de la clase sin parametros para cumplir con el standar de JavaBean.
+     */
+    public TieredCacheProvider()
+    {
+        super();
+    }
+
+    /**
+     * Establece el almacen de primer nivel, local al proceso.
+     * @param firstLevel El almacen de primer nivel.
+     */
+    public void setFirstLevel(ICacheProvider firstLevel)
+    {
+        this.firstLevel = firstLevel;
+    }
+
+    /**
+     * Establece el almacen de segundo nivel, compartido por todos los nodos.
+     * @param secondLevel El almacen de segundo nivel.
+     */
+    public void setSecondLevel(ICacheProvider secondLevel)
+    {
+        this.secondLevel = secondLevel;
+    }
+
+    /**
+     * Establece el tiempo maximo en segundos que un valor vive en el primer nivel. Por defecto 60.
+     * @param firstLevelExpiration Los segundos.
+     */
+    public void setFirstLevelExpiration(int firstLevelExpiration)
+    {
+        Assert.isTrue( firstLevelExpiration > 0, "La expiracion del primer nivel debe ser mayor que 0" );
+        this.firstLevelExpiration = firstLevelExpiration;
+    }
+
+    public Object get(String key)
+    {
+        if( isSharedOnly( key ) )
+        {
+            return getSecondLevel().get( key );
+        }
+
+        Object value = getFirstLevel().get( key );
+        if( value == null )
+        {
+            value = getSecondLevel().get( key );
+            if( value != null )
+            {
+                getFirstLevel().set( key, value, firstLevelExpiration );
+            }
+        }
+        return value;
+    }
+
+    public Map<String, Object> getBulk(Collection<String> keys)
+    {
+        List<String> local = new ArrayList<String>( keys.size() );
+        List<String> missing = new ArrayList<String>();
+        for( String key : keys )
+        {
+            if( isSharedOnly( key ) )
+            {
+                missing.add( key );
+            }
+            else
+            {
+                local.add( key );
+            }
+        }
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        if( !local.isEmpty() )
+        {
+            values.putAll( getFirstLevel().getBulk( local ) );
+            for( String key : local )
+            {
+                if( !values.containsKey( key ) )
+                {
+                    missing.add( key );
+                }
+            }
+        }
+
+        if( !missing.isEmpty() )
+        {
+            Map<String, Object> found = getSecondLevel().getBulk( missing );
+            for( Map.Entry<String, Object> entry : found.entrySet() )
+            {
+                if( !isSharedOnly( entry.getKey() ) )
+                {
+                    getFirstLevel().set( entry.getKey(), entry.getValue(), firstLevelExpiration );
+                }
+            }
+            values.putAll( found );
+        }
+        return values;
+    }
+
+    public CacheItem gets(String key)
+    {
+        return getSecondLevel().gets( key );
+    }
+
+    public Object prepare(Object value)
+    {
+        return new PreparedValue( getFirstLevel().prepare( value ), getSecondLevel().prepare( value ) );
+    }
+
+    public Future<Boolean> set(String key, Object value, int expiration)
+    {
+        if( !isSharedOnly( key ) )
+        {
+            getFirstLevel().set( key, forFirstLevel( value ), firstLevelExpiration( expiration ) );
+        }
+        return getSecondLevel().set( key, forSecondLevel( value ), expiration );
+    }
+
+    public Future<Boolean> add(String key, Object value, int expiration)
+    {
+        getFirstLevel().delete( key );
+        return getSecondLevel().add( key, forSecondLevel( value ), expiration );
+    }
+
+    public Future<Boolean> cas(String key, long cas, Object value, int expiration)
+    {
+        getFirstLevel().delete( key );
+        return getSecondLevel().cas( key, cas, forSecondLevel( value ), expiration );
+    }
+
+    public Future<Boolean> delete(String key)
+    {
+        getFirstLevel().delete( key );
+        return getSecondLevel().delete( key );
+    }
+
+    public long incr(String key, int by, long initial)
+    {
+        getFirstLevel().delete( key );
+        return getSecondLevel().incr( key, by, initial );
+    }
+
+    /**
+     * Devuelve la expiracion para el primer nivel, limitada a <i>firstLevelExpiration</i>.
+     * @param expiration La expiracion solicitada, 0 para no expirar.
+     * @return La expiracion para el primer nivel.
+     */
+    private int firstLevelExpiration(int expiration)
+    {
+        return expiration > 0 ? Math.min( expiration, firstLevelExpiration ) : firstLevelExpiration;
+    }
+
+    /**
+     * Devuelve el valor a escribir en el primer nivel.
+     * @param value El valor, o el preparado con {@link #prepare(Object)}.
+     * @return El valor para el primer nivel.
+     */
+    private static Object forFirstLevel(Object value)
+    {
+        return value instanceof PreparedValue ? ((PreparedValue) value).first : value;
+    }
+
+    /**
+     * Devuelve el valor a escribir en el segundo nivel.
+     * @param value El valor, o el preparado con {@link #prepare(Object)}.
+     * @return El valor para el segundo nivel.
+     */
+    private static Object forSecondLevel(Object value)
+    {
+        return value instanceof PreparedValue ? ((PreparedValue) value).second : value;
+    }
+
+    /**
+     * Indica si la clave se guarda solo en el segundo nivel.
+     * @param key La clave.
+     * @return true si es la version de una etiqueta.
+     */
+    private boolean isSharedOnly(String key)
+    {
+        return key.startsWith( TagVersions.VERSION_PREFIX );
+    }
+
+    private ICacheProvider getFirstLevel()
+    {
+        Assert.notNull( firstLevel, "No se ha indicado el primer nivel de cache. Utilize la propiedad \"firstLevel\" en la configuracion del bean" );
+        return firstLevel;
+    }
+
+    private ICacheProvider getSecondLevel()
+    {
+        Assert.notNull( secondLevel, "No se ha indicado el segundo nivel de cache. Utilize la propiedad \"secondLevel\" en la configuracion del bean" );
+        return secondLevel;
+    }
+
+    /**
+     * Valor preparado por cada uno de los niveles.
+     */
+    private static final class PreparedValue
+    {
+        private final Object first;
+        private final Object second;
+
+        private PreparedValue(Object first, Object second)
+        {
+            this.first = first;
+            this.second = second;
+        }
+    }
+}
@@ -92,6 +92,44 @@ public class Configuracion
 
     }
 
+    /**
+     * Suscribe un receptor a los cambios de valor de una propiedad. Se le notifica cuando una recarga de la
+     * configuracion encuentra un valor distinto, con los valores anterior y nuevo convertidos al tipo indicado.
+     * Permite a los componentes mantener el valor ya convertido en lugar de leerlo de la configuracion en cada uso.
+     *
+     * @param propertyName El nombre de la propiedad.
+     * @param type         El tipo de los valores: String, Integer o Boolean.
+     * @param listener     El receptor.
+     */
+    public static <T> void addListener(String propertyName, Class<T> type, IConfigurationListener<T> listener)
+    {
+        GestorConfiguracion.addListener(propertyName, false, type, listener);
+    }
+
+    /**
+     * Suscribe un receptor a los cambios de valor de todas las propiedades que empiezan por el prefijo indicado,
+     * por ejemplo <b>memcache.</b>.
+     *
+     * @param prefix   El prefijo de las propiedades.
+     * @param type     El tipo de los valores: String, Integer o Boolean.
+     * @param listener El receptor.
+     * @see #addListener(String, Class, IConfigurationListener)
+     */
+    public static <T> void addPrefixListener(String prefix, Class<T> type, IConfigurationListener<T> listener)
+    {
+        GestorConfiguracion.addListener(prefix, true, type, listener);
+    }
+
+    /**
+     * Elimina todas las suscripciones de un receptor.
+     *
+     * @param listener El receptor.
+     */
+    public static void removeListener(IConfigurationListener<?> listener)
+    {
+        GestorConfiguracion.removeListener(listener);
+    }
+
     /**
      * Obtiene el nombre de la aplicacion actual.
      *
@@ -0,0 +1,106 @@
+package es.onlysolutions.arq.core.configuration;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConversionException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Copia inmutable de todas las propiedades de la configuracion en un instante dado.
+ * Los valores se resuelven al crear la copia (listas, interpolacion de variables y conversion a Integer), de forma
+ * que cada lectura posterior es una unica busqueda en un mapa, sin acceso a base de datos ni a ficheros.
+ *
+ * @see es.onlysolutions.arq.core.configuration.GestorConfiguracion
+ */
+final class ConfigurationSnapshot
+{
+    private final Map<String, String> strings;
+
+    private final Map<String, Integer> integers;
+
+    private final long timestamp;
+
+    /**
+     * Crea la copia de todas las propiedades de la configuracion indicada.
+     *
+     * @param configuration La configuracion, con los valores ya cargados en memoria.
+     */
+    ConfigurationSnapshot(Configuration configuration)
+    {
+        Map<String, String> stringValues = new HashMap<String, String>();
+        Map<String, Integer> integerValues = new HashMap<String, Integer>();
+
+        for (Iterator it = configuration.getKeys(); it.hasNext();)
+        {
+            String key = (String) it.next();
+            String value = configuration.getString(key);
+            if (value != null)
+            {
+                stringValues.put(key, value);
+                try
+                {
+                    integerValues.put(key, Integer.valueOf(value.trim()));
+                }
+                catch (NumberFormatException e)
+                {
+                    //No es un entero, solo se podra leer como String
+                }
+            }
+        }
+
+        this.strings = Collections.unmodifiableMap(stringValues);
+        this.integers = Collections.unmodifiableMap(integerValues);
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Devuelve el valor de una propiedad como String.
+     *
+     * @param propertyName El nombre de la propiedad.
+     * @return El valor, o null si la propiedad no existe.
+     */
+    String getString(String propertyName)
+    {
+        return strings.get(propertyName);
+    }
+
+    /**
+     * Devuelve el valor de una propiedad como Integer.
+     *
+     * @param propertyName El nombre de la propiedad.
+     * @return El valor, o null si la propiedad no existe.
+     * @throws ConversionException Si la propiedad existe pero no es un entero.
+     */
+    Integer getInteger(String propertyName)
+    {
+        Integer value = integers.get(propertyName);
+        if (value == null && strings.containsKey(propertyName))
+        {
+            throw new ConversionException("La propiedad: " + propertyName + " no es un Integer: " + strings.get(propertyName));
+        }
+        return value;
+    }
+
+    /**
+     * Devuelve todas las propiedades como String.
+     *
+     * @return El mapa inmutable con los valores de las propiedades.
+     */
+    Map<String, String> getStrings()
+    {
+        return strings;
+    }
+
+    /**
+     * Devuelve el instante en el que se creo la copia.
+     *
+     * @return El instante en milisegundos.
+     */
+    long getTimestamp()
+    {
+        return timestamp;
+    }
+}
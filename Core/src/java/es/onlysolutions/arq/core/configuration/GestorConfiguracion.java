@@ -3,21 +3,40 @@ package es.onlysolutions.arq.core.configuration;
 import es.onlysolutions.arq.core.configuration.exception.PropertyNotFoundException;
 import es.onlysolutions.arq.core.log.LoggerGenerator;
 import org.apache.commons.configuration.*;
+import org.apache.commons.configuration.reloading.FileChangedReloadingStrategy;
 import org.apache.commons.logging.Log;
 import org.apache.log4j.PropertyConfigurator;
 import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 
 import javax.sql.DataSource;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementacion concreta de la configuracion. Obtiene los parametros primero de la configuracion de base de datos,
  * y en caso de no existir, lo trata de obtener del fichero de configuracion.
- * En todos los motodos se lanza una PropertyNotFoundException si la propiedad no existe.
+ * En todos los motodos se lanza una PropertyNotFoundException si la propiedad no existe.<br>
+ * Las propiedades se leen de una copia inmutable de toda la configuracion, cargada con una sola consulta a la base de
+ * datos y publicada mediante una referencia volatile, por lo que las lecturas no acceden a la base de datos ni
+ * necesitan sincronizacion. La copia se recarga en segundo plano cada <i>refreshInterval</i> segundos, 60 por
+ * defecto, y al invocar la operacion resetCache del MBean de configuracion. Tras cada recarga se notifican los
+ * cambios de valor a los IConfigurationListener suscritos.
  *
  * @see es.onlysolutions.arq.core.configuration.exception.PropertyNotFoundException
  */
@@ -29,9 +48,32 @@ public class GestorConfiguracion
     private static final CompositeConfiguration compositeConfiguration = new CompositeConfiguration();
 
     /**
-     * Mapa para el cacheo de las propiedades.
+     * Copia de las propiedades con la que se atienden las lecturas. Se crea en la primera lectura si aun no existe.
      */
-    private static final Map<String,Object> cachedProperties = new HashMap<String, Object>(17);
+    private static volatile ConfigurationSnapshot snapshot;
+
+    /**
+     * Configuracion de base de datos creada por el constructor, que se carga con una sola consulta.
+     */
+    private static Configuration databaseConfiguration;
+
+    private static DataSource databaseDataSource;
+
+    private static String databaseQuery;
+
+    /**
+     * Segundos entre recargas de la configuracion.
+     */
+    private static int refreshInterval = 60;
+
+    private static ScheduledExecutorService refresher;
+
+    private static ScheduledFuture<?> refreshTask;
+
+    /**
+     * Suscripciones a los cambios de las propiedades.
+     */
+    private static final List<Subscription<?>> subscriptions = new CopyOnWriteArrayList<Subscription<?>>();
 
     /**
      * Constante que se inicializara con el nombre de la aplicacion.
@@ -72,11 +114,19 @@ public class GestorConfiguracion
         checkParam("urlLog4jPropertyFile", urlLog4jPropertyFile);
 
         Configuration databaseConfig = new DatabaseConfiguration(dataSource, table, keyColumn, valueColumn);
-        Configuration propConfig = new PropertiesConfiguration(urlPropertyFile);
+        PropertiesConfiguration propConfig = new PropertiesConfiguration(urlPropertyFile);
+        propConfig.setReloadingStrategy(new FileChangedReloadingStrategy());
 
         compositeConfiguration.addConfiguration(databaseConfig);
         compositeConfiguration.addConfiguration(propConfig);
 
+        synchronized (GestorConfiguracion.class)
+        {
+            databaseConfiguration = databaseConfig;
+            databaseDataSource = dataSource;
+            databaseQuery = "SELECT " + keyColumn + ", " + valueColumn + " FROM " + table;
+        }
+
         InputStream inLog4J = this.getClass().getResourceAsStream('/' + urlLog4jPropertyFile);
 
         if (inLog4J == null)
@@ -113,6 +163,46 @@ public class GestorConfiguracion
             logger.info("UrlLog4jPropertyFile: " + urlLog4jPropertyFile);
             logger.info("Application Name: " + applicationName);
         }
+
+        reload();
+        scheduleRefresh();
+    }
+
+    /**
+     * Establece cada cuantos segundos se recarga la configuracion en segundo plano. Por defecto 60; 0 para no
+     * recargarla salvo desde el MBean de configuracion.
+     *
+     * @param refreshInterval Los segundos entre recargas.
+     */
+    public void setRefreshInterval(int refreshInterval)
+    {
+        if (refreshInterval < 0)
+        {
+            throw new IllegalArgumentException("El intervalo de recarga de la configuracion no puede ser negativo: " + refreshInterval);
+        }
+
+        synchronized (GestorConfiguracion.class)
+        {
+            GestorConfiguracion.refreshInterval = refreshInterval;
+        }
+        scheduleRefresh();
+    }
+
+    /**
+     * Detiene la recarga en segundo plano de la configuracion. Puede indicarse como destroy-method en la
+     * configuracion de Spring.
+     */
+    public void destroy()
+    {
+        synchronized (GestorConfiguracion.class)
+        {
+            if (refresher != null)
+            {
+                refresher.shutdownNow();
+                refresher = null;
+                refreshTask = null;
+            }
+        }
     }
 
     /**
@@ -157,43 +247,243 @@ public class GestorConfiguracion
      */
     static String getString(String propertyName)
     {
-        String rVal;
+        String rVal = getSnapshot().getString(propertyName);
+        checkPropertyNotNull(propertyName, rVal);
+
+        return rVal;
+    }
+
+    /**
+     * Obtiene una propiedad de tipo Integer de la configuracion.
+     *
+     * @param propertyName El nombre de la propiedad a buscar.
+     * @return La propiedad en formato Integer.
+     */
+    static Integer getInteger(String propertyName)
+    {
+        Integer rVal = getSnapshot().getInteger(propertyName);
+        checkPropertyNotNull(propertyName, rVal);
 
-        if( cachedProperties.containsKey(propertyName) )
+        return rVal;
+    }
+
+    /**
+     * Devuelve la copia actual de las propiedades, cargandola si aun no existe.
+     *
+     * @return La copia de las propiedades.
+     */
+    static ConfigurationSnapshot getSnapshot()
+    {
+        ConfigurationSnapshot current = snapshot;
+        if (current == null)
         {
-            rVal = (String) cachedProperties.get(propertyName);
+            synchronized (GestorConfiguracion.class)
+            {
+                current = snapshot;
+                if (current == null)
+                {
+                    current = reload();
+                }
+            }
         }
-        else
+        return current;
+    }
+
+    /**
+     * Vuelve a leer todas las propiedades y publica la nueva copia. Si falla la lectura se mantiene la anterior.
+     *
+     * @return La nueva copia de las propiedades.
+     */
+    static synchronized ConfigurationSnapshot reload()
+    {
+        ConfigurationSnapshot oldSnapshot = snapshot;
+        ConfigurationSnapshot newSnapshot = new ConfigurationSnapshot(loadProperties());
+        snapshot = newSnapshot;
+
+        if (logger != null && logger.isDebugEnabled())
         {
-            rVal = compositeConfiguration.getString(propertyName);
-            checkPropertyNotNull(propertyName, rVal);
+            logger.debug("Se carga la configuracion con " + newSnapshot.getStrings().size() + " propiedades");
         }
 
+        if (oldSnapshot != null && !subscriptions.isEmpty())
+        {
+            notifyChanges(oldSnapshot.getStrings(), newSnapshot.getStrings());
+        }
 
-        return rVal;
+        return newSnapshot;
     }
 
     /**
-     * Obtiene una propiedad de tipo Integer de la configuracion.
+     * Suscribe un receptor a los cambios de una propiedad o de todas las que empiezan por un prefijo.
      *
-     * @param propertyName El nombre de la propiedad a buscar.
-     * @return La propiedad en formato Integer.
+     * @param name     El nombre de la propiedad o el prefijo.
+     * @param prefix   true si name es un prefijo.
+     * @param type     El tipo al que se convierten los valores: String, Integer o Boolean.
+     * @param listener El receptor.
      */
-    static Integer getInteger(String propertyName)
+    static <T> void addListener(String name, boolean prefix, Class<T> type, IConfigurationListener<T> listener)
+    {
+        if (name == null || listener == null)
+        {
+            throw new IllegalArgumentException("El nombre de la propiedad y el receptor no pueden ser null");
+        }
+        if (type != String.class && type != Integer.class && type != Boolean.class)
+        {
+            throw new IllegalArgumentException("Tipo no soportado para los cambios de configuracion: " + type);
+        }
+        subscriptions.add(new Subscription<T>(name, prefix, type, listener));
+    }
+
+    /**
+     * Elimina todas las suscripciones de un receptor.
+     *
+     * @param listener El receptor.
+     */
+    static void removeListener(IConfigurationListener<?> listener)
     {
-        Integer rVal;
+        for (Subscription<?> subscription : subscriptions)
+        {
+            if (subscription.listener == listener)
+            {
+                subscriptions.remove(subscription);
+            }
+        }
+    }
 
-        if( cachedProperties.containsKey(propertyName) )
+    /**
+     * Notifica a los receptores suscritos las propiedades cuyo valor ha cambiado entre dos copias.
+     * Los errores de los receptores se registran en el log sin interrumpir el resto de notificaciones.
+     *
+     * @param oldValues Los valores anteriores.
+     * @param newValues Los nuevos valores.
+     */
+    private static void notifyChanges(Map<String, String> oldValues, Map<String, String> newValues)
+    {
+        Set<String> changed = new HashSet<String>();
+        for (Map.Entry<String, String> entry : newValues.entrySet())
         {
-            rVal = (Integer) cachedProperties.get(propertyName);
+            if (!entry.getValue().equals(oldValues.get(entry.getKey())))
+            {
+                changed.add(entry.getKey());
+            }
         }
-        else
+        for (String key : oldValues.keySet())
         {
-            rVal = compositeConfiguration.getInteger(propertyName, null);
-            checkPropertyNotNull(propertyName, rVal);
+            if (!newValues.containsKey(key))
+            {
+                changed.add(key);
+            }
         }
 
-        return rVal;
+        for (String key : changed)
+        {
+            for (Subscription<?> subscription : subscriptions)
+            {
+                if (subscription.matches(key))
+                {
+                    try
+                    {
+                        subscription.notify(key, oldValues.get(key), newValues.get(key));
+                    }
+                    catch (RuntimeException e)
+                    {
+                        if (logger != null)
+                        {
+                            logger.error("Error al notificar el cambio de la propiedad: " + key, e);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Lee las propiedades de todas las configuraciones a una configuracion en memoria, respetando su prioridad: cada
+     * propiedad se toma de la primera configuracion que la contiene. La configuracion de base de datos creada por el
+     * constructor se lee con una sola consulta en lugar de una por propiedad.
+     *
+     * @return La configuracion en memoria con todas las propiedades.
+     */
+    private static Configuration loadProperties()
+    {
+        final BaseConfiguration properties = new BaseConfiguration();
+
+        for (int i = 0; i < compositeConfiguration.getNumberOfConfigurations(); i++)
+        {
+            Configuration configuration = compositeConfiguration.getConfiguration(i);
+            if (configuration == databaseConfiguration)
+            {
+                new JdbcTemplate(databaseDataSource).query(databaseQuery, new RowCallbackHandler()
+                {
+                    public void processRow(ResultSet rs) throws SQLException
+                    {
+                        String key = rs.getString(1);
+                        String value = rs.getString(2);
+                        if (key != null && value != null && !properties.containsKey(key))
+                        {
+                            properties.setProperty(key, value);
+                        }
+                    }
+                });
+            }
+            else
+            {
+                for (Iterator it = configuration.getKeys(); it.hasNext();)
+                {
+                    String key = (String) it.next();
+                    Object value = configuration.getProperty(key);
+                    if (value != null && !properties.containsKey(key))
+                    {
+                        properties.setProperty(key, value);
+                    }
+                }
+            }
+        }
+
+        return properties;
+    }
+
+    /**
+     * Programa la recarga periodica de la configuracion con el intervalo actual, sustituyendo la anterior.
+     */
+    private static synchronized void scheduleRefresh()
+    {
+        if (refreshTask != null)
+        {
+            refreshTask.cancel(false);
+            refreshTask = null;
+        }
+
+        if (refreshInterval > 0)
+        {
+            if (refresher == null)
+            {
+                refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "ConfigRefresh");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+
+            refreshTask = refresher.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        reload();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        logger.error("Error al recargar la configuracion. Se mantiene la anterior", e);
+                    }
+                }
+            }, refreshInterval, refreshInterval, TimeUnit.SECONDS);
+        }
     }
 
     /**
@@ -245,10 +535,89 @@ public class GestorConfiguracion
     }
 
     /**
-     * Borra la cache de propiedades.
+     * Vuelve a leer inmediatamente todas las propiedades, sin esperar a la siguiente recarga.
      */
     static void resetCache()
     {
-        cachedProperties.clear();
+        reload();
+    }
+
+    /**
+     * Suscripcion de un receptor a una propiedad o a un prefijo.
+     */
+    private static final class Subscription<T>
+    {
+        private final String name;
+        private final boolean prefix;
+        private final Class<T> type;
+        private final IConfigurationListener<T> listener;
+
+        private Subscription(String name, boolean prefix, Class<T> type, IConfigurationListener<T> listener)
+        {
+            this.name = name;
+            this.prefix = prefix;
+            this.type = type;
+            this.listener = listener;
+        }
+
+        private boolean matches(String key)
+        {
+            return prefix ? key.startsWith(name) : key.equals(name);
+        }
+
+        /**
+         * Convierte los valores al tipo de la suscripcion y notifica al receptor si son distintos.
+         *
+         * @param key      El nombre de la propiedad.
+         * @param oldValue El valor anterior, o null.
+         * @param newValue El nuevo valor, o null.
+         */
+        private void notify(String key, String oldValue, String newValue)
+        {
+            T oldConverted = convert(key, oldValue);
+            T newConverted = convert(key, newValue);
+            if (oldConverted == null ? newConverted != null : !oldConverted.equals(newConverted))
+            {
+                listener.propertyChanged(key, oldConverted, newConverted);
+            }
+        }
+
+        /**
+         * Convierte un valor al tipo de la suscripcion. Los Boolean son true para 'true', 'verdadero', '1' o 'si'.
+         *
+         * @param key   El nombre de la propiedad.
+         * @param value El valor, o null.
+         * @return El valor convertido, o null.
+         */
+        private T convert(String key, String value)
+        {
+            if (value == null)
+            {
+                return null;
+            }
+
+            Object converted;
+            if (type == Integer.class)
+            {
+                try
+                {
+                    converted = Integer.valueOf(value.trim());
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new ConversionException("La propiedad: " + key + " no es un Integer: " + value, e);
+                }
+            }
+            else if (type == Boolean.class)
+            {
+                String lowerValue = value.trim().toLowerCase();
+                converted = "true".equals(lowerValue) || "verdadero".equals(lowerValue) || "1".equals(lowerValue) || "si".equals(lowerValue);
+            }
+            else
+            {
+                converted = value;
+            }
+            return type.cast(converted);
+        }
     }
 }
@@ -0,0 +1,22 @@
+package es.onlysolutions.arq.core.configuration;
+
+/**
+ * Receptor de los cambios de valor de las propiedades de configuracion.
+ * Se notifica desde el Thread que recarga la configuracion, por lo que la implementacion debe ser rapida y no debe
+ * bloquearse.
+ *
+ * @param <T> El tipo al que se convierten los valores: String, Integer o Boolean.
+ * @see es.onlysolutions.arq.core.configuration.Configuracion#addListener(String, Class, IConfigurationListener)
+ * @see es.onlysolutions.arq.core.configuration.Configuracion#addPrefixListener(String, Class, IConfigurationListener)
+ */
+public interface IConfigurationListener<T>
+{
+    /**
+     * Notifica el cambio de valor de una propiedad.
+     *
+     * @param propertyName El nombre de la propiedad.
+     * @param oldValue     El valor anterior, o null si la propiedad no existia.
+     * @param newValue     El nuevo valor, o null si la propiedad ya no existe.
+     */
+    public void propertyChanged(String propertyName, T oldValue, T newValue);
+}
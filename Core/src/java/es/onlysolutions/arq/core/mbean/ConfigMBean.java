@@ -7,7 +7,7 @@ package es.onlysolutions.arq.core.mbean;
 public interface ConfigMBean
 {
     /**
-     * Limpia la cache completamente de propiedades de forma que se vuelvan a leer de nuevo.
+     * Vuelve a leer inmediatamente todas las propiedades, sin esperar a la siguiente recarga periodica.
      * @return Un String con el mensaje de la operacion.
      */
     public String resetCache();
@@ -0,0 +1,50 @@
+package es.onlysolutions.arq.core.mbean;
+
+import java.util.List;
+
+/**
+ * MBean con el estado de las tareas en segundo plano, tanto las del TaskScheduler como los InternalTask registrados
+ * en el InternalTaskManager.
+ * <b>NOTA: En caso de configuracion en cluster, cada nodo muestra solo sus propias tareas.</b>
+ */
+public interface TaskMonitorMBean
+{
+    /**
+     * Obtiene el resumen de todas las tareas: estado del circuito, ejecuciones correctas y fallidas, duracion y
+     * retraso de inicio.
+     *
+     * @return Un listado con la representacion de cada tarea.
+     */
+    public List<String> getTasks();
+
+    /**
+     * Obtiene el resumen de las tareas cuya ultima ejecucion fallo o cuyo circuito no esta cerrado.
+     *
+     * @return Un listado con la representacion de cada tarea con fallos.
+     */
+    public List<String> getFailingTasks();
+
+    /**
+     * Obtiene el detalle de una tarea: ultima ejecucion, ultimo error e histograma de duraciones.
+     *
+     * @param taskName El nombre de la tarea.
+     * @return El detalle de la tarea.
+     */
+    public String getTaskDetail(String taskName);
+
+    /**
+     * Cierra el circuito de una tarea del TaskScheduler y la ejecuta inmediatamente si estaba esperando.
+     *
+     * @param taskName El nombre de la tarea.
+     * @return Un String con el mensaje de la operacion.
+     */
+    public String resetCircuit(String taskName);
+
+    /**
+     * Cancela una tarea del TaskScheduler.
+     *
+     * @param taskName El nombre de la tarea.
+     * @return Un String con el mensaje de la operacion.
+     */
+    public String cancelTask(String taskName);
+}
@@ -250,6 +250,9 @@ public class GlobalController extends SimpleFormController
      * Se intercepta todas las llamadas al controlador y se comprueba au autenticacion. En caso de
      * ser valida se continua con la ejecucion normal, y si no es asi se redirige a una pantalla de
      * error de autorizacion.
+     * Al empezar se elimina el usuario que pudiera haber dejado en el Thread una peticion anterior. Al terminar se
+     * mantiene, ya que la vista se renderiza despues y puede invocar Facades securizados; lo elimina
+     * UserManagerInterceptor tras el renderizado.
      *
      * @param request             El HttpServletRequest de la peticion.
      * @param httpServletResponse El HttpServletResponse de la peticion.
@@ -259,6 +262,8 @@ public class GlobalController extends SimpleFormController
     @Override
     protected ModelAndView handleRequestInternal(HttpServletRequest request, HttpServletResponse httpServletResponse) throws Exception
     {
+        UserManager.instance().clear();
+
         ModelAndView result;
 
         if (authenticationEnabled)
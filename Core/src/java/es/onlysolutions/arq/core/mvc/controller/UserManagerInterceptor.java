@@ -0,0 +1,33 @@
+package es.onlysolutions.arq.core.mvc.controller;
+
+import es.onlysolutions.arq.core.auth.UserManager;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Interceptor que elimina el usuario del UserManager al terminar cada peticion, una vez renderizada la vista, para
+ * que no quede en el Thread del contenedor. El usuario sigue disponible durante el renderizado, por lo que las vistas
+ * pueden invocar Facades securizados.<br/>
+ * Debe declararse en la propiedad <i>interceptors</i> de los HandlerMapping de la aplicacion.
+ *
+ * @see GlobalController
+ */
+public class UserManagerInterceptor extends HandlerInterceptorAdapter
+{
+    /**
+     * Elimina el usuario del Thread actual tras renderizar la vista, tambien si la peticion ha terminado con error.
+     *
+     * @param request   El HttpServletRequest de la peticion.
+     * @param response  El HttpServletResponse de la peticion.
+     * @param handler   El controller que ha atendido la peticion.
+     * @param exception La excepcion de la peticion, o null si ha terminado correctamente.
+     * @throws Exception No se lanza.
+     */
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception exception) throws Exception
+    {
+        UserManager.instance().clear();
+    }
+}
@@ -2,13 +2,15 @@ package es.onlysolutions.arq.core.mvc.tag;
 
 
 import es.onlysolutions.arq.core.auth.IUserSettings;
+import es.onlysolutions.arq.core.auth.PermissionExpression;
 
 import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.tagext.BodyTagSupport;
-import java.util.StringTokenizer;
 
 /**
  * Tag para procesar el contenido en caso de tener el permiso indicado.
+ * Los permisos se evaluan mediante una PermissionExpression precompilada, que sobre un AbstractUserSettings solo
+ * comprueba bits. Cada permiso de la lista puede negarse con el prefijo '!'.
  */
 public class HasPermissionTag extends BodyTagSupport
 {
@@ -34,6 +36,11 @@ public class HasPermissionTag extends BodyTagSupport
      */
     private String evaluationCondition = "AND";
 
+    /**
+     * Expresion compilada de los atributos actuales, o null si aun no se ha compilado.
+     */
+    private PermissionExpression expression;
+
 
     /**
      * Getter for property 'evaluationCondition'.
@@ -55,6 +62,7 @@ public class HasPermissionTag extends BodyTagSupport
     public void setEvaluationCondition(String evaluationCondition)
     {
         this.evaluationCondition = evaluationCondition;
+        this.expression = null;
     }
 
     /**
@@ -75,6 +83,7 @@ public class HasPermissionTag extends BodyTagSupport
     public void setNotHasPermission(Boolean notHasPermission)
     {
         this.notHasPermission = notHasPermission;
+        this.expression = null;
     }
 
     /**
@@ -95,6 +104,7 @@ public class HasPermissionTag extends BodyTagSupport
     public void setPermission(String permission)
     {
         this.permission = permission;
+        this.expression = null;
     }
 
     /**
@@ -112,89 +122,52 @@ public class HasPermissionTag extends BodyTagSupport
 
         if (objUserSettings instanceof IUserSettings)
         {
-            IUserSettings userSettings = (IUserSettings) objUserSettings;
-
-            //Tratamos en caso de que haya mas de un permiso indicado.
-            String permissions = getPermission();
-            if (permissions.indexOf(TOKEN) == -1)
-            {
-                if (validarPermiso(userSettings, permissions))
-                {
-                    bodyTreatment = EVAL_BODY_INCLUDE;
-                }
-            }
-            else //Contiene el token, luego tenemos mas de un permiso.
+            if (getExpression().evaluate((IUserSettings) objUserSettings))
             {
-                if ("OR".equalsIgnoreCase(getEvaluationCondition()))
-                {
-                    boolean tieneAlMenosUno = false;
-                    StringTokenizer st = new StringTokenizer(permissions, TOKEN);
-
-                    while (st.hasMoreTokens() && !tieneAlMenosUno)
-                    {
-                        String unPermiso = st.nextToken();
-                        tieneAlMenosUno = validarPermiso(userSettings, unPermiso);
-                        if (tieneAlMenosUno)
-                        {
-                            bodyTreatment = EVAL_BODY_INCLUDE;
-                        }
-                    }
-                }
-                else if ("AND".equalsIgnoreCase(getEvaluationCondition()))
-                {
-                    boolean tieneTodos = true;
-                    StringTokenizer st = new StringTokenizer(permissions, TOKEN);
-
-                    while (st.hasMoreTokens() && tieneTodos)
-                    {
-                        String unPermiso = st.nextToken();
-                        if (!validarPermiso(userSettings, unPermiso))
-                        {
-                            tieneTodos = false;
-                        }
-                    }
-
-                    if (tieneTodos)
-                    {
-                        bodyTreatment = EVAL_BODY_INCLUDE;
-                    }
-                }
-                else //Se ha indicado un valor distinto de AND u OR.
-                {
-                    throw new JspException("Se debe indicar un valor OR o AND en el atributo 'evaluationCondition'");
-                }
+                bodyTreatment = EVAL_BODY_INCLUDE;
             }
-
         }
 
         return bodyTreatment;
     }
 
     /**
-     * Valida si el usuario tiene el permiso indicado.
+     * Libera el estado del tag antes de devolverlo al pool.
+     */
+    @Override
+    public void release()
+    {
+        super.release();
+        permission = null;
+        notHasPermission = null;
+        evaluationCondition = "AND";
+        expression = null;
+    }
+
+    /**
+     * Devuelve la expresion compilada de los atributos del tag. La expresion se guarda en el tag y solo se vuelve a
+     * obtener cuando cambia alguno de sus atributos.
      *
-     * @param userSettings El objeto IUserSettings.
-     * @param permissions  El permiso a validar.
-     * @return true si tiene el permiso.
+     * @return La expresion de permisos a evaluar.
+     * @throws JspException Si se indica mas de un permiso y evaluationCondition no es AND ni OR.
      */
-    private boolean validarPermiso(IUserSettings userSettings, String permissions)
+    private PermissionExpression getExpression() throws JspException
     {
-        boolean result = false;
-        if (userSettings.hasPermission(permissions))
+        if (expression != null)
         {
-            //Si tiene el permiso, y se indica a false la verficiacion de que no tenga permiso
-            if (Boolean.FALSE.equals(getNotHasPermission()) || getNotHasPermission() == null)
-            {
-                result = true;
-            }
+            return expression;
         }
-        else if (Boolean.TRUE.equals(getNotHasPermission()))
+
+        String permissions = getPermission();
+        boolean or = "OR".equalsIgnoreCase(getEvaluationCondition());
+
+        //Tratamos en caso de que haya mas de un permiso indicado.
+        if (permissions.indexOf(TOKEN) != -1 && !or && !"AND".equalsIgnoreCase(getEvaluationCondition()))
         {
-            //No se tiene el permiso indicado, pero se indica a true el flag notHasPermission.
-            result = true;
+            throw new JspException("Se debe indicar un valor OR o AND en el atributo 'evaluationCondition'");
         }
-        return result;
-    }
-
 
+        expression = PermissionExpression.compile(permissions, or, Boolean.TRUE.equals(getNotHasPermission()));
+        return expression;
+    }
 }
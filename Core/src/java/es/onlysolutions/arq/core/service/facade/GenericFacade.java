@@ -3,6 +3,7 @@ package es.onlysolutions.arq.core.service.facade;
 import es.onlysolutions.arq.core.accesobd.GenericHbDao;
 import es.onlysolutions.arq.core.accesobd.IConstanstAccesoDatos;
 import es.onlysolutions.arq.core.accesobd.IEntityId;
+import es.onlysolutions.arq.core.aop.MemcacheGetAdvice;
 import es.onlysolutions.arq.core.configuration.Configuracion;
 import es.onlysolutions.arq.core.log.LoggerGenerator;
 import es.onlysolutions.arq.core.service.utils.EntityUtils;
@@ -11,6 +12,13 @@ import org.displaytag.pagination.PaginatedList;
 import org.springframework.util.Assert;
 
 import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Facade genérico de la arquitectura. Realiza las operaciones genericas definidas por la arquitectura, que son:<br>
@@ -26,11 +34,36 @@ public abstract class GenericFacade
      */
     protected final Log logger = LoggerGenerator.getLogger(this.getClass());
 
+    /**
+     * Etiquetas de cache de los metodos de lectura, con el formato de MemcacheGetAdvice#setMethodTags: <b>{clase}#{id}</b>
+     * para get, load y cargar, y <b>{clase}</b> para list y export. Son las que invalida
+     * MemcacheGetAdvice#invalidateEntity al modificar una entidad. Se registran en el aspecto indicado con
+     * {@link #setCacheAdvice(MemcacheGetAdvice)}, y pueden declararse tambien en su propiedad <i>methodTags</i>.
+     */
+    public static final Map<String, String> CACHE_METHOD_TAGS;
+
+    static
+    {
+        String facade = GenericFacade.class.getName() + ".";
+        Map<String, String> tags = new HashMap<String, String>();
+        tags.put(facade + "get", "{0}#{1}");
+        tags.put(facade + "load", "{0}#{1}");
+        tags.put(facade + "cargar", "{0}");
+        tags.put(facade + "list", "{0}");
+        tags.put(facade + "export", "{0}");
+        CACHE_METHOD_TAGS = Collections.unmodifiableMap(tags);
+    }
+
     /**
      * Instancia del generic dao para llamada a los metodos genericos.
      */
     private GenericHbDao daoHb;
 
+    /**
+     * Aspecto de cache con el que se cachea el metodo get, si se ha configurado.
+     */
+    private MemcacheGetAdvice cacheAdvice;
+
 
     public GenericHbDao getDaoHb()
     {
@@ -47,6 +80,24 @@ public abstract class GenericFacade
         this.daoHb = daoHb;
     }
 
+    /**
+     * Establece el aspecto de cache con el que se cachean los metodos de lectura de este facade, para que getAll
+     * consulte y rellene la cache bajo las mismas claves que get. Registra en el aspecto las etiquetas por defecto
+     * de los metodos de lectura. Es opcional.
+     *
+     * @param cacheAdvice El aspecto de cache.
+     * @see #getAll(Class, java.util.List)
+     * @see #CACHE_METHOD_TAGS
+     */
+    public void setCacheAdvice(MemcacheGetAdvice cacheAdvice)
+    {
+        this.cacheAdvice = cacheAdvice;
+        if (cacheAdvice != null)
+        {
+            cacheAdvice.addDefaultMethodTags(CACHE_METHOD_TAGS);
+        }
+    }
+
     /**
      * Devuelve la entidad con los datos rellenos. Obtiene la primary key de la endidad y realiza un load para rellenarla.
      *
@@ -213,4 +264,92 @@ public abstract class GenericFacade
     {
         return this.daoHb.get(entityClass, pk);
     }
+
+    /**
+     * Realiza un get de varias entidades de la misma clase, evitando una consulta por entidad en los listados que
+     * muestran entidades relacionadas.<br>
+     * Si se ha configurado el aspecto de cache, primero se buscan todas en cache con una sola operacion, bajo las
+     * mismas claves con las que el aspecto cachea el metodo get de la clase de este facade, aunque la subclase lo
+     * sobrescriba o se invoque a traves de una interfaz. Las que faltan se cargan de la base de datos con una sola
+     * consulta IN (...) y se ponen en cache, por lo que un get sobrescrito debe devolver la misma entidad.<br>
+     * Este metodo no debe incluirse en los metodos cacheados por el aspecto.
+     *
+     * @param entityClass La clase de las entidades a cargar.
+     * @param pks         Las claves principales de las entidades a cargar.
+     * @return Las entidades en el mismo orden que las claves, con null para las que no se encuentran.
+     * @see #get(Class,java.io.Serializable)
+     * @see es.onlysolutions.arq.core.accesobd.AbstractHibernateDao#getAll(Class,java.util.Collection)
+     */
+    public List<Object> getAll(Class entityClass, List<? extends Serializable> pks)
+    {
+        Assert.notNull(this.daoHb, "No se ha configurado un genericHbDao bajo el atributo 'daoHb' para el facade: " + getClass().getName() + ", revise la configuracion del facade.xml");
+
+        List<Object[]> argumentsList = new ArrayList<Object[]>(pks.size());
+        for (Serializable pk : pks)
+        {
+            argumentsList.add(new Object[]{entityClass, pk});
+        }
+
+        String[] keys = this.cacheAdvice != null ? this.cacheAdvice.getKeys(getClass(), getGetMethod(), argumentsList) : null;
+        Object[] results = keys != null ? this.cacheAdvice.getAll(keys) : new Object[pks.size()];
+
+        List<Serializable> missing = new ArrayList<Serializable>();
+        for (int i = 0; i < results.length; i++)
+        {
+            if (results[i] == null)
+            {
+                missing.add(pks.get(i));
+            }
+        }
+
+        if (!missing.isEmpty())
+        {
+            Map<Serializable, Object> loaded = this.daoHb.getAll(entityClass, missing);
+
+            List<String> loadedKeys = new ArrayList<String>(loaded.size());
+            List<Object> loadedResults = new ArrayList<Object>(loaded.size());
+            for (int i = 0; i < results.length; i++)
+            {
+                if (results[i] == null)
+                {
+                    results[i] = loaded.get(pks.get(i));
+                    if (results[i] != null && keys != null)
+                    {
+                        loadedKeys.add(keys[i]);
+                        loadedResults.add(results[i]);
+                    }
+                }
+            }
+
+            if (keys != null)
+            {
+                this.cacheAdvice.putAll(loadedKeys.toArray(new String[loadedKeys.size()]), loadedResults.toArray());
+            }
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Obtenemos " + pks.size() + " entidades " + entityClass.getName() + ", " + missing.size() + " de la base de datos");
+        }
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Devuelve el metodo get declarado en GenericFacade, que el aspecto de cache resuelve a la implementacion de
+     * la clase de cada facade para obtener las claves que comparte getAll.
+     *
+     * @return El metodo get.
+     */
+    private static Method getGetMethod()
+    {
+        try
+        {
+            return GenericFacade.class.getMethod("get", Class.class, Serializable.class);
+        }
+        catch (NoSuchMethodException e)
+        {
+            throw new IllegalStateException("No se encuentra el metodo get en " + GenericFacade.class.getName(), e);
+        }
+    }
 }
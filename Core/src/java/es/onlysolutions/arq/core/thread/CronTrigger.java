@@ -0,0 +1,309 @@
+package es.onlysolutions.arq.core.thread;
+
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.StringTokenizer;
+import java.util.TimeZone;
+
+/**
+ * Ejecuta la tarea en los instantes definidos por una expresion cron, evaluada en la zona horaria por defecto.<br/>
+ * La expresion tiene 5 campos separados por espacios: minuto (0-59), hora (0-23), dia del mes (1-31), mes (1-12) y
+ * dia de la semana (0-7, siendo 0 y 7 el domingo). Opcionalmente puede indicarse un sexto campo inicial con los
+ * segundos (0-59). Cada campo admite '*', '?', valores, rangos 'a-b', listas separadas por comas y pasos '/n'.<br/>
+ * Como en cron, si se restringen tanto el dia del mes como el de la semana basta con que se cumpla uno de ellos.<br/>
+ * Ejemplo: <b>0 2 * * 1-5</b> ejecuta la tarea a las 2:00 de lunes a viernes.
+ */
+public class CronTrigger implements ITrigger
+{
+    /**
+     * Numero maximo de dias que se buscan hacia delante. Una expresion sin ninguna fecha valida (por ejemplo el 30 de
+     * febrero) no vuelve a ejecutarse.
+     */
+    private static final int MAX_SEARCH_DAYS = 366 * 5;
+
+    private final String expression;
+
+    private final TimeZone timeZone;
+
+    private final BitSet seconds;
+
+    private final BitSet minutes;
+
+    private final BitSet hours;
+
+    private final BitSet daysOfMonth;
+
+    private final BitSet months;
+
+    private final BitSet daysOfWeek;
+
+    private final boolean daysOfMonthRestricted;
+
+    private final boolean daysOfWeekRestricted;
+
+    /**
+     * Crea el trigger con la expresion cron indicada.
+     *
+     * @param expression La expresion cron.
+     * @throws IllegalArgumentException Si la expresion no es valida.
+     */
+    public CronTrigger(String expression)
+    {
+        this(expression, TimeZone.getDefault());
+    }
+
+    /**
+     * Crea el trigger con la expresion cron y la zona horaria indicadas.
+     *
+     * @param expression La expresion cron.
+     * @param timeZone   La zona horaria en la que se evalua la expresion.
+     * @throws IllegalArgumentException Si la expresion no es valida.
+     */
+    public CronTrigger(String expression, TimeZone timeZone)
+    {
+        this.expression = expression;
+        this.timeZone = timeZone;
+
+        String[] fields = expression.trim().split("\\s+");
+        if (fields.length != 5 && fields.length != 6)
+        {
+            throw new IllegalArgumentException("La expresion cron debe tener 5 o 6 campos: " + expression);
+        }
+
+        int i = 0;
+        this.seconds = fields.length == 6 ? parseField(fields[i++], 0, 59) : parseField("0", 0, 59);
+        this.minutes = parseField(fields[i++], 0, 59);
+        this.hours = parseField(fields[i++], 0, 23);
+        this.daysOfMonthRestricted = !isWildcard(fields[i]);
+        this.daysOfMonth = parseField(fields[i++], 1, 31);
+        this.months = parseField(fields[i++], 1, 12);
+        this.daysOfWeekRestricted = !isWildcard(fields[i]);
+        this.daysOfWeek = parseField(fields[i], 0, 7);
+
+        //El domingo puede indicarse como 0 o como 7
+        if (this.daysOfWeek.get(7))
+        {
+            this.daysOfWeek.set(0);
+        }
+    }
+
+    /**
+     * Devuelve el primer instante que cumple la expresion posterior al actual.
+     *
+     * @param now El instante actual en milisegundos.
+     * @return El instante de la primera ejecucion en milisegundos, o -1 si no hay ninguno.
+     */
+    public long getFirstExecutionTime(long now)
+    {
+        return nextMatch(now);
+    }
+
+    /**
+     * Devuelve el primer instante que cumple la expresion posterior a la ultima ejecucion, sin recuperar las
+     * ejecuciones perdidas mientras se ejecutaba la anterior.
+     *
+     * @param lastScheduledTime  El instante en el que estaba planificada la ultima ejecucion.
+     * @param lastCompletionTime El instante en el que termino la ultima ejecucion.
+     * @return El instante de la siguiente ejecucion en milisegundos, o -1 si no hay ninguno.
+     */
+    public long getNextExecutionTime(long lastScheduledTime, long lastCompletionTime)
+    {
+        return nextMatch(Math.max(lastScheduledTime, lastCompletionTime));
+    }
+
+    /**
+     * Busca el primer instante, con precision de segundos, posterior al indicado que cumple la expresion.
+     *
+     * @param after El instante a partir del cual buscar.
+     * @return El instante encontrado en milisegundos, o -1 si no hay ninguno.
+     */
+    private long nextMatch(long after)
+    {
+        Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.setTimeInMillis(after);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.SECOND, 1);
+
+        Calendar limit = (Calendar) calendar.clone();
+        limit.add(Calendar.DAY_OF_MONTH, MAX_SEARCH_DAYS);
+
+        while (calendar.before(limit))
+        {
+            if (!months.get(calendar.get(Calendar.MONTH) + 1))
+            {
+                calendar.add(Calendar.MONTH, 1);
+                calendar.set(Calendar.DAY_OF_MONTH, 1);
+                resetTime(calendar, Calendar.HOUR_OF_DAY);
+            }
+            else if (!matchesDay(calendar))
+            {
+                calendar.add(Calendar.DAY_OF_MONTH, 1);
+                resetTime(calendar, Calendar.HOUR_OF_DAY);
+            }
+            else if (!hours.get(calendar.get(Calendar.HOUR_OF_DAY)))
+            {
+                calendar.add(Calendar.HOUR_OF_DAY, 1);
+                resetTime(calendar, Calendar.MINUTE);
+            }
+            else if (!minutes.get(calendar.get(Calendar.MINUTE)))
+            {
+                calendar.add(Calendar.MINUTE, 1);
+                resetTime(calendar, Calendar.SECOND);
+            }
+            else if (!seconds.get(calendar.get(Calendar.SECOND)))
+            {
+                calendar.add(Calendar.SECOND, 1);
+            }
+            else
+            {
+                return calendar.getTimeInMillis();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Comprueba si el dia del calendario cumple las condiciones de dia del mes y dia de la semana.
+     *
+     * @param calendar El calendario.
+     * @return true si el dia cumple la expresion.
+     */
+    private boolean matchesDay(Calendar calendar)
+    {
+        boolean dayOfMonth = daysOfMonth.get(calendar.get(Calendar.DAY_OF_MONTH));
+        boolean dayOfWeek = daysOfWeek.get(calendar.get(Calendar.DAY_OF_WEEK) - 1);
+        if (daysOfMonthRestricted && daysOfWeekRestricted)
+        {
+            return dayOfMonth || dayOfWeek;
+        }
+        return dayOfMonth && dayOfWeek;
+    }
+
+    /**
+     * Pone a cero los campos de la hora desde el indicado.
+     *
+     * @param calendar El calendario.
+     * @param from     El primer campo a poner a cero: HOUR_OF_DAY, MINUTE o SECOND.
+     */
+    private static void resetTime(Calendar calendar, int from)
+    {
+        if (from == Calendar.HOUR_OF_DAY)
+        {
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+        }
+        if (from == Calendar.HOUR_OF_DAY || from == Calendar.MINUTE)
+        {
+            calendar.set(Calendar.MINUTE, 0);
+        }
+        calendar.set(Calendar.SECOND, 0);
+    }
+
+    /**
+     * Comprueba si el campo no restringe ningun valor.
+     *
+     * @param field El campo de la expresion.
+     * @return true si el campo es '*' o '?'.
+     */
+    private static boolean isWildcard(String field)
+    {
+        return "*".equals(field) || "?".equals(field);
+    }
+
+    /**
+     * Traduce un campo de la expresion a los valores que acepta.
+     *
+     * @param field El campo de la expresion.
+     * @param min   El valor minimo del campo.
+     * @param max   El valor maximo del campo.
+     * @return Los valores aceptados.
+     * @throws IllegalArgumentException Si el campo no es valido.
+     */
+    private static BitSet parseField(String field, int min, int max)
+    {
+        BitSet values = new BitSet(max + 1);
+        StringTokenizer st = new StringTokenizer(field, ",");
+        if (!st.hasMoreTokens())
+        {
+            throw new IllegalArgumentException("Campo de la expresion cron vacio: " + field);
+        }
+
+        while (st.hasMoreTokens())
+        {
+            String part = st.nextToken();
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash != -1)
+            {
+                step = parseValue(part.substring(slash + 1), 1, max);
+                part = part.substring(0, slash);
+            }
+
+            int from;
+            int to;
+            int dash = part.indexOf('-');
+            if (isWildcard(part))
+            {
+                from = min;
+                to = max;
+            }
+            else if (dash != -1)
+            {
+                from = parseValue(part.substring(0, dash), min, max);
+                to = parseValue(part.substring(dash + 1), min, max);
+            }
+            else
+            {
+                from = parseValue(part, min, max);
+                to = slash != -1 ? max : from;
+            }
+
+            if (from > to)
+            {
+                throw new IllegalArgumentException("Rango no valido en la expresion cron: " + part);
+            }
+
+            for (int value = from; value <= to; value += step)
+            {
+                values.set(value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Traduce un valor numerico de la expresion, comprobando sus limites.
+     *
+     * @param value El valor.
+     * @param min   El valor minimo.
+     * @param max   El valor maximo.
+     * @return El valor numerico.
+     * @throws IllegalArgumentException Si el valor no es un numero entre los limites.
+     */
+    private static int parseValue(String value, int min, int max)
+    {
+        try
+        {
+            int result = Integer.parseInt(value.trim());
+            if (result < min || result > max)
+            {
+                throw new IllegalArgumentException("Valor fuera de rango [" + min + "-" + max + "] en la expresion cron: " + value);
+            }
+            return result;
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Valor no numerico en la expresion cron: " + value, e);
+        }
+    }
+
+    /**
+     * Devuelve la descripcion del trigger.
+     *
+     * @return La descripcion del trigger.
+     */
+    @Override
+    public String toString()
+    {
+        return "cron(" + expression + ")";
+    }
+}
@@ -0,0 +1,61 @@
+package es.onlysolutions.arq.core.thread;
+
+/**
+ * Ejecuta la tarea con un retardo fijo entre el final de una ejecucion y el inicio de la siguiente.
+ */
+public class FixedDelayTrigger implements ITrigger
+{
+    private final long initialDelay;
+
+    private final long delay;
+
+    /**
+     * Crea el trigger con el retardo inicial y el retardo entre ejecuciones indicados.
+     *
+     * @param initialDelay El retardo de la primera ejecucion en milisegundos.
+     * @param delay        El retardo entre el final de una ejecucion y el inicio de la siguiente en milisegundos.
+     */
+    public FixedDelayTrigger(long initialDelay, long delay)
+    {
+        if (delay < 0)
+        {
+            throw new IllegalArgumentException("El retardo no puede ser negativo: " + delay);
+        }
+        this.initialDelay = Math.max(0, initialDelay);
+        this.delay = delay;
+    }
+
+    /**
+     * Devuelve el instante actual mas el retardo inicial.
+     *
+     * @param now El instante actual en milisegundos.
+     * @return El instante de la primera ejecucion en milisegundos.
+     */
+    public long getFirstExecutionTime(long now)
+    {
+        return now + initialDelay;
+    }
+
+    /**
+     * Devuelve el final de la ultima ejecucion mas el retardo.
+     *
+     * @param lastScheduledTime  El instante en el que estaba planificada la ultima ejecucion.
+     * @param lastCompletionTime El instante en el que termino la ultima ejecucion.
+     * @return El instante de la siguiente ejecucion en milisegundos.
+     */
+    public long getNextExecutionTime(long lastScheduledTime, long lastCompletionTime)
+    {
+        return lastCompletionTime + delay;
+    }
+
+    /**
+     * Devuelve la descripcion del trigger.
+     *
+     * @return La descripcion del trigger.
+     */
+    @Override
+    public String toString()
+    {
+        return "fixedDelay(" + delay + "ms)";
+    }
+}
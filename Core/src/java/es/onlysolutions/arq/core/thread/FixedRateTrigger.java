@@ -0,0 +1,64 @@
+package es.onlysolutions.arq.core.thread;
+
+/**
+ * Ejecuta la tarea con un periodo fijo, medido entre los inicios de las ejecuciones.
+ * Si una ejecucion dura mas que el periodo, la siguiente comienza al terminar la anterior, sin acumular las
+ * ejecuciones perdidas. Nunca se ejecutan a la vez dos ejecuciones de la misma tarea.
+ */
+public class FixedRateTrigger implements ITrigger
+{
+    private final long initialDelay;
+
+    private final long period;
+
+    /**
+     * Crea el trigger con el retardo inicial y el periodo indicados.
+     *
+     * @param initialDelay El retardo de la primera ejecucion en milisegundos.
+     * @param period       El periodo entre ejecuciones en milisegundos. Debe ser mayor que 0.
+     */
+    public FixedRateTrigger(long initialDelay, long period)
+    {
+        if (period <= 0)
+        {
+            throw new IllegalArgumentException("El periodo debe ser mayor que 0: " + period);
+        }
+        this.initialDelay = Math.max(0, initialDelay);
+        this.period = period;
+    }
+
+    /**
+     * Devuelve el instante actual mas el retardo inicial.
+     *
+     * @param now El instante actual en milisegundos.
+     * @return El instante de la primera ejecucion en milisegundos.
+     */
+    public long getFirstExecutionTime(long now)
+    {
+        return now + initialDelay;
+    }
+
+    /**
+     * Devuelve el instante planificado de la ultima ejecucion mas el periodo, o el final de la ultima ejecucion si
+     * es posterior.
+     *
+     * @param lastScheduledTime  El instante en el que estaba planificada la ultima ejecucion.
+     * @param lastCompletionTime El instante en el que termino la ultima ejecucion.
+     * @return El instante de la siguiente ejecucion en milisegundos.
+     */
+    public long getNextExecutionTime(long lastScheduledTime, long lastCompletionTime)
+    {
+        return Math.max(lastScheduledTime + period, lastCompletionTime);
+    }
+
+    /**
+     * Devuelve la descripcion del trigger.
+     *
+     * @return La descripcion del trigger.
+     */
+    @Override
+    public String toString()
+    {
+        return "fixedRate(" + period + "ms)";
+    }
+}
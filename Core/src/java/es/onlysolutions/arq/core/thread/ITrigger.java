@@ -0,0 +1,28 @@
+package es.onlysolutions.arq.core.thread;
+
+/**
+ * Define los instantes en los que el TaskScheduler ejecuta una tarea.
+ *
+ * @see es.onlysolutions.arq.core.thread.FixedRateTrigger
+ * @see es.onlysolutions.arq.core.thread.FixedDelayTrigger
+ * @see es.onlysolutions.arq.core.thread.CronTrigger
+ */
+public interface ITrigger
+{
+    /**
+     * Devuelve el instante de la primera ejecucion de la tarea.
+     *
+     * @param now El instante actual en milisegundos.
+     * @return El instante de la primera ejecucion en milisegundos, o -1 si la tarea no debe ejecutarse.
+     */
+    public long getFirstExecutionTime(long now);
+
+    /**
+     * Devuelve el instante de la siguiente ejecucion de la tarea, una vez terminada la anterior.
+     *
+     * @param lastScheduledTime  El instante en el que estaba planificada la ultima ejecucion.
+     * @param lastCompletionTime El instante en el que termino la ultima ejecucion.
+     * @return El instante de la siguiente ejecucion en milisegundos, o -1 si la tarea no debe ejecutarse mas.
+     */
+    public long getNextExecutionTime(long lastScheduledTime, long lastCompletionTime);
+}
@@ -0,0 +1,122 @@
+package es.onlysolutions.arq.core.thread;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rango de ids, con ambos extremos incluidos, que sirve como particion de un PartitionedTask.
+ */
+public final class IdRange implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final long from;
+
+    private final long to;
+
+    /**
+     * Crea el rango indicado.
+     *
+     * @param from El primer id del rango.
+     * @param to   El ultimo id del rango.
+     */
+    public IdRange(long from, long to)
+    {
+        if (from > to)
+        {
+            throw new IllegalArgumentException("Rango de ids no valido: " + from + "-" + to);
+        }
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Divide los ids entre el minimo y el maximo indicados en rangos consecutivos del tamaño indicado.
+     *
+     * @param minId El primer id.
+     * @param maxId El ultimo id.
+     * @param size  El numero de ids de cada rango. El ultimo puede tener menos.
+     * @return Los rangos, vacio si minId es mayor que maxId.
+     */
+    public static List<IdRange> split(long minId, long maxId, long size)
+    {
+        if (size <= 0)
+        {
+            throw new IllegalArgumentException("El tamaño de los rangos debe ser mayor que 0: " + size);
+        }
+
+        List<IdRange> ranges = new ArrayList<IdRange>();
+        long from = minId;
+        while (from <= maxId)
+        {
+            long to = maxId - from < size ? maxId : from + size - 1;
+            ranges.add(new IdRange(from, to));
+            if (to == Long.MAX_VALUE)
+            {
+                break;
+            }
+            from = to + 1;
+        }
+        return ranges;
+    }
+
+    /**
+     * Devuelve el primer id del rango.
+     *
+     * @return El primer id.
+     */
+    public long getFrom()
+    {
+        return from;
+    }
+
+    /**
+     * Devuelve el ultimo id del rango.
+     *
+     * @return El ultimo id, incluido en el rango.
+     */
+    public long getTo()
+    {
+        return to;
+    }
+
+    /**
+     * Compara dos rangos.
+     *
+     * @param o El otro objeto.
+     * @return true si tiene los mismos extremos.
+     */
+    @Override
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof IdRange))
+        {
+            return false;
+        }
+        IdRange other = (IdRange) o;
+        return from == other.from && to == other.to;
+    }
+
+    /**
+     * Devuelve el hashCode del rango.
+     *
+     * @return El hashCode del rango.
+     */
+    @Override
+    public int hashCode()
+    {
+        return (int) (from ^ (from >>> 32)) * 31 + (int) (to ^ (to >>> 32));
+    }
+
+    /**
+     * Devuelve la representacion del rango.
+     *
+     * @return La representacion del rango.
+     */
+    @Override
+    public String toString()
+    {
+        return "[" + from + "-" + to + "]";
+    }
+}
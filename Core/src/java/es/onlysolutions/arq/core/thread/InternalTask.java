@@ -11,8 +11,13 @@ import org.apache.commons.logging.Log;
  * Esta clase proporciona la logica necesaria para permitir la parada de los threads, de ahi el cambio en la nomenclatura.
  * Todas las tareas deberan introducir como condici�n de parada del Thread el metodo #notInterrupted, ademas de las que se consideren necearias.
  *
+ * Tras un fallo la tarea se reintenta con el retardo de la RetryPolicy de la configuracion, y tras varios fallos
+ * seguidos se abre su circuito durante un tiempo en lugar de detenerse.
+ * Cada tarea ocupa un Thread propio. Para tareas periodicas es preferible registrar un Runnable en el TaskScheduler.
+ *
  * @see #notInterrupted()
  * @see Thread
+ * @see es.onlysolutions.arq.core.thread.TaskScheduler
  */
 public abstract class InternalTask extends Thread
 {
@@ -25,7 +30,17 @@ public abstract class InternalTask extends Thread
     /**
      * Variable booleana que indicar� cuando sobre el Thread ha sido establecida la se�al de parada.
      */
-    private boolean isInterrupted = false;
+    private volatile boolean isInterrupted = false;
+
+    /**
+     * Las estadisticas de ejecucion de la tarea.
+     */
+    private final TaskStatistics statistics = new TaskStatistics();
+
+    /**
+     * El estado del circuito de la tarea.
+     */
+    private volatile ScheduledTask.CircuitState circuitState = ScheduledTask.CircuitState.CLOSED;
 
     /**
      * <b>�ste metodo debe ser invocado como parte de la condic�n de parada del Thread.</b>
@@ -74,10 +89,13 @@ public abstract class InternalTask extends Thread
     @Override
     public final void run()
     {
+        RetryPolicy retryPolicy = RetryPolicy.fromConfiguration();
         int numeroFallos = 0;
-        int maxNumFallos = Configuracion.getInteger("internalTask.maxNumFallos");
         while (notInterrupted())
         {
+            Throwable error = null;
+            boolean failed = false;
+            long startTime = System.currentTimeMillis();
             try
             {
                 executeTask();
@@ -85,21 +103,59 @@ public abstract class InternalTask extends Thread
             catch (InternalTaskException e)
             {
                 logger.error("Se ha producido un error controlado durante la ejecucion de la tarea", e);
+                error = e;
             }
             catch (Throwable e)
             {
                 logger.error("Se ha producido un error interno durante la tarea " + getClass().getName(), e);
-                numeroFallos++;
+                error = e;
+                failed = true;
             }
+            statistics.record(startTime, startTime, System.currentTimeMillis(), error);
 
-            if (numeroFallos > maxNumFallos)
+            if (failed)
+            {
+                numeroFallos++;
+                if (numeroFallos >= retryPolicy.getFailureThreshold())
+                {
+                    logger.warn("La tarea " + getClass().getName() + " ha fallado " + numeroFallos + " veces seguidas. Se abre su circuito durante " + retryPolicy.getOpenTime() + " ms");
+                    circuitState = ScheduledTask.CircuitState.OPEN;
+                    waitWhileNotInterrupted(retryPolicy.getOpenTime());
+                    circuitState = ScheduledTask.CircuitState.HALF_OPEN;
+                }
+                else
+                {
+                    waitWhileNotInterrupted(retryPolicy.getRetryDelay(numeroFallos));
+                }
+            }
+            else
             {
-                logger.warn("La tarea " + getClass().getName() + " ha fallado mas de " + maxNumFallos + " veces. Se establece una se�al de parada en la tarea");
-                interruptThread();
+                numeroFallos = 0;
+                circuitState = ScheduledTask.CircuitState.CLOSED;
             }
         }
     }
 
+    /**
+     * Devuelve las estadisticas de ejecucion de la tarea.
+     *
+     * @return Las estadisticas de la tarea.
+     */
+    public TaskStatistics getStatistics()
+    {
+        return statistics;
+    }
+
+    /**
+     * Devuelve el estado del circuito de la tarea.
+     *
+     * @return El estado del circuito.
+     */
+    public ScheduledTask.CircuitState getCircuitState()
+    {
+        return circuitState;
+    }
+
     /**
      * Accion que ejecutara �sta tarea. �ste metodo no debe controlar la parada ni bloqueo de la tarea, dicha tarea
      * se delega en el ThreadManager.<br>
@@ -125,13 +181,23 @@ public abstract class InternalTask extends Thread
     protected void sleepTask()
     {
         Integer sleepTime = Configuracion.getInteger("aeatlasTask.sleepTime");
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("La tarea se duerme durante " + sleepTime + " minutos");
+        }
+        sleepTask(getMillisFromMinutes(sleepTime));
+    }
+
+    /**
+     * Realiza un sleep de la tarea durante los milisegundos indicados.
+     *
+     * @param millis El tiempo a dormir en milisegundos.
+     */
+    protected void sleepTask(long millis)
+    {
         try
         {
-            if (logger.isDebugEnabled())
-            {
-                logger.debug("La tarea se duerme durante " + sleepTime + " minutos");
-            }
-            sleep(getMillisFromMinutes(sleepTime));
+            sleep(millis);
         }
         catch (InterruptedException e)
         {
@@ -140,6 +206,22 @@ public abstract class InternalTask extends Thread
         }
     }
 
+    /**
+     * Espera el tiempo indicado tras un fallo, comprobando cada segundo si se ha establecido la señal de parada.
+     *
+     * @param millis El tiempo a esperar en milisegundos.
+     */
+    private void waitWhileNotInterrupted(long millis)
+    {
+        long end = System.currentTimeMillis() + millis;
+        long remaining = millis;
+        while (remaining > 0 && notInterrupted() && !isInterrupted())
+        {
+            sleepTask(Math.min(remaining, 1000));
+            remaining = end - System.currentTimeMillis();
+        }
+    }
+
     /**
      * Obtiene los milisegundos correspondiente a los minutos pasados como parametros.
      *
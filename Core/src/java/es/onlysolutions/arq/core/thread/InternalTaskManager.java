@@ -5,12 +5,18 @@ import es.onlysolutions.arq.core.log.LoggerGenerator;
 import es.onlysolutions.arq.core.thread.exception.RegisterThreadException;
 import org.apache.commons.logging.Log;
 
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Manager de Threads que permite registrar y desregitrar Threads asi como mantener su estado.
+ * Para tareas periodicas es preferible el TaskScheduler, que no necesita un Thread por tarea.
+ *
+ * @see es.onlysolutions.arq.core.thread.TaskScheduler
  */
 public class InternalTaskManager
 {
@@ -22,7 +28,7 @@ public class InternalTaskManager
     /**
      * Mapa de los InternalTask registrados en el InternalTaskManager.
      */
-    private Map<String, InternalTask> threads = new HashMap<String, InternalTask>(10);
+    private final ConcurrentMap<String, InternalTask> threads = new ConcurrentHashMap<String, InternalTask>(10);
 
     /**
      * Instancia del singleton.
@@ -48,8 +54,10 @@ public class InternalTaskManager
      */
     public void registerTask(String taskName, InternalTask thread)
     {
-        checkNotExistThread(taskName);
-        this.threads.put(taskName, thread);
+        if (this.threads.putIfAbsent(taskName, thread) != null)
+        {
+            throw new RegisterThreadException("El nombre de Thread: " + taskName + " ya esta registrado");
+        }
 
         if (logger.isDebugEnabled())
         {
@@ -86,8 +94,6 @@ public class InternalTaskManager
         {
             logger.info("La tarea de nombre: " + taskName + " asociada al Thread: " + task.getName() + " ha sido arrancada");
         }
-
-        this.threads.put(taskName, task);
     }
 
 
@@ -109,8 +115,6 @@ public class InternalTaskManager
             {
                 logger.info("Sobre el thread " + thread.getName() + " se ha establecido la se�al de parada");
             }
-
-            this.threads.put(taskName, thread);
         }
     }
 
@@ -142,17 +146,24 @@ public class InternalTaskManager
     }
 
     /**
-     * Comprueba que el nombre del Thread no exista actualmente en el mapa de threads, y lanza una excepcion
-     * en caso de que exista uno con el mismo nombre.
+     * Devuelve los nombres de las tareas registradas.
      *
-     * @param taskName El nombre del Thread a comprobar.
+     * @return Una copia de los nombres de las tareas registradas.
      */
-    private void checkNotExistThread(String taskName)
+    public Set<String> getTaskNames()
     {
-        if (this.threads.containsKey(taskName))
-        {
-            throw new RegisterThreadException("El nombre de Thread: " + taskName + " ya esta registrado");
-        }
+        return new TreeSet<String>(this.threads.keySet());
+    }
+
+    /**
+     * Devuelve la tarea registrada con el nombre indicado.
+     *
+     * @param taskName El nombre de la tarea.
+     * @return La tarea, o null si no existe.
+     */
+    public InternalTask getTask(String taskName)
+    {
+        return this.threads.get(taskName);
     }
 
     /**
@@ -0,0 +1,446 @@
+package es.onlysolutions.arq.core.thread;
+
+import es.onlysolutions.arq.core.auth.UserManager;
+import es.onlysolutions.arq.core.configuration.Configuracion;
+import es.onlysolutions.arq.core.log.LoggerGenerator;
+import es.onlysolutions.arq.core.thread.exception.PartitionException;
+import org.apache.commons.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tarea que divide su trabajo en particiones y las procesa en paralelo.<br/>
+ * La tarea define sus particiones (por ejemplo rangos de ids con {@link IdRange#split(long, long, long)}, o claves) y
+ * como se procesa cada una. El framework las reparte en un pool de Threads compartido por todas las tareas
+ * particionadas, de tamaño <b>partitionedTask.poolSize</b> (el numero de procesadores por defecto) y con prioridad
+ * menor que la normal para no quitar CPU a las peticiones. Cada ejecucion tiene como maximo
+ * <b>partitionedTask.parallelism</b> particiones en curso a la vez, o las indicadas con {@link #setParallelism(int)}.
+ * Al terminar todas se procesan los resultados, en el orden de las particiones.<br/>
+ * Es un Runnable que puede planificarse en el TaskScheduler, o ejecutarse desde el executeTask de un InternalTask.
+ * Las particiones se procesan con el usuario del UserManager del Thread que ejecuta la tarea.
+ * Si falla alguna particion, las demas terminan y se lanza una PartitionException al final. Si la tarea se cancela
+ * no se empiezan mas particiones.<br/>
+ * Si la tarea se ejecuta desde una particion de otra tarea, es decir en un Thread del pool, sus particiones se
+ * procesan una a una en ese mismo Thread, ya que esperar a otros Threads del pool podria bloquearlo por completo.
+ *
+ * @param <P> El tipo de las particiones.
+ * @param <R> El tipo del resultado de cada particion.
+ * @see es.onlysolutions.arq.core.thread.TaskScheduler
+ */
+public abstract class PartitionedTask<P, R> implements Runnable
+{
+    /**
+     * El logger de la clase.
+     */
+    private static final Log logger = LoggerGenerator.getLogger(PartitionedTask.class);
+
+    /**
+     * Propiedad con el numero de Threads del pool compartido.
+     */
+    public static final String POOL_SIZE = "partitionedTask.poolSize";
+
+    /**
+     * Propiedad con el numero maximo de particiones en curso a la vez de cada ejecucion.
+     */
+    public static final String PARALLELISM = "partitionedTask.parallelism";
+
+    /**
+     * El pool compartido por todas las tareas particionadas. Se crea al ejecutar la primera.
+     */
+    private static ThreadPoolExecutor workers;
+
+    private int parallelism;
+
+    private volatile int totalPartitions;
+
+    private final AtomicInteger completedPartitions = new AtomicInteger();
+
+    private final AtomicInteger failedPartitions = new AtomicInteger();
+
+    /**
+     * Devuelve las particiones de la ejecucion actual. Se llama al comienzo de cada ejecucion.
+     *
+     * @return Las particiones a procesar.
+     */
+    protected abstract List<P> getPartitions();
+
+    /**
+     * Procesa una particion. Se ejecuta en un Thread del pool, a la vez que otras particiones de la misma ejecucion.
+     *
+     * @param partition La particion.
+     * @return El resultado de la particion.
+     * @throws Exception Si falla el proceso de la particion.
+     */
+    protected abstract R processPartition(P partition) throws Exception;
+
+    /**
+     * Procesa los resultados de las particiones correctas, en el orden de las particiones, en el Thread de la tarea.
+     * Por defecto no hace nada.
+     *
+     * @param results Los resultados de las particiones terminadas correctamente.
+     */
+    protected void processResults(List<R> results)
+    {
+        //Por defecto no se hace nada con los resultados
+    }
+
+    /**
+     * Notifica el progreso de la ejecucion cada vez que termina una particion, en el Thread de la tarea.
+     * Por defecto lo registra en el log cada 10% de particiones.
+     *
+     * @param completed El numero de particiones terminadas, correctamente o con error.
+     * @param total     El numero total de particiones.
+     */
+    protected void onProgress(int completed, int total)
+    {
+        if (logger.isInfoEnabled() && (completed == total || completed * 10 / total != (completed - 1) * 10 / total))
+        {
+            logger.info("La tarea " + getClass().getName() + " ha procesado " + completed + " de " + total + " particiones");
+        }
+    }
+
+    /**
+     * Establece el numero maximo de particiones en curso a la vez de cada ejecucion.
+     *
+     * @param parallelism El numero de particiones, o 0 para utilizar la configuracion.
+     */
+    public void setParallelism(int parallelism)
+    {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Devuelve el numero de particiones de la ejecucion actual o de la ultima.
+     *
+     * @return El numero de particiones.
+     */
+    public int getTotalPartitions()
+    {
+        return totalPartitions;
+    }
+
+    /**
+     * Devuelve el numero de particiones terminadas, correctamente o con error, de la ejecucion actual o de la ultima.
+     *
+     * @return El numero de particiones terminadas.
+     */
+    public int getCompletedPartitions()
+    {
+        return completedPartitions.get();
+    }
+
+    /**
+     * Devuelve el numero de particiones terminadas con error de la ejecucion actual o de la ultima.
+     *
+     * @return El numero de particiones fallidas.
+     */
+    public int getFailedPartitions()
+    {
+        return failedPartitions.get();
+    }
+
+    /**
+     * Devuelve el porcentaje de particiones terminadas de la ejecucion actual o de la ultima.
+     *
+     * @return El porcentaje, entre 0 y 100.
+     */
+    public int getProgress()
+    {
+        int total = totalPartitions;
+        return total > 0 ? completedPartitions.get() * 100 / total : 100;
+    }
+
+    /**
+     * Realiza una ejecucion de la tarea.
+     *
+     * @see #execute()
+     */
+    public final void run()
+    {
+        execute();
+    }
+
+    /**
+     * Procesa en paralelo todas las particiones y despues sus resultados.
+     *
+     * @return Los resultados de las particiones terminadas correctamente, en el orden de las particiones.
+     * @throws PartitionException Si ha fallado alguna particion.
+     */
+    public List<R> execute()
+    {
+        List<P> partitions = getPartitions();
+        int total = partitions != null ? partitions.size() : 0;
+        totalPartitions = total;
+        completedPartitions.set(0);
+        failedPartitions.set(0);
+
+        if (total == 0)
+        {
+            List<R> empty = Collections.emptyList();
+            processResults(empty);
+            return empty;
+        }
+
+        Object[] results = new Object[total];
+        boolean[] done = new boolean[total];
+        Throwable firstError = Thread.currentThread() instanceof WorkerThread
+                ? processInline(partitions, results, done)
+                : processParallel(partitions, results, done);
+
+        List<R> processed = new ArrayList<R>(total - failedPartitions.get());
+        for (int i = 0; i < total; i++)
+        {
+            if (done[i])
+            {
+                processed.add(castResult(results[i]));
+            }
+        }
+        processResults(processed);
+
+        if (firstError != null)
+        {
+            throw new PartitionException("Han fallado " + failedPartitions.get() + " de " + total + " particiones de la tarea " + getClass().getName(), firstError);
+        }
+        return processed;
+    }
+
+    /**
+     * Procesa las particiones una a una en el Thread actual. Se utiliza cuando la tarea se ejecuta desde un Thread
+     * del pool.
+     *
+     * @param partitions Las particiones.
+     * @param results    Donde se guarda el resultado de cada particion.
+     * @param done       Donde se marcan las particiones terminadas correctamente.
+     * @return El error de la primera particion fallida, o null si no ha fallado ninguna.
+     */
+    private Throwable processInline(List<P> partitions, Object[] results, boolean[] done)
+    {
+        int total = partitions.size();
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("La tarea " + getClass().getName() + " procesa " + total + " particiones en el Thread " + Thread.currentThread().getName());
+        }
+
+        Throwable firstError = null;
+        for (int index = 0; index < total; index++)
+        {
+            if (isCancelled())
+            {
+                logger.warn("La tarea " + getClass().getName() + " ha sido cancelada tras procesar " + completedPartitions.get() + " de " + total + " particiones");
+                break;
+            }
+
+            try
+            {
+                results[index] = processPartition(partitions.get(index));
+                done[index] = true;
+            }
+            catch (Exception e)
+            {
+                failedPartitions.incrementAndGet();
+                logger.error("Error al procesar la particion " + partitions.get(index) + " de la tarea " + getClass().getName(), e);
+                if (firstError == null)
+                {
+                    firstError = e;
+                }
+            }
+            onProgress(completedPartitions.incrementAndGet(), total);
+        }
+        return firstError;
+    }
+
+    /**
+     * Procesa las particiones en el pool compartido, con como maximo <i>parallelism</i> en curso a la vez.
+     *
+     * @param partitions Las particiones.
+     * @param results    Donde se guarda el resultado de cada particion.
+     * @param done       Donde se marcan las particiones terminadas correctamente.
+     * @return El error de la primera particion fallida, o null si no ha fallado ninguna.
+     * @throws PartitionException Si se interrumpe el Thread de la tarea.
+     */
+    private Throwable processParallel(List<P> partitions, Object[] results, boolean[] done)
+    {
+        int total = partitions.size();
+        int limit = Math.min(getParallelism(), total);
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("La tarea " + getClass().getName() + " procesa " + total + " particiones con " + limit + " en paralelo");
+        }
+
+        CompletionService<R> completionService = new ExecutorCompletionService<R>(getWorkers());
+        UserManager userManager = UserManager.instance();
+        Map<Future<R>, Integer> indexes = new IdentityHashMap<Future<R>, Integer>();
+        Throwable firstError = null;
+        int next = 0;
+
+        try
+        {
+            while (next < total || !indexes.isEmpty())
+            {
+                while (indexes.size() < limit && next < total && !isCancelled())
+                {
+                    final P partition = partitions.get(next);
+                    Future<R> future = completionService.submit(userManager.wrap(new Callable<R>()
+                    {
+                        public R call() throws Exception
+                        {
+                            return processPartition(partition);
+                        }
+                    }));
+                    indexes.put(future, next++);
+                }
+
+                if (indexes.isEmpty())
+                {
+                    logger.warn("La tarea " + getClass().getName() + " ha sido cancelada tras procesar " + completedPartitions.get() + " de " + total + " particiones");
+                    break;
+                }
+
+                Future<R> future = completionService.take();
+                int index = indexes.remove(future);
+                try
+                {
+                    results[index] = future.get();
+                    done[index] = true;
+                }
+                catch (ExecutionException e)
+                {
+                    failedPartitions.incrementAndGet();
+                    logger.error("Error al procesar la particion " + partitions.get(index) + " de la tarea " + getClass().getName(), e.getCause());
+                    if (firstError == null)
+                    {
+                        firstError = e.getCause();
+                    }
+                }
+                onProgress(completedPartitions.incrementAndGet(), total);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            for (Future<R> future : indexes.keySet())
+            {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new PartitionException("Se ha interrumpido la tarea " + getClass().getName() + " con " + indexes.size() + " particiones en curso", e);
+        }
+        return firstError;
+    }
+
+    /**
+     * Indica si debe dejar de empezar particiones: si la tarea del TaskScheduler ha sido cancelada, el Thread
+     * interrumpido o, si se ejecuta desde un InternalTask, se ha establecido su señal de parada.
+     *
+     * @return true si no deben empezarse mas particiones.
+     */
+    protected boolean isCancelled()
+    {
+        Thread current = Thread.currentThread();
+        return TaskScheduler.isCancelled() || (current instanceof InternalTask && !((InternalTask) current).notInterrupted());
+    }
+
+    /**
+     * Devuelve el numero maximo de particiones en curso a la vez.
+     *
+     * @return El valor indicado en la tarea, o el de la propiedad <b>partitionedTask.parallelism</b>, o el tamaño
+     *         del pool.
+     */
+    private int getParallelism()
+    {
+        if (parallelism > 0)
+        {
+            return parallelism;
+        }
+        int configured = getInteger(PARALLELISM, 0);
+        return configured > 0 ? configured : getWorkers().getMaximumPoolSize();
+    }
+
+    /**
+     * Convierte un resultado al tipo de la tarea.
+     *
+     * @param result El resultado.
+     * @return El resultado convertido.
+     */
+    @SuppressWarnings("unchecked")
+    private R castResult(Object result)
+    {
+        return (R) result;
+    }
+
+    /**
+     * Devuelve el pool compartido, creandolo si aun no existe.
+     *
+     * @return El pool de Threads de las particiones.
+     */
+    private static synchronized ThreadPoolExecutor getWorkers()
+    {
+        if (workers == null)
+        {
+            int poolSize = getInteger(POOL_SIZE, Runtime.getRuntime().availableProcessors());
+            workers = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+            {
+                private final AtomicInteger threadNumber = new AtomicInteger();
+
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new WorkerThread(runnable, "PartitionedTask-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+            workers.allowCoreThreadTimeOut(true);
+
+            if (logger.isInfoEnabled())
+            {
+                logger.info("Creado el pool de " + poolSize + " Threads de las tareas particionadas");
+            }
+        }
+        return workers;
+    }
+
+    /**
+     * Lee una propiedad numerica positiva de la configuracion.
+     *
+     * @param propertyName El nombre de la propiedad.
+     * @param defaultValue El valor si la propiedad no existe, no es positiva o no se puede leer.
+     * @return El valor de la propiedad.
+     */
+    private static int getInteger(String propertyName, int defaultValue)
+    {
+        try
+        {
+            Integer value = Configuracion.getInteger(propertyName);
+            return value != null && value > 0 ? value : defaultValue;
+        }
+        catch (RuntimeException e)
+        {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Thread del pool compartido, para reconocer las tareas que se ejecutan desde una particion.
+     */
+    private static final class WorkerThread extends Thread
+    {
+        private WorkerThread(Runnable target, String name)
+        {
+            super(target, name);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package es.onlysolutions.arq.core.thread;
+
+import es.onlysolutions.arq.core.configuration.Configuracion;
+
+import java.util.Random;
+
+/**
+ * Politica de reintentos y de circuit breaker de las tareas del TaskScheduler.<br/>
+ * Tras un fallo, la tarea se reintenta con un retardo exponencial: <i>initialDelay * multiplier^(fallos-1)</i>,
+ * limitado a <i>maxDelay</i> y reducido aleatoriamente hasta un <i>jitter</i> por uno para que las tareas que fallan
+ * a la vez no se reintenten a la vez.<br/>
+ * Tras <i>failureThreshold</i> fallos seguidos el circuito se abre: la tarea no se ejecuta durante <i>openTime</i>,
+ * tras el cual se hace una ejecucion de prueba. Si termina bien el circuito se cierra y la tarea vuelve a su trigger,
+ * y si falla se vuelve a abrir.
+ *
+ * @see #fromConfiguration()
+ */
+public class RetryPolicy
+{
+    /**
+     * Propiedad con el retardo del primer reintento en milisegundos.
+     */
+    public static final String INITIAL_DELAY = "taskScheduler.retry.initialDelay";
+
+    /**
+     * Propiedad con el retardo maximo de los reintentos en milisegundos.
+     */
+    public static final String MAX_DELAY = "taskScheduler.retry.maxDelay";
+
+    /**
+     * Propiedad con el numero de fallos seguidos que abren el circuito.
+     */
+    public static final String FAILURE_THRESHOLD = "internalTask.maxNumFallos";
+
+    /**
+     * Propiedad con el tiempo que permanece abierto el circuito en milisegundos.
+     */
+    public static final String OPEN_TIME = "taskScheduler.circuit.openTime";
+
+    private static final long DEFAULT_INITIAL_DELAY = 1000;
+
+    private static final long DEFAULT_MAX_DELAY = 5 * 60 * 1000;
+
+    private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    private static final long DEFAULT_OPEN_TIME = 10 * 60 * 1000;
+
+    private static final Random random = new Random();
+
+    private final long initialDelay;
+
+    private final long maxDelay;
+
+    private final double multiplier;
+
+    private final double jitter;
+
+    private final int failureThreshold;
+
+    private final long openTime;
+
+    /**
+     * Crea la politica con los valores indicados.
+     *
+     * @param initialDelay     El retardo del primer reintento en milisegundos.
+     * @param maxDelay         El retardo maximo de los reintentos en milisegundos.
+     * @param multiplier       El factor por el que se multiplica el retardo en cada fallo. Debe ser al menos 1.
+     * @param jitter           La fraccion maxima, entre 0 y 1, en la que se reduce aleatoriamente cada retardo.
+     * @param failureThreshold El numero de fallos seguidos que abren el circuito.
+     * @param openTime         El tiempo que permanece abierto el circuito en milisegundos.
+     */
+    public RetryPolicy(long initialDelay, long maxDelay, double multiplier, double jitter, int failureThreshold, long openTime)
+    {
+        if (multiplier < 1 || jitter < 0 || jitter > 1 || failureThreshold < 1)
+        {
+            throw new IllegalArgumentException("Politica de reintentos no valida: multiplier=" + multiplier + ", jitter=" + jitter + ", failureThreshold=" + failureThreshold);
+        }
+        this.initialDelay = Math.max(0, initialDelay);
+        this.maxDelay = Math.max(this.initialDelay, maxDelay);
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.failureThreshold = failureThreshold;
+        this.openTime = Math.max(0, openTime);
+    }
+
+    /**
+     * Crea la politica con los valores de la configuracion: <b>taskScheduler.retry.initialDelay</b> (1 segundo por
+     * defecto), <b>taskScheduler.retry.maxDelay</b> (5 minutos), <b>internalTask.maxNumFallos</b> (5 fallos) y
+     * <b>taskScheduler.circuit.openTime</b> (10 minutos), con multiplicador 2 y jitter 0.5. Un numero de fallos
+     * menor que 1 se toma como 1.
+     *
+     * @return La politica configurada.
+     */
+    public static RetryPolicy fromConfiguration()
+    {
+        return new RetryPolicy(getLong(INITIAL_DELAY, DEFAULT_INITIAL_DELAY), getLong(MAX_DELAY, DEFAULT_MAX_DELAY), 2, 0.5,
+                               (int) Math.max(1, getLong(FAILURE_THRESHOLD, DEFAULT_FAILURE_THRESHOLD)), getLong(OPEN_TIME, DEFAULT_OPEN_TIME));
+    }
+
+    /**
+     * Devuelve el retardo hasta el reintento tras el numero de fallos seguidos indicado.
+     *
+     * @param failures El numero de fallos seguidos, a partir de 1.
+     * @return El retardo en milisegundos.
+     */
+    public long getRetryDelay(int failures)
+    {
+        double delay = initialDelay * Math.pow(multiplier, Math.max(0, failures - 1));
+        delay = Math.min(delay, maxDelay);
+        return (long) (delay * (1 - jitter * random.nextDouble()));
+    }
+
+    /**
+     * Devuelve el numero de fallos seguidos que abren el circuito.
+     *
+     * @return El numero de fallos.
+     */
+    public int getFailureThreshold()
+    {
+        return failureThreshold;
+    }
+
+    /**
+     * Devuelve el tiempo que permanece abierto el circuito.
+     *
+     * @return El tiempo en milisegundos.
+     */
+    public long getOpenTime()
+    {
+        return openTime;
+    }
+
+    /**
+     * Lee una propiedad numerica de la configuracion.
+     *
+     * @param propertyName El nombre de la propiedad.
+     * @param defaultValue El valor si la propiedad no existe o no se puede leer.
+     * @return El valor de la propiedad.
+     */
+    private static long getLong(String propertyName, long defaultValue)
+    {
+        try
+        {
+            Integer value = Configuracion.getInteger(propertyName);
+            return value != null && value >= 0 ? value : defaultValue;
+        }
+        catch (RuntimeException e)
+        {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Devuelve la descripcion de la politica.
+     *
+     * @return La descripcion de la politica.
+     */
+    @Override
+    public String toString()
+    {
+        return "retry(" + initialDelay + "-" + maxDelay + "ms, x" + multiplier + ", jitter " + jitter + ", circuit " + failureThreshold + " fallos/" + openTime + "ms)";
+    }
+}
@@ -0,0 +1,373 @@
+package es.onlysolutions.arq.core.thread;
+
+import es.onlysolutions.arq.core.log.LoggerGenerator;
+import es.onlysolutions.arq.core.thread.exception.InternalTaskException;
+import org.apache.commons.logging.Log;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tarea registrada en el TaskScheduler. Envuelve el Runnable de la tarea con su trigger y su estado.<br/>
+ * Cada ejecucion se planifica al terminar la anterior, por lo que nunca se ejecutan a la vez dos ejecuciones de la
+ * misma tarea y ninguna tarea ocupa un Thread mientras espera.<br/>
+ * La cancelacion es cooperativa: impide las siguientes ejecuciones, y las tareas largas pueden consultar
+ * {@link TaskScheduler#isCancelled()} para terminar antes la ejecucion en curso.<br/>
+ * Los fallos no cancelan la tarea: se reintenta segun su RetryPolicy, con retardo exponencial, y tras varios fallos
+ * seguidos se abre su circuito hasta una ejecucion de prueba. Sus estadisticas se consultan con
+ * {@link #getStatistics()} o por JMX.
+ *
+ * @see es.onlysolutions.arq.core.thread.RetryPolicy
+ *
+ * @see es.onlysolutions.arq.core.thread.TaskScheduler
+ */
+public final class ScheduledTask
+{
+    /**
+     * El logger de la clase.
+     */
+    private static final Log logger = LoggerGenerator.getLogger(ScheduledTask.class);
+
+    private final String name;
+
+    private final Runnable task;
+
+    private final ITrigger trigger;
+
+    private final RetryPolicy retryPolicy;
+
+    private final TaskScheduler scheduler;
+
+    private final TaskStatistics statistics = new TaskStatistics();
+
+    private volatile boolean cancelled;
+
+    private volatile boolean running;
+
+    private volatile Future<?> future;
+
+    private volatile long nextExecutionTime = -1;
+
+    private volatile long lastCompletionTime = -1;
+
+    private volatile CircuitState circuitState = CircuitState.CLOSED;
+
+    private volatile int consecutiveFailures;
+
+    /**
+     * Estados del circuito de la tarea.
+     */
+    public static enum CircuitState
+    {
+        /**
+         * La tarea se ejecuta segun su trigger.
+         */
+        CLOSED,
+
+        /**
+         * La tarea ha fallado demasiadas veces seguidas y no se ejecuta hasta pasado el tiempo de apertura.
+         */
+        OPEN,
+
+        /**
+         * Se esta realizando la ejecucion de prueba tras el tiempo de apertura.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Crea la tarea. Solo la crea el TaskScheduler.
+     *
+     * @param name        El nombre de la tarea.
+     * @param task        La accion de la tarea.
+     * @param trigger     El trigger que define sus ejecuciones.
+     * @param retryPolicy La politica de reintentos tras un fallo.
+     * @param scheduler   El TaskScheduler que la ejecuta.
+     */
+    ScheduledTask(String name, Runnable task, ITrigger trigger, RetryPolicy retryPolicy, TaskScheduler scheduler)
+    {
+        this.name = name;
+        this.task = task;
+        this.trigger = trigger;
+        this.retryPolicy = retryPolicy;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Devuelve el nombre de la tarea.
+     *
+     * @return El nombre bajo el que se registro la tarea.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Devuelve la accion de la tarea.
+     *
+     * @return El Runnable de la tarea.
+     */
+    public Runnable getTask()
+    {
+        return task;
+    }
+
+    /**
+     * Devuelve el trigger de la tarea.
+     *
+     * @return El trigger que define sus ejecuciones.
+     */
+    public ITrigger getTrigger()
+    {
+        return trigger;
+    }
+
+    /**
+     * Devuelve la politica de reintentos de la tarea.
+     *
+     * @return La politica de reintentos.
+     */
+    public RetryPolicy getRetryPolicy()
+    {
+        return retryPolicy;
+    }
+
+    /**
+     * Indica si la tarea ha sido cancelada.
+     *
+     * @return true si la tarea no debe ejecutarse mas.
+     */
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * Indica si la tarea se esta ejecutando en este momento.
+     *
+     * @return true si hay una ejecucion en curso.
+     */
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * Devuelve el instante de la siguiente ejecucion.
+     *
+     * @return El instante en milisegundos, o -1 si no hay ninguna planificada.
+     */
+    public long getNextExecutionTime()
+    {
+        return nextExecutionTime;
+    }
+
+    /**
+     * Devuelve el instante en el que termino la ultima ejecucion.
+     *
+     * @return El instante en milisegundos, o -1 si aun no se ha ejecutado.
+     */
+    public long getLastCompletionTime()
+    {
+        return lastCompletionTime;
+    }
+
+    /**
+     * Devuelve las estadisticas de ejecucion de la tarea.
+     *
+     * @return Las estadisticas de la tarea.
+     */
+    public TaskStatistics getStatistics()
+    {
+        return statistics;
+    }
+
+    /**
+     * Devuelve el estado del circuito de la tarea.
+     *
+     * @return El estado del circuito.
+     */
+    public CircuitState getCircuitState()
+    {
+        return circuitState;
+    }
+
+    /**
+     * Devuelve el numero de fallos seguidos de la tarea.
+     *
+     * @return El numero de fallos desde la ultima ejecucion correcta.
+     */
+    public int getConsecutiveFailures()
+    {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Cierra el circuito de la tarea y, si estaba esperando un reintento o el fin del tiempo de apertura, la ejecuta
+     * inmediatamente.
+     */
+    public void resetCircuit()
+    {
+        boolean waiting = circuitState != CircuitState.CLOSED || consecutiveFailures > 0;
+        consecutiveFailures = 0;
+        circuitState = CircuitState.CLOSED;
+
+        Future<?> scheduled = future;
+        if (waiting && !cancelled && !running && scheduled != null && scheduled.cancel(false))
+        {
+            scheduler.scheduleExecution(this, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Cancela la tarea: no se vuelve a ejecutar y se elimina del TaskScheduler. La ejecucion en curso, si la hay, no
+     * se interrumpe.
+     */
+    public void cancel()
+    {
+        scheduler.cancel(this);
+    }
+
+    /**
+     * Marca la tarea como cancelada y anula su siguiente ejecucion.
+     */
+    synchronized void markCancelled()
+    {
+        cancelled = true;
+        nextExecutionTime = -1;
+        Future<?> scheduled = future;
+        if (scheduled != null)
+        {
+            scheduled.cancel(false);
+        }
+    }
+
+    /**
+     * Planifica la siguiente ejecucion en el executor. Se sincroniza para que, si la ejecucion empieza antes de
+     * guardar su Future, la siguiente no se planifique hasta haberlo guardado.
+     *
+     * @param executionTime El instante de la ejecucion.
+     * @param executor      El executor del TaskScheduler.
+     */
+    synchronized void scheduleNext(final long executionTime, ScheduledExecutorService executor)
+    {
+        if (cancelled)
+        {
+            return;
+        }
+
+        this.nextExecutionTime = executionTime;
+        long delay = Math.max(0, executionTime - System.currentTimeMillis());
+        this.future = executor.schedule(new Runnable()
+        {
+            public void run()
+            {
+                execute(executionTime);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Realiza una ejecucion de la tarea y planifica la siguiente. Los errores se registran en el log; las
+     * InternalTaskException no cuentan como fallo. Tras un fallo la siguiente ejecucion es un reintento, y tras
+     * demasiados fallos seguidos se abre el circuito.
+     *
+     * @param scheduledTime El instante en el que estaba planificada la ejecucion.
+     */
+    private void execute(long scheduledTime)
+    {
+        if (cancelled)
+        {
+            return;
+        }
+
+        if (circuitState == CircuitState.OPEN)
+        {
+            circuitState = CircuitState.HALF_OPEN;
+        }
+
+        Throwable error = null;
+        boolean failed = false;
+        long startTime = System.currentTimeMillis();
+        running = true;
+        TaskScheduler.setCurrentTask(this);
+        try
+        {
+            task.run();
+        }
+        catch (InternalTaskException e)
+        {
+            logger.error("Se ha producido un error controlado durante la ejecucion de la tarea " + name, e);
+            error = e;
+        }
+        catch (Throwable e)
+        {
+            logger.error("Se ha producido un error interno durante la tarea " + name, e);
+            error = e;
+            failed = true;
+        }
+        finally
+        {
+            TaskScheduler.setCurrentTask(null);
+            running = false;
+            lastCompletionTime = System.currentTimeMillis();
+            statistics.record(scheduledTime, startTime, lastCompletionTime, error);
+        }
+
+        if (cancelled)
+        {
+            return;
+        }
+
+        long next;
+        if (failed)
+        {
+            consecutiveFailures++;
+            if (circuitState == CircuitState.HALF_OPEN || consecutiveFailures >= retryPolicy.getFailureThreshold())
+            {
+                circuitState = CircuitState.OPEN;
+                next = lastCompletionTime + retryPolicy.getOpenTime();
+                logger.warn("La tarea " + name + " ha fallado " + consecutiveFailures + " veces seguidas. Se abre su circuito durante " + retryPolicy.getOpenTime() + " ms");
+            }
+            else
+            {
+                next = lastCompletionTime + retryPolicy.getRetryDelay(consecutiveFailures);
+            }
+        }
+        else
+        {
+            if (circuitState != CircuitState.CLOSED && logger.isInfoEnabled())
+            {
+                logger.info("La tarea " + name + " se ha ejecutado correctamente. Se cierra su circuito");
+            }
+            circuitState = CircuitState.CLOSED;
+            consecutiveFailures = 0;
+
+            next = trigger.getNextExecutionTime(scheduledTime, lastCompletionTime);
+            if (next < 0)
+            {
+                if (logger.isInfoEnabled())
+                {
+                    logger.info("La tarea " + name + " no tiene mas ejecuciones planificadas");
+                }
+                cancel();
+                return;
+            }
+        }
+
+        scheduler.scheduleExecution(this, next);
+    }
+
+    /**
+     * Devuelve la descripcion de la tarea.
+     *
+     * @return La descripcion de la tarea.
+     */
+    @Override
+    public String toString()
+    {
+        return name + " " + trigger;
+    }
+}
@@ -0,0 +1,130 @@
+package es.onlysolutions.arq.core.thread;
+
+import es.onlysolutions.arq.core.mbean.TaskMonitorMBean;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Implementacion del MBean con el estado de las tareas en segundo plano.
+ */
+public class TaskMonitor implements TaskMonitorMBean
+{
+    public List<String> getTasks()
+    {
+        return describeTasks(false);
+    }
+
+    public List<String> getFailingTasks()
+    {
+        return describeTasks(true);
+    }
+
+    public String getTaskDetail(String taskName)
+    {
+        ScheduledTask scheduledTask = TaskScheduler.instance().getTask(taskName);
+        if (scheduledTask != null)
+        {
+            return describe(taskName, scheduledTask.getCircuitState(), scheduledTask.getStatistics())
+                   + " | trigger " + scheduledTask.getTrigger()
+                   + " | siguiente " + formatTime(scheduledTask.getNextExecutionTime())
+                   + " | " + scheduledTask.getRetryPolicy()
+                   + " | ultimo error " + scheduledTask.getStatistics().getLastError()
+                   + " | duraciones " + scheduledTask.getStatistics().getDurationHistogram();
+        }
+
+        InternalTask internalTask = InternalTaskManager.instance().getTask(taskName);
+        if (internalTask != null)
+        {
+            return describe(taskName, internalTask.getCircuitState(), internalTask.getStatistics())
+                   + " | Thread " + internalTask.getName() + (internalTask.isAlive() ? " arrancado" : " parado")
+                   + " | ultimo error " + internalTask.getStatistics().getLastError()
+                   + " | duraciones " + internalTask.getStatistics().getDurationHistogram();
+        }
+
+        return "No existe la tarea " + taskName;
+    }
+
+    public String resetCircuit(String taskName)
+    {
+        ScheduledTask scheduledTask = TaskScheduler.instance().getTask(taskName);
+        if (scheduledTask == null)
+        {
+            return "No existe la tarea " + taskName + " en el TaskScheduler";
+        }
+        scheduledTask.resetCircuit();
+        return "Operacion completada";
+    }
+
+    public String cancelTask(String taskName)
+    {
+        return TaskScheduler.instance().cancel(taskName) ? "Operacion completada" : "No existe la tarea " + taskName + " en el TaskScheduler";
+    }
+
+    /**
+     * Obtiene el resumen de las tareas del TaskScheduler y del InternalTaskManager.
+     *
+     * @param onlyFailing true para incluir solo las tareas con fallos.
+     * @return El resumen de cada tarea.
+     */
+    private List<String> describeTasks(boolean onlyFailing)
+    {
+        List<String> result = new ArrayList<String>();
+        for (ScheduledTask task : TaskScheduler.instance().getTasks())
+        {
+            if (!onlyFailing || isFailing(task.getCircuitState(), task.getStatistics()))
+            {
+                result.add(describe(task.getName(), task.getCircuitState(), task.getStatistics()));
+            }
+        }
+
+        InternalTaskManager manager = InternalTaskManager.instance();
+        for (String taskName : manager.getTaskNames())
+        {
+            InternalTask task = manager.getTask(taskName);
+            if (task != null && (!onlyFailing || isFailing(task.getCircuitState(), task.getStatistics())))
+            {
+                result.add(describe(taskName, task.getCircuitState(), task.getStatistics()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Indica si una tarea tiene fallos.
+     *
+     * @param state      El estado del circuito de la tarea.
+     * @param statistics Las estadisticas de la tarea.
+     * @return true si la ultima ejecucion fallo o el circuito no esta cerrado.
+     */
+    private static boolean isFailing(ScheduledTask.CircuitState state, TaskStatistics statistics)
+    {
+        return state != ScheduledTask.CircuitState.CLOSED || (statistics.getExecutions() > 0 && !statistics.isLastSuccess());
+    }
+
+    /**
+     * Obtiene la representacion de una tarea.
+     *
+     * @param taskName   El nombre de la tarea.
+     * @param state      El estado del circuito de la tarea.
+     * @param statistics Las estadisticas de la tarea.
+     * @return La representacion de la tarea.
+     */
+    private static String describe(String taskName, ScheduledTask.CircuitState state, TaskStatistics statistics)
+    {
+        return taskName + " | " + state + " | ultima " + formatTime(statistics.getLastStartTime()) + " (" + statistics.getLastDuration() + "ms) | " + statistics;
+    }
+
+    /**
+     * Formatea un instante.
+     *
+     * @param time El instante en milisegundos.
+     * @return El instante formateado, o '-' si es negativo.
+     */
+    private static String formatTime(long time)
+    {
+        return time < 0 ? "-" : new SimpleDateFormat("dd/MM/yyyy HH:mm:ss").format(new Date(time));
+    }
+}
@@ -0,0 +1,378 @@
+package es.onlysolutions.arq.core.thread;
+
+import es.onlysolutions.arq.core.configuration.Configuracion;
+import es.onlysolutions.arq.core.log.LoggerGenerator;
+import es.onlysolutions.arq.core.thread.exception.RegisterThreadException;
+import org.apache.commons.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Planificador de tareas periodicas sobre un unico ScheduledExecutorService compartido.<br/>
+ * A diferencia de InternalTaskManager, las tareas son simples Runnable que no ocupan un Thread propio: cada ejecucion
+ * se planifica segun su ITrigger (periodo fijo, retardo fijo o expresion cron) y se ejecuta en un pool reducido de
+ * <b>taskScheduler.poolSize</b> Threads (4 por defecto), por lo que pueden registrarse cientos de tareas.<br/>
+ * Ejemplo:<br/>
+ * TaskScheduler.instance().schedule("limpieza", new LimpiezaTask(), new CronTrigger("0 2 * * *"));
+ *
+ * @see es.onlysolutions.arq.core.thread.ScheduledTask
+ */
+public class TaskScheduler
+{
+    /**
+     * El logger de la clase.
+     */
+    private static final Log logger = LoggerGenerator.getLogger(TaskScheduler.class);
+
+    /**
+     * Propiedad con el numero de Threads del pool.
+     */
+    public static final String POOL_SIZE = "taskScheduler.poolSize";
+
+    /**
+     * Numero de Threads del pool si no se configura.
+     */
+    private static final int DEFAULT_POOL_SIZE = 4;
+
+    /**
+     * Instancia del singleton.
+     */
+    private static final TaskScheduler instance = new TaskScheduler();
+
+    /**
+     * La tarea que se esta ejecutando en cada Thread del pool.
+     */
+    private static final ThreadLocal<ScheduledTask> currentTask = new ThreadLocal<ScheduledTask>();
+
+    /**
+     * Las tareas registradas por nombre.
+     */
+    private final ConcurrentMap<String, ScheduledTask> tasks = new ConcurrentHashMap<String, ScheduledTask>();
+
+    /**
+     * El executor compartido. Se crea al planificar la primera tarea.
+     */
+    private ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Constructor privado para evitar instanciacion.
+     */
+    private TaskScheduler()
+    {
+        super();
+    }
+
+    /**
+     * Metodo para localizar la instancia del singleton.
+     *
+     * @return La unica instancia en memoria del TaskScheduler.
+     */
+    public static TaskScheduler instance()
+    {
+        return instance;
+    }
+
+    /**
+     * Registra y planifica una tarea, con la politica de reintentos de la configuracion.
+     *
+     * @param taskName El nombre de la tarea. Debe ser unico y es Case Sensitive.
+     * @param task     La accion de la tarea.
+     * @param trigger  El trigger que define sus ejecuciones.
+     * @return La tarea registrada.
+     * @throws RegisterThreadException Si ya existe una tarea con ese nombre.
+     * @see RetryPolicy#fromConfiguration()
+     */
+    public ScheduledTask schedule(String taskName, Runnable task, ITrigger trigger)
+    {
+        return schedule(taskName, task, trigger, RetryPolicy.fromConfiguration());
+    }
+
+    /**
+     * Registra y planifica una tarea.
+     *
+     * @param taskName    El nombre de la tarea. Debe ser unico y es Case Sensitive.
+     * @param task        La accion de la tarea.
+     * @param trigger     El trigger que define sus ejecuciones.
+     * @param retryPolicy La politica de reintentos tras un fallo.
+     * @return La tarea registrada.
+     * @throws RegisterThreadException Si ya existe una tarea con ese nombre.
+     */
+    public ScheduledTask schedule(String taskName, Runnable task, ITrigger trigger, RetryPolicy retryPolicy)
+    {
+        if (task == null || trigger == null || retryPolicy == null)
+        {
+            throw new IllegalArgumentException("La tarea, el trigger y la politica de reintentos no pueden ser null");
+        }
+
+        ScheduledTask scheduledTask = new ScheduledTask(taskName, task, trigger, retryPolicy, this);
+        if (tasks.putIfAbsent(taskName, scheduledTask) != null)
+        {
+            throw new RegisterThreadException("El nombre de tarea: " + taskName + " ya esta registrado");
+        }
+
+        long first = trigger.getFirstExecutionTime(System.currentTimeMillis());
+        if (first < 0)
+        {
+            tasks.remove(taskName, scheduledTask);
+            throw new RegisterThreadException("La tarea: " + taskName + " no tiene ninguna ejecucion planificada con " + trigger);
+        }
+        scheduleExecution(scheduledTask, first);
+
+        if (logger.isInfoEnabled())
+        {
+            logger.info("Planificada la tarea: " + scheduledTask);
+        }
+        return scheduledTask;
+    }
+
+    /**
+     * Registra una tarea que se ejecuta con un periodo fijo.
+     *
+     * @param taskName     El nombre de la tarea.
+     * @param task         La accion de la tarea.
+     * @param initialDelay El retardo de la primera ejecucion en milisegundos.
+     * @param period       El periodo entre los inicios de las ejecuciones en milisegundos.
+     * @return La tarea registrada.
+     * @see FixedRateTrigger
+     */
+    public ScheduledTask scheduleAtFixedRate(String taskName, Runnable task, long initialDelay, long period)
+    {
+        return schedule(taskName, task, new FixedRateTrigger(initialDelay, period));
+    }
+
+    /**
+     * Registra una tarea que se ejecuta con un retardo fijo entre ejecuciones.
+     *
+     * @param taskName     El nombre de la tarea.
+     * @param task         La accion de la tarea.
+     * @param initialDelay El retardo de la primera ejecucion en milisegundos.
+     * @param delay        El retardo entre el final de una ejecucion y el inicio de la siguiente en milisegundos.
+     * @return La tarea registrada.
+     * @see FixedDelayTrigger
+     */
+    public ScheduledTask scheduleWithFixedDelay(String taskName, Runnable task, long initialDelay, long delay)
+    {
+        return schedule(taskName, task, new FixedDelayTrigger(initialDelay, delay));
+    }
+
+    /**
+     * Registra una tarea que se ejecuta segun una expresion cron.
+     *
+     * @param taskName       El nombre de la tarea.
+     * @param task           La accion de la tarea.
+     * @param cronExpression La expresion cron.
+     * @return La tarea registrada.
+     * @see CronTrigger
+     */
+    public ScheduledTask scheduleCron(String taskName, Runnable task, String cronExpression)
+    {
+        return schedule(taskName, task, new CronTrigger(cronExpression));
+    }
+
+    /**
+     * Cancela la tarea indicada y la elimina del registro. La ejecucion en curso, si la hay, no se interrumpe.
+     *
+     * @param taskName El nombre de la tarea.
+     * @return false si no existia ninguna tarea con ese nombre.
+     */
+    public boolean cancel(String taskName)
+    {
+        ScheduledTask task = tasks.get(taskName);
+        if (task == null)
+        {
+            return false;
+        }
+        cancel(task);
+        return true;
+    }
+
+    /**
+     * Devuelve la tarea registrada con el nombre indicado.
+     *
+     * @param taskName El nombre de la tarea.
+     * @return La tarea, o null si no existe.
+     */
+    public ScheduledTask getTask(String taskName)
+    {
+        return tasks.get(taskName);
+    }
+
+    /**
+     * Devuelve todas las tareas registradas.
+     *
+     * @return Una copia de las tareas registradas.
+     */
+    public Collection<ScheduledTask> getTasks()
+    {
+        return Collections.unmodifiableCollection(new ArrayList<ScheduledTask>(tasks.values()));
+    }
+
+    /**
+     * Devuelve la tarea que se esta ejecutando en el Thread actual.
+     *
+     * @return La tarea, o null si el Thread actual no esta ejecutando ninguna tarea del TaskScheduler.
+     */
+    public static ScheduledTask currentTask()
+    {
+        return currentTask.get();
+    }
+
+    /**
+     * Indica si la tarea que se esta ejecutando en el Thread actual ha sido cancelada. Las tareas largas deben
+     * consultarlo periodicamente para terminar su ejecucion.
+     *
+     * @return true si la tarea actual ha sido cancelada o el Thread ha sido interrumpido.
+     */
+    public static boolean isCancelled()
+    {
+        ScheduledTask task = currentTask.get();
+        return (task != null && task.isCancelled()) || Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Cancela todas las tareas y detiene el executor, esperando a que terminen las ejecuciones en curso como maximo
+     * el tiempo indicado. Si despues se planifica otra tarea se crea un nuevo executor.
+     *
+     * @param timeoutMillis El tiempo maximo de espera en milisegundos.
+     */
+    public void shutdown(long timeoutMillis)
+    {
+        if (logger.isInfoEnabled())
+        {
+            logger.info("Deteniendo todas las tareas . . .");
+        }
+
+        for (ScheduledTask task : tasks.values())
+        {
+            cancel(task);
+        }
+
+        ScheduledThreadPoolExecutor current;
+        synchronized (this)
+        {
+            current = executor;
+            executor = null;
+        }
+
+        if (current != null)
+        {
+            current.shutdown();
+            try
+            {
+                if (!current.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS))
+                {
+                    logger.warn("Las tareas en curso no han terminado en " + timeoutMillis + " ms. Se interrumpen");
+                    current.shutdownNow();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                current.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (logger.isInfoEnabled())
+        {
+            logger.info("Detenidas todas las tareas");
+        }
+    }
+
+    /**
+     * Cancela una tarea y la elimina del registro.
+     *
+     * @param task La tarea.
+     */
+    void cancel(ScheduledTask task)
+    {
+        task.markCancelled();
+        if (tasks.remove(task.getName(), task) && logger.isInfoEnabled())
+        {
+            logger.info("Cancelada la tarea: " + task.getName());
+        }
+    }
+
+    /**
+     * Planifica la siguiente ejecucion de una tarea.
+     *
+     * @param task          La tarea.
+     * @param executionTime El instante de la ejecucion en milisegundos.
+     */
+    void scheduleExecution(ScheduledTask task, long executionTime)
+    {
+        task.scheduleNext(executionTime, getExecutor());
+    }
+
+    /**
+     * Establece la tarea que se esta ejecutando en el Thread actual.
+     *
+     * @param task La tarea, o null al terminar su ejecucion.
+     */
+    static void setCurrentTask(ScheduledTask task)
+    {
+        if (task != null)
+        {
+            currentTask.set(task);
+        }
+        else
+        {
+            currentTask.remove();
+        }
+    }
+
+    /**
+     * Devuelve el executor compartido, creandolo si aun no existe.
+     *
+     * @return El executor.
+     */
+    private synchronized ScheduledThreadPoolExecutor getExecutor()
+    {
+        if (executor == null)
+        {
+            executor = new ScheduledThreadPoolExecutor(getPoolSize(), new ThreadFactory()
+            {
+                private final AtomicInteger threadNumber = new AtomicInteger();
+
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "TaskScheduler-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            if (logger.isInfoEnabled())
+            {
+                logger.info("Creado el pool de " + executor.getCorePoolSize() + " Threads del TaskScheduler");
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Devuelve el numero de Threads del pool.
+     *
+     * @return El valor de la propiedad <b>taskScheduler.poolSize</b>, o 4 si no se especifica.
+     */
+    private int getPoolSize()
+    {
+        try
+        {
+            Integer poolSize = Configuracion.getInteger(POOL_SIZE);
+            return poolSize != null && poolSize > 0 ? poolSize : DEFAULT_POOL_SIZE;
+        }
+        catch (RuntimeException e)
+        {
+            logger.warn("No se ha podido leer la propiedad " + POOL_SIZE + ". Se utilizan " + DEFAULT_POOL_SIZE + " Threads", e);
+            return DEFAULT_POOL_SIZE;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package es.onlysolutions.arq.core.thread;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Estadisticas de ejecucion de una tarea: ejecuciones correctas y fallidas, ultima ejecucion, histograma de
+ * duraciones y retraso de inicio respecto al instante planificado (tiempo en cola).
+ * Se actualizan sin bloqueos y pueden consultarse en cualquier momento.
+ */
+public final class TaskStatistics
+{
+    /**
+     * Limites superiores en milisegundos de los intervalos del histograma de duraciones.
+     */
+    private static final long[] HISTOGRAM_BOUNDS = {10, 100, 1000, 10000, 60000, 600000};
+
+    private final AtomicLong successes = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong totalDuration = new AtomicLong();
+
+    private final AtomicLong maxDuration = new AtomicLong();
+
+    private final AtomicLong totalLag = new AtomicLong();
+
+    private final AtomicLong maxLag = new AtomicLong();
+
+    private final AtomicLongArray durationHistogram = new AtomicLongArray(HISTOGRAM_BOUNDS.length + 1);
+
+    private volatile long lastStartTime = -1;
+
+    private volatile long lastDuration = -1;
+
+    private volatile long lastLag = -1;
+
+    private volatile boolean lastSuccess;
+
+    private volatile String lastError;
+
+    /**
+     * Registra una ejecucion.
+     *
+     * @param scheduledTime El instante en el que estaba planificada.
+     * @param startTime     El instante en el que empezo.
+     * @param endTime       El instante en el que termino.
+     * @param error         El error de la ejecucion, o null si termino correctamente.
+     */
+    void record(long scheduledTime, long startTime, long endTime, Throwable error)
+    {
+        long duration = Math.max(0, endTime - startTime);
+        long lag = Math.max(0, startTime - scheduledTime);
+
+        if (error == null)
+        {
+            successes.incrementAndGet();
+        }
+        else
+        {
+            failures.incrementAndGet();
+            lastError = error.toString();
+        }
+
+        totalDuration.addAndGet(duration);
+        updateMax(maxDuration, duration);
+        totalLag.addAndGet(lag);
+        updateMax(maxLag, lag);
+        durationHistogram.incrementAndGet(bucket(duration));
+
+        lastStartTime = startTime;
+        lastDuration = duration;
+        lastLag = lag;
+        lastSuccess = error == null;
+    }
+
+    /**
+     * Devuelve el numero de ejecuciones terminadas correctamente.
+     *
+     * @return El numero de ejecuciones correctas.
+     */
+    public long getSuccesses()
+    {
+        return successes.get();
+    }
+
+    /**
+     * Devuelve el numero de ejecuciones terminadas con error.
+     *
+     * @return El numero de ejecuciones fallidas.
+     */
+    public long getFailures()
+    {
+        return failures.get();
+    }
+
+    /**
+     * Devuelve el numero total de ejecuciones.
+     *
+     * @return El numero de ejecuciones.
+     */
+    public long getExecutions()
+    {
+        return successes.get() + failures.get();
+    }
+
+    /**
+     * Devuelve el instante de inicio de la ultima ejecucion.
+     *
+     * @return El instante en milisegundos, o -1 si aun no se ha ejecutado.
+     */
+    public long getLastStartTime()
+    {
+        return lastStartTime;
+    }
+
+    /**
+     * Devuelve la duracion de la ultima ejecucion.
+     *
+     * @return La duracion en milisegundos, o -1 si aun no se ha ejecutado.
+     */
+    public long getLastDuration()
+    {
+        return lastDuration;
+    }
+
+    /**
+     * Indica si la ultima ejecucion termino correctamente.
+     *
+     * @return true si la ultima ejecucion termino correctamente.
+     */
+    public boolean isLastSuccess()
+    {
+        return lastSuccess;
+    }
+
+    /**
+     * Devuelve el ultimo error de la tarea.
+     *
+     * @return La descripcion del ultimo error, o null si nunca ha fallado.
+     */
+    public String getLastError()
+    {
+        return lastError;
+    }
+
+    /**
+     * Devuelve la duracion media de las ejecuciones.
+     *
+     * @return La duracion media en milisegundos.
+     */
+    public long getAverageDuration()
+    {
+        long executions = getExecutions();
+        return executions > 0 ? totalDuration.get() / executions : 0;
+    }
+
+    /**
+     * Devuelve la duracion maxima de las ejecuciones.
+     *
+     * @return La duracion maxima en milisegundos.
+     */
+    public long getMaxDuration()
+    {
+        return maxDuration.get();
+    }
+
+    /**
+     * Devuelve el retraso de inicio de la ultima ejecucion respecto al instante planificado.
+     *
+     * @return El retraso en milisegundos, o -1 si aun no se ha ejecutado.
+     */
+    public long getLastLag()
+    {
+        return lastLag;
+    }
+
+    /**
+     * Devuelve el retraso medio de inicio de las ejecuciones respecto al instante planificado.
+     *
+     * @return El retraso medio en milisegundos.
+     */
+    public long getAverageLag()
+    {
+        long executions = getExecutions();
+        return executions > 0 ? totalLag.get() / executions : 0;
+    }
+
+    /**
+     * Devuelve el retraso maximo de inicio de las ejecuciones respecto al instante planificado.
+     *
+     * @return El retraso maximo en milisegundos.
+     */
+    public long getMaxLag()
+    {
+        return maxLag.get();
+    }
+
+    /**
+     * Devuelve el histograma de las duraciones de las ejecuciones.
+     *
+     * @return El numero de ejecuciones por intervalo de duracion en milisegundos.
+     */
+    public Map<String, Long> getDurationHistogram()
+    {
+        Map<String, Long> histogram = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < HISTOGRAM_BOUNDS.length; i++)
+        {
+            histogram.put("<=" + HISTOGRAM_BOUNDS[i] + "ms", durationHistogram.get(i));
+        }
+        histogram.put(">" + HISTOGRAM_BOUNDS[HISTOGRAM_BOUNDS.length - 1] + "ms", durationHistogram.get(HISTOGRAM_BOUNDS.length));
+        return histogram;
+    }
+
+    /**
+     * Devuelve el intervalo del histograma que corresponde a una duracion.
+     *
+     * @param duration La duracion en milisegundos.
+     * @return El indice del intervalo.
+     */
+    private static int bucket(long duration)
+    {
+        int i = 0;
+        while (i < HISTOGRAM_BOUNDS.length && duration > HISTOGRAM_BOUNDS[i])
+        {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Actualiza un maximo si el valor indicado es mayor.
+     *
+     * @param max   El maximo.
+     * @param value El valor.
+     */
+    private static void updateMax(AtomicLong max, long value)
+    {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+        {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Devuelve el resumen de las estadisticas.
+     *
+     * @return El resumen de las estadisticas.
+     */
+    @Override
+    public String toString()
+    {
+        return "ok=" + getSuccesses() + " error=" + getFailures() + " media=" + getAverageDuration() + "ms max=" + getMaxDuration()
+               + "ms retraso medio=" + getAverageLag() + "ms retraso max=" + getMaxLag() + "ms";
+    }
+}